@@ -0,0 +1,95 @@
+package javaxt.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//******************************************************************************
+//**  BufferPool
+//******************************************************************************
+/**
+ * A small, lock-free pool of heap ByteBuffers of a fixed size. Used by the
+ * server to read and parse requests without allocating new buffers for every
+ * request. Buffers are handed out with acquire() and must be returned with
+ * release() once they are no longer used. If the pool is empty, a new buffer
+ * is allocated. If the pool is full, released buffers are simply dropped.
+ *
+ ******************************************************************************/
+
+public class BufferPool {
+
+	private final int bufferSize;
+	private final AtomicReferenceArray<ByteBuffer> slots;
+	private final int mask;
+	private final int probes;
+
+	/** Shared pool of 8KB buffers used to read request headers and bodies. */
+	public static final BufferPool DEFAULT = new BufferPool(8192, 256);
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param bufferSize
+	 *            Capacity of the buffers in this pool.
+	 * @param maxBuffers
+	 *            Maximum number of idle buffers kept in the pool. Rounded up
+	 *            to the next power of two.
+	 */
+	public BufferPool(int bufferSize, int maxBuffers) {
+		int size = 1;
+		while (size < maxBuffers)
+			size <<= 1;
+		this.bufferSize = bufferSize;
+		this.slots = new AtomicReferenceArray<ByteBuffer>(size);
+		this.mask = size - 1;
+		this.probes = Math.min(size, 16);
+	}
+
+	// **************************************************************************
+	// ** acquire
+	// **************************************************************************
+	/**
+	 * Returns a cleared buffer from the pool or a new buffer if the pool is
+	 * empty. Only a few slots, starting at a position derived from the
+	 * current thread, are probed so that concurrent threads rarely contend
+	 * for the same slot.
+	 */
+	public ByteBuffer acquire() {
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < probes; i++) {
+			ByteBuffer buf = slots.getAndSet((start + i) & mask, null);
+			if (buf != null) {
+				buf.clear();
+				return buf;
+			}
+		}
+		return ByteBuffer.allocate(bufferSize);
+	}
+
+	// **************************************************************************
+	// ** release
+	// **************************************************************************
+	/**
+	 * Returns a buffer to the pool. Buffers that were not created by this pool
+	 * (e.g. buffers with a different capacity) are ignored.
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null || buf.capacity() != bufferSize || buf.isDirect())
+			return;
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < probes; i++) {
+			if (slots.compareAndSet((start + i) & mask, null, buf))
+				return;
+		}
+	}
+
+	// **************************************************************************
+	// ** getBufferSize
+	// **************************************************************************
+	/** Returns the capacity of the buffers in this pool. */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,323 @@
+package javaxt.http;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javaxt.http.Server.SocketConnection;
+import javaxt.http.servlet.HttpServletRequest;
+import javaxt.http.servlet.HttpServletResponse;
+import javaxt.utils.Histogram;
+
+//******************************************************************************
+//**  DefaultServerMetrics
+//******************************************************************************
+/**
+ * Default ServerMetrics used by the Server. Keeps counters and histograms in
+ * memory that can be read in-process or, once registered via
+ * registerMBean(), with any JMX client (e.g. JConsole). Counters are backed by
+ * LongAdders and the histograms do not allocate memory, so the overhead per
+ * request is a handful of atomic increments. Example:
+ *
+ * <pre>
+ * DefaultServerMetrics metrics = (DefaultServerMetrics) server.getMetrics();
+ * metrics.registerMBean("www");
+ * ...
+ * double p99 = metrics.getServiceTime99();
+ * </pre>
+ *
+ ******************************************************************************/
+
+public class DefaultServerMetrics implements ServerMetrics, DefaultServerMetricsMBean {
+
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder closedConnections = new LongAdder();
+	private final LongAdder requestCount = new LongAdder();
+	private final LongAdder keepAliveRequests = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder failedHandshakes = new LongAdder();
+
+	/** Histograms of times in microseconds. */
+	private final Histogram handshakeTime = new Histogram();
+	private final Histogram queueTime = new Histogram();
+	private final Histogram serviceTime = new Histogram();
+
+	private javax.management.ObjectName objectName;
+
+	// **************************************************************************
+	// ** onConnectionOpened
+	// **************************************************************************
+	@Override
+	public void onConnectionOpened(SocketConnection connection) {
+		acceptedConnections.increment();
+	}
+
+	// **************************************************************************
+	// ** onConnectionClosed
+	// **************************************************************************
+	@Override
+	public void onConnectionClosed(SocketConnection connection) {
+		closedConnections.increment();
+	}
+
+	// **************************************************************************
+	// ** onHandshake
+	// **************************************************************************
+	@Override
+	public void onHandshake(SocketConnection connection, long handshakeTime, boolean success) {
+		if (success)
+			this.handshakeTime.record(handshakeTime / 1000);
+		else
+			failedHandshakes.increment();
+	}
+
+	// **************************************************************************
+	// ** onDequeue
+	// **************************************************************************
+	@Override
+	public void onDequeue(SocketConnection connection, long waitTime) {
+		queueTime.record(waitTime / 1000);
+	}
+
+	// **************************************************************************
+	// ** onRequestStart
+	// **************************************************************************
+	@Override
+	public void onRequestStart(SocketConnection connection, HttpServletRequest request) {
+		requestCount.increment();
+		if (connection.getNumRequests() > 1)
+			keepAliveRequests.increment();
+	}
+
+	// **************************************************************************
+	// ** onRequestEnd
+	// **************************************************************************
+	@Override
+	public void onRequestEnd(SocketConnection connection, HttpServletRequest request, HttpServletResponse response,
+	        long serviceTime) {
+		this.serviceTime.record(serviceTime / 1000);
+	}
+
+	// **************************************************************************
+	// ** onRead
+	// **************************************************************************
+	@Override
+	public void onRead(SocketConnection connection, int numBytes) {
+		bytesRead.add(numBytes);
+	}
+
+	// **************************************************************************
+	// ** onWrite
+	// **************************************************************************
+	@Override
+	public void onWrite(SocketConnection connection, long numBytes) {
+		bytesWritten.add(numBytes);
+	}
+
+	// **************************************************************************
+	// ** Counters
+	// **************************************************************************
+
+	/** Returns the number of client connections accepted by the server. */
+	@Override
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	/** Returns the number of open client connections. */
+	@Override
+	public long getActiveConnections() {
+		return Math.max(0, acceptedConnections.sum() - closedConnections.sum());
+	}
+
+	/** Returns the number of requests passed to the servlet. */
+	@Override
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	/**
+	 * Returns the number of requests that were sent over a persistent
+	 * connection that was already used for an earlier request.
+	 */
+	@Override
+	public long getKeepAliveRequests() {
+		return keepAliveRequests.sum();
+	}
+
+	/** Returns the number of bytes received from clients. */
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	/** Returns the number of bytes sent to clients. */
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	/** Returns the number of successful SSL/TLS handshakes. */
+	@Override
+	public long getHandshakes() {
+		return handshakeTime.getCount();
+	}
+
+	/** Returns the number of SSL/TLS handshakes that failed. */
+	@Override
+	public long getFailedHandshakes() {
+		return failedHandshakes.sum();
+	}
+
+	// **************************************************************************
+	// ** Times
+	// **************************************************************************
+
+	/** Returns the average time, in milliseconds, of a successful handshake. */
+	@Override
+	public double getAverageHandshakeTime() {
+		return handshakeTime.getMean() / 1000d;
+	}
+
+	/**
+	 * Returns the average time, in milliseconds, that a request waited for a
+	 * RequestProcessor.
+	 */
+	@Override
+	public double getAverageQueueTime() {
+		return queueTime.getMean() / 1000d;
+	}
+
+	/**
+	 * Returns the 99th percentile, in milliseconds, of the time that a
+	 * request waited for a RequestProcessor.
+	 */
+	@Override
+	public double getQueueTime99() {
+		return queueTime.getPercentile(99) / 1000d;
+	}
+
+	/**
+	 * Returns the longest time, in milliseconds, that a request waited for a
+	 * RequestProcessor.
+	 */
+	@Override
+	public double getMaxQueueTime() {
+		return queueTime.getMax() / 1000d;
+	}
+
+	/**
+	 * Returns the average time, in milliseconds, spent processing a request
+	 * and sending the response.
+	 */
+	@Override
+	public double getAverageServiceTime() {
+		return serviceTime.getMean() / 1000d;
+	}
+
+	/** Returns the median service time in milliseconds. */
+	@Override
+	public double getServiceTime50() {
+		return serviceTime.getPercentile(50) / 1000d;
+	}
+
+	/** Returns the 90th percentile of the service time in milliseconds. */
+	@Override
+	public double getServiceTime90() {
+		return serviceTime.getPercentile(90) / 1000d;
+	}
+
+	/** Returns the 99th percentile of the service time in milliseconds. */
+	@Override
+	public double getServiceTime99() {
+		return serviceTime.getPercentile(99) / 1000d;
+	}
+
+	/** Returns the 99.9th percentile of the service time in milliseconds. */
+	@Override
+	public double getServiceTime999() {
+		return serviceTime.getPercentile(99.9) / 1000d;
+	}
+
+	/** Returns the longest service time in milliseconds. */
+	@Override
+	public double getMaxServiceTime() {
+		return serviceTime.getMax() / 1000d;
+	}
+
+	/**
+	 * Returns the histogram of the service times in microseconds. Can be
+	 * used to get other percentiles.
+	 */
+	public Histogram getServiceTimes() {
+		return serviceTime;
+	}
+
+	/**
+	 * Returns the histogram of the time, in microseconds, that requests
+	 * waited for a RequestProcessor.
+	 */
+	public Histogram getQueueTimes() {
+		return queueTime;
+	}
+
+	/** Returns the histogram of the handshake times in microseconds. */
+	public Histogram getHandshakeTimes() {
+		return handshakeTime;
+	}
+
+	// **************************************************************************
+	// ** reset
+	// **************************************************************************
+	/**
+	 * Used to reset the counters and histograms. The number of active
+	 * connections is kept.
+	 */
+	@Override
+	public void reset() {
+		long active = getActiveConnections();
+		acceptedConnections.reset();
+		closedConnections.reset();
+		acceptedConnections.add(active);
+		requestCount.reset();
+		keepAliveRequests.reset();
+		bytesRead.reset();
+		bytesWritten.reset();
+		failedHandshakes.reset();
+		handshakeTime.reset();
+		queueTime.reset();
+		serviceTime.reset();
+	}
+
+	// **************************************************************************
+	// ** registerMBean
+	// **************************************************************************
+	/**
+	 * Used to register the metrics with the platform MBeanServer so that they
+	 * can be read with a JMX client. The MBean is registered as
+	 * "javaxt.http:type=ServerMetrics,name=[name]". Replaces any MBean that
+	 * was registered under the same name.
+	 */
+	public synchronized void registerMBean(String name) throws javax.management.JMException {
+		unregisterMBean();
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		javax.management.ObjectName objectName = new javax.management.ObjectName("javaxt.http:type=ServerMetrics,name="
+		        + javax.management.ObjectName.quote(name));
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+
+	// **************************************************************************
+	// ** unregisterMBean
+	// **************************************************************************
+	/** Used to remove the MBean registered via registerMBean(), if any. */
+	public synchronized void unregisterMBean() throws javax.management.JMException {
+		if (objectName == null)
+			return;
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		objectName = null;
+	}
+}
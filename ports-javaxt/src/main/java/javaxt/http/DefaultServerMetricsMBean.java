@@ -0,0 +1,52 @@
+package javaxt.http;
+
+//******************************************************************************
+//**  DefaultServerMetricsMBean Interface
+//******************************************************************************
+/**
+ * JMX management interface for the DefaultServerMetrics. Times are given in
+ * milliseconds.
+ *
+ ******************************************************************************/
+
+public interface DefaultServerMetricsMBean {
+
+	public long getAcceptedConnections();
+
+	public long getActiveConnections();
+
+	public long getRequestCount();
+
+	public long getKeepAliveRequests();
+
+	public long getBytesRead();
+
+	public long getBytesWritten();
+
+	public long getHandshakes();
+
+	public long getFailedHandshakes();
+
+	public double getAverageHandshakeTime();
+
+	public double getAverageQueueTime();
+
+	public double getQueueTime99();
+
+	public double getMaxQueueTime();
+
+	public double getAverageServiceTime();
+
+	public double getServiceTime50();
+
+	public double getServiceTime90();
+
+	public double getServiceTime99();
+
+	public double getServiceTime999();
+
+	public double getMaxServiceTime();
+
+	public void reset();
+
+}
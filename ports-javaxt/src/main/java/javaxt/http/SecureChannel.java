@@ -0,0 +1,534 @@
+package javaxt.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+//******************************************************************************
+//**  SecureChannel
+//******************************************************************************
+/**
+ * Used to encrypt and decrypt SSL/TLS traffic on a SocketConnection. Wraps an
+ * SSLEngine and keeps encrypted bytes read from the socket and decrypted bytes
+ * that have not been consumed yet in pooled buffers. Every read from the
+ * socket is unwrapped into as many records as the buffers allow, so records
+ * may span reads and a single read may contain several records. Outgoing
+ * bytes are wrapped and written while holding a lock so that records are
+ * always sent in the order in which they were encrypted.
+ * <p/>
+ * Delegated tasks (e.g. certificate validation during a handshake) are run by
+ * the thread that reads or writes the data, never by a selector thread.
+ *
+ ******************************************************************************/
+
+public class SecureChannel {
+
+	private final Server.SocketConnection connection;
+	private final SSLEngine sslEngine;
+
+	/** Encrypted bytes read from the socket. Always in read mode. */
+	private ByteBuffer netIn;
+
+	/** Decrypted bytes that have not been consumed. Always in read mode. */
+	private ByteBuffer appIn;
+
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * Pool of buffers used by all secure channels. Large enough for one or two
+	 * TLS records, including records with large fragments.
+	 */
+	private static final BufferPool pool = new BufferPool(34 * 1024, 256);
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Creates a new instance of this class.
+	 *
+	 * @param sslEngine
+	 *            SSLEngine in server mode. A new engine is required for every
+	 *            connection.
+	 */
+	public SecureChannel(Server.SocketConnection connection, SSLEngine sslEngine) {
+		this.connection = connection;
+		this.sslEngine = sslEngine;
+	}
+
+	// **************************************************************************
+	// ** getSSLEngine
+	// **************************************************************************
+	public SSLEngine getSSLEngine() {
+		return sslEngine;
+	}
+
+	// **************************************************************************
+	// ** addNetworkData
+	// **************************************************************************
+	/**
+	 * Used to hand encrypted bytes that were read from the socket by the
+	 * caller (e.g. to detect a TLS handshake) to the channel.
+	 */
+	public void addNetworkData(byte[] b, int off, int len) {
+		readLock.lock();
+		try {
+			netIn = ensureCapacity(netIn, len);
+			netIn.compact();
+			netIn.put(b, off, len);
+			netIn.flip();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** handshake
+	// **************************************************************************
+	/**
+	 * Used to perform the SSL/TLS handshake. Returns once the handshake is
+	 * complete. Any application data sent by the client right after the
+	 * handshake is kept for the next read.
+	 */
+	public void handshake() throws IOException {
+		long startTime = System.nanoTime();
+		boolean success = false;
+		readLock.lock();
+		try {
+			sslEngine.beginHandshake();
+			HandshakeStatus status = sslEngine.getHandshakeStatus();
+			while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+				switch (status) {
+				case NEED_TASK:
+					status = runDelegatedTasks();
+					break;
+				case NEED_WRAP:
+					status = wrapHandshake();
+					break;
+				default: // NEED_UNWRAP
+					SSLEngineResult result = unwrap();
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+						throw new SSLException("Connection closed during handshake.");
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+						readNetworkData();
+					status = sslEngine.getHandshakeStatus();
+					break;
+				}
+			}
+			success = true;
+		} finally {
+			readLock.unlock();
+			connection.getMetrics().onHandshake(connection, System.nanoTime() - startTime, success);
+		}
+	}
+
+	// **************************************************************************
+	// ** read
+	// **************************************************************************
+	/**
+	 * Returns a buffer with decrypted bytes. Reads and unwraps more bytes from
+	 * the socket if there are no decrypted bytes left. Blocks until at least
+	 * one byte is available. Callers consume bytes by reading from the buffer
+	 * (i.e. advancing its position). The buffer is owned by the channel and
+	 * is only valid until the next call to read() or release(). Returns null
+	 * if the client closed the TLS session.
+	 */
+	public ByteBuffer read() throws IOException {
+		readLock.lock();
+		try {
+			while (appIn == null || !appIn.hasRemaining()) {
+				SSLEngineResult result = unwrap();
+				if (appIn.hasRemaining())
+					break;
+				switch (result.getStatus()) {
+				case CLOSED:
+					return null;
+				case BUFFER_UNDERFLOW:
+					readNetworkData();
+					break;
+				default:
+					break;
+				}
+			}
+			return appIn;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** tryRead
+	// **************************************************************************
+	/**
+	 * Returns a buffer with decrypted bytes without waiting for the client.
+	 * Reads and unwraps the bytes that are immediately available from the
+	 * socket if there are no decrypted bytes left. The buffer is empty if no
+	 * complete record is available. Like read(), the buffer is owned by the
+	 * channel. Returns null if the client closed the TLS session or the
+	 * socket.
+	 */
+	public ByteBuffer tryRead() throws IOException {
+		readLock.lock();
+		try {
+			SSLEngineResult result = unwrap();
+			while (!appIn.hasRemaining()) {
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					return null;
+				if (result.getStatus() == SSLEngineResult.Status.OK && result.bytesConsumed() > 0
+				        && netIn.hasRemaining()) {
+					result = unwrap();
+					continue;
+				}
+
+				// Read more bytes from the socket
+				netIn.compact();
+				int numBytesRead;
+				try {
+					if (!netIn.hasRemaining())
+						throw new SSLException("TLS record is too big.");
+					numBytesRead = connection.tryRead(netIn);
+				} finally {
+					netIn.flip();
+				}
+				if (numBytesRead < 0)
+					return null;
+				if (numBytesRead == 0)
+					break;
+				result = unwrap();
+			}
+			return appIn;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** unwrap
+	// **************************************************************************
+	/**
+	 * Used to decrypt bytes that were read from the socket by the caller.
+	 * Returns all the bytes that could be decrypted, which may be none if the
+	 * bytes do not contain a complete record. Incomplete records are kept
+	 * until more bytes are added.
+	 */
+	public byte[] unwrap(ByteBuffer src) throws IOException {
+		readLock.lock();
+		try {
+			netIn = ensureCapacity(netIn, src.remaining());
+			netIn.compact();
+			netIn.put(src);
+			netIn.flip();
+
+			java.io.ByteArrayOutputStream out = null;
+			while (true) {
+				SSLEngineResult result = unwrap();
+				if (appIn.hasRemaining()) {
+					if (out == null)
+						out = new java.io.ByteArrayOutputStream(appIn.remaining());
+					out.write(appIn.array(), appIn.arrayOffset() + appIn.position(), appIn.remaining());
+					appIn.position(appIn.limit());
+				}
+				if (result.getStatus() != SSLEngineResult.Status.OK || !netIn.hasRemaining())
+					break;
+			}
+			return out == null ? new byte[0] : out.toByteArray();
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** write
+	// **************************************************************************
+	/**
+	 * Used to encrypt the remaining bytes in the given buffer and send them to
+	 * the client. Returns after all the bytes have been sent.
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		writeLock.lock();
+		ByteBuffer netOut = pool.acquire();
+		try {
+			do {
+				SSLEngineResult result = sslEngine.wrap(src, netOut);
+				switch (result.getStatus()) {
+				case CLOSED:
+					throw new SSLException("SSLEngine is closed.");
+				case BUFFER_OVERFLOW:
+					if (netOut.position() == 0) {
+						netOut = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+						continue;
+					}
+					flush(netOut);
+					break;
+				default:
+					if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+						runDelegatedTasks();
+					break;
+				}
+			} while (src.hasRemaining());
+			flush(netOut);
+		} finally {
+			pool.release(netOut);
+			writeLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** wrap
+	// **************************************************************************
+	/**
+	 * Returns the remaining bytes in the given buffer as one or more encrypted
+	 * records. Note that the records must be sent in the order in which they
+	 * were created. Use write() to encrypt and send bytes in one step.
+	 */
+	public ByteBuffer wrap(ByteBuffer src) throws IOException {
+		writeLock.lock();
+		try {
+			int packetSize = sslEngine.getSession().getPacketBufferSize();
+			int numRecords = src.remaining() / sslEngine.getSession().getApplicationBufferSize() + 1;
+			ByteBuffer netOut = ByteBuffer.allocate(packetSize * numRecords);
+			do {
+				SSLEngineResult result = sslEngine.wrap(src, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new SSLException("SSLEngine is closed.");
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					ByteBuffer b = ByteBuffer.allocate(netOut.capacity() + packetSize);
+					netOut.flip();
+					b.put(netOut);
+					netOut = b;
+				}
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+					runDelegatedTasks();
+			} while (src.hasRemaining());
+			netOut.flip();
+			return netOut;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** hasBufferedData
+	// **************************************************************************
+	/**
+	 * Returns true if the channel holds decrypted bytes or encrypted bytes
+	 * that have not been consumed yet (e.g. a pipelined request). Returns
+	 * false if another thread is currently reading from the channel.
+	 */
+	public boolean hasBufferedData() {
+		if (!readLock.tryLock())
+			return false;
+		try {
+			return (appIn != null && appIn.hasRemaining()) || (netIn != null && netIn.hasRemaining());
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** release
+	// **************************************************************************
+	/**
+	 * Returns empty buffers to the pool. Called after each request so that
+	 * idle connections do not hold on to buffers.
+	 */
+	public void release() {
+		if (!readLock.tryLock())
+			return;
+		try {
+			if (appIn != null && !appIn.hasRemaining()) {
+				pool.release(appIn);
+				appIn = null;
+			}
+			if (netIn != null && !netIn.hasRemaining()) {
+				pool.release(netIn);
+				netIn = null;
+			}
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/**
+	 * Used to send a close_notify alert to the client (if the socket will take
+	 * it without blocking) and release the buffers. Does not close the socket.
+	 */
+	public void close() {
+		if (writeLock.tryLock()) {
+			try {
+				sslEngine.closeOutbound();
+				ByteBuffer netOut = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+				sslEngine.wrap(EMPTY, netOut);
+				netOut.flip();
+				java.nio.channels.SocketChannel channel = connection.getChannel();
+				if (channel != null && netOut.hasRemaining())
+					channel.write(netOut);
+			} catch (Exception e) {
+				// Client is gone
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		if (readLock.tryLock()) {
+			try {
+				pool.release(appIn);
+				pool.release(netIn);
+				appIn = netIn = null;
+			} finally {
+				readLock.unlock();
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** Private Methods
+	// **************************************************************************
+
+	/**
+	 * Unwraps as many records as possible from netIn into appIn. Must be
+	 * called while holding the readLock.
+	 */
+	private SSLEngineResult unwrap() throws IOException {
+		if (netIn == null) {
+			netIn = pool.acquire();
+			netIn.flip();
+		}
+		if (appIn == null) {
+			appIn = pool.acquire();
+			appIn.flip();
+		}
+
+		appIn.compact();
+		try {
+			while (true) {
+				SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					if (appIn.position() > 0)
+						return result;
+					appIn = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+					continue;
+				case BUFFER_UNDERFLOW:
+					// Make room for a complete record
+					int packetSize = sslEngine.getSession().getPacketBufferSize();
+					if (netIn.capacity() < packetSize) {
+						ByteBuffer b = ByteBuffer.allocate(packetSize);
+						b.put(netIn);
+						b.flip();
+						netIn = b;
+					}
+					return result;
+				case CLOSED:
+					return result;
+				default:
+					break;
+				}
+
+				HandshakeStatus status = result.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					status = runDelegatedTasks();
+				}
+				if (status == HandshakeStatus.NEED_WRAP) {
+					// Handshake messages sent after the initial handshake (e.g.
+					// TLS 1.3 key updates). Respond right away.
+					wrapHandshake();
+					return result;
+				}
+				if (status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED)
+					return result;
+				if (!netIn.hasRemaining())
+					return result;
+			}
+		} finally {
+			appIn.flip();
+		}
+	}
+
+	/**
+	 * Reads more encrypted bytes from the socket into netIn. Blocks until
+	 * bytes are available. Must be called while holding the readLock.
+	 */
+	private void readNetworkData() throws IOException {
+		netIn.compact();
+		try {
+			if (!netIn.hasRemaining())
+				throw new SSLException("TLS record is too big.");
+			connection.read(netIn);
+		} finally {
+			netIn.flip();
+		}
+	}
+
+	/** Used to send handshake messages generated by the SSLEngine. */
+	private HandshakeStatus wrapHandshake() throws IOException {
+		writeLock.lock();
+		ByteBuffer netOut = pool.acquire();
+		try {
+			HandshakeStatus status;
+			do {
+				SSLEngineResult result = sslEngine.wrap(EMPTY, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					if (netOut.position() == 0)
+						throw new SSLException("Handshake message is too big.");
+					flush(netOut);
+				} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					flush(netOut);
+					throw new SSLException("Connection closed during handshake.");
+				}
+				status = result.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK)
+					status = runDelegatedTasks();
+			} while (status == HandshakeStatus.NEED_WRAP);
+			flush(netOut);
+			return status;
+		} finally {
+			pool.release(netOut);
+			writeLock.unlock();
+		}
+	}
+
+	/** Writes the bytes in the given buffer to the socket and clears it. */
+	private void flush(ByteBuffer netOut) throws IOException {
+		netOut.flip();
+		if (netOut.hasRemaining())
+			connection.write(netOut, netOut.remaining());
+		netOut.clear();
+	}
+
+	/** Runs the tasks requested by the SSLEngine in the current thread. */
+	private HandshakeStatus runDelegatedTasks() {
+		Runnable task;
+		while ((task = sslEngine.getDelegatedTask()) != null) {
+			task.run();
+		}
+		return sslEngine.getHandshakeStatus();
+	}
+
+	/**
+	 * Returns a buffer in read mode that can hold the given number of bytes in
+	 * addition to its remaining bytes.
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buf, int len) {
+		if (buf == null) {
+			buf = pool.acquire();
+			buf.flip();
+		}
+		if (buf.capacity() - buf.remaining() >= len)
+			return buf;
+		ByteBuffer b = ByteBuffer.allocate(buf.remaining() + len);
+		b.put(buf);
+		b.flip();
+		return b;
+	}
+}
@@ -10,13 +10,21 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 
 import de.mhus.lib.core.MLog;
 import de.mhus.lib.core.MThread;
+import javaxt.http.servlet.Http2Connection;
 import javaxt.http.servlet.HttpServlet;
 import javaxt.http.servlet.HttpServletRequest;
 import javaxt.http.servlet.HttpServletResponse;
@@ -46,54 +54,119 @@ public class Server extends MLog {
 	/** Maximum time that socket connections can remain idle. */
 	private int maxIdleTime = 2 * 60000; // 2 minutes
 
+	/**
+	 * Maximum time that a request waits for the client to send more bytes
+	 * (read timeout) or for the socket to accept more bytes (write timeout).
+	 */
+	private int readTimeout = 2 * 60000; // 2 minutes
+	private int writeTimeout = 2 * 60000; // 2 minutes
+
 	private boolean running = true;
 
-	private List<SocketConnection> requestProcessorConnections = new LinkedList<SocketConnection>();
+	/**
+	 * Number of selector threads used to process reads and writes. If zero,
+	 * each SocketListener accepts, reads and writes on a single selector.
+	 */
+	private int numReactors = 0;
+	private Reactor[] reactors = new Reactor[0];
+	private final AtomicInteger nextReactor = new AtomicInteger();
+
+	/**
+	 * Queue of connections with pending requests. The queue is lock-free so
+	 * that selector threads never contend with the RequestProcessor threads
+	 * on a shared monitor. Idle RequestProcessors park inside poll() and are
+	 * handed new connections directly.
+	 */
+	private final LinkedTransferQueue<SocketConnection> requestProcessorConnections = new LinkedTransferQueue<SocketConnection>();
+	private final AtomicInteger requestQueueSize = new AtomicInteger();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong requestWaitTime = new AtomicLong();
+	private final AtomicLong maxRequestWaitTime = new AtomicLong();
 
-	private void addRequestProcessor(SocketConnection connection) {
-		synchronized (requestProcessorConnections) {
+	/**
+	 * If true, each request is processed on a new virtual thread instead of
+	 * one of the RequestProcessor threads. Requires Java 21 or newer.
+	 */
+	private boolean useVirtualThreads = false;
+	private ExecutorService virtualThreadExecutor;
+
+	/**
+	 * If true, clients can switch to HTTP/2 over cleartext connections (h2c)
+	 * via the connection preface or an "Upgrade: h2c" request. The streams
+	 * of HTTP/2 connections are processed by the streamExecutor.
+	 */
+	private boolean allowHttp2 = false;
+	private ExecutorService streamExecutor;
+
+	private void addRequestProcessor(final SocketConnection connection) {
+		connection.queueTime = System.nanoTime();
+		requestQueueSize.incrementAndGet();
+		if (virtualThreadExecutor != null) {
+			virtualThreadExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					onDequeue(connection);
+					processRequest(connection);
+				}
+			});
+		} else {
 			requestProcessorConnections.add(connection);
-			requestProcessorConnections.notifyAll();
 		}
 	}
 
-	private List<SocketConnection> socketMonitorConnections = new LinkedList<SocketConnection>();
-	private boolean allowKeepAlive = false;
-	public List<SocketListener> sockets = new LinkedList<>();
+	/**
+	 * Returns the next connection with a pending request or null if no
+	 * request was queued within the given timeout. Updates the queue
+	 * metrics.
+	 */
+	private SocketConnection nextRequestProcessor(long timeout) throws InterruptedException {
+		SocketConnection connection = requestProcessorConnections.poll(timeout, TimeUnit.MILLISECONDS);
+		if (connection != null)
+			onDequeue(connection);
+		return connection;
+	}
 
-	private void addMonitorSocket(SocketConnection connection) {
-		synchronized (socketMonitorConnections) {
-			socketMonitorConnections.add(connection);
-			socketMonitorConnections.notifyAll();
-		}
+	private void onDequeue(SocketConnection connection) {
+		requestQueueSize.decrementAndGet();
+		long waitTime = System.nanoTime() - connection.queueTime;
+		metrics.onDequeue(connection, waitTime);
+		requestCount.incrementAndGet();
+		requestWaitTime.addAndGet(waitTime);
+		maxRequestWaitTime.accumulateAndGet(waitTime, Math::max);
 	}
 
+	private final SocketMonitor socketMonitor = new SocketMonitor();
+
+	/** Used to collect metrics and trace requests. Never null. */
+	private volatile ServerMetrics metrics = new DefaultServerMetrics();
+	private boolean allowKeepAlive = false;
+
+	/**
+	 * Maximum time that an idle persistent connection is kept open between
+	 * requests.
+	 */
+	private int keepAliveTimeout = 15000; // 15 seconds
+
+	/**
+	 * Maximum number of requests served over a persistent connection. Zero
+	 * means unlimited.
+	 */
+	private int maxKeepAliveRequests = 100;
+	public List<SocketListener> sockets = new LinkedList<>();
+
 	@SuppressWarnings("deprecation")
 	public void stop() {
 		running = false;
 		log().i("Close JavaXT Server");
-		synchronized (socketMonitorConnections) {
-			socketMonitorConnections.notifyAll();
-			for (SocketConnection con : socketMonitorConnections)
-				if (con.isOpen())
-					try {
-						con.close();
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-		}
-		synchronized (requestProcessorConnections) {
-			requestProcessorConnections.notifyAll();
-			for (SocketConnection con : requestProcessorConnections)
-				if (con.isOpen())
-					try {
-						con.close();
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-		}
+		socketMonitor.closeAll();
+		for (SocketConnection con : requestProcessorConnections)
+			if (con.isOpen())
+				try {
+					con.close();
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
 		MThread.sleep(500);
 		for (SocketListener socket : sockets) {
 			String url = "http://" + socket.address.getHostName() + ":" + socket.address.getPort();
@@ -109,6 +182,14 @@ public class Server extends MLog {
 			}
 		}
 		sockets.clear();
+		for (Reactor reactor : reactors)
+			reactor.wakeup();
+		if (virtualThreadExecutor != null)
+			virtualThreadExecutor.shutdownNow();
+		synchronized (this) {
+			if (streamExecutor != null)
+				streamExecutor.shutdownNow();
+		}
 		MThread.sleep(500);
 		for (Thread thread : threads)
 			if (thread.isAlive())
@@ -264,14 +345,38 @@ public class Server extends MLog {
 	 */
 	public void start() {
 
-		// Create Thread Pool
-		for (int i = 0; i < numThreads; i++) {
-			addThread(new Thread(new RequestProcessor())).start();
+		// Create Thread Pool. Use virtual threads if requested and supported
+		// by the JVM.
+		if (useVirtualThreads) {
+			try {
+				virtualThreadExecutor = (ExecutorService) java.util.concurrent.Executors.class
+				        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				log().w("Virtual threads are not supported by this JVM", e);
+			}
+		}
+		if (virtualThreadExecutor == null) {
+			for (int i = 0; i < numThreads; i++) {
+				addThread(new Thread(new RequestProcessor())).start();
+			}
 		}
 
-		// Set up timer task to shutdown idle connections
-		java.util.Timer timer = new java.util.Timer();
-		timer.scheduleAtFixedRate(new SocketMonitor(), maxIdleTime, maxIdleTime);
+		// Create reactors used to process reads and writes
+		java.util.ArrayList<Reactor> reactors = new java.util.ArrayList<Reactor>();
+		for (int i = 0; i < numReactors; i++) {
+			try {
+				Reactor reactor = new Reactor();
+				reactors.add(reactor);
+				addThread(new Thread(reactor)).start();
+			} catch (IOException e) {
+				log().w("Failed to create reactor", e);
+				break;
+			}
+		}
+		this.reactors = reactors.toArray(new Reactor[reactors.size()]);
+
+		// Start thread used to shutdown idle connections
+		addThread(new Thread(socketMonitor)).start();
 
 		// Create a new SocketListener for each port/address
 		for (InetSocketAddress address : addresses) {
@@ -339,100 +444,229 @@ public class Server extends MLog {
 
 			// Pass Inbound Request to the RequestProcessor
 			while (running) {
-
-				SelectionKey key = null;
 				try {
-
 					if (selector.select() == 0)
 						continue;
-					java.util.Set<SelectionKey> keys = selector.selectedKeys();
-					java.util.Iterator<SelectionKey> it = keys.iterator();
+				} catch (Throwable e) {
+					log().w(e);
+					if (!selector.isOpen())
+						break;
+					continue;
+				}
+				processSelectedKeys(selector);
+			}
+			log().i("Close " + hostName + "\r\n");
+			try {
+				if (server != null)
+					server.close();
+			} catch (IOException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
 
-					// Process keys
-					while (it.hasNext()) {
+		}
+	}
 
-						// Get the selection key
-						key = it.next();
+	// **************************************************************************
+	// ** processSelectedKeys
+	// **************************************************************************
+	/**
+	 * Used to process the keys selected by a SocketListener or a Reactor. New
+	 * connections are either registered with the given selector or, if the
+	 * server was configured with one or more reactors, handed off to the next
+	 * reactor in a round-robin fashion.
+	 */
+	private void processSelectedKeys(Selector selector) {
 
-						// Remove it from the list to indicate that it is being
-						// processed
-						it.remove();
+		java.util.Set<SelectionKey> keys = selector.selectedKeys();
+		java.util.Iterator<SelectionKey> it = keys.iterator();
 
-						// Check whether the key is valid
-						if (!key.isValid()) {
-							continue;
-						}
+		// Process keys
+		while (it.hasNext()) {
 
-						// Process new connections to the server
-						if (key.isAcceptable()) {
+			// Get the selection key
+			SelectionKey key = it.next();
 
-							// Accept the connection
-							ServerSocketChannel s = (ServerSocketChannel) key.channel();
-							SocketChannel client = s.accept();
-							client.configureBlocking(false);
-							SocketConnection connection = new SocketConnection(client, selector);
+			// Remove it from the list to indicate that it is being processed
+			it.remove();
 
-							// Add the new connection to the list of active
-							// connections
-							addMonitorSocket(connection);
+			try {
 
-							// Register for read events
-							client.register(selector, SelectionKey.OP_READ, connection);
-							continue;
-						}
+				// Check whether the key is valid
+				if (!key.isValid()) {
+					continue;
+				}
 
-						// Process read key
-						if (key.isReadable()) {
-
-							SocketConnection connection = (SocketConnection) key.attachment();
-							synchronized (connection) {
-								if (connection.isIdle.get()) {
-									connection.isIdle.set(false);
-									addRequestProcessor(connection);
-								} else {
-									connection.onReadable();
-								}
-							}
-							continue;
-						}
+				// Process new connections to the server
+				if (key.isAcceptable()) {
 
-						// Process write key
-						if (key.isWritable()) {
+					// Accept the connection
+					ServerSocketChannel s = (ServerSocketChannel) key.channel();
+					SocketChannel client = s.accept();
+					if (client == null)
+						continue;
+					client.configureBlocking(false);
+
+					// Disable Nagle's algorithm. Otherwise, the last segment of a
+					// response is delayed until the client acknowledges the
+					// previous one, which stalls keep-alive connections.
+					client.socket().setTcpNoDelay(true);
+
+					// Hand the connection off to a reactor (if any)
+					Reactor[] reactors = Server.this.reactors;
+					if (reactors.length > 0) {
+						int idx = (nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length;
+						reactors[idx].register(client);
+						continue;
+					}
+
+					// Add the new connection to the list of active connections
+					// and register for read events
+					register(client, selector);
+					continue;
+				}
 
-							SocketConnection connection = (SocketConnection) key.attachment();
-							connection.onWritable();
+				// Process read key
+				if (key.isReadable()) {
+
+					SocketConnection connection = (SocketConnection) key.attachment();
+					synchronized (connection) {
+						if (connection.isIdle.get()) {
+							connection.isIdle.set(false);
+
+							// Stop monitoring the connection for read events
+							// while it is busy. Otherwise bytes that the
+							// RequestProcessor has not read yet (e.g.
+							// pipelined requests) keep the selector spinning.
+							// Read events are enabled again while read() waits
+							// for bytes and once the connection is idle.
+							connection.setReadInterest(false, false);
+
+							addRequestProcessor(connection);
+						} else {
+							connection.onReadable();
 						}
 					}
+					continue;
+				}
+
+				// Process write key
+				if (key.isWritable()) {
+
+					SocketConnection connection = (SocketConnection) key.attachment();
+					connection.onWritable();
+				}
+
+			} catch (Throwable e) {
+				log().w(e);
+
+				// Close the connection
+				try {
+					SocketConnection connection = (SocketConnection) key.attachment();
+					connection.close();
+				} catch (Exception ex) {
+				}
+
+				// In the rare event that channel didn't close via the
+				// SocketConnection (e.g. NPE), close the socket channel using
+				// the key.
+				try {
+					key.channel().close();
+				} catch (Exception ex) {
+				}
+			}
+		}
+	}
 
+	// **************************************************************************
+	// ** register
+	// **************************************************************************
+	/**
+	 * Used to wrap a newly accepted client in a SocketConnection and register
+	 * it with the given selector for read events. Must be called from the
+	 * thread that owns the selector.
+	 */
+	private void register(SocketChannel client, Selector selector) throws IOException {
+		ServerMetrics metrics = this.metrics;
+		SocketConnection connection = new SocketConnection(client, selector, metrics);
+		connection.readTimeout = readTimeout;
+		connection.writeTimeout = writeTimeout;
+		connection.idleTimeout = maxIdleTime;
+
+		// Add the new connection to the list of active connections
+		socketMonitor.add(connection);
+
+		// Register for read events
+		client.register(selector, SelectionKey.OP_READ, connection);
+		metrics.onConnectionOpened(connection);
+	}
+
+	// **************************************************************************
+	// ** Reactor
+	// **************************************************************************
+	/**
+	 * Thread used to process read and write events for a subset of the client
+	 * connections. When the server is configured with one or more reactors,
+	 * the SocketListener only accepts new connections and passes them to the
+	 * reactors in a round-robin fashion. Each reactor owns its own selector
+	 * and all the connections registered with it, which allows the server to
+	 * spread socket I/O across multiple cores.
+	 */
+	private class Reactor implements Runnable {
+
+		private final Selector selector;
+		private final java.util.Queue<SocketChannel> pending = new java.util.concurrent.ConcurrentLinkedQueue<SocketChannel>();
+
+		public Reactor() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Used to hand a newly accepted client to this reactor. The channel
+		 * is registered by the reactor thread on the next loop to avoid
+		 * blocking on the selector.
+		 */
+		private void register(SocketChannel client) {
+			pending.add(client);
+			selector.wakeup();
+		}
+
+		private void wakeup() {
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
 				} catch (Throwable e) {
 					log().w(e);
+					if (!selector.isOpen())
+						break;
+				}
 
-					// Close the connection
-					try {
-						SocketConnection connection = (SocketConnection) key.attachment();
-						connection.close();
-					} catch (Exception ex) {
-					}
-
-					// In the rare event that channel didn't close via the
-					// SocketConnection (e.g. NPE), close the socket channel
-					// using
-					// the key.
+				// Register new connections
+				SocketChannel client;
+				while ((client = pending.poll()) != null) {
 					try {
-						key.channel().close();
-					} catch (Exception ex) {
+						Server.this.register(client, selector);
+					} catch (Throwable e) {
+						log().w(e);
+						try {
+							client.close();
+						} catch (Exception ex) {
+						}
 					}
 				}
+
+				processSelectedKeys(selector);
 			}
-			log().i("Close " + hostName + "\r\n");
+
 			try {
-				if (server != null)
-					server.close();
+				selector.close();
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
 			}
-
 		}
 	}
 
@@ -455,117 +689,336 @@ public class Server extends MLog {
 
 				// Wait for new requests to be added to the pool
 				SocketConnection connection;
-				synchronized (requestProcessorConnections) {
-					while (requestProcessorConnections.isEmpty()) {
-						try {
-							requestProcessorConnections.wait();
-						} catch (InterruptedException e) {
-							return;
-						}
-					}
-					connection = requestProcessorConnections.remove(0);
-				}
-
-				// Process request and send a response back to the client
-				HttpServletRequest request = null;
-				HttpServletResponse response = null;
 				try {
-					if (servlet != null) {
-						request = new HttpServletRequest(connection, servlet);
-						response = new HttpServletResponse(request, connection);
-						connection.onWritable();
-						servlet.service(request, response);
-					}
-				} catch (ServletException e) {
-					log().w(e);
-					if (request != null) {
-						response = new HttpServletResponse(request, connection);
-						response.setStatus(e.getStatusCode(), e.getMessage());
-					} else {
-						// TODO: Need to propgate error to the client!
-
-					}
-				} catch (java.lang.OutOfMemoryError e) {
-					log().e(e.toString());
+					connection = nextRequestProcessor(1000);
+				} catch (InterruptedException e) {
 					return;
-				} catch (Throwable e) {
-					log().d(e);
 				}
+				if (connection == null)
+					continue;
 
-				// Flush the response
-				if (response != null) {
-					response.flushBuffer();
-					response.closeBuffer();
-				}
+				if (!processRequest(connection))
+					return;
+			}
+		}
+	}
 
-				// Check whether the channel is registered for write events. If
-				// so
-				// notify the channel that we are no longer interested in write
-				// events. Otherwise the selector will loop indefinately.
-				if (connection.opWrite) {
-					try {
-						connection.socketChannel.register(connection.selector, SelectionKey.OP_READ, connection);
-					} catch (Exception e) {
-					}
-				}
+	// **************************************************************************
+	// ** processRequest
+	// **************************************************************************
+	/**
+	 * Used to process an HTTP request and send a response back to the client.
+	 * Called by the RequestProcessor threads or, if virtual threads are
+	 * enabled, from a new virtual thread. Returns false if the calling thread
+	 * should not process any more requests.
+	 */
+	private boolean processRequest(SocketConnection connection) {
 
-				// Close the socket connection (as needed)
-				boolean isKeepAlive = (request != null ? request.isKeepAlive() : false);
-				if (!isAllowKeepAlive())
-					isKeepAlive = false; // TODO currently not working without
-					                     // closeing the connection...
-				if (!isKeepAlive) {
-					try {
-						connection.close();
-					} catch (java.io.IOException e) {
+		// Connections that were upgraded to another protocol (e.g. WebSocket)
+		// are handled by the listener that took over the connection
+		if (connection.isUpgraded()) {
+			processUpgrade(connection);
+			return true;
+		}
+
+		boolean isKeepAlive = true;
+		while (isKeepAlive) {
+
+			// Process request and send a response back to the client
+			HttpServletRequest request = null;
+			HttpServletResponse response = null;
+			long startTime = 0;
+			try {
+				if (servlet != null) {
+					request = new HttpServletRequest(connection, servlet);
+
+					// Hand the connection over to HTTP/2 if the client asks
+					// for it. Any bytes that follow the request are passed
+					// to the Http2Connection.
+					if (Http2Connection.isPreface(request) && !allowHttp2)
+						throw new ServletException(505, "HTTP/2 is not enabled");
+					if (allowHttp2 && Http2Connection.upgrade(request, servlet, getStreamExecutor())) {
+						request.clear();
+						processUpgrade(connection);
+						return true;
 					}
+
+					// Reject bodies with an unknown length
+					request.validateBody();
+
+					connection.numRequests++;
+					if (!isAllowKeepAlive()
+					        || (maxKeepAliveRequests > 0 && connection.numRequests >= maxKeepAliveRequests))
+						request.setKeepAlive(false);
+					startTime = System.nanoTime();
+					connection.metrics.onRequestStart(connection, request);
+					response = new HttpServletResponse(request, connection);
+					connection.onWritable();
+					servlet.service(request, response);
 				}
+			} catch (ServletException e) {
+				log().w(e);
+				if (request != null) {
+					response = new HttpServletResponse(request, connection);
+					response.setStatus(e.getStatusCode(), e.getMessage());
+				} else {
+					// TODO: Need to propgate error to the client!
 
-				// Mark the connection as inactive
-				synchronized (connection) {
-					connection.isIdle.set(true);
 				}
+			} catch (java.lang.OutOfMemoryError e) {
+				log().e(e.toString());
+				return false;
+			} catch (Throwable e) {
+				log().d(e);
+			}
 
-				// Destroy the request and response objects
-				if (request != null) {
+			// Flush the response
+			if (response != null) {
+				response.flushBuffer();
+				response.closeBuffer();
+			}
+			if (startTime != 0) {
+				connection.metrics.onRequestEnd(connection, request, response, System.nanoTime() - startTime);
+			}
+
+			// Check whether the connection was upgraded to another protocol
+			// (e.g. WebSocket). If so, the connection is no longer used for
+			// HTTP requests. Process any bytes that the client sent after the
+			// upgrade request and return the thread to the pool.
+			if (connection.isUpgraded()) {
+				if (request != null)
 					request.clear();
-					request = null;
-				}
-				if (response != null) {
-					response.reset();
-					response = null;
+				processUpgrade(connection);
+				return true;
+			}
+
+			// Check whether the channel is registered for write events. If
+			// so
+			// notify the channel that we are no longer interested in write
+			// events. Otherwise the selector will loop indefinately.
+			if (connection.opWrite) {
+				connection.setWriteInterest(false);
+			}
+
+			// Check whether to keep the connection open. The response may
+			// have switched to "Connection: Close" (e.g. unknown content
+			// length) and any unread bytes in the request body have to be
+			// skipped before the next request can be parsed.
+			isKeepAlive = (request != null && response != null && request.isKeepAlive());
+			if (isKeepAlive) {
+				String connType = response.getHeader("Connection");
+				isKeepAlive = (connType != null && connType.equalsIgnoreCase("Keep-Alive"));
+			}
+			if (isKeepAlive) {
+				isKeepAlive = request.skipBody();
+			}
+
+			// Destroy the request and response objects
+			if (request != null) {
+				request.clear();
+				request = null;
+			}
+			if (response != null) {
+				response.reset();
+				response = null;
+			}
+
+			// Close the socket connection (as needed)
+			if (!isKeepAlive) {
+				try {
+					connection.close();
+				} catch (java.io.IOException e) {
 				}
+			}
 
+			// Process pipelined requests that have already been read from
+			// the socket. Requests still in the socket buffer will trigger a
+			// new read event once the connection is idle.
+			else if (!connection.hasPendingData()) {
+				break;
 			}
 		}
+
+		// Mark the connection as inactive and resume monitoring it for read
+		// events
+		synchronized (connection) {
+			connection.isIdle.set(true);
+		}
+		connection.setReadInterest(true, true);
+
+		return true;
+	}
+
+	// **************************************************************************
+	// ** processUpgrade
+	// **************************************************************************
+	/**
+	 * Used to notify the listener of an upgraded connection (e.g. WebSocket)
+	 * that the connection is readable. The listener is expected to read the
+	 * available bytes without blocking and return. Afterwards, the connection
+	 * is marked as idle and the selector resumes monitoring the connection
+	 * for read events.
+	 */
+	private void processUpgrade(SocketConnection connection) {
+		try {
+			connection.upgradeListener.onReadable();
+		} catch (Throwable e) {
+			log().d(e);
+			try {
+				connection.close();
+			} catch (Exception ex) {
+			}
+		}
+
+		synchronized (connection) {
+			connection.isIdle.set(true);
+		}
+		connection.setReadInterest(true, true);
 	}
 
 	// **************************************************************************
 	// ** SocketMonitor
 	// **************************************************************************
 	/**
-	 * TimerTask used to find and close idle connections.
+	 * Thread used to find and close idle connections. Connections are kept in
+	 * a hashed timing wheel: an array of slots, each covering one tick, with
+	 * a linked list of the connections that are due in that tick. Reads and
+	 * writes only update the connection's lastEvent timestamp, so activity on
+	 * a connection does not touch the wheel. When a slot comes up, each of
+	 * its connections is either closed, if its deadline has passed, or moved
+	 * to the slot of its new deadline. Both operations are O(1), so the cost
+	 * of a tick depends on the number of connections that are due rather
+	 * than on the total number of connections. New connections are handed
+	 * over through a lock-free queue so that the selector threads never wait
+	 * for the monitor.
 	 */
-	private class SocketMonitor extends java.util.TimerTask {
+	private class SocketMonitor implements Runnable {
+
+		/** Duration of a tick, in milliseconds. */
+		private static final int TICK = 250;
+
+		/** Number of slots in the wheel (one revolution = 128 seconds). */
+		private static final int SLOTS = 512;
+
+		private final SocketConnection[] wheel = new SocketConnection[SLOTS];
+		private final java.util.Queue<SocketConnection> added = new java.util.concurrent.ConcurrentLinkedQueue<SocketConnection>();
+		private long currTick;
+
+		/** Used to start monitoring a new connection. */
+		private void add(SocketConnection connection) {
+			added.add(connection);
+		}
 
 		@Override
 		public void run() {
+			long nextTick = System.currentTimeMillis() / TICK;
+			while (running) {
+
+				long now = System.currentTimeMillis();
+				long tick = now / TICK;
+				if (tick >= nextTick || tick < nextTick - SLOTS) {
+					synchronized (wheel) {
+						currTick = tick;
+
+						// Schedule new connections
+						SocketConnection connection;
+						while ((connection = added.poll()) != null) {
+							schedule(connection, now);
+						}
 
-			long currTime = System.currentTimeMillis();
+						// Process the slots that came up since the last run.
+						// No need to go around the wheel more than once.
+						long firstTick = Math.max(nextTick, tick - SLOTS + 1);
+						for (long t = firstTick; t <= tick; t++) {
+							expire((int) (t % SLOTS), now);
+						}
+					}
+					nextTick = tick + 1;
+				}
 
-			// Find idle connections
-			synchronized (socketMonitorConnections) {
-				java.util.ListIterator<SocketConnection> it = socketMonitorConnections.listIterator();
-				while (it.hasNext()) {
-					SocketConnection connection = it.next();
-					if (currTime - connection.lastEvent > maxIdleTime) {
+				try {
+					long delay = nextTick * TICK - System.currentTimeMillis();
+					Thread.sleep(Math.max(1, Math.min(TICK, delay)));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Used to close or reschedule the connections in a given slot. Must
+		 * be called while holding the lock on the wheel.
+		 */
+		private void expire(int slot, long now) {
+			SocketConnection connection = wheel[slot];
+			wheel[slot] = null;
+			while (connection != null) {
+				SocketConnection next = connection.nextInWheel;
+				connection.nextInWheel = null;
+				if (connection.isOpen()) {
+					if (connection.getDeadline(keepAliveTimeout) <= now) {
+						try {
+							connection.close();
+						} catch (Exception e) {
+						}
+					} else {
+						schedule(connection, now);
+					}
+				}
+				connection = next;
+			}
+		}
+
+		/**
+		 * Used to add a connection to the slot of its deadline. Connections
+		 * that are due in more than one revolution are added to the last slot
+		 * and checked again when it comes up. Must be called while holding the
+		 * lock on the wheel.
+		 */
+		private void schedule(SocketConnection connection, long now) {
+			long deadline = connection.getDeadline(keepAliveTimeout);
+
+			// The timeout changes with the state of the connection (e.g. a
+			// connection that becomes idle after a response is subject to the
+			// keep-alive timeout). Check the connection at least once per
+			// shortest timeout so that a switch to a shorter timeout is
+			// noticed without having to reschedule the connection.
+			int interval = connection.getMinTimeout(allowKeepAlive ? keepAliveTimeout : 0);
+			if (interval > 0) {
+				long check = connection.lastEvent + interval;
+				if (check <= now)
+					check = now + interval;
+				deadline = Math.min(deadline, check);
+			}
+
+			long tick = Math.min(deadline, now + (long) (SLOTS - 1) * TICK) / TICK;
+			if (tick <= currTick)
+				tick = currTick + 1;
+			int slot = (int) (tick % SLOTS);
+			connection.nextInWheel = wheel[slot];
+			wheel[slot] = connection;
+		}
+
+		/** Used to close all the connections. Called when the server stops. */
+		private void closeAll() {
+			synchronized (wheel) {
+				SocketConnection connection;
+				while ((connection = added.poll()) != null) {
+					schedule(connection, System.currentTimeMillis());
+				}
+				for (int i = 0; i < SLOTS; i++) {
+					connection = wheel[i];
+					wheel[i] = null;
+					while (connection != null) {
+						SocketConnection next = connection.nextInWheel;
+						connection.nextInWheel = null;
 						if (connection.isOpen()) {
 							try {
 								connection.close();
 							} catch (Exception e) {
 							}
 						}
-						it.remove();
+						connection = next;
 					}
 				}
 			}
@@ -577,31 +1030,55 @@ public class Server extends MLog {
 	// **************************************************************************
 	/**
 	 * Simple wrapper for a SocketChannel. Logs reads/writes for the
-	 * SocketMonitor and is used to associate an SSLEngine with the given
-	 * SocketChannel.
+	 * SocketMonitor and is used to associate a SecureChannel (SSLEngine) with
+	 * the given SocketChannel.
 	 */
 	public static class SocketConnection {
 
 		private final long startTime;
-		private Long lastEvent;
+		private final ServerMetrics metrics;
+		private final AtomicBoolean isClosed = new AtomicBoolean(false);
+		private volatile long lastEvent;
+		private volatile boolean awaitingRead = false;
+		private volatile boolean awaitingWrite = false;
+		private volatile int readTimeout;
+		private volatile int writeTimeout;
+		private volatile int idleTimeout;
+		private SocketConnection nextInWheel;
 		private SocketChannel socketChannel;
 		private Selector selector;
-		private javax.net.ssl.SSLEngine sslEngine;
+		private SecureChannel secureChannel;
 		private final String localhost;
 		private final String localaddress;
 		private final int localport;
 		private final java.net.InetSocketAddress remoteSocketAddress;
 		private final List<Listener> listeners;
-		private final List<Long> read = new LinkedList<Long>();
-		private final List<Long> write = new LinkedList<Long>();
+
+		// Locks used to wait for readable/writable events. Uses
+		// java.util.concurrent locks instead of object monitors so that
+		// waiting virtual threads do not pin their carrier threads.
+		private final ReentrantLock readLock = new ReentrantLock();
+		private final Condition readable = readLock.newCondition();
+		private boolean isReadable = false;
+		private final ReentrantLock writeLock = new ReentrantLock();
+		private final Condition writable = writeLock.newCondition();
+		private boolean isWritable = false;
+
 		private final AtomicBoolean isIdle = new AtomicBoolean(true);
+		private long queueTime;
+		private int numRequests = 0;
+		private java.nio.ByteBuffer pendingData;
 		private boolean opWrite = false;
+		private boolean opRead = true;
+		private final Object interestOps = new Object();
+		private volatile Listener upgradeListener;
 
-		private SocketConnection(SocketChannel socketChannel, Selector selector) {
+		private SocketConnection(SocketChannel socketChannel, Selector selector, ServerMetrics metrics) {
 
 			this.socketChannel = socketChannel;
 			this.selector = selector;
-			startTime = new java.util.Date().getTime();
+			this.metrics = metrics;
+			startTime = System.currentTimeMillis();
 			lastEvent = startTime;
 
 			java.net.Socket socket = socketChannel.socket();
@@ -625,13 +1102,12 @@ public class Server extends MLog {
 		 * for reading.
 		 */
 		private void onReadable() {
-			synchronized (read) {
-				long t = System.currentTimeMillis();
-				if (read.isEmpty())
-					read.add(t);
-				else
-					read.set(0, t);
-				read.notify();
+			readLock.lock();
+			try {
+				isReadable = true;
+				readable.signal();
+			} finally {
+				readLock.unlock();
 			}
 			synchronized (listeners) {
 				for (Listener listener : listeners) {
@@ -645,14 +1121,16 @@ public class Server extends MLog {
 		 * for writing.
 		 */
 		private void onWritable() {
-			synchronized (write) {
-				long t = System.currentTimeMillis();
-				if (write.isEmpty())
-					write.add(t);
-				else
-					write.set(0, t);
-				write.notify();
+			writeLock.lock();
+			try {
+				isWritable = true;
+				writable.signal();
+			} finally {
+				writeLock.unlock();
 			}
+			Listener upgradeListener = this.upgradeListener;
+			if (upgradeListener != null)
+				upgradeListener.onWritable();
 			synchronized (listeners) {
 				for (Listener listener : listeners) {
 					listener.onWritable();
@@ -665,6 +1143,9 @@ public class Server extends MLog {
 		 * closed.
 		 */
 		private void onClose() {
+			Listener upgradeListener = this.upgradeListener;
+			if (upgradeListener != null)
+				upgradeListener.onClose();
 			synchronized (listeners) {
 				for (Listener listener : listeners) {
 					listener.onClose();
@@ -690,6 +1171,30 @@ public class Server extends MLog {
 			}
 		}
 
+		/**
+		 * Used to hand this connection over to another protocol after an HTTP
+		 * upgrade (e.g. WebSocket). Once upgraded, the server stops parsing
+		 * HTTP requests on this connection. Instead, the listener's
+		 * onReadable() method is called by one of the RequestProcessor
+		 * threads whenever the connection becomes readable, one event at a
+		 * time. The listener is expected to read the available bytes with
+		 * tryRead() and return without blocking so that a few threads can
+		 * serve any number of upgraded connections. The onWritable() method
+		 * is called by the selector thread after setWriteInterest(true) and
+		 * must not block either.
+		 */
+		public void upgrade(Listener listener) {
+			upgradeListener = listener;
+		}
+
+		/**
+		 * Returns true if this connection was handed over to another protocol
+		 * via the upgrade() method.
+		 */
+		public boolean isUpgraded() {
+			return upgradeListener != null;
+		}
+
 		/** SocketConnection Listener class */
 		public static class Listener {
 			public void onReadable() {
@@ -746,20 +1251,33 @@ public class Server extends MLog {
 				throw new java.io.IOException("SocketConnection is closed!");
 
 			int numBytesRead;
-			synchronized (read) {
-				numBytesRead = socketChannel.read(buffer);
-				read.clear();
+			readLock.lock();
+			try {
+				numBytesRead = getOpenChannel().read(buffer);
+				isReadable = false;
 				if (numBytesRead == 0) {
-					while (read.isEmpty()) {
-						try {
-							read.wait();
-						} catch (InterruptedException e) {
-							break;
+
+					// Monitor the connection for read events while waiting.
+					// Busy connections are not monitored otherwise.
+					awaitingRead = true;
+					setReadInterest(true, true);
+					try {
+						while (!isReadable && isOpen()) {
+							try {
+								readable.await();
+							} catch (InterruptedException e) {
+								break;
+							}
 						}
+					} finally {
+						awaitingRead = false;
+						setReadInterest(false, false);
 					}
-					numBytesRead = socketChannel.read(buffer);
-					read.clear();
+					numBytesRead = getOpenChannel().read(buffer);
+					isReadable = false;
 				}
+			} finally {
+				readLock.unlock();
 			}
 
 			if (numBytesRead == -1) {
@@ -767,7 +1285,8 @@ public class Server extends MLog {
 				throw new java.io.IOException("Received -1 bytes. Socket is closed.");
 			}
 
-			lastEvent = new java.util.Date().getTime();
+			lastEvent = System.currentTimeMillis();
+			metrics.onRead(this, numBytesRead);
 			return numBytesRead;
 		}
 
@@ -787,14 +1306,16 @@ public class Server extends MLog {
 			if (!isOpen())
 				throw new java.io.IOException("SocketConnection is closed!");
 
-			int numBytesWrite = socketChannel.write(buffer);
+			int numBytesWrite = getOpenChannel().write(buffer);
 			if (numBytesWrite == -1)
 				throw new java.io.IOException("Socket is closed.");
 			if (numBytesWrite < length) {
 
-				synchronized (write) {
-					write.clear();
-					write.notify();
+				writeLock.lock();
+				try {
+					isWritable = false;
+				} finally {
+					writeLock.unlock();
 				}
 
 				// Register for write events. Note that this will slow things
@@ -806,63 +1327,399 @@ public class Server extends MLog {
 				// need to unregister from OP_WRITE events once we are done
 				// writing.
 				// Otherwise, the SocketListener gets stuck in an infinite loop.
-				if (!opWrite) {
-					try {
-						socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
-						opWrite = true;
-					} catch (Exception e) {
-					}
-				}
+				setWriteInterest(true);
 
 				// Wait for write operations
 				while (numBytesWrite < length) {
 					int x;
-					synchronized (write) {
-						while (write.isEmpty()) {
+					writeLock.lock();
+					awaitingWrite = true;
+					try {
+						while (!isWritable && isOpen()) {
 							try {
-								write.wait();
+								writable.await();
 							} catch (InterruptedException e) {
 								break;
 							}
 						}
 
-						x = socketChannel.write(buffer);
-						write.clear();
-						write.notify();
+						x = getOpenChannel().write(buffer);
+						isWritable = false;
+					} finally {
+						awaitingWrite = false;
+						writeLock.unlock();
 					}
 
 					if (x == -1)
 						throw new java.io.IOException("Socket is closed.");
 					numBytesWrite += x;
-					lastEvent = new java.util.Date().getTime();
+					lastEvent = System.currentTimeMillis();
 				}
 
 			} else {
-				synchronized (write) {
-					write.clear();
-					write.notify();
+				writeLock.lock();
+				try {
+					isWritable = false;
+				} finally {
+					writeLock.unlock();
+				}
+			}
+
+			metrics.onWrite(this, numBytesWrite);
+			return numBytesWrite;
+		}
+
+		/**
+		 * Used to read the bytes that are immediately available from the
+		 * SocketChannel without waiting. Returns the number of bytes read,
+		 * which may be zero, or -1 if the client closed the connection.
+		 */
+		public int tryRead(java.nio.ByteBuffer buffer) throws java.io.IOException {
+			int numBytesRead = getOpenChannel().read(buffer);
+			if (numBytesRead > 0) {
+				lastEvent = System.currentTimeMillis();
+				metrics.onRead(this, numBytesRead);
+			}
+			return numBytesRead;
+		}
+
+		/**
+		 * Used to write as many bytes as the socket will take without
+		 * waiting. Returns the number of bytes written, which may be zero. Use
+		 * setWriteInterest() to be notified when the socket is writable again.
+		 */
+		public int tryWrite(java.nio.ByteBuffer buffer) throws java.io.IOException {
+			int numBytesWrite = getOpenChannel().write(buffer);
+			if (numBytesWrite > 0) {
+				lastEvent = System.currentTimeMillis();
+				metrics.onWrite(this, numBytesWrite);
+			}
+			return numBytesWrite;
+		}
+
+		/**
+		 * Used to start or stop monitoring the connection for write events.
+		 * When enabled, listeners are notified via onWritable() whenever the
+		 * socket can accept more bytes. Note that write events should only be
+		 * enabled while there are bytes waiting to be sent. Otherwise, the
+		 * selector loops continuously.
+		 */
+		public void setWriteInterest(boolean enabled) {
+			synchronized (interestOps) {
+				if (opWrite == enabled)
+					return;
+				opWrite = enabled;
+			}
+			updateInterestOps(true);
+		}
+
+		/**
+		 * Used to start or stop monitoring the connection for read events.
+		 *
+		 * @param wakeup
+		 *            If true, wakes up the selector so that the change takes
+		 *            effect right away. Not required when called from the
+		 *            selector thread.
+		 */
+		private void setReadInterest(boolean enabled, boolean wakeup) {
+			synchronized (interestOps) {
+				if (opRead == enabled)
+					return;
+				opRead = enabled;
+			}
+			updateInterestOps(wakeup);
+		}
+
+		/**
+		 * Used to update the events that the selector monitors for this
+		 * connection.
+		 */
+		private void updateInterestOps(boolean wakeup) {
+			synchronized (interestOps) {
+				SocketChannel channel = socketChannel;
+				if (channel == null)
+					return;
+				SelectionKey key = channel.keyFor(selector);
+				if (key == null || !key.isValid())
+					return;
+				try {
+					key.interestOps((opRead ? SelectionKey.OP_READ : 0) | (opWrite ? SelectionKey.OP_WRITE : 0));
+				} catch (java.nio.channels.CancelledKeyException e) {
+					return;
 				}
 			}
+			if (wakeup)
+				selector.wakeup();
+		}
+
+		/**
+		 * Used to send bytes from a file directly to the socket. Relies on
+		 * FileChannel.transferTo() so that the operating system can copy the
+		 * bytes from the file system cache to the socket without passing them
+		 * through the JVM (e.g. sendfile). Only suitable for unencrypted
+		 * connections.
+		 *
+		 * @param position
+		 *            Offset of the first byte in the file to send.
+		 * @param count
+		 *            Number of bytes to send.
+		 * @return Number of bytes sent. Less than count if the file is
+		 *         truncated while it is being sent.
+		 */
+		public long transferFrom(java.nio.channels.FileChannel file, long position, long count)
+		        throws java.io.IOException {
 
+			long numBytesWrite = 0;
+			while (numBytesWrite < count) {
+				long x = file.transferTo(position + numBytesWrite, count - numBytesWrite, getOpenChannel());
+				if (x > 0) {
+					numBytesWrite += x;
+					lastEvent = System.currentTimeMillis();
+					metrics.onWrite(this, x);
+				} else if (position + numBytesWrite >= file.size()) {
+					break;
+				} else {
+					awaitWritable();
+				}
+			}
 			return numBytesWrite;
 		}
 
+		/**
+		 * Used to register for write events and wait until the socket can
+		 * accept more bytes.
+		 */
+		private void awaitWritable() throws java.io.IOException {
+			writeLock.lock();
+			try {
+				isWritable = false;
+			} finally {
+				writeLock.unlock();
+			}
+
+			setWriteInterest(true);
+
+			writeLock.lock();
+			awaitingWrite = true;
+			try {
+				while (!isWritable && isOpen()) {
+					try {
+						writable.await();
+					} catch (InterruptedException e) {
+						throw new java.io.InterruptedIOException();
+					}
+				}
+				isWritable = false;
+			} finally {
+				awaitingWrite = false;
+				writeLock.unlock();
+			}
+		}
+
+		/**
+		 * Returns the number of requests received over this connection,
+		 * including the current request.
+		 */
+		public int getNumRequests() {
+			return numRequests;
+		}
+
+		/** Returns the ServerMetrics used to report events on this connection. */
+		public ServerMetrics getMetrics() {
+			return metrics;
+		}
+
+		/**
+		 * Returns the maximum time, in milliseconds, that a request waits
+		 * for the client to send more bytes.
+		 */
+		public int getReadTimeout() {
+			return readTimeout;
+		}
+
+		/**
+		 * Used to set the maximum time, in milliseconds, that a request waits
+		 * for the client to send more bytes before the connection is closed.
+		 * Zero or less for no limit. Defaults to the read timeout of the
+		 * server. Changes are applied the next time the SocketMonitor checks
+		 * the connection.
+		 */
+		public void setReadTimeout(int readTimeout) {
+			this.readTimeout = readTimeout;
+		}
+
+		/**
+		 * Returns the maximum time, in milliseconds, that a request waits for
+		 * the socket to accept more bytes.
+		 */
+		public int getWriteTimeout() {
+			return writeTimeout;
+		}
+
+		/**
+		 * Used to set the maximum time, in milliseconds, that a request waits
+		 * for the socket to accept more bytes (e.g. a client that stopped
+		 * reading the response) before the connection is closed. Zero or less
+		 * for no limit. Defaults to the write timeout of the server.
+		 */
+		public void setWriteTimeout(int writeTimeout) {
+			this.writeTimeout = writeTimeout;
+		}
+
+		/**
+		 * Returns the maximum time, in milliseconds, that the connection can
+		 * remain idle.
+		 */
+		public int getIdleTimeout() {
+			return idleTimeout;
+		}
+
+		/**
+		 * Used to set the maximum time, in milliseconds, that the connection
+		 * can remain idle (no reads or writes) before it is closed. Zero or
+		 * less for no limit. Idle persistent HTTP connections are closed
+		 * after the keep-alive timeout of the server if that is shorter.
+		 * Defaults to the maximum idle time of the server.
+		 */
+		public void setIdleTimeout(int idleTimeout) {
+			this.idleTimeout = idleTimeout;
+		}
+
+		/**
+		 * Returns the time, in milliseconds, after which the connection is
+		 * closed unless there is more activity. The timeout depends on what
+		 * the connection is waiting for. Returns Long.MAX_VALUE if there is
+		 * no timeout.
+		 */
+		private long getDeadline(int keepAliveTimeout) {
+			int timeout;
+			if (awaitingWrite) {
+				timeout = writeTimeout;
+			} else if (awaitingRead) {
+				timeout = readTimeout;
+			} else {
+				timeout = idleTimeout;
+				if (keepAliveTimeout > 0 && (timeout <= 0 || keepAliveTimeout < timeout)) {
+					if (isIdle.get() && numRequests > 0 && !isUpgraded())
+						timeout = keepAliveTimeout;
+				}
+			}
+			if (timeout <= 0)
+				return Long.MAX_VALUE;
+			return lastEvent + timeout;
+		}
+
+		/**
+		 * Returns the shortest of the timeouts that may apply to this
+		 * connection or zero if there is no timeout.
+		 */
+		private int getMinTimeout(int keepAliveTimeout) {
+			int min = minTimeout(readTimeout, writeTimeout);
+			min = minTimeout(min, idleTimeout);
+			if (!isUpgraded())
+				min = minTimeout(min, keepAliveTimeout);
+			return min;
+		}
+
+		private static int minTimeout(int a, int b) {
+			if (a <= 0)
+				return Math.max(b, 0);
+			if (b <= 0)
+				return a;
+			return Math.min(a, b);
+		}
+
 		/** Used to close the socketChannel and update any listeners. */
 		public void close() throws java.io.IOException {
+			SecureChannel secureChannel = this.secureChannel;
+			if (secureChannel != null && socketChannel != null) {
+				secureChannel.close();
+			}
 			if (socketChannel != null) {
 				socketChannel.close();
 			}
 			socketChannel = null;
-			sslEngine = null;
+			if (isClosed.compareAndSet(false, true))
+				metrics.onConnectionClosed(this);
+
+			// Wake up any threads waiting to read or write
+			readLock.lock();
+			try {
+				readable.signalAll();
+			} finally {
+				readLock.unlock();
+			}
+			writeLock.lock();
+			try {
+				writable.signalAll();
+			} finally {
+				writeLock.unlock();
+			}
+
 			onClose();
 		}
 
+		/**
+		 * Used to store bytes that were read from the socket (and decrypted
+		 * if the connection is encrypted) but belong to the next request on
+		 * this connection (e.g. pipelined requests).
+		 */
+		public void setPendingData(java.nio.ByteBuffer data) {
+			pendingData = (data != null && data.hasRemaining()) ? data : null;
+		}
+
+		/**
+		 * Returns and removes any bytes that were read from the socket but
+		 * not yet consumed by a request. Returns null if there is no pending
+		 * data.
+		 */
+		public java.nio.ByteBuffer removePendingData() {
+			java.nio.ByteBuffer data = pendingData;
+			pendingData = null;
+			return data;
+		}
+
+		/**
+		 * Returns true if there are bytes pending for the next request,
+		 * including bytes buffered by the SecureChannel.
+		 */
+		public boolean hasPendingData() {
+			if (pendingData != null)
+				return true;
+			SecureChannel secureChannel = this.secureChannel;
+			return secureChannel != null && secureChannel.hasBufferedData();
+		}
+
+		/**
+		 * Returns the socketChannel or throws an IOException if the
+		 * connection has been closed.
+		 */
+		private SocketChannel getOpenChannel() throws java.io.IOException {
+			SocketChannel channel = socketChannel;
+			if (channel == null)
+				throw new java.io.IOException("SocketConnection is closed!");
+			return channel;
+		}
+
 		public javax.net.ssl.SSLEngine getSSLEngine() {
-			return sslEngine;
+			SecureChannel secureChannel = this.secureChannel;
+			return secureChannel == null ? null : secureChannel.getSSLEngine();
 		}
 
+		/**
+		 * Used to associate an SSLEngine with this connection. Creates a new
+		 * SecureChannel for the engine.
+		 */
 		public void setSSLEngine(javax.net.ssl.SSLEngine sslEngine) {
-			this.sslEngine = sslEngine;
+			this.secureChannel = (sslEngine == null ? null : new SecureChannel(this, sslEngine));
+		}
+
+		/**
+		 * Returns the SecureChannel used to encrypt and decrypt data on this
+		 * connection or null if the connection is not encrypted.
+		 */
+		public SecureChannel getSecureChannel() {
+			return secureChannel;
 		}
 
 		public SocketChannel getChannel() {
@@ -1057,4 +1914,187 @@ public class Server extends MLog {
 		this.allowKeepAlive = allowKeepAlive;
 	}
 
+	/**
+	 * Returns the ServerMetrics used to collect metrics. By default, the
+	 * server uses a DefaultServerMetrics.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Used to set the ServerMetrics that is notified of connection and
+	 * request events (e.g. to export metrics to a monitoring system or to
+	 * trace requests). Pass null to disable metrics. Applies to connections
+	 * accepted after the call.
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		if (metrics == null)
+			metrics = new ServerMetrics() {
+			};
+		this.metrics = metrics;
+	}
+
+	public int getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	/**
+	 * Used to set the maximum time, in milliseconds, that a connection can
+	 * remain idle before it is closed. Zero or less for no limit. Applies to
+	 * connections accepted after the call. Use
+	 * SocketConnection.setIdleTimeout() to change the timeout of an existing
+	 * connection.
+	 */
+	public void setMaxIdleTime(int maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Used to set the maximum time, in milliseconds, that a request waits for
+	 * the client to send more bytes before the connection is closed. Zero or
+	 * less for no limit. Applies to connections accepted after the call.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Used to set the maximum time, in milliseconds, that a request waits for
+	 * the socket to accept more bytes before the connection is closed. Zero
+	 * or less for no limit. Applies to connections accepted after the call.
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	/**
+	 * Used to set the maximum time, in milliseconds, that an idle persistent
+	 * connection is kept open between requests. Must be called before
+	 * start().
+	 */
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = keepAliveTimeout;
+	}
+
+	public int getMaxKeepAliveRequests() {
+		return maxKeepAliveRequests;
+	}
+
+	/**
+	 * Used to set the maximum number of requests served over a single
+	 * persistent connection. The connection is closed after the response to
+	 * the last request. Set to zero for no limit.
+	 */
+	public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+		this.maxKeepAliveRequests = maxKeepAliveRequests;
+	}
+
+	/**
+	 * Returns the number of connections waiting for a RequestProcessor.
+	 */
+	public int getRequestQueueSize() {
+		return Math.max(0, requestQueueSize.get());
+	}
+
+	/**
+	 * Returns the number of requests handed to a RequestProcessor since the
+	 * server was started.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Returns the average time, in milliseconds, that a request waited in the
+	 * queue before it was picked up by a RequestProcessor.
+	 */
+	public double getAverageRequestWaitTime() {
+		long count = requestCount.get();
+		if (count == 0)
+			return 0;
+		return requestWaitTime.get() / (count * 1000000d);
+	}
+
+	/**
+	 * Returns the longest time, in milliseconds, that a request waited in the
+	 * queue before it was picked up by a RequestProcessor.
+	 */
+	public double getMaxRequestWaitTime() {
+		return maxRequestWaitTime.get() / 1000000d;
+	}
+
+	public boolean isAllowHttp2() {
+		return allowHttp2;
+	}
+
+	/**
+	 * Used to allow clients to switch to HTTP/2 over cleartext connections
+	 * (h2c), either with prior knowledge (connection preface) or via an
+	 * "Upgrade: h2c" request. Requests are multiplexed over a single
+	 * connection and processed concurrently. Not available for SSL/TLS
+	 * connections. Disabled by default.
+	 */
+	public void setAllowHttp2(boolean allowHttp2) {
+		this.allowHttp2 = allowHttp2;
+	}
+
+	/**
+	 * Returns the executor used to process the streams of HTTP/2
+	 * connections. Uses virtual threads if enabled. Otherwise, creates a pool
+	 * with the same number of threads as the RequestProcessor pool.
+	 */
+	private synchronized ExecutorService getStreamExecutor() {
+		if (virtualThreadExecutor != null)
+			return virtualThreadExecutor;
+		if (streamExecutor == null) {
+			java.util.concurrent.ThreadPoolExecutor executor = new java.util.concurrent.ThreadPoolExecutor(numThreads,
+			        numThreads, 60, TimeUnit.SECONDS, new java.util.concurrent.LinkedBlockingQueue<Runnable>());
+			executor.allowCoreThreadTimeOut(true);
+			streamExecutor = executor;
+		}
+		return streamExecutor;
+	}
+
+	public boolean isUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+	/**
+	 * Used to process each request on a new virtual thread instead of a fixed
+	 * pool of RequestProcessor threads. This allows thousands of slow or
+	 * blocking requests to run concurrently. Requires Java 21 or newer. On
+	 * older JVMs the server falls back to the thread pool. Must be called
+	 * before start().
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	public int getNumReactors() {
+		return numReactors;
+	}
+
+	/**
+	 * Used to set the number of selector threads (reactors) used to read and
+	 * write client data. If set to a value greater than zero, the
+	 * SocketListeners only accept new connections and pass them to the
+	 * reactors in a round-robin fashion. Must be called before start().
+	 */
+	public void setNumReactors(int numReactors) {
+		this.numReactors = Math.max(0, numReactors);
+	}
+
 }// End server class
\ No newline at end of file
@@ -0,0 +1,118 @@
+package javaxt.http;
+
+import javaxt.http.Server.SocketConnection;
+import javaxt.http.servlet.HttpServletRequest;
+import javaxt.http.servlet.HttpServletResponse;
+
+//******************************************************************************
+//**  ServerMetrics Interface
+//******************************************************************************
+/**
+ * Implementations of this class are notified of connection and request
+ * events by the Server and can be used to collect metrics or to trace
+ * requests. The implementation used by the server can be set via
+ * Server.setMetrics(). By default, the server uses a DefaultServerMetrics.
+ * <p/>
+ * The methods are called on the selector and RequestProcessor threads, often
+ * several times per request, so implementations must be thread safe and
+ * should return quickly without allocating memory or blocking. All the
+ * methods have empty default implementations so that implementations only
+ * need to override the events they are interested in. Times are given in
+ * nanoseconds.
+ *
+ ******************************************************************************/
+
+public interface ServerMetrics {
+
+	// **************************************************************************
+	// ** onConnectionOpened
+	// **************************************************************************
+	/** Called after the server accepted a new client connection. */
+	public default void onConnectionOpened(SocketConnection connection) {
+	}
+
+	// **************************************************************************
+	// ** onConnectionClosed
+	// **************************************************************************
+	/** Called once when a client connection is closed. */
+	public default void onConnectionClosed(SocketConnection connection) {
+	}
+
+	// **************************************************************************
+	// ** onHandshake
+	// **************************************************************************
+	/**
+	 * Called after an SSL/TLS handshake.
+	 *
+	 * @param handshakeTime
+	 *            Time spent on the handshake, including the time spent
+	 *            waiting for the client.
+	 * @param success
+	 *            False if the handshake failed (e.g. the client closed the
+	 *            connection or does not support any of the protocols).
+	 */
+	public default void onHandshake(SocketConnection connection, long handshakeTime, boolean success) {
+	}
+
+	// **************************************************************************
+	// ** onDequeue
+	// **************************************************************************
+	/**
+	 * Called when a RequestProcessor picks up a connection with a pending
+	 * request.
+	 *
+	 * @param waitTime
+	 *            Time that the connection waited in the request queue.
+	 */
+	public default void onDequeue(SocketConnection connection, long waitTime) {
+	}
+
+	// **************************************************************************
+	// ** onRequestStart
+	// **************************************************************************
+	/**
+	 * Called after the request header has been parsed and before the request
+	 * is passed to the servlet. Use SocketConnection.getNumRequests() to tell
+	 * whether the request was sent over a persistent connection that was
+	 * used before.
+	 */
+	public default void onRequestStart(SocketConnection connection, HttpServletRequest request) {
+	}
+
+	// **************************************************************************
+	// ** onRequestEnd
+	// **************************************************************************
+	/**
+	 * Called after the response has been sent to the client. Called for
+	 * every request that was passed to onRequestStart(), even if the servlet
+	 * threw an exception.
+	 *
+	 * @param serviceTime
+	 *            Time spent processing the request and sending the response,
+	 *            starting when onRequestStart() was called.
+	 */
+	public default void onRequestEnd(SocketConnection connection, HttpServletRequest request,
+	        HttpServletResponse response, long serviceTime) {
+	}
+
+	// **************************************************************************
+	// ** onRead
+	// **************************************************************************
+	/**
+	 * Called after bytes were read from a socket. Counts the bytes received
+	 * over the network (i.e. encrypted bytes for SSL/TLS connections).
+	 */
+	public default void onRead(SocketConnection connection, int numBytes) {
+	}
+
+	// **************************************************************************
+	// ** onWrite
+	// **************************************************************************
+	/**
+	 * Called after bytes were written to a socket. Counts the bytes sent over
+	 * the network (i.e. encrypted bytes for SSL/TLS connections).
+	 */
+	public default void onWrite(SocketConnection connection, long numBytes) {
+	}
+
+}
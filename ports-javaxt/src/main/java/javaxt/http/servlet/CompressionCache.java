@@ -0,0 +1,202 @@
+package javaxt.http.servlet;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//******************************************************************************
+//**  CompressionCache
+//******************************************************************************
+/**
+ * Used to cache gzip compressed copies of files sent by the
+ * HttpServletResponse. Entries are keyed by file path and are only valid
+ * while the size and modification date of the file remain the same. The
+ * cache is bounded by the total number of compressed bytes. The least
+ * recently used entries are evicted first.
+ *
+ ******************************************************************************/
+
+public class CompressionCache {
+
+	private long maxSize;
+	private volatile int maxEntrySize;
+	private long size = 0;
+	private final java.util.LinkedHashMap<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	/**
+	 * Shared cache used by the HttpServletResponse. Holds up to 32MB of
+	 * compressed files that are 1MB or smaller.
+	 */
+	public static final CompressionCache DEFAULT = new CompressionCache(32 * 1024 * 1024, 1024 * 1024);
+
+	private static class Entry {
+		private final long fileSize;
+		private final long fileDate;
+		private final byte[] data;
+
+		private Entry(long fileSize, long fileDate, byte[] data) {
+			this.fileSize = fileSize;
+			this.fileDate = fileDate;
+			this.data = data;
+		}
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxSize
+	 *            Maximum number of compressed bytes held by the cache.
+	 * @param maxEntrySize
+	 *            Size of the largest file that will be cached, in bytes.
+	 *            Larger files are compressed on the fly.
+	 */
+	public CompressionCache(long maxSize, int maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+		this.entries = new java.util.LinkedHashMap<String, Entry>(64, 0.75f, true);
+	}
+
+	// **************************************************************************
+	// ** get
+	// **************************************************************************
+	/**
+	 * Returns the gzip compressed content of a file. Compresses the file and
+	 * adds it to the cache if the file is not in the cache or if the file has
+	 * changed since it was cached. Returns null if the file is too large to be
+	 * cached.
+	 */
+	public byte[] get(java.io.File file) throws java.io.IOException {
+		long fileSize = file.length();
+		long fileDate = file.lastModified();
+		if (fileSize > maxEntrySize)
+			return null;
+
+		String key = file.getPath();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.fileSize == fileSize && entry.fileDate == fileDate) {
+				hits.incrementAndGet();
+				addBytesSaved(fileSize, entry.data.length);
+				return entry.data;
+			}
+		}
+
+		// Compress the file outside of the lock so that other threads can
+		// read from the cache in the meantime.
+		misses.incrementAndGet();
+		byte[] b = new byte[(int) fileSize];
+		java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r");
+		try {
+			raf.readFully(b);
+		} finally {
+			raf.close();
+		}
+		byte[] data = GzipOutputStream.compress(b, 0, b.length);
+
+		synchronized (this) {
+			Entry entry = entries.put(key, new Entry(fileSize, fileDate, data));
+			if (entry != null)
+				size -= entry.data.length;
+			size += data.length;
+			evict();
+		}
+		addBytesSaved(fileSize, data.length);
+		return data;
+	}
+
+	// **************************************************************************
+	// ** addBytesSaved
+	// **************************************************************************
+	/**
+	 * Used to record the number of bytes that were not sent to the client
+	 * because a compressed copy of the content was sent instead.
+	 */
+	protected void addBytesSaved(long originalSize, long compressedSize) {
+		if (originalSize > compressedSize)
+			bytesSaved.addAndGet(originalSize - compressedSize);
+	}
+
+	// **************************************************************************
+	// ** clear
+	// **************************************************************************
+	/** Removes all the entries from the cache. */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	// **************************************************************************
+	// ** getHitRatio
+	// **************************************************************************
+	/**
+	 * Returns the fraction of lookups that were served from the cache (0-1).
+	 */
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/** Returns the number of lookups that were served from the cache. */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Returns the number of lookups that required a file to be compressed. */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the total number of bytes that were not sent to clients because
+	 * a cached or precompressed copy of a file was sent instead.
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	/** Returns the number of compressed bytes currently held by the cache. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Used to set the maximum number of compressed bytes held by the cache.
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	public int getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * Used to set the size of the largest file that will be cached, in bytes.
+	 */
+	public void setMaxEntrySize(int maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	// **************************************************************************
+	// ** evict
+	// **************************************************************************
+	/** Removes the least recently used entries until the cache fits. */
+	private void evict() {
+		java.util.Iterator<Entry> it = entries.values().iterator();
+		while (size > maxSize && it.hasNext()) {
+			size -= it.next().data.length;
+			it.remove();
+		}
+	}
+}
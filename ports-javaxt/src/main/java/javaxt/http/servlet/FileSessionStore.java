@@ -0,0 +1,311 @@
+package javaxt.http.servlet;
+
+import de.mhus.lib.core.logging.MLogUtil;
+
+//******************************************************************************
+//**  FileSessionStore
+//******************************************************************************
+/**
+ * SessionStore with a second tier on disk. Active sessions are kept in memory.
+ * Sessions that are evicted from memory are written to a file and are loaded
+ * again when the client returns. All the sessions in memory are written to
+ * disk when the store is closed, either explicitly or when the JVM shuts
+ * down, so that sessions survive a restart. Only attributes that implement
+ * java.io.Serializable are saved. Files of sessions that expire on disk are
+ * deleted once a minute by a background thread shared by all stores.
+ *
+ ******************************************************************************/
+
+public class FileSessionStore extends MemorySessionStore {
+
+	private final java.io.File dir;
+	private final Thread shutdownHook;
+	private volatile boolean closed = false;
+	private final java.util.concurrent.ScheduledFuture<?> sweeper;
+	private final Object fileLock = new Object();
+
+	/** Time between sweeps of the session files, in milliseconds. */
+	private static final long FILE_SWEEP_INTERVAL = 60000;
+
+	private static java.util.concurrent.ScheduledExecutorService scheduler;
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Creates a new store.
+	 *
+	 * @param dir
+	 *            Directory used to save sessions. Created as needed.
+	 * @param maxSessions
+	 *            Maximum number of sessions kept in memory. Zero or less for
+	 *            no limit.
+	 */
+	public FileSessionStore(java.io.File dir, int maxSessions) {
+		super(maxSessions);
+		this.dir = dir;
+		dir.mkdirs();
+
+		// Delete sessions that expired while the server was down
+		deleteExpired(System.currentTimeMillis());
+
+		// Delete sessions that expire on disk in the background
+		sweeper = getScheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					deleteExpired(System.currentTimeMillis());
+				} catch (Throwable e) {
+					MLogUtil.log().w("Failed to delete expired sessions", e);
+				}
+			}
+		}, FILE_SWEEP_INTERVAL, FILE_SWEEP_INTERVAL, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+		// Save sessions on shutdown
+		shutdownHook = new Thread() {
+			@Override
+			public void run() {
+				save();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	// **************************************************************************
+	// ** remove
+	// **************************************************************************
+	@Override
+	public void remove(String sessionID) {
+		super.remove(sessionID);
+		java.io.File file = getFile(sessionID);
+		if (file != null) {
+			synchronized (fileLock) {
+				file.delete();
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/** Writes all the sessions in memory to disk. */
+	@Override
+	public void close() {
+		sweeper.cancel(false);
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// JVM is shutting down
+		}
+		save();
+	}
+
+	// **************************************************************************
+	// ** onEvict
+	// **************************************************************************
+	@Override
+	protected void onEvict(HttpSession session) {
+		if (!session.isExpired(System.currentTimeMillis()))
+			write(session);
+	}
+
+	// **************************************************************************
+	// ** load
+	// **************************************************************************
+	@Override
+	protected HttpSession load(String sessionID) {
+		java.io.File file = getFile(sessionID);
+		if (file == null || !file.exists())
+			return null;
+		HttpSession session;
+		synchronized (fileLock) {
+			session = read(file);
+			file.delete();
+		}
+		if (session == null || session.isExpired(System.currentTimeMillis()))
+			return null;
+		return session;
+	}
+
+	// **************************************************************************
+	// ** getScheduler
+	// **************************************************************************
+	/** Returns the thread used to sweep the session files of all stores. */
+	private static synchronized java.util.concurrent.ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = java.util.concurrent.Executors
+			        .newSingleThreadScheduledExecutor(new java.util.concurrent.ThreadFactory() {
+				        @Override
+				        public Thread newThread(Runnable r) {
+					        Thread t = new Thread(r, "FileSessionStore-Sweeper");
+					        t.setDaemon(true);
+					        return t;
+				        }
+			        });
+		}
+		return scheduler;
+	}
+
+	// **************************************************************************
+	// ** deleteExpired
+	// **************************************************************************
+	/**
+	 * Used to delete the files of sessions that have expired or that can't be
+	 * read. Only the header of each file is read; attributes are skipped. The
+	 * header is read without holding the file lock. A file is only deleted if
+	 * it was not rewritten in the meantime.
+	 */
+	private void deleteExpired(long now) {
+		java.io.File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (java.io.File file : files) {
+			if (!file.getName().endsWith(".session"))
+				continue;
+			long modified = file.lastModified();
+			long length = file.length();
+			if (!isExpired(file, now))
+				continue;
+			synchronized (fileLock) {
+				if (file.lastModified() == modified && file.length() == length)
+					file.delete();
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** save
+	// **************************************************************************
+	private synchronized void save() {
+		if (closed)
+			return;
+		closed = true;
+		long now = System.currentTimeMillis();
+		for (HttpSession session : getSessions()) {
+			if (!session.isExpired(now))
+				write(session);
+		}
+	}
+
+	// **************************************************************************
+	// ** getFile
+	// **************************************************************************
+	/**
+	 * Returns the file used to save a session. Returns null if the session ID
+	 * is not a valid file name (e.g. a forged cookie).
+	 */
+	private java.io.File getFile(String sessionID) {
+		for (int i = 0; i < sessionID.length(); i++) {
+			char c = sessionID.charAt(i);
+			if (!Character.isLetterOrDigit(c))
+				return null;
+		}
+		return new java.io.File(dir, sessionID + ".session");
+	}
+
+	// **************************************************************************
+	// ** write
+	// **************************************************************************
+	private void write(HttpSession session) {
+		java.io.File file = getFile(session.getID());
+		if (file == null)
+			return;
+		synchronized (fileLock) {
+			write(session, file);
+		}
+	}
+
+	private void write(HttpSession session, java.io.File file) {
+		java.io.ObjectOutputStream out = null;
+		try {
+			out = new java.io.ObjectOutputStream(
+			        new java.io.BufferedOutputStream(new java.io.FileOutputStream(file)));
+			out.writeUTF(session.getID());
+			out.writeLong(session.getCreationTime());
+			out.writeLong(session.getLastAccessedTime());
+			out.writeInt(session.getMaxInactiveInterval());
+
+			java.util.ArrayList<String> names = new java.util.ArrayList<String>();
+			java.util.ArrayList<Object> values = new java.util.ArrayList<Object>();
+			java.util.Enumeration<String> it = session.getAttributeNames();
+			while (it.hasMoreElements()) {
+				String name = it.nextElement();
+				Object value = session.getAttribute(name);
+				if (value instanceof java.io.Serializable) {
+					names.add(name);
+					values.add(value);
+				}
+			}
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				out.writeUTF(names.get(i));
+				out.writeObject(values.get(i));
+			}
+		} catch (Exception e) {
+			MLogUtil.log().w("Failed to save session", session.getID(), e);
+			file.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** isExpired
+	// **************************************************************************
+	/**
+	 * Returns true if the session saved in the given file has expired or if
+	 * the file can't be read.
+	 */
+	private boolean isExpired(java.io.File file, long now) {
+		java.io.ObjectInputStream in = null;
+		try {
+			in = new java.io.ObjectInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(file), 512));
+			HttpSession session = new HttpSession(in.readUTF(), in.readLong());
+			session.setLastAccessedTime(in.readLong());
+			session.setMaxInactiveInterval(in.readInt());
+			return session.isExpired(now);
+		} catch (Exception e) {
+			return true;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** read
+	// **************************************************************************
+	private HttpSession read(java.io.File file) {
+		java.io.ObjectInputStream in = null;
+		try {
+			in = new java.io.ObjectInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(file)));
+			HttpSession session = new HttpSession(in.readUTF(), in.readLong());
+			session.setLastAccessedTime(in.readLong());
+			session.setMaxInactiveInterval(in.readInt());
+			int numAttributes = in.readInt();
+			for (int i = 0; i < numAttributes; i++) {
+				session.setAttribute(in.readUTF(), in.readObject());
+			}
+			return session;
+		} catch (Exception e) {
+			MLogUtil.log().w("Failed to read session", file, e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+	}
+}
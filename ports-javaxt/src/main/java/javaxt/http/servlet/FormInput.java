@@ -14,6 +14,7 @@ public class FormInput {
 
 	private String name;
 	private ServletInputStream is;
+	private MultipartParser parser;
 	private boolean readFully = false;
 	private FormValue value;
 	private String boundary;
@@ -26,7 +27,7 @@ public class FormInput {
 	// **************************************************************************
 	/**
 	 * Used to create a new instance of this class using
-	 *
+	 * "application/x-www-form-urlencoded" data read from the given stream.
 	 */
 	protected FormInput(ServletInputStream is, FormInput prevInput, String boundary) throws IOException {
 
@@ -40,86 +41,94 @@ public class FormInput {
 			prevInput.readFully = true;
 		}
 
-		if (boundary.equals("&")) { // Content-Type:
-		                            // application/x-www-form-urlencoded
+		if (!boundary.equals("&"))
+			throw new IOException("Unsupported boundary: " + boundary);
 
-			// TODO: Check first byte. See if it start with a "&".
-			// byte a = (byte) is.read();
-			// if (a=='&') a = (byte) is.read();
+		// Content-Type: application/x-www-form-urlencoded
 
-			java.io.ByteArrayOutputStream bas = new java.io.ByteArrayOutputStream();
-			while (true) {
-				byte a = (byte) is.read();
+		// TODO: Check first byte. See if it start with a "&".
+		// byte a = (byte) is.read();
+		// if (a=='&') a = (byte) is.read();
 
-				if (a == '=' || a == -1)
-					break;
-				bas.write(a);
-			}
+		java.io.ByteArrayOutputStream bas = new java.io.ByteArrayOutputStream();
+		while (true) {
+			byte a = (byte) is.read();
 
-			if (bas.size() < 1)
-				throw new IOException();
+			if (a == '=' || a == -1)
+				break;
+			bas.write(a);
+		}
 
-			name = bas.toString();
-			value = new FormValue(this);
+		if (bas.size() < 1)
+			throw new IOException();
 
-		} else { // Content-Type: multipart/form-data
+		name = bas.toString();
+		value = new FormValue(this);
+	}
 
-			if (prevInput == null)
-				is.readLine();
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Used to create a new instance of this class using the next part of
+	 * "multipart/form-data". Any unread bytes of the previous input are
+	 * skipped by the parser. Throws an exception if there are no more parts.
+	 */
+	protected FormInput(MultipartParser parser, FormInput prevInput, String boundary) throws IOException {
 
-			// Extract form metadata (e.g. "Content-Type",
-			// "Content-Disposition", etc.)
-			metadata = new java.util.HashMap<String, String>();
-			while (true) {
-				String str = new String(is.readLine(), "UTF-8").trim();
-				if (str.length() == 0)
-					break;
+		this.parser = parser;
+		this.boundary = boundary;
 
-				String key = str.substring(0, str.indexOf(":")).trim();
-				String val = str.substring(str.indexOf(":") + 1).trim();
-				metadata.put(key, val);
-			}
+		if (prevInput != null)
+			prevInput.readFully = true;
 
-			// Extract input name from the "Content-Disposition"
-			java.util.Iterator<String> it = metadata.keySet().iterator();
-			while (it.hasNext()) {
-				String key = it.next();
-				if (key.equalsIgnoreCase("Content-Disposition")) {
-					contentDisposition = metadata.get(key);
-					if (contentDisposition != null) {
-						for (String str : contentDisposition.split(";")) {
-							str = str.trim();
-							if (str.contains("=")) {
-								String val = str.substring(str.indexOf("\"") + 1, str.lastIndexOf("\"")).trim();
-								if (str.toLowerCase().startsWith("name=")) {
-									name = val;
-								} else if (str.toLowerCase().startsWith("filename=")) {
-									if (val.length() > 0)
-										fileName = val;
-								}
+		// Content-Type: multipart/form-data
+
+		// Extract form metadata (e.g. "Content-Type",
+		// "Content-Disposition", etc.)
+		metadata = parser.nextPart();
+		if (metadata == null)
+			throw new IOException();
+
+		// Extract input name from the "Content-Disposition"
+		java.util.Iterator<String> it = metadata.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if (key.equalsIgnoreCase("Content-Disposition")) {
+				contentDisposition = metadata.get(key);
+				if (contentDisposition != null) {
+					for (String str : contentDisposition.split(";")) {
+						str = str.trim();
+						if (str.contains("=")) {
+							String val = str.substring(str.indexOf("\"") + 1, str.lastIndexOf("\"")).trim();
+							if (str.toLowerCase().startsWith("name=")) {
+								name = val;
+							} else if (str.toLowerCase().startsWith("filename=")) {
+								if (val.length() > 0)
+									fileName = val;
 							}
 						}
 					}
-					break;
 				}
+				break;
 			}
+		}
 
-			// Throw an exception if no form name is found. This is our key to
-			// stop parsing form data.
-			if (name == null)
-				throw new IOException();
-
-			// If the input is a file and no filename is supplied, don't
-			// generate
-			// a value.
-			if (this.isFile()) {
-				if (fileName == null)
-					return;
-			}
-
-			// If we're still here, get the form value.
-			value = new FormValue(this);
+		// Throw an exception if no form name is found. This is our key to
+		// stop parsing form data.
+		if (name == null)
+			throw new IOException();
+
+		// If the input is a file and no filename is supplied, don't
+		// generate
+		// a value.
+		if (this.isFile()) {
+			if (fileName == null)
+				return;
 		}
+
+		// If we're still here, get the form value.
+		value = new FormValue(this);
 	}
 
 	// **************************************************************************
@@ -197,6 +206,14 @@ public class FormInput {
 		return is;
 	}
 
+	/**
+	 * Returns the parser used to read "multipart/form-data" or null if the
+	 * input is url encoded.
+	 */
+	protected MultipartParser getParser() {
+		return parser;
+	}
+
 	/**
 	 * Used to set flag used to indicate whether the entire input has been read.
 	 */
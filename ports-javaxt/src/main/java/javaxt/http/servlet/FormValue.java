@@ -3,16 +3,19 @@ package javaxt.http.servlet;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
+
+import de.mhus.lib.core.logging.MLogUtil;
 
 //******************************************************************************
 //**  FormValue
 //******************************************************************************
 /**
  * Used to retrieve the value associated with a form input found in the body of
- * an http request. Form values are retrieved on-demand.
+ * an http request. Form values are retrieved on-demand. Values are either
+ * streamed directly from the client (e.g. getInputStream(), writeTo(),
+ * toFile()) or cached by the methods that need the entire value (e.g.
+ * toString()). Large "multipart/form-data" values are cached in a temp file
+ * instead of memory. The temp file is deleted once the request is done.
  *
  ******************************************************************************/
 
@@ -20,8 +23,10 @@ public class FormValue {
 
 	private FormInput input;
 	private byte[] value = null;
-	private final static byte[] CRLF = new byte[] { '\r', '\n' };
-	private FormInputStream formInputStream;
+	private java.io.File file = null;
+	private java.io.InputStream formInputStream;
+	private MultipartParser parser;
+	private int partNumber;
 
 	// **************************************************************************
 	// ** Constructor
@@ -30,7 +35,13 @@ public class FormValue {
 
 	protected FormValue(FormInput input) {
 		this.input = input;
-		formInputStream = new FormInputStream();
+		parser = input.getParser();
+		if (parser == null) {
+			formInputStream = new FormInputStream();
+		} else {
+			partNumber = parser.getPartNumber();
+			formInputStream = new PartInputStream();
+		}
 	}
 
 	// **************************************************************************
@@ -190,7 +201,24 @@ public class FormValue {
 	/** Used to determine whether the value is null. */
 
 	public boolean isNull() {
-		return getByteArray().length < 1;
+		return getSize() < 1;
+	}
+
+	// **************************************************************************
+	// ** getSize
+	// **************************************************************************
+	/**
+	 * Returns the size of the value in bytes. Reads and caches the value as
+	 * needed. Returns -1 if the value could not be read.
+	 */
+	public long getSize() {
+		try {
+			cache();
+		} catch (Exception e) {
+			MLogUtil.log().w("Failed to read form value", e);
+			return -1;
+		}
+		return (file != null ? file.length() : value.length);
 	}
 
 	// **************************************************************************
@@ -226,59 +254,94 @@ public class FormValue {
 	// **************************************************************************
 	/**
 	 * Used to save a form value to a file. This is particularly useful when
-	 * processing large binary data (e.g. uploaded file).
+	 * processing large binary data (e.g. uploaded file). Values that were
+	 * cached in a temp file are moved to the given file.
 	 */
 	public boolean toFile(java.io.File file) {
 		try {
-			if (value == null) {
-
-				int bufferSize = 2048;
-				if (!file.getParentFile().exists())
-					file.getParentFile().mkdirs();
-				FileOutputStream output = new FileOutputStream(file);
-				final ReadableByteChannel inputChannel = Channels.newChannel(getInputStream());
-				final WritableByteChannel outputChannel = Channels.newChannel(output);
-				final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(bufferSize);
-
-				while (inputChannel.read(buffer) != -1) {
-					buffer.flip();
-					outputChannel.write(buffer);
-					buffer.compact();
+			java.io.File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.exists())
+				dir.mkdirs();
+
+			if (this.file != null) {
+				try {
+					java.nio.file.Files.move(this.file.toPath(), file.toPath(),
+					        java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+					this.file = file;
+					return true;
+				} catch (IOException e) {
+					// Fall back to a copy (e.g. different file system)
 				}
-				buffer.flip();
-				while (buffer.hasRemaining()) {
-					outputChannel.write(buffer);
-				}
-
-				inputChannel.close();
-				outputChannel.close();
-
-				// file.setLastModified(File.lastModified());
-				return true;
-
-			} else {
+			}
 
-				FileOutputStream output = new FileOutputStream(file);
-				output.write(value);
+			FileOutputStream output = new FileOutputStream(file);
+			try {
+				writeTo(output);
+			} finally {
 				output.close();
-				return true;
-
 			}
+			return true;
+
 		} catch (Exception e) {
-			e.printStackTrace();
+			MLogUtil.log().w("Failed to save form value", file, e);
 			return false;
 		}
 	}
 
+	// **************************************************************************
+	// ** writeTo
+	// **************************************************************************
+	/**
+	 * Used to write the value to the given output stream. Unless the value has
+	 * been cached, bytes are streamed from the client to the output stream
+	 * without being cached. Returns the number of bytes written.
+	 */
+	public long writeTo(java.io.OutputStream out) throws IOException {
+		if (value != null) {
+			out.write(value);
+			return value.length;
+		}
+		if (file != null)
+			return java.nio.file.Files.copy(file.toPath(), out);
+
+		java.io.InputStream inputStream = formInputStream;
+		long total = 0;
+		if (parser == null) {
+			int x;
+			while ((x = inputStream.read()) != -1) {
+				out.write(x);
+				total++;
+			}
+		} else {
+			byte[] b = new byte[8192];
+			int n;
+			while ((n = inputStream.read(b, 0, b.length)) != -1) {
+				out.write(b, 0, n);
+				total += n;
+			}
+		}
+		return total;
+	}
+
 	// **************************************************************************
 	// ** getInputStream
 	// **************************************************************************
 	/**
 	 * Returns a java.io.InputStream used to read raw bytes associated with the
 	 * form value. This is particularly useful when processing large values
-	 * (e.g. uploaded file).
+	 * (e.g. uploaded file). Unless the value has been cached, bytes are read
+	 * directly from the client.
 	 */
 	public java.io.InputStream getInputStream() {
+		if (value != null)
+			return new java.io.ByteArrayInputStream(value);
+		if (file != null) {
+			try {
+				return new java.io.FileInputStream(file);
+			} catch (java.io.FileNotFoundException e) {
+				throw new java.io.UncheckedIOException(e);
+			}
+		}
 		return formInputStream;
 	}
 
@@ -290,11 +353,11 @@ public class FormValue {
 	 * important if we're going to give users access to the raw InputStream.
 	 */
 	protected void readFully() {
-		if (value != null)
+		if (value != null || file != null)
 			return;
 
 		try {
-			java.io.InputStream inputStream = this.getInputStream();
+			java.io.InputStream inputStream = formInputStream;
 			while (inputStream.read() != -1) {
 			}
 		} catch (Exception e) {
@@ -305,160 +368,128 @@ public class FormValue {
 	// ** getByteArray
 	// **************************************************************************
 	/**
-	 * Used to read data from the client into a byte array. The byte array is
-	 * then persisted as a class variable.
+	 * Used to read data from the client into a byte array. Small values are
+	 * persisted as a class variable. Values cached in a temp file are read from
+	 * the file.
 	 */
 	private byte[] getByteArray() {
+		try {
+			cache();
+			if (file != null)
+				return java.nio.file.Files.readAllBytes(file.toPath());
+		} catch (Exception e) {
+			MLogUtil.log().w("Failed to read form value", e);
+			if (value == null)
+				value = new byte[0]; // <-- is this a good idea??
+		}
+		return (value == null ? new byte[0] : value);
+	}
 
-		if (value == null) {
+	// **************************************************************************
+	// ** cache
+	// **************************************************************************
+	/**
+	 * Used to read the value from the client. "multipart/form-data" values
+	 * larger than the spill threshold of the parser are written to a temp
+	 * file. Other values are kept in memory.
+	 */
+	private void cache() throws IOException {
+		if (value != null || file != null)
+			return;
 
+		if (parser == null) {
 			ByteArrayOutputStream bas = new ByteArrayOutputStream();
-			java.io.InputStream inputStream = this.getInputStream();
-			try {
-				int x = 0;
-				while ((x = inputStream.read()) != -1) {
-					bas.write(x);
+			int x = 0;
+			while ((x = formInputStream.read()) != -1) {
+				bas.write(x);
+			}
+			value = bas.toByteArray();
+			return;
+		}
+
+		ByteArrayOutputStream bas = new ByteArrayOutputStream();
+		java.io.OutputStream out = bas;
+		java.io.File tempFile = null;
+		try {
+			byte[] b = new byte[8192];
+			int n;
+			while ((n = formInputStream.read(b, 0, b.length)) != -1) {
+				if (tempFile == null && bas.size() + n > parser.getSpillThreshold()) {
+					tempFile = parser.createTempFile();
+					out = new java.io.BufferedOutputStream(new FileOutputStream(tempFile), 65536);
+					bas.writeTo(out);
+					bas = null;
 				}
-				value = bas.toByteArray();
-			} catch (Exception e) {
-				e.printStackTrace();
-				value = new byte[0]; // <-- is this a good idea??
+				out.write(b, 0, n);
 			}
+		} finally {
+			if (tempFile != null)
+				out.close();
 		}
 
-		return value;
+		if (tempFile != null)
+			file = tempFile;
+		else
+			value = bas.toByteArray();
+	}
+
+	// **************************************************************************
+	// ** PartInputStream
+	// **************************************************************************
+	/**
+	 * Used to read the bytes of a "multipart/form-data" value from the parser.
+	 * Returns -1 once the parser has moved on to the next part.
+	 */
+	private class PartInputStream extends java.io.InputStream {
+
+		private final byte[] oneByte = new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			int n = 0;
+			while (n == 0)
+				n = read(oneByte, 0, 1);
+			return (n < 0 ? -1 : oneByte[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (input.isFullyRead() || parser.getPartNumber() != partNumber)
+				return -1;
+			int n = parser.read(b, off, len);
+			if (n < 0)
+				input.setReadFully();
+			return n;
+		}
 	}
 
 	// **************************************************************************
 	// ** FormInputStream
 	// **************************************************************************
 	/**
-	 * Simple implementation of a java.io.InputStream used to read bytes
-	 * associated with a form value.
+	 * Used to read the bytes associated with a value in an
+	 * "application/x-www-form-urlencoded" request. Returns -1 at the next "&"
+	 * or at the end of the request. Multipart values are read with a
+	 * PartInputStream.
 	 */
 	private class FormInputStream extends java.io.InputStream {
 
-		private byte[] cache;
-		private String boundary;
-		private ServletInputStream is;
+		private final ServletInputStream is;
 
 		public FormInputStream() {
-			boundary = input.getBoundary();
 			is = input.getInputStream();
-			cache = new byte[0];
 		}
 
 		@Override
 		public int read() throws IOException {
-
 			if (input.isFullyRead())
 				return -1;
-
-			if (boundary.equals("&")) { // Content-Type:
-			                            // application/x-www-form-urlencoded
-
-				int a = getNextByte();
-				if (a == '&' || a == -1) {
-					input.setReadFully();
-					return -1;
-				} else
-					return a;
-
-			} else { // Content-Type: multipart/form-data
-
-				int a = getNextByte();
-				if (a == -1)
-					return -1;
-
-				if (a == '\r') {
-
-					int b = getNextByte();
-					if (b == -1)
-						return -1;
-
-					if (b == '\n') {
-
-						byte[] arr = new byte[boundary.length() + 2];
-						read(arr);
-
-						String str = new String(arr);
-						if (str.equals("--" + boundary)) {
-
-							// Read next few bytes: either "\r\n" or "--\r\n" or
-							// EOS
-							while (true) {
-								arr = new byte[2];
-								if (read(arr) < 0)
-									break;
-								if (java.util.Arrays.equals(arr, CRLF))
-									break;
-							}
-
-							input.setReadFully();
-							return -1;
-						} else {
-							for (int i = arr.length - 1; i > -1; i--) {
-								updateCache(arr[i]);
-							}
-							updateCache((byte) b);
-							return a;
-						}
-					} else {
-						updateCache((byte) b);
-						return a;
-					}
-				} else {
-					return a;
-				}
-			}
-			// return -1;
-		}
-
-		@Override
-		public int read(byte[] b) throws IOException {
-			int totalBytesRead = 0;
-			for (int i = 0; i < b.length; i++) {
-				int x = getNextByte();
-				if (x == -1) {
-					totalBytesRead = -1; // <-- This violates the java spec...
-					break;
-				} else {
-					b[i] = (byte) x;
-					totalBytesRead++;
-				}
-			}
-			return totalBytesRead;
-		}
-
-		/** Prepends a byte to the cache */
-		private void updateCache(byte b) {
-			byte[] temp = new byte[cache.length + 1];
-			temp[0] = b;
-			int i = 1;
-			for (byte _byte : cache) {
-				temp[i] = _byte;
-				i++;
-			}
-			cache = temp;
-			temp = null;
-		}
-
-		/**
-		 * Returns the next available byte from the cache. If the cache is
-		 * empty, returns the next available byte from the socket channel.
-		 */
-		private int getNextByte() throws IOException {
-
-			if (cache.length > 0) {
-				byte b = cache[0];
-				byte[] a = new byte[cache.length - 1];
-				System.arraycopy(cache, 1, a, 0, a.length);
-				cache = a;
-				return b & 0xFF; // convert unsigned Byte to Int
-				// return b;
-			} else {
-				return is.read();
+			int a = is.read();
+			if (a == '&' || a == -1) {
+				input.setReadFully();
+				return -1;
 			}
+			return a;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+package javaxt.http.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+//******************************************************************************
+//**  GzipOutputStream
+//******************************************************************************
+/**
+ * Used to compress data in the gzip file format. Unlike the
+ * java.util.zip.GZIPOutputStream, the Deflater is borrowed from a small pool
+ * and returned when the stream is closed. Creating a new Deflater for every
+ * response allocates native memory that is only released when the Deflater
+ * is garbage collected. Used by the HttpServletResponse.
+ *
+ ******************************************************************************/
+
+final class GzipOutputStream extends DeflaterOutputStream {
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/** Idle deflaters. Slots are probed starting at the current thread id. */
+	private static final AtomicReferenceArray<Deflater> deflaters = new AtomicReferenceArray<Deflater>(64);
+
+	private final CRC32 crc = new CRC32();
+	private boolean finished = false;
+	private boolean closed = false;
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Creates a new output stream and writes the gzip header.
+	 *
+	 * @param size
+	 *            Size of the output buffer.
+	 */
+	GzipOutputStream(OutputStream out, int size) throws IOException {
+		super(out, acquire(), size);
+		out.write(HEADER);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		crc.update(b, off, len);
+	}
+
+	// **************************************************************************
+	// ** finish
+	// **************************************************************************
+	/**
+	 * Writes any remaining compressed data and the gzip trailer to the
+	 * underlying stream without closing it.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		super.finish();
+		finished = true;
+
+		byte[] trailer = new byte[8];
+		writeInt((int) crc.getValue(), trailer, 0);
+		writeInt((int) def.getBytesRead(), trailer, 4);
+		out.write(trailer);
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/**
+	 * Finishes the stream, closes the underlying stream and returns the
+	 * Deflater to the pool.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			finish();
+			out.close();
+		} finally {
+			release(def);
+		}
+	}
+
+	// **************************************************************************
+	// ** compress
+	// **************************************************************************
+	/** Returns the given bytes compressed in the gzip file format. */
+	static byte[] compress(byte[] bytes, int off, int len) throws IOException {
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream(Math.max(64, len / 2));
+		GzipOutputStream out = new GzipOutputStream(bos, Math.max(512, Math.min(len, 8192)));
+		out.write(bytes, off, len);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	// **************************************************************************
+	// ** Private Methods
+	// **************************************************************************
+
+	private static Deflater acquire() {
+		int start = (int) Thread.currentThread().getId();
+		int mask = deflaters.length() - 1;
+		for (int i = 0; i < 8; i++) {
+			Deflater deflater = deflaters.getAndSet((start + i) & mask, null);
+			if (deflater != null)
+				return deflater;
+		}
+		return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	private static void release(Deflater deflater) {
+		deflater.reset();
+		int start = (int) Thread.currentThread().getId();
+		int mask = deflaters.length() - 1;
+		for (int i = 0; i < 8; i++) {
+			if (deflaters.compareAndSet((start + i) & mask, null, deflater))
+				return;
+		}
+		deflater.end();
+	}
+
+	private static void writeInt(int i, byte[] buf, int offset) {
+		buf[offset] = (byte) i;
+		buf[offset + 1] = (byte) (i >> 8);
+		buf[offset + 2] = (byte) (i >> 16);
+		buf[offset + 3] = (byte) (i >> 24);
+	}
+}
@@ -0,0 +1,479 @@
+package javaxt.http.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+//******************************************************************************
+//**  Hpack
+//******************************************************************************
+/**
+ * Used to compress and decompress HTTP/2 header blocks as defined in RFC 7541
+ * (HPACK). The Decoder supports the full specification, including Huffman
+ * coded strings and the dynamic table. The Encoder adds response headers that
+ * repeat across responses (e.g. "server" or "content-type") to the dynamic
+ * table so that they are sent as a single byte on subsequent responses.
+ * Strings are sent without Huffman coding. Header names and values are
+ * converted to Strings using ISO-8859-1, same as the HTTP/1.1 header.
+ *
+ ******************************************************************************/
+
+final class Hpack {
+
+	/** Static table defined in Appendix A of RFC 7541. */
+	private static final String[][] STATIC_TABLE = { { ":authority", "" }, { ":method", "GET" },
+	        { ":method", "POST" }, { ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" },
+	        { ":scheme", "https" }, { ":status", "200" }, { ":status", "204" }, { ":status", "206" },
+	        { ":status", "304" }, { ":status", "400" }, { ":status", "404" }, { ":status", "500" },
+	        { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" }, { "accept-language", "" },
+	        { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" },
+	        { "allow", "" }, { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+	        { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+	        { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+	        { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+	        { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+	        { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+	        { "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+	        { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+	        { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" },
+	        { "via", "" }, { "www-authenticate", "" } };
+
+	/** Index of the first entry in the static table for a given name. */
+	private static final java.util.HashMap<String, Integer> STATIC_NAMES = new java.util.HashMap<String, Integer>();
+
+	/** Index of the static table entries with a value. */
+	private static final java.util.HashMap<String, Integer> STATIC_FIELDS = new java.util.HashMap<String, Integer>();
+
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			String[] entry = STATIC_TABLE[i];
+			STATIC_NAMES.put(entry[0], i + 1);
+			if (entry[1].length() > 0)
+				STATIC_FIELDS.put(entry[0] + '\0' + entry[1], i + 1);
+		}
+	}
+
+	/**
+	 * Huffman codes defined in Appendix B of RFC 7541, indexed by symbol. The
+	 * last entry is the end-of-string (EOS) symbol.
+	 */
+	private static final int[] CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+			0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+			0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+			0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+			0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15,
+			0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c,
+			0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f,
+			0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd,
+			0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4,
+			0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a,
+			0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a,
+			0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2,
+			0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6,
+			0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb,
+			0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee,
+			0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8,
+			0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda,
+			0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9,
+			0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf,
+			0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0,
+			0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea,
+			0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6,
+			0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7,
+			0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4,
+			0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2,
+			0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2,
+			0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd,
+			0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed,
+			0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea,
+			0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea,
+			0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7,
+			0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec,
+			0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff };
+
+	private static final byte[] LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28,
+			28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10,
+			10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6,
+			6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6,
+			7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23,
+			22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23,
+			21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22,
+			22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22,
+			22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27,
+			27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28,
+			27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24,
+			26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27,
+			26, 30 };
+
+	/**
+	 * Binary tree used to decode Huffman coded strings. The children of node
+	 * n are found at 2n and 2n+1. Positive values point to the next node and
+	 * negative values are leaves (-1 - symbol).
+	 */
+	private static final int[] TREE = buildTree();
+
+	private static int[] buildTree() {
+		int[] tree = new int[2 * 512];
+		int numNodes = 1;
+		for (int symbol = 0; symbol < CODES.length; symbol++) {
+			int code = CODES[symbol];
+			int node = 0;
+			for (int i = LENGTHS[symbol] - 1; i >= 0; i--) {
+				int idx = 2 * node + ((code >>> i) & 1);
+				if (i == 0) {
+					tree[idx] = -1 - symbol;
+				} else {
+					if (tree[idx] == 0)
+						tree[idx] = numNodes++;
+					node = tree[idx];
+				}
+			}
+		}
+		return tree;
+	}
+
+	// **************************************************************************
+	// ** Table
+	// **************************************************************************
+	/**
+	 * Dynamic table shared by the encoder and decoder. Entries are kept in a
+	 * circular array. The most recent entry has index 0.
+	 */
+	private static class Table {
+
+		private String[] names = new String[16];
+		private String[] values = new String[16];
+		private int head = 0; // position of the next entry
+		private int count = 0;
+		private int size = 0;
+		private int maxSize;
+
+		Table(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		int length() {
+			return count;
+		}
+
+		String getName(int i) {
+			return names[(head - 1 - i) & (names.length - 1)];
+		}
+
+		String getValue(int i) {
+			return values[(head - 1 - i) & (values.length - 1)];
+		}
+
+		void add(String name, String value) {
+			int entrySize = name.length() + value.length() + 32;
+			if (entrySize > maxSize) {
+				clear();
+				return;
+			}
+			evict(maxSize - entrySize);
+			if (count == names.length) {
+				String[] n = new String[names.length * 2];
+				String[] v = new String[values.length * 2];
+				for (int i = 0; i < count; i++) {
+					n[count - 1 - i] = getName(i);
+					v[count - 1 - i] = getValue(i);
+				}
+				names = n;
+				values = v;
+				head = count;
+			}
+			names[head] = name;
+			values[head] = value;
+			head = (head + 1) & (names.length - 1);
+			count++;
+			size += entrySize;
+		}
+
+		void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict(maxSize);
+		}
+
+		private void evict(int maxSize) {
+			while (size > maxSize && count > 0) {
+				int i = (head - count) & (names.length - 1);
+				size -= names[i].length() + values[i].length() + 32;
+				names[i] = null;
+				values[i] = null;
+				count--;
+			}
+		}
+
+		private void clear() {
+			evict(0);
+		}
+	}
+
+	// **************************************************************************
+	// ** Decoder
+	// **************************************************************************
+	/**
+	 * Used to decode the header blocks sent by a client. Not thread safe.
+	 * Header blocks must be decoded in the order in which they are received.
+	 */
+	static class Decoder {
+
+		private final Table table;
+		private final int maxTableSize;
+		private final int maxHeaderListSize;
+
+		/**
+		 * @param maxTableSize
+		 *            Maximum size of the dynamic table advertised in the
+		 *            SETTINGS_HEADER_TABLE_SIZE setting.
+		 * @param maxHeaderListSize
+		 *            Maximum size of the decoded header list. Larger header
+		 *            blocks are rejected.
+		 */
+		Decoder(int maxTableSize, int maxHeaderListSize) {
+			this.table = new Table(maxTableSize);
+			this.maxTableSize = maxTableSize;
+			this.maxHeaderListSize = maxHeaderListSize;
+		}
+
+		/**
+		 * Used to decode a header block. Names and values are added to the
+		 * given list in pairs (name, value).
+		 */
+		void decode(byte[] b, int off, int len, java.util.List<String> headers) throws IOException {
+			int[] pos = { off };
+			int end = off + len;
+			int listSize = 0;
+			boolean isFirst = true;
+			while (pos[0] < end) {
+				int x = b[pos[0]] & 0xff;
+				String name, value;
+				if ((x & 0x80) != 0) { // Indexed header field
+					int index = decodeInt(b, pos, end, 7);
+					name = getName(index);
+					value = getValue(index);
+				} else if ((x & 0x40) != 0) { // Literal with incremental indexing
+					int index = decodeInt(b, pos, end, 6);
+					name = (index == 0 ? decodeString(b, pos, end) : getName(index));
+					value = decodeString(b, pos, end);
+					table.add(name, value);
+				} else if ((x & 0x20) != 0) { // Dynamic table size update
+					if (!isFirst)
+						throw new IOException("Misplaced table size update");
+					int size = decodeInt(b, pos, end, 5);
+					if (size > maxTableSize)
+						throw new IOException("Invalid table size update");
+					table.setMaxSize(size);
+					continue;
+				} else { // Literal without indexing or never indexed
+					int index = decodeInt(b, pos, end, 4);
+					name = (index == 0 ? decodeString(b, pos, end) : getName(index));
+					value = decodeString(b, pos, end);
+				}
+				isFirst = false;
+				listSize += name.length() + value.length() + 32;
+				if (listSize > maxHeaderListSize)
+					throw new IOException("Header list is too big");
+				headers.add(name);
+				headers.add(value);
+			}
+		}
+
+		private String getName(int index) throws IOException {
+			if (index < 1)
+				throw new IOException("Invalid index");
+			if (index <= STATIC_TABLE.length)
+				return STATIC_TABLE[index - 1][0];
+			index -= STATIC_TABLE.length + 1;
+			if (index >= table.length())
+				throw new IOException("Invalid index");
+			return table.getName(index);
+		}
+
+		private String getValue(int index) throws IOException {
+			if (index <= STATIC_TABLE.length)
+				return STATIC_TABLE[index - 1][1];
+			return table.getValue(index - STATIC_TABLE.length - 1);
+		}
+
+		private static int decodeInt(byte[] b, int[] pos, int end, int prefix) throws IOException {
+			int max = (1 << prefix) - 1;
+			int value = b[pos[0]++] & max;
+			if (value < max)
+				return value;
+			int shift = 0;
+			while (true) {
+				if (pos[0] >= end || shift > 21)
+					throw new IOException("Invalid integer");
+				int x = b[pos[0]++] & 0xff;
+				value += (x & 0x7f) << shift;
+				if ((x & 0x80) == 0)
+					return value;
+				shift += 7;
+			}
+		}
+
+		private static String decodeString(byte[] b, int[] pos, int end) throws IOException {
+			if (pos[0] >= end)
+				throw new IOException("Invalid string");
+			boolean huffman = (b[pos[0]] & 0x80) != 0;
+			int len = decodeInt(b, pos, end, 7);
+			if (len > end - pos[0])
+				throw new IOException("Invalid string length");
+			int start = pos[0];
+			pos[0] += len;
+			if (!huffman)
+				return new String(b, start, len, StandardCharsets.ISO_8859_1);
+
+			// Decode Huffman coded string
+			char[] chars = new char[len * 8 / 5 + 1];
+			int n = 0;
+			int node = 0;
+			int numBits = 0; // bits read since the last symbol
+			boolean allOnes = true;
+			for (int i = start; i < start + len; i++) {
+				int x = b[i] & 0xff;
+				for (int j = 7; j >= 0; j--) {
+					int bit = (x >>> j) & 1;
+					int child = TREE[2 * node + bit];
+					numBits++;
+					allOnes &= (bit == 1);
+					if (child < 0) {
+						int symbol = -1 - child;
+						if (symbol == 256)
+							throw new IOException("Invalid Huffman string (EOS)");
+						chars[n++] = (char) symbol;
+						node = 0;
+						numBits = 0;
+						allOnes = true;
+					} else if (child == 0) {
+						throw new IOException("Invalid Huffman string");
+					} else {
+						node = child;
+					}
+				}
+			}
+			if (numBits > 7 || !allOnes)
+				throw new IOException("Invalid Huffman padding");
+			return new String(chars, 0, n);
+		}
+	}
+
+	// **************************************************************************
+	// ** Encoder
+	// **************************************************************************
+	/**
+	 * Used to encode the header blocks sent to a client. Not thread safe.
+	 * Header blocks must be sent in the order in which they are encoded.
+	 */
+	static class Encoder {
+
+		private final Table table;
+		private int maxTableSize;
+		private boolean sizeUpdate = false;
+
+		/** Maximum size of the dynamic table used by the encoder. */
+		private static final int MAX_TABLE_SIZE = 4096;
+
+		Encoder() {
+			this.maxTableSize = MAX_TABLE_SIZE;
+			this.table = new Table(MAX_TABLE_SIZE);
+		}
+
+		/**
+		 * Called when the client changes the SETTINGS_HEADER_TABLE_SIZE
+		 * setting. The new size is signaled to the client at the start of
+		 * the next header block.
+		 */
+		void setMaxTableSize(int size) {
+			size = Math.min(size, MAX_TABLE_SIZE);
+			if (size != maxTableSize) {
+				maxTableSize = size;
+				table.setMaxSize(size);
+				sizeUpdate = true;
+			}
+		}
+
+		/**
+		 * Used to encode a header field and append it to the given buffer.
+		 * Names must be in lower case.
+		 */
+		void encode(String name, String value, java.io.ByteArrayOutputStream out) {
+			if (sizeUpdate) {
+				encodeInt(out, 0x20, 5, maxTableSize);
+				sizeUpdate = false;
+			}
+
+			// Use an exact match from the static or the dynamic table
+			Integer index = STATIC_FIELDS.get(name + '\0' + value);
+			int dynamicNameIndex = 0;
+			if (index == null) {
+				for (int i = 0; i < table.length(); i++) {
+					if (table.getName(i).equals(name)) {
+						if (table.getValue(i).equals(value)) {
+							encodeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+							return;
+						}
+						if (dynamicNameIndex == 0)
+							dynamicNameIndex = STATIC_TABLE.length + 1 + i;
+					}
+				}
+			} else {
+				encodeInt(out, 0x80, 7, index);
+				return;
+			}
+
+			Integer nameIndex = STATIC_NAMES.get(name);
+			int idx = (nameIndex != null ? nameIndex : dynamicNameIndex);
+			if (isSensitive(name)) {
+				encodeInt(out, 0x10, 4, idx); // never indexed
+			} else if (isIndexed(name) && name.length() + value.length() + 32 <= maxTableSize / 2) {
+				encodeInt(out, 0x40, 6, idx);
+				table.add(name, value);
+			} else {
+				encodeInt(out, 0x00, 4, idx);
+			}
+			if (idx == 0)
+				encodeString(out, name);
+			encodeString(out, value);
+		}
+
+		/** Returns true if a header value is unlikely to repeat. */
+		private static boolean isIndexed(String name) {
+			return !(name.equals("content-length") || name.equals("content-range") || name.equals("etag")
+			        || name.equals("last-modified") || name.equals("location") || name.equals(":path"));
+		}
+
+		/** Returns true if a header should never be added to a table. */
+		private static boolean isSensitive(String name) {
+			return name.equals("set-cookie") || name.equals("authorization") || name.equals("cookie");
+		}
+
+		private static void encodeInt(java.io.ByteArrayOutputStream out, int mask, int prefix, int value) {
+			int max = (1 << prefix) - 1;
+			if (value < max) {
+				out.write(mask | value);
+				return;
+			}
+			out.write(mask | max);
+			value -= max;
+			while (value >= 0x80) {
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+
+		private static void encodeString(java.io.ByteArrayOutputStream out, String str) {
+			byte[] b = str.getBytes(StandardCharsets.ISO_8859_1);
+			encodeInt(out, 0x00, 7, b.length);
+			out.write(b, 0, b.length);
+		}
+	}
+}
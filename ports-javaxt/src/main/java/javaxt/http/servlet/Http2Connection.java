@@ -0,0 +1,1459 @@
+package javaxt.http.servlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.mhus.lib.core.MLog;
+import javaxt.http.BufferPool;
+import javaxt.http.Server;
+import javaxt.http.ServerMetrics;
+
+//******************************************************************************
+//**  Http2Connection
+//******************************************************************************
+/**
+ * Used to serve HTTP/2 requests over a cleartext connection (h2c) as defined
+ * in RFC 7540. Clients can start an HTTP/2 connection with the connection
+ * preface ("prior knowledge") or upgrade an HTTP/1.1 request via the
+ * "Upgrade: h2c" header. Once upgraded, the connection is monitored by the
+ * server's selector and frames are decoded by the RequestProcessor threads
+ * whenever the client sends data, same as a WebSocket. Each stream is passed
+ * to the servlet on a thread from the given Executor so that many requests
+ * can be processed concurrently over a single connection.
+ * <p/>
+ * The servlet sees a regular HttpServletRequest and HttpServletResponse.
+ * Request bodies and response bodies are flow controlled: a servlet that
+ * writes faster than the client reads is blocked until the client updates
+ * its window. Server push and HTTP/2 over TLS (ALPN) are not supported.
+ *
+ ******************************************************************************/
+
+public class Http2Connection extends MLog {
+
+	// Frame types
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	// Frame flags
+	private static final int END_STREAM = 0x1;
+	private static final int ACK = 0x1;
+	private static final int END_HEADERS = 0x4;
+	private static final int PADDED = 0x8;
+	private static final int PRIORITY_FLAG = 0x20;
+
+	// Error codes
+	private static final int NO_ERROR = 0x0;
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int INTERNAL_ERROR = 0x2;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int STREAM_CLOSED = 0x5;
+	private static final int FRAME_SIZE_ERROR = 0x6;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int COMPRESSION_ERROR = 0x9;
+
+	/** Connection preface sent by the client. */
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/** Length of the part of the preface that looks like an HTTP request. */
+	private static final int PREFACE_REQUEST_LENGTH = 18;
+
+	/** Size of the frame header. */
+	private static final int FRAME_HEADER_LENGTH = 9;
+
+	/** Default window size and frame size defined in the spec. */
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int DEFAULT_FRAME_SIZE = 16384;
+
+	/**
+	 * Settings sent to the client. The stream window limits the number of
+	 * bytes of a request body that are buffered for the servlet.
+	 */
+	private static final int MAX_CONCURRENT_STREAMS = 100;
+	private static final int STREAM_WINDOW_SIZE = 256 * 1024;
+	private static final int CONNECTION_WINDOW_SIZE = 1024 * 1024;
+	private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+	private static final int HEADER_TABLE_SIZE = 4096;
+
+	/**
+	 * Maximum number of socket reads per read event. Ensures that a busy
+	 * client does not keep a RequestProcessor thread to itself.
+	 */
+	private static final int maxReads = 16;
+
+	/**
+	 * Maximum number of bytes queued for a slow client before servlets that
+	 * send DATA frames are blocked.
+	 */
+	private static final long maxQueueSize = 1024 * 1024;
+
+	/**
+	 * Maximum number of bytes of a request body that are read and discarded
+	 * if the servlet did not read the body. Streams with more bytes left are
+	 * reset. Note that some clients fail requests that are reset before the
+	 * body was sent, even if the response is complete.
+	 */
+	private static final long maxDiscardSize = 1024 * 1024;
+
+	private final Server.SocketConnection connection;
+	private final HttpServlet servlet;
+	private final Executor executor;
+	private final ServerMetrics metrics;
+
+	/** Number of bytes of the connection preface that were received. */
+	private int prefaceLength;
+	private boolean settingsReceived = false;
+
+	/**
+	 * Bytes read from the client that have not been decoded yet (e.g. an
+	 * incomplete frame). Acquired from the BufferPool as needed. Always in
+	 * write mode. Only accessed by the thread that processes read events.
+	 */
+	private ByteBuffer inbound;
+
+	// Header block that is being received (HEADERS + CONTINUATION frames)
+	private final java.io.ByteArrayOutputStream headerBlock = new java.io.ByteArrayOutputStream();
+	private int headerStreamId = 0;
+	private boolean headerEndStream;
+
+	private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+	/**
+	 * Guards the streams and the flow control windows. Servlet threads wait
+	 * on the conditions for request bodies and window updates.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition windowUpdated = lock.newCondition();
+	private final java.util.HashMap<Integer, Stream> streams = new java.util.HashMap<Integer, Stream>();
+	private int lastStreamId = 0;
+	private int sendWindow = DEFAULT_WINDOW_SIZE;
+	private int initialWindowSize = DEFAULT_WINDOW_SIZE;
+	private volatile int maxFrameSize = DEFAULT_FRAME_SIZE;
+	private int receivedBytes = 0; // bytes received since the last WINDOW_UPDATE
+	private boolean goAwayReceived = false;
+	private volatile boolean isClosed = false;
+
+	/**
+	 * Bytes that the socket did not accept right away. Sent by the selector
+	 * thread when the socket becomes writable.
+	 */
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	private long outboundSize = 0;
+	private boolean closeWhenSent = false;
+	private final ReentrantLock sendLock = new ReentrantLock();
+	private final Condition drained = sendLock.newCondition();
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	private Http2Connection(Server.SocketConnection connection, HttpServlet servlet, Executor executor,
+	        int prefaceLength) {
+		this.connection = connection;
+		this.servlet = servlet;
+		this.executor = executor;
+		this.metrics = connection.getMetrics();
+		this.prefaceLength = prefaceLength;
+	}
+
+	// **************************************************************************
+	// ** upgrade
+	// **************************************************************************
+	/**
+	 * Used to switch a connection to HTTP/2 if the client asked for it, either
+	 * by sending the connection preface or an "Upgrade: h2c" request. Returns
+	 * false if the request is a regular HTTP/1.1 request. Otherwise, the
+	 * connection is handed over to a new Http2Connection and the request must
+	 * not be passed to the servlet. An upgraded request is served as stream 1
+	 * on the new connection.
+	 *
+	 * @param executor
+	 *            Used to process the streams.
+	 */
+	public static boolean upgrade(HttpServletRequest request, HttpServlet servlet, Executor executor)
+	        throws IOException {
+
+		Server.SocketConnection connection = request.getConnection();
+		if (isPreface(request)) {
+			Http2Connection http2 = new Http2Connection(connection, servlet, executor, PREFACE_REQUEST_LENGTH);
+			connection.upgrade(http2.new EventListener());
+			http2.sendPreface();
+			return true;
+		}
+
+		if (!isUpgrade(request))
+			return false;
+
+		// Decode the settings sent with the upgrade request
+		byte[] settings;
+		try {
+			settings = java.util.Base64.getUrlDecoder().decode(request.getHeader("HTTP2-Settings").trim());
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+
+		// Copy the request header. Remove the headers used for the upgrade.
+		StringBuilder header = new StringBuilder();
+		header.append(request.getMethod() + " " + request.getRequestURI());
+		String query = request.getQueryString();
+		if (query != null)
+			header.append("?" + query);
+		header.append(" HTTP/2.0\r\n");
+		java.util.Enumeration<String> names = request.getHeaderNames();
+		while (names.hasMoreElements()) {
+			String name = names.nextElement();
+			if (name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Upgrade")
+			        || name.equalsIgnoreCase("HTTP2-Settings"))
+				continue;
+			java.util.Enumeration<String> values = request.getHeaders(name);
+			while (values.hasMoreElements())
+				header.append(name + ": " + values.nextElement() + "\r\n");
+		}
+		header.append("\r\n");
+
+		Http2Connection http2 = new Http2Connection(connection, servlet, executor, 0);
+		try {
+			http2.processSettings(settings, 0, settings.length);
+		} catch (Http2Exception e) {
+			return false;
+		}
+		connection.upgrade(http2.new EventListener());
+		http2.write(ByteBuffer.wrap("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+		        .getBytes(StandardCharsets.ISO_8859_1)), true);
+		http2.sendPreface();
+
+		// Serve the request as stream 1
+		http2.lock.lock();
+		try {
+			http2.lastStreamId = 1;
+		} finally {
+			http2.lock.unlock();
+		}
+		http2.open(1, header.toString().getBytes(StandardCharsets.ISO_8859_1), true);
+		return true;
+	}
+
+	// **************************************************************************
+	// ** isPreface
+	// **************************************************************************
+	/**
+	 * Returns true if the request is the start of the HTTP/2 connection
+	 * preface ("PRI * HTTP/2.0").
+	 */
+	public static boolean isPreface(HttpServletRequest request) {
+		return "PRI".equals(request.getMethod()) && "HTTP/2.0".equals(request.getProtocol());
+	}
+
+	// **************************************************************************
+	// ** isUpgrade
+	// **************************************************************************
+	/**
+	 * Returns true if the client asked to upgrade the connection to HTTP/2
+	 * ("Upgrade: h2c"). Only requests without a body are upgraded.
+	 */
+	private static boolean isUpgrade(HttpServletRequest request) {
+		if (request.isEncrypted() || !"HTTP/1.1".equals(request.getProtocol()))
+			return false;
+		String upgrade = request.getHeader("Upgrade");
+		if (upgrade == null || !upgrade.trim().equalsIgnoreCase("h2c"))
+			return false;
+		if (request.getHeader("HTTP2-Settings") == null)
+			return false;
+		String connection = request.getHeader("Connection");
+		if (connection == null || !connection.toLowerCase().contains("http2-settings"))
+			return false;
+		if (request.getHeader("Transfer-Encoding") != null || request.getContentLength() > 0)
+			return false;
+		return true;
+	}
+
+	// **************************************************************************
+	// ** EventListener
+	// **************************************************************************
+	/**
+	 * Used to receive events from the SocketConnection. Read events are
+	 * dispatched by one of the server's RequestProcessor threads, write events
+	 * by the selector thread.
+	 */
+	private class EventListener extends Server.SocketConnection.Listener {
+
+		@Override
+		public void onReadable() {
+			read();
+		}
+
+		@Override
+		public void onWritable() {
+			flush();
+		}
+
+		@Override
+		public void onClose() {
+			onSocketClosed();
+		}
+	}
+
+	// **************************************************************************
+	// ** sendPreface
+	// **************************************************************************
+	/**
+	 * Used to send the server's connection preface: a SETTINGS frame followed
+	 * by a WINDOW_UPDATE that enlarges the connection window.
+	 */
+	private void sendPreface() throws IOException {
+		ByteBuffer buf = newFrame(SETTINGS, 0, 0, 18);
+		putSetting(buf, 0x3, MAX_CONCURRENT_STREAMS);
+		putSetting(buf, 0x4, STREAM_WINDOW_SIZE);
+		putSetting(buf, 0x6, MAX_HEADER_LIST_SIZE);
+		write(flip(buf), true);
+		sendWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+	}
+
+	private static void putSetting(ByteBuffer buf, int id, int value) {
+		buf.putShort((short) id);
+		buf.putInt(value);
+	}
+
+	// **************************************************************************
+	// ** read
+	// **************************************************************************
+	/**
+	 * Used to read and decode the bytes that are available from the client.
+	 * Never waits for the client. Incomplete frames are kept until the next
+	 * read event.
+	 */
+	private void read() {
+		try {
+			for (int i = 0; i < maxReads && !isClosed; i++) {
+				int numBytesRead = fill();
+				if (numBytesRead == 0)
+					break;
+				if (numBytesRead < 0) {
+					closeConnection(false);
+					break;
+				}
+				decodeFrames();
+			}
+		} catch (Http2Exception e) {
+			goAway(e.getErrorCode(), e.getMessage());
+		} catch (Exception e) {
+			log().d(e);
+			closeConnection(false);
+		} finally {
+
+			// Return the buffer to the pool if there are no bytes left to
+			// decode
+			if (inbound != null && inbound.position() == 0) {
+				BufferPool.DEFAULT.release(inbound);
+				inbound = null;
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** fill
+	// **************************************************************************
+	/**
+	 * Used to add bytes from the client to the inbound buffer. Returns the
+	 * number of bytes added, zero if no bytes are available or -1 if the
+	 * client closed the connection.
+	 */
+	private int fill() throws IOException {
+
+		// Add any bytes that were sent along with the first request
+		ByteBuffer pending = connection.removePendingData();
+		if (pending != null) {
+			int n = pending.remaining();
+			ensureCapacity(n);
+			inbound.put(pending);
+			return n;
+		}
+
+		ensureCapacity(1);
+		return connection.tryRead(inbound);
+	}
+
+	// **************************************************************************
+	// ** ensureCapacity
+	// **************************************************************************
+	/**
+	 * Used to ensure that the inbound buffer can take the given number of
+	 * bytes. Replaces pooled buffers with a larger buffer as needed.
+	 */
+	private void ensureCapacity(int length) {
+		if (inbound == null)
+			inbound = BufferPool.DEFAULT.acquire();
+		if (inbound.remaining() >= length)
+			return;
+		ByteBuffer buf = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + length));
+		inbound.flip();
+		buf.put(inbound);
+		BufferPool.DEFAULT.release(inbound);
+		inbound = buf;
+	}
+
+	// **************************************************************************
+	// ** decodeFrames
+	// **************************************************************************
+	/**
+	 * Decodes and processes the complete frames in the inbound buffer. Bytes
+	 * of an incomplete frame are moved to the start of the buffer and the
+	 * buffer is enlarged as needed to hold the entire frame.
+	 */
+	private void decodeFrames() throws IOException {
+		int frameSize = 0;
+		inbound.flip();
+		try {
+
+			// Check the rest of the connection preface
+			while (prefaceLength < PREFACE.length && inbound.hasRemaining()) {
+				if (inbound.get() != PREFACE[prefaceLength++])
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+			}
+
+			byte[] b = inbound.array();
+			while (inbound.remaining() >= FRAME_HEADER_LENGTH && !isClosed) {
+				int pos = inbound.arrayOffset() + inbound.position();
+				int length = ((b[pos] & 0xff) << 16) | ((b[pos + 1] & 0xff) << 8) | (b[pos + 2] & 0xff);
+				if (length > DEFAULT_FRAME_SIZE)
+					throw new Http2Exception(FRAME_SIZE_ERROR, "Frame is too big");
+				if (inbound.remaining() < FRAME_HEADER_LENGTH + length) {
+					frameSize = FRAME_HEADER_LENGTH + length;
+					break;
+				}
+				int type = b[pos + 3] & 0xff;
+				int flags = b[pos + 4] & 0xff;
+				int streamId = (((b[pos + 5] & 0x7f) << 24) | ((b[pos + 6] & 0xff) << 16) | ((b[pos + 7] & 0xff) << 8)
+				        | (b[pos + 8] & 0xff));
+				inbound.position(inbound.position() + FRAME_HEADER_LENGTH + length);
+				try {
+					processFrame(type, flags, streamId, b, pos + FRAME_HEADER_LENGTH, length);
+				} catch (Http2Exception e) {
+					if (e.getStreamId() == 0)
+						throw e;
+					reset(e.getStreamId(), e.getErrorCode());
+				}
+			}
+		} finally {
+			inbound.compact();
+		}
+		if (frameSize > 0)
+			ensureCapacity(frameSize - inbound.position());
+	}
+
+	// **************************************************************************
+	// ** processFrame
+	// **************************************************************************
+	/** Used to process a frame received from the client. */
+	private void processFrame(int type, int flags, int streamId, byte[] b, int off, int length) throws IOException {
+
+		if (!settingsReceived) {
+			if (type != SETTINGS || (flags & ACK) != 0)
+				throw new Http2Exception(PROTOCOL_ERROR, "Expected SETTINGS frame");
+			settingsReceived = true;
+		}
+
+		// A header block must not be interrupted by other frames
+		if (headerStreamId != 0 && (type != CONTINUATION || streamId != headerStreamId))
+			throw new Http2Exception(PROTOCOL_ERROR, "Expected CONTINUATION frame");
+
+		switch (type) {
+		case DATA:
+			processData(flags, streamId, b, off, length);
+			break;
+		case HEADERS:
+			processHeaders(flags, streamId, b, off, length);
+			break;
+		case CONTINUATION:
+			if (headerStreamId == 0)
+				throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+			addHeaderFragment(flags, b, off, length);
+			break;
+		case PRIORITY:
+			if (streamId == 0)
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid PRIORITY frame");
+			if (length != 5)
+				throw new Http2Exception(streamId, FRAME_SIZE_ERROR, "Invalid PRIORITY frame");
+			break;
+		case RST_STREAM:
+			if (streamId == 0 || isIdle(streamId))
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid RST_STREAM frame");
+			if (length != 4)
+				throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+			Stream stream = getStream(streamId);
+			if (stream != null)
+				stream.close();
+			break;
+		case SETTINGS:
+			if (streamId != 0)
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS frame");
+			if ((flags & ACK) != 0) {
+				if (length != 0)
+					throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+				break;
+			}
+			processSettings(b, off, length);
+			write(flip(newFrame(SETTINGS, ACK, 0, 0)), true);
+			break;
+		case PUSH_PROMISE:
+			throw new Http2Exception(PROTOCOL_ERROR, "Clients cannot push streams");
+		case PING:
+			if (streamId != 0)
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid PING frame");
+			if (length != 8)
+				throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid PING frame");
+			if ((flags & ACK) == 0) {
+				ByteBuffer buf = newFrame(PING, ACK, 0, 8);
+				buf.put(b, off, 8);
+				write(flip(buf), true);
+			}
+			break;
+		case GOAWAY:
+			if (streamId != 0)
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid GOAWAY frame");
+			boolean close;
+			lock.lock();
+			try {
+				goAwayReceived = true;
+				close = streams.isEmpty();
+			} finally {
+				lock.unlock();
+			}
+			if (close)
+				closeConnection(true);
+			break;
+		case WINDOW_UPDATE:
+			if (length != 4)
+				throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+			processWindowUpdate(streamId, getInt(b, off) & 0x7fffffff);
+			break;
+		default:
+			break; // Ignore unknown frames
+		}
+	}
+
+	// **************************************************************************
+	// ** processHeaders
+	// **************************************************************************
+	/** Used to process a HEADERS frame. */
+	private void processHeaders(int flags, int streamId, byte[] b, int off, int length) throws IOException {
+		if (streamId == 0)
+			throw new Http2Exception(PROTOCOL_ERROR, "Invalid HEADERS frame");
+
+		// Remove padding and priority
+		int end = off + length;
+		if ((flags & PADDED) != 0) {
+			if (length < 1)
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+			end -= b[off++] & 0xff;
+		}
+		if ((flags & PRIORITY_FLAG) != 0)
+			off += 5;
+		if (off > end)
+			throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+
+		headerStreamId = streamId;
+		headerEndStream = (flags & END_STREAM) != 0;
+		headerBlock.reset();
+		addHeaderFragment(flags, b, off, end - off);
+	}
+
+	// **************************************************************************
+	// ** addHeaderFragment
+	// **************************************************************************
+	/**
+	 * Used to add a fragment of a header block (HEADERS or CONTINUATION
+	 * frame). Processes the header block once all the fragments have been
+	 * received.
+	 */
+	private void addHeaderFragment(int flags, byte[] b, int off, int length) throws IOException {
+		if (headerBlock.size() + length > MAX_HEADER_LIST_SIZE)
+			throw new Http2Exception(PROTOCOL_ERROR, "Header block is too big");
+		headerBlock.write(b, off, length);
+		if ((flags & END_HEADERS) == 0)
+			return;
+
+		int streamId = headerStreamId;
+		headerStreamId = 0;
+
+		// Decode the header block. Blocks of refused streams are decoded too
+		// so that the dynamic table stays in sync with the client.
+		java.util.ArrayList<String> fields = new java.util.ArrayList<String>();
+		try {
+			byte[] block = headerBlock.toByteArray();
+			decoder.decode(block, 0, block.length, fields);
+		} catch (IOException e) {
+			throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+		}
+
+		// Check whether the block contains trailers of an open stream
+		Stream stream = getStream(streamId);
+		if (stream != null) {
+			if (!headerEndStream)
+				throw new Http2Exception(streamId, PROTOCOL_ERROR, "Trailers must end the stream");
+			stream.onData(null, 0, 0, 0, true);
+			return;
+		}
+
+		// Check whether the stream is new. Streams initiated by the client
+		// have odd numbers that increase.
+		if (streamId % 2 == 0 || !isIdle(streamId))
+			throw new Http2Exception(STREAM_CLOSED, "Invalid stream " + streamId);
+
+		byte[] header = getRequestHeader(fields);
+		boolean refuse;
+		lock.lock();
+		try {
+			lastStreamId = streamId;
+			refuse = streams.size() >= MAX_CONCURRENT_STREAMS || goAwayReceived;
+		} finally {
+			lock.unlock();
+		}
+		if (header == null)
+			throw new Http2Exception(streamId, PROTOCOL_ERROR, "Malformed request");
+		if (refuse)
+			throw new Http2Exception(streamId, REFUSED_STREAM, "Too many streams");
+
+		open(streamId, header, headerEndStream);
+	}
+
+	// **************************************************************************
+	// ** getRequestHeader
+	// **************************************************************************
+	/**
+	 * Used to convert the header fields of a request into an HTTP/1.1 style
+	 * header (e.g. "GET /index.html HTTP/2.0") that can be parsed by the
+	 * HttpServletRequest. Returns null if the request is malformed.
+	 */
+	private static byte[] getRequestHeader(java.util.ArrayList<String> fields) {
+		String method = null, path = null, authority = null;
+		StringBuilder headers = new StringBuilder();
+		StringBuilder cookie = null;
+		boolean hasHost = false;
+		for (int i = 0; i < fields.size(); i += 2) {
+			String name = fields.get(i);
+			String value = fields.get(i + 1);
+			if (!isValid(name) || !isValid(value) || name.length() == 0)
+				return null;
+
+			if (name.charAt(0) == ':') {
+				if (headers.length() > 0)
+					return null; // pseudo-headers must come first
+				if (name.equals(":method"))
+					method = value;
+				else if (name.equals(":path"))
+					path = value;
+				else if (name.equals(":authority"))
+					authority = value;
+				else if (!name.equals(":scheme"))
+					return null;
+			} else if (name.equals("cookie")) {
+				if (cookie == null)
+					cookie = new StringBuilder(value);
+				else
+					cookie.append("; ").append(value);
+			} else {
+				if (name.indexOf(':') > -1 || name.equals("connection"))
+					return null;
+				if (name.equals("host"))
+					hasHost = true;
+				headers.append(name).append(": ").append(value).append("\r\n");
+			}
+		}
+		if (method == null || path == null || path.length() == 0 || method.indexOf(' ') > -1
+		        || path.indexOf(' ') > -1)
+			return null;
+
+		StringBuilder header = new StringBuilder();
+		header.append(method).append(' ').append(path).append(" HTTP/2.0\r\n");
+		if (authority != null && !hasHost)
+			header.append("host: ").append(authority).append("\r\n");
+		header.append(headers);
+		if (cookie != null)
+			header.append("cookie: ").append(cookie).append("\r\n");
+		header.append("\r\n");
+		return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/** Returns false if a name or value contains a line break. */
+	private static boolean isValid(String str) {
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '\r' || c == '\n' || c == 0)
+				return false;
+		}
+		return true;
+	}
+
+	// **************************************************************************
+	// ** open
+	// **************************************************************************
+	/**
+	 * Used to create a new stream and pass the request to the servlet.
+	 */
+	private void open(int streamId, byte[] header, boolean endStream) throws IOException {
+		final Stream stream = new Stream(streamId, header, endStream);
+		lock.lock();
+		try {
+			streams.put(streamId, stream);
+		} finally {
+			lock.unlock();
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					process(stream);
+				}
+			});
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+			reset(streamId, REFUSED_STREAM);
+		}
+	}
+
+	// **************************************************************************
+	// ** process
+	// **************************************************************************
+	/**
+	 * Used to process a stream and send the response back to the client.
+	 * Called by one of the threads of the Executor.
+	 */
+	private void process(Stream stream) {
+		HttpServletRequest request = null;
+		HttpServletResponse response = null;
+		long startTime = 0;
+		try {
+			request = new HttpServletRequest(stream, connection, servlet, stream.header);
+			startTime = System.nanoTime();
+			metrics.onRequestStart(connection, request);
+			response = new HttpServletResponse(request, connection);
+			servlet.service(request, response);
+		} catch (ServletException e) {
+			log().w(e);
+			if (request != null && !stream.isHeadersSent()) {
+				response = new HttpServletResponse(request, connection);
+				response.setStatus(e.getStatusCode(), e.getMessage());
+			}
+		} catch (Throwable e) {
+			log().d(e);
+		}
+
+		// Flush the response and end the stream
+		if (response != null) {
+			response.flushBuffer();
+			response.closeBuffer();
+		}
+		if (startTime != 0) {
+			metrics.onRequestEnd(connection, request, response, System.nanoTime() - startTime);
+		}
+		stream.end(response != null, request == null ? -1 : request.getContentLengthLong());
+
+		if (request != null)
+			request.clear();
+	}
+
+	// **************************************************************************
+	// ** processData
+	// **************************************************************************
+	/** Used to process a DATA frame. */
+	private void processData(int flags, int streamId, byte[] b, int off, int length) throws IOException {
+		if (streamId == 0 || isIdle(streamId))
+			throw new Http2Exception(PROTOCOL_ERROR, "Invalid DATA frame");
+
+		// Update the connection window. The stream windows limit the number
+		// of bytes that are buffered so the connection window is updated as
+		// soon as half of it has been used.
+		int increment = 0;
+		lock.lock();
+		try {
+			receivedBytes += length;
+			if (receivedBytes >= CONNECTION_WINDOW_SIZE / 2) {
+				increment = receivedBytes;
+				receivedBytes = 0;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (increment > 0)
+			sendWindowUpdate(0, increment);
+
+		// Remove padding
+		int end = off + length;
+		if ((flags & PADDED) != 0) {
+			if (length < 1)
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+			end -= b[off++] & 0xff;
+			if (off > end)
+				throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+		}
+
+		// Ignore frames of streams that were closed or reset
+		Stream stream = getStream(streamId);
+		if (stream == null)
+			return;
+		stream.onData(b, off, end - off, length, (flags & END_STREAM) != 0);
+	}
+
+	// **************************************************************************
+	// ** processSettings
+	// **************************************************************************
+	/** Used to apply the settings sent by the client. */
+	private void processSettings(byte[] b, int off, int length) throws IOException {
+		if (length % 6 != 0)
+			throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+		for (int i = off; i < off + length; i += 6) {
+			int id = ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+			int value = getInt(b, i + 2);
+			switch (id) {
+			case 0x1: // SETTINGS_HEADER_TABLE_SIZE
+				sendLock.lock();
+				try {
+					encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+				} finally {
+					sendLock.unlock();
+				}
+				break;
+			case 0x2: // SETTINGS_ENABLE_PUSH
+				if (value != 0 && value != 1)
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+				break;
+			case 0x4: // SETTINGS_INITIAL_WINDOW_SIZE
+				if (value < 0)
+					throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+				lock.lock();
+				try {
+					int delta = value - initialWindowSize;
+					initialWindowSize = value;
+					for (Stream stream : streams.values()) {
+						long window = (long) stream.sendWindow + delta;
+						if (window > Integer.MAX_VALUE)
+							throw new Http2Exception(FLOW_CONTROL_ERROR, "Window is too big");
+						stream.sendWindow = (int) window;
+					}
+					windowUpdated.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				break;
+			case 0x5: // SETTINGS_MAX_FRAME_SIZE
+				if (value < DEFAULT_FRAME_SIZE || value > 16777215)
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+				maxFrameSize = value;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** processWindowUpdate
+	// **************************************************************************
+	/**
+	 * Used to increase the number of bytes that can be sent on a stream or, if
+	 * the streamId is zero, on the connection.
+	 */
+	private void processWindowUpdate(int streamId, int increment) throws IOException {
+		if (increment == 0)
+			throw new Http2Exception(streamId, PROTOCOL_ERROR, "Invalid window increment");
+		lock.lock();
+		try {
+			if (streamId == 0) {
+				if ((long) sendWindow + increment > Integer.MAX_VALUE)
+					throw new Http2Exception(FLOW_CONTROL_ERROR, "Window is too big");
+				sendWindow += increment;
+			} else {
+				Stream stream = streams.get(streamId);
+				if (stream == null) {
+					if (streamId > lastStreamId)
+						throw new Http2Exception(PROTOCOL_ERROR, "Invalid stream " + streamId);
+					return;
+				}
+				if ((long) stream.sendWindow + increment > Integer.MAX_VALUE)
+					throw new Http2Exception(streamId, FLOW_CONTROL_ERROR, "Window is too big");
+				stream.sendWindow += increment;
+			}
+			windowUpdated.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** Stream Management
+	// **************************************************************************
+
+	private Stream getStream(int streamId) {
+		lock.lock();
+		try {
+			return streams.get(streamId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Returns true if the client has not used the given stream id yet. */
+	private boolean isIdle(int streamId) {
+		lock.lock();
+		try {
+			return streamId > lastStreamId;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called when a stream is closed. Closes the connection if the client
+	 * sent a GOAWAY frame and this was the last stream.
+	 */
+	private void remove(Stream stream) {
+		boolean close;
+		lock.lock();
+		try {
+			streams.remove(stream.id);
+			close = goAwayReceived && streams.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+		if (close)
+			closeConnection(true);
+	}
+
+	/** Used to reset a stream with the given error code. */
+	private void reset(int streamId, int errorCode) throws IOException {
+		Stream stream = getStream(streamId);
+		if (stream != null)
+			stream.close();
+		ByteBuffer buf = newFrame(RST_STREAM, 0, streamId, 4);
+		buf.putInt(errorCode);
+		write(flip(buf), true);
+	}
+
+	// **************************************************************************
+	// ** goAway
+	// **************************************************************************
+	/**
+	 * Used to send a GOAWAY frame with the given error code and to close the
+	 * connection once the frame has been sent.
+	 */
+	private void goAway(int errorCode, String message) {
+		log().d("GOAWAY", errorCode, message);
+		try {
+			byte[] debug = (message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8));
+			int lastStreamId;
+			lock.lock();
+			try {
+				lastStreamId = this.lastStreamId;
+			} finally {
+				lock.unlock();
+			}
+			ByteBuffer buf = newFrame(GOAWAY, 0, 0, 8 + debug.length);
+			buf.putInt(lastStreamId);
+			buf.putInt(errorCode);
+			buf.put(debug);
+			write(flip(buf), true);
+			closeConnection(true);
+		} catch (IOException e) {
+			closeConnection(false);
+		}
+	}
+
+	// **************************************************************************
+	// ** closeConnection
+	// **************************************************************************
+	/**
+	 * Used to close the underlying socket.
+	 *
+	 * @param flush
+	 *            If true, waits for any queued bytes to be sent before closing
+	 *            the socket. Does not block the caller.
+	 */
+	private void closeConnection(boolean flush) {
+		if (flush) {
+			sendLock.lock();
+			try {
+				if (!outbound.isEmpty()) {
+					closeWhenSent = true;
+					return;
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
+		}
+	}
+
+	// **************************************************************************
+	// ** onSocketClosed
+	// **************************************************************************
+	/**
+	 * Called when the underlying socket is closed, either by this class or by
+	 * the server (e.g. idle connection or server shutdown). Wakes up the
+	 * servlets that are waiting to read or write.
+	 */
+	private void onSocketClosed() {
+		isClosed = true;
+		lock.lock();
+		try {
+			for (Stream stream : streams.values()) {
+				stream.isReset = true;
+				stream.dataAvailable.signalAll();
+			}
+			windowUpdated.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		sendLock.lock();
+		try {
+			outbound.clear();
+			outboundSize = 0;
+			drained.signalAll();
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** newFrame
+	// **************************************************************************
+	/**
+	 * Returns a new buffer with a frame header. The payload is added after the
+	 * header.
+	 */
+	private static ByteBuffer newFrame(int type, int flags, int streamId, int length) {
+		ByteBuffer buf = ByteBuffer.allocate(FRAME_HEADER_LENGTH + length);
+		buf.put((byte) (length >>> 16));
+		buf.put((byte) (length >>> 8));
+		buf.put((byte) length);
+		buf.put((byte) type);
+		buf.put((byte) flags);
+		buf.putInt(streamId);
+		return buf;
+	}
+
+	/** Returns the given buffer in read mode. */
+	private static ByteBuffer flip(ByteBuffer buf) {
+		buf.flip();
+		return buf;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	private void sendWindowUpdate(int streamId, int increment) throws IOException {
+		ByteBuffer buf = newFrame(WINDOW_UPDATE, 0, streamId, 4);
+		buf.putInt(increment);
+		write(flip(buf), true);
+	}
+
+	// **************************************************************************
+	// ** write
+	// **************************************************************************
+	/**
+	 * Used to send bytes to the client without blocking the selector. Bytes
+	 * that the socket does not accept right away are queued and sent by the
+	 * selector thread once the socket is writable again.
+	 *
+	 * @param control
+	 *            If false, the caller waits while the queue is full so that a
+	 *            servlet cannot queue more than maxQueueSize bytes for a slow
+	 *            client. Frames sent by the reader thread (e.g. SETTINGS or
+	 *            WINDOW_UPDATE) are always queued.
+	 */
+	private void write(ByteBuffer buf, boolean control) throws IOException {
+		sendLock.lock();
+		try {
+			if (!control) {
+				long timeout = TimeUnit.MILLISECONDS.toNanos(connection.getWriteTimeout());
+				while (outboundSize > maxQueueSize && !isClosed) {
+					try {
+						if (timeout <= 0)
+							drained.await();
+						else if ((timeout = drained.awaitNanos(timeout)) <= 0)
+							throw new java.net.SocketTimeoutException("Write timed out");
+					} catch (InterruptedException e) {
+						throw new java.io.InterruptedIOException();
+					}
+				}
+			}
+			if (isClosed || closeWhenSent)
+				throw new IOException("Connection is closed.");
+
+			if (outbound.isEmpty()) {
+				connection.tryWrite(buf);
+				if (!buf.hasRemaining())
+					return;
+			}
+			outbound.add(buf);
+			outboundSize += buf.remaining();
+			connection.setWriteInterest(true);
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** flush
+	// **************************************************************************
+	/**
+	 * Used to send queued bytes to the client. Called by the selector thread
+	 * when the socket is writable.
+	 */
+	private void flush() {
+		boolean close;
+		sendLock.lock();
+		try {
+			while (!outbound.isEmpty()) {
+				ByteBuffer buf = outbound.peek();
+				outboundSize -= connection.tryWrite(buf);
+				if (buf.hasRemaining())
+					return;
+				outbound.poll();
+			}
+			connection.setWriteInterest(false);
+			close = closeWhenSent;
+		} catch (IOException e) {
+			close = true;
+		} finally {
+			if (outboundSize <= maxQueueSize)
+				drained.signalAll();
+			sendLock.unlock();
+		}
+		if (close)
+			closeConnection(false);
+	}
+
+	// **************************************************************************
+	// ** Stream
+	// **************************************************************************
+	/**
+	 * Represents a single request/response exchange on the connection. Used
+	 * by the HttpServletRequest to read the request body and by the
+	 * HttpServletResponse to send the response.
+	 */
+	class Stream {
+
+		private final int id;
+		private final byte[] header;
+
+		// Request body. Guarded by the connection lock.
+		private final ArrayDeque<ByteBuffer> input = new ArrayDeque<ByteBuffer>();
+		private final Condition dataAvailable = lock.newCondition();
+		private boolean endOfInput;
+		private int receiveWindow = STREAM_WINDOW_SIZE;
+		private int consumed = 0;
+		private long received = 0;
+		private boolean discard = false;
+
+		// Response. The send window is guarded by the connection lock.
+		private int sendWindow;
+		private volatile boolean isReset = false;
+		private volatile boolean headersSent = false;
+		private boolean endSent = false;
+
+		private Stream(int id, byte[] header, boolean endOfInput) {
+			this.id = id;
+			this.header = header;
+			this.endOfInput = endOfInput;
+			this.sendWindow = initialWindowSize;
+		}
+
+		/** Called by the reader thread when a DATA frame is received. */
+		private void onData(byte[] b, int off, int len, int frameLength, boolean endStream) throws IOException {
+			int increment = 0;
+			boolean remove = false;
+			lock.lock();
+			try {
+				if (endOfInput)
+					throw new Http2Exception(id, STREAM_CLOSED, "Stream is half-closed");
+				if (frameLength > receiveWindow)
+					throw new Http2Exception(id, FLOW_CONTROL_ERROR, "Window exceeded");
+				receiveWindow -= frameLength;
+				received += len;
+
+				// Padding and discarded bytes are consumed right away
+				if (len > 0 && !discard)
+					input.add(ByteBuffer.wrap(java.util.Arrays.copyOfRange(b, off, off + len)));
+				consumed += (discard ? frameLength : frameLength - len);
+				increment = getIncrement();
+
+				if (endStream) {
+					endOfInput = true;
+					remove = discard;
+				}
+				dataAvailable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (increment > 0)
+				sendWindowUpdate(id, increment);
+			if (remove)
+				remove(this);
+		}
+
+		/**
+		 * Returns the number of bytes to add to the receive window once half
+		 * of the window was consumed. Called while holding the lock.
+		 */
+		private int getIncrement() {
+			if (endOfInput || isReset || consumed == 0 || (consumed < STREAM_WINDOW_SIZE / 2 && !discard))
+				return 0;
+			int increment = consumed;
+			receiveWindow += consumed;
+			consumed = 0;
+			return increment;
+		}
+
+		// **************************************************************************
+		// ** read
+		// **************************************************************************
+		/**
+		 * Used to read bytes from the request body into the given buffer.
+		 * Waits until the client sends more bytes. Returns the number of bytes
+		 * read or -1 if the end of the body has been reached.
+		 */
+		int read(ByteBuffer buf) throws IOException {
+			int n, increment;
+			lock.lock();
+			try {
+				long timeout = TimeUnit.MILLISECONDS.toNanos(connection.getReadTimeout());
+				while (input.isEmpty()) {
+					if (endOfInput)
+						return -1;
+					if (isReset)
+						throw new IOException("Stream was reset.");
+					try {
+						if (timeout <= 0)
+							dataAvailable.await();
+						else if ((timeout = dataAvailable.awaitNanos(timeout)) <= 0)
+							throw new java.net.SocketTimeoutException("Read timed out");
+					} catch (InterruptedException e) {
+						throw new java.io.InterruptedIOException();
+					}
+				}
+				ByteBuffer data = input.peek();
+				n = Math.min(buf.remaining(), data.remaining());
+				ByteBuffer src = data.duplicate();
+				src.limit(src.position() + n);
+				buf.put(src);
+				data.position(data.position() + n);
+				if (!data.hasRemaining())
+					input.poll();
+
+				consumed += n;
+				increment = getIncrement();
+			} finally {
+				lock.unlock();
+			}
+			if (increment > 0)
+				sendWindowUpdate(id, increment);
+			return n;
+		}
+
+		// **************************************************************************
+		// ** writeHeaders
+		// **************************************************************************
+		/**
+		 * Used to send the response header. Names must be in lower case and
+		 * are given with the values in pairs (name, value).
+		 */
+		void writeHeaders(java.util.List<String> fields) throws IOException {
+			if (isReset)
+				throw new IOException("Stream was reset.");
+			sendLock.lock();
+			try {
+				// Encode and queue the frames while holding the lock so that
+				// the header blocks arrive in the order they were encoded
+				java.io.ByteArrayOutputStream block = new java.io.ByteArrayOutputStream();
+				for (int i = 0; i < fields.size(); i += 2)
+					encoder.encode(fields.get(i), fields.get(i + 1), block);
+				byte[] b = block.toByteArray();
+				int maxFrameSize = Http2Connection.this.maxFrameSize;
+				int off = 0;
+				do {
+					int n = Math.min(b.length - off, maxFrameSize);
+					int type = (off == 0 ? HEADERS : CONTINUATION);
+					int flags = (off + n == b.length ? END_HEADERS : 0);
+					ByteBuffer buf = newFrame(type, flags, id, n);
+					buf.put(b, off, n);
+					Http2Connection.this.write(flip(buf), true);
+					off += n;
+				} while (off < b.length);
+				headersSent = true;
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		// **************************************************************************
+		// ** write
+		// **************************************************************************
+		/**
+		 * Used to send bytes from the given buffer in DATA frames. Waits for
+		 * the client to update the flow control windows as needed.
+		 */
+		void write(ByteBuffer buf, int length) throws IOException {
+			length = Math.min(length, buf.remaining());
+			while (length > 0) {
+
+				// Reserve space in the stream and connection windows
+				int n;
+				lock.lock();
+				try {
+					long timeout = TimeUnit.MILLISECONDS.toNanos(connection.getWriteTimeout());
+					while (true) {
+						if (isReset)
+							throw new IOException("Stream was reset.");
+						n = Math.min(Math.min(length, maxFrameSize),
+						        Math.min(sendWindow, Http2Connection.this.sendWindow));
+						if (n > 0)
+							break;
+						try {
+							if (timeout <= 0)
+								windowUpdated.await();
+							else if ((timeout = windowUpdated.awaitNanos(timeout)) <= 0)
+								throw new java.net.SocketTimeoutException("Write timed out");
+						} catch (InterruptedException e) {
+							throw new java.io.InterruptedIOException();
+						}
+					}
+					sendWindow -= n;
+					Http2Connection.this.sendWindow -= n;
+				} finally {
+					lock.unlock();
+				}
+
+				ByteBuffer frame = newFrame(DATA, 0, id, n);
+				ByteBuffer src = buf.duplicate();
+				src.limit(src.position() + n);
+				frame.put(src);
+				buf.position(buf.position() + n);
+				Http2Connection.this.write(flip(frame), false);
+				length -= n;
+			}
+		}
+
+		// **************************************************************************
+		// ** end
+		// **************************************************************************
+		/**
+		 * Called after the servlet is done with the request. Ends the stream.
+		 * If the servlet did not read the entire request body, the rest of
+		 * the body is discarded or, if it is too big, the client is told to
+		 * stop sending the body.
+		 *
+		 * @param success
+		 *            False if no response was generated. In that case, the
+		 *            stream is reset.
+		 * @param contentLength
+		 *            Length of the request body or -1 if unknown.
+		 */
+		private void end(boolean success, long contentLength) {
+			try {
+				if (!isReset && !isClosed) {
+					if (success && headersSent && !endSent) {
+						endSent = true;
+						Http2Connection.this.write(flip(newFrame(DATA, END_STREAM, id, 0)), true);
+					} else if (!endSent) {
+						reset(id, INTERNAL_ERROR);
+					}
+
+					// Check whether the client is still sending the body
+					int increment = 0;
+					boolean endOfInput;
+					lock.lock();
+					try {
+						endOfInput = this.endOfInput;
+						if (!endOfInput && !isReset && contentLength >= 0
+						        && contentLength - received <= maxDiscardSize) {
+							discard = true;
+							for (ByteBuffer data : input)
+								consumed += data.remaining();
+							input.clear();
+							increment = getIncrement();
+						}
+					} finally {
+						lock.unlock();
+					}
+					if (discard) {
+						if (increment > 0)
+							sendWindowUpdate(id, increment);
+						return;
+					}
+					if (!endOfInput && !isReset)
+						reset(id, NO_ERROR);
+				}
+			} catch (IOException e) {
+			}
+			remove(this);
+		}
+
+		/** Called when the stream is reset. Wakes up waiting servlets. */
+		private void close() {
+			lock.lock();
+			try {
+				isReset = true;
+				streams.remove(id);
+				dataAvailable.signalAll();
+				windowUpdated.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/** Returns true if the response header has been sent. */
+		boolean isHeadersSent() {
+			return headersSent;
+		}
+	}
+
+	// **************************************************************************
+	// ** Http2Exception
+	// **************************************************************************
+	/**
+	 * Thrown when the client violates the protocol. Stream errors reset a
+	 * single stream. Connection errors (streamId of zero) close the
+	 * connection.
+	 */
+	private static class Http2Exception extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int streamId;
+		private final int errorCode;
+
+		Http2Exception(int errorCode, String message) {
+			this(0, errorCode, message);
+		}
+
+		Http2Exception(int streamId, int errorCode, String message) {
+			super(message);
+			this.streamId = streamId;
+			this.errorCode = errorCode;
+		}
+
+		int getStreamId() {
+			return streamId;
+		}
+
+		int getErrorCode() {
+			return errorCode;
+		}
+	}
+}
@@ -29,12 +29,18 @@ public abstract class HttpServlet extends MLog implements Servlet {
 	private javax.net.ssl.KeyManager[] kms;
 	private javax.net.ssl.TrustManager[] tms;
 	private String sslProvider;
+	private volatile SSLContext sslContext;
 	protected static final ServletContext context = new ServletContext();
 
 	// This variable are used in the HttpServletRequest class.
 	protected String servletPath = "";
 	private ServletConfig config;
 
+	// Limits used to parse "multipart/form-data"
+	private long maxFormPartSize = -1;
+	private long maxFormSize = -1;
+	private int formSpillThreshold = 1024 * 1024;
+
 	// **************************************************************************
 	// ** init
 	// **************************************************************************
@@ -109,6 +115,42 @@ public abstract class HttpServlet extends MLog implements Servlet {
 			return null;
 	}
 
+	// **************************************************************************
+	// ** setFormLimits
+	// **************************************************************************
+	/**
+	 * Used to set limits for "multipart/form-data" read with the
+	 * HttpServletRequest.getFormInputs() method. Reading a form that exceeds a
+	 * limit fails with an IOException.
+	 *
+	 * @param maxPartSize
+	 *            Maximum size of a form value (e.g. uploaded file) in bytes.
+	 *            Use -1 for no limit.
+	 * @param maxSize
+	 *            Maximum size of the form data in bytes. Use -1 for no limit.
+	 * @param spillThreshold
+	 *            Values that are larger than this size (in bytes) are cached in
+	 *            a temp file instead of memory when the whole value is
+	 *            requested (e.g. FormValue.toString()). Default is 1MB.
+	 */
+	public void setFormLimits(long maxPartSize, long maxSize, int spillThreshold) {
+		this.maxFormPartSize = maxPartSize;
+		this.maxFormSize = maxSize;
+		this.formSpillThreshold = spillThreshold;
+	}
+
+	protected long getMaxFormPartSize() {
+		return maxFormPartSize;
+	}
+
+	protected long getMaxFormSize() {
+		return maxFormSize;
+	}
+
+	protected int getFormSpillThreshold() {
+		return formSpillThreshold;
+	}
+
 	// **************************************************************************
 	// ** setKeyStore
 	// **************************************************************************
@@ -120,6 +162,7 @@ public abstract class HttpServlet extends MLog implements Servlet {
 		KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
 		kmf.init(keystore, passphrase.toCharArray());
 		kms = kmf.getKeyManagers();
+		sslContext = null;
 	}
 
 	// **************************************************************************
@@ -150,6 +193,7 @@ public abstract class HttpServlet extends MLog implements Servlet {
 	 */
 	public void setKeyManager(javax.net.ssl.KeyManager keyManager) throws Exception {
 		kms = new javax.net.ssl.KeyManager[] { keyManager };
+		sslContext = null;
 	}
 
 	// **************************************************************************
@@ -163,6 +207,7 @@ public abstract class HttpServlet extends MLog implements Servlet {
 		TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
 		tmf.init(truststore);
 		tms = tmf.getTrustManagers();
+		sslContext = null;
 	}
 
 	// **************************************************************************
@@ -191,6 +236,7 @@ public abstract class HttpServlet extends MLog implements Servlet {
 			// java.security.Security.addProvider(provider);
 		} else
 			sslProvider = null;
+		sslContext = null;
 	}
 
 	// **************************************************************************
@@ -206,11 +252,36 @@ public abstract class HttpServlet extends MLog implements Servlet {
 	// **************************************************************************
 	// ** getSSLContext
 	// **************************************************************************
+	/**
+	 * Returns the SSLContext used to create SSLEngines that decrypt SSL/TLS
+	 * messages. The SSLContext is created once and shared by all connections
+	 * so that clients can resume TLS sessions from its session cache (see
+	 * SSLContext.getServerSessionContext() to tune the cache size and
+	 * timeout). A new SSLContext is created whenever the KeyStore, TrustStore
+	 * or provider changes.
+	 */
+	public SSLContext getSSLContext() throws ServletException {
+		SSLContext sslContext = this.sslContext;
+		if (sslContext == null) {
+			synchronized (this) {
+				sslContext = this.sslContext;
+				if (sslContext == null) {
+					sslContext = createSSLContext();
+					this.sslContext = sslContext;
+				}
+			}
+		}
+		return sslContext;
+	}
+
+	// **************************************************************************
+	// ** createSSLContext
+	// **************************************************************************
 	/**
 	 * Used to initialize an SSLContext which, in turn is used by an SSLEngine
 	 * decrypt SSL/TLS messages.
 	 */
-	public SSLContext getSSLContext() throws ServletException {
+	private SSLContext createSSLContext() throws ServletException {
 
 		/*
 		 * //Debug use only! java.security.Provider provider = new
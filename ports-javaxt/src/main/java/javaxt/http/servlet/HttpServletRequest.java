@@ -7,9 +7,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 
-import javax.net.ssl.SSLEngine;
-import javax.net.ssl.SSLEngineResult;
-import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
 import javax.servlet.RequestDispatcher;
@@ -21,6 +18,8 @@ import javax.servlet.http.HttpUtils;
 import javax.servlet.http.Part;
 
 import de.mhus.lib.core.MLog;
+import javaxt.http.BufferPool;
+import javaxt.http.SecureChannel;
 import javaxt.http.Server.SocketConnection;
 
 //******************************************************************************
@@ -36,27 +35,32 @@ import javaxt.http.Server.SocketConnection;
 
 public class HttpServletRequest extends MLog implements javax.servlet.http.HttpServletRequest {
 
-	private String[] header;
+	private RequestHeader header;
+	private ByteBuffer headerBuffer;
+	private ByteBuffer rawData;
 	private java.net.URL url;
 	private String version;
 	private String method;
 	private HashMap<String, List<String>> parameters;
 	private SocketConnection connection;
 	private java.net.InetSocketAddress remoteSocketAddress;
-	private static final int maxHeaderSize = 8192; // 8KB
-	private static final String[] methods = new String[] { "GET", "POST", "HEAD", "PUT", "OPTIONS", "TRACE", "DELETE" };
+	private static final String[] methods = new String[] { "GET", "POST", "HEAD", "PUT", "OPTIONS", "TRACE", "DELETE",
+	        "PRI" };
 	private static final int mx = "OPTIONS".length() + 1;
 	private HttpSession session = null;
 	private java.util.ArrayList<Cookie> cookies = null;
 	private Boolean isKeepAlive;
 	private Boolean isWebSocket;
-	private static final int maxRecordSize = 33049;
-	private SSLEngine sslEngine;
+	private static final int maxSkipSize = 65536; // 64KB
+	private SecureChannel secureChannel;
 	private ByteBuffer appData;
-	private ByteBuffer recordHeader;
 	private ServletInputStream inputStream;
-	private Integer contentLength = null;
-	private java.nio.ByteBuffer oneByte = java.nio.ByteBuffer.allocateDirect(1);
+	private Long contentLength = null;
+	private boolean continueSent = false;
+	private java.nio.ByteBuffer oneByte;
+	private Http2Connection.Stream stream;
+	private HttpServlet servlet;
+	private MultipartParser multipartParser;
 
 	// The following variables are used for authentication
 	private Authenticator authenticator;
@@ -95,128 +99,100 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 
 		this.remoteSocketAddress = connection.getRemoteSocketAddress();
 		this.connection = connection;
+		this.servlet = servlet;
 		this.attributes = new HashMap<String, Object>();
 		this.servletPath = servlet.servletPath;
 		this.servletContext = servlet.getServletContext();
 
-		int totalBytesRead = 0;
-		String[] header = new String[30]; // <--max header length is set to 30
-		                                  // lines
-		char[] row = new char[2048]; // <--max row length is set to 2048
-		                             // characters
-		int i = 0;
-		int j = 0;
+		// Read the http header into a pooled buffer. Bytes are read from the
+		// socket in bulk and scanned for the empty line that terminates the
+		// header. Note that the size of the header is limited by the size of
+		// the buffer (8KB).
+		headerBuffer = BufferPool.DEFAULT.acquire();
+		byte[] data = headerBuffer.array();
+		int length = 0;
+		int end = -1;
+		boolean isValid = false;
+
+		// If a previous request on this connection was encrypted, continue
+		// reading application data
 		boolean decrypt = false;
+		if (connection.getSecureChannel() != null) {
+			secureChannel = connection.getSecureChannel();
+			decrypt = true;
+		}
+
+		while (end < 0) {
 
-		// Extract the http header from the input stream, one byte at a time
-		while (true) {
+			if (length == data.length)
+				throw new ServletException("Header is too big.");
 
-			byte a = nextByte(decrypt);
-			totalBytesRead++;
+			int from = length;
+			length += fill(data, length, decrypt);
 
-			// If this is the first byte, check whether the request is SSL
-			if (totalBytesRead == 1 && ((a > 19 && a < 25) || a == -128)) {
+			// If this is the first chunk, check whether the request is SSL
+			byte a = data[0];
+			if (from == 0 && !decrypt && ((a > 19 && a < 25) || a == -128)) {
 
-				// Read the next 4 bytes from the socket channel. This, plus the
-				// first byte should contain TLS record information.
-				recordHeader = ByteBuffer.allocateDirect(5);
-				recordHeader.put(a);
-				for (int x = 0; x < 4; x++) {
-					recordHeader.put(nextByte(false));
+				// Get the first 5 bytes. These should contain TLS record
+				// information.
+				while (length < 5) {
+					length += fill(data, length, false);
 				}
-				recordHeader.rewind();
 
 				// Check whether the TLS record is valid
-				int tlsVersion = recordHeader.get(1);
+				int tlsVersion = data[1];
 				if (a == -128)
-					tlsVersion = recordHeader.get(3);
+					tlsVersion = data[3];
 				if (tlsVersion != 3)
 					throw new ServletException("Unsupported TLS Version.");
-
-				// If we're still here, get the SSLEngine associated with this
-				// connection. Create a new SSLEngine as needed.
-				sslEngine = connection.getSSLEngine();
-				if (sslEngine == null) {
-					sslEngine = servlet.getSSLEngine(connection.getLocalAddress(), connection.getLocalPort());
-					connection.setSSLEngine(sslEngine);
-				}
-
-				// Process the SSL/TLS record
-				switch (a) {
-				case 22:
-				case -128:
-					initHandshake();
-					break;
-				case 23:
-					break;
-				default:
+				if (a != 22 && a != -128)
 					throw new ServletException("Unsupported TLS Record: " + a);
-				}
+
+				// If we're still here, create a new SSLEngine for this
+				// connection. Hand the bytes read so far to the engine and
+				// perform the handshake.
+				connection.setSSLEngine(servlet.getSSLEngine(connection.getLocalAddress(), connection.getLocalPort()));
+				secureChannel = connection.getSecureChannel();
+				secureChannel.addNetworkData(data, 0, length);
+				length = 0;
+				secureChannel.handshake();
 
 				// Update flag to decrypt all subsequent bytes from the socket
 				decrypt = true;
-
-				// Read the next byte
-				a = nextByte(decrypt);
-			}
-
-			if (a == '\r') {
-
-				byte b = nextByte(decrypt);
-				totalBytesRead++;
-
-				if (b == '\n') {
-
-					if (j == 0)
-						break;
-					header[i] = new String(row, 0, j);
-					j = 0;
-					i++;
-				} else if (b > -1) {
-					row[j] = (char) a;
-					j++;
-					row[j] = (char) b;
-					j++;
-				}
-			} else if (a > -1) {
-				row[j] = (char) a;
-				j++;
+				continue;
 			}
 
-			// Check row length, row count, and overall header length.
-			if (j > row.length)
-				throw new ServletException("Line " + i + " is too long.");
-			if (i > header.length)
-				throw new ServletException("Too many rows.");
-			if (totalBytesRead > maxHeaderSize)
-				throw new ServletException("Header is too big.");
-
 			// Check the first few characters to see if this is a valid HTTP
 			// request.
-			if (totalBytesRead == mx) {
-				boolean isValid = false;
-				String str = new String(row, 0, j);
-				for (String method : methods) {
-					if (str.startsWith(method + " ")) {
-						isValid = true;
-						break;
-					}
-				}
-				if (!isValid)
-					throw new ServletException("Bad Request: " + str);
+			if (!isValid && length >= mx) {
+				validate(data);
+				isValid = true;
 			}
-		}
 
-		row = null;
+			end = RequestHeader.indexOfEnd(data, from, length);
+		}
 
-		if (totalBytesRead < mx) {
+		if (end < mx) {
 			throw new ServletException("Bad Request");
 		}
+		if (!isValid) {
+			validate(data);
+		}
 
-		// Prune the header array
-		this.header = new String[i];
-		System.arraycopy(header, 0, this.header, 0, i);
-		header = null;
+		// Push back any bytes that were read past the end of the header (e.g.
+		// the body or a pipelined request).
+		if (end < length) {
+			if (decrypt) {
+				appData.position(appData.position() - (length - end));
+			} else {
+				rawData = ByteBuffer.wrap(data, end, length - end);
+			}
+		}
+
+		// Index the header lines
+		header = new RequestHeader();
+		header.parse(data, end);
 
 		parseHeader();
 
@@ -225,8 +201,105 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 			authenticator = servlet.getAuthenticator(this);
 		} catch (Exception e) {
 			// TODO: Figure out how to propogate this error to the caller!
-			e.printStackTrace();
+			log().w("Failed to create authenticator", e);
+		}
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Used to create a request for an HTTP/2 stream. The header is created by
+	 * the Http2Connection from the header fields of the stream (e.g. "GET
+	 * /index.html HTTP/2.0"). The body is read from the stream.
+	 */
+	HttpServletRequest(Http2Connection.Stream stream, SocketConnection connection, HttpServlet servlet, byte[] data)
+	        throws IOException {
+
+		this.remoteSocketAddress = connection.getRemoteSocketAddress();
+		this.connection = connection;
+		this.stream = stream;
+		this.servlet = servlet;
+		this.attributes = new HashMap<String, Object>();
+		this.servletPath = servlet.servletPath;
+		this.servletContext = servlet.getServletContext();
+
+		header = new RequestHeader();
+		header.parse(data, data.length);
+
+		parseHeader();
+
+		// Instantiate the authenticator. Fail the stream if that is not
+		// possible rather than serving the request without authentication.
+		try {
+			authenticator = servlet.getAuthenticator(this);
+		} catch (Exception e) {
+			log().w("Failed to create authenticator", e);
+			throw new IOException("Failed to create authenticator", e);
+		}
+	}
+
+	// **************************************************************************
+	// ** validate
+	// **************************************************************************
+	/**
+	 * Checks the first few characters of the header to see if this is a valid
+	 * HTTP request.
+	 */
+	private void validate(byte[] data) throws ServletException {
+		for (String method : methods) {
+			int len = method.length();
+			if (data[len] != ' ')
+				continue;
+			boolean isValid = true;
+			for (int i = 0; i < len; i++) {
+				if (data[i] != method.charAt(i)) {
+					isValid = false;
+					break;
+				}
+			}
+			if (isValid)
+				return;
+		}
+		throw new ServletException("Bad Request: " + new String(data, 0, mx, java.nio.charset.StandardCharsets.ISO_8859_1));
+	}
+
+	// **************************************************************************
+	// ** fill
+	// **************************************************************************
+	/**
+	 * Used to read the next available bytes into the given array, starting at
+	 * the given offset. Reads decrypted application data if the connection is
+	 * encrypted. Otherwise, reads any bytes that are left over from a previous
+	 * read before reading from the socket. Returns the number of bytes read.
+	 */
+	private int fill(byte[] data, int offset, boolean decrypt) throws IOException {
+		int len = data.length - offset;
+		if (decrypt) {
+			if (appData == null || !appData.hasRemaining()) {
+				appData = secureChannel.read();
+				if (appData == null)
+					throw new IOException("Connection closed by client.");
+			}
+			int n = Math.min(len, appData.remaining());
+			appData.get(data, offset, n);
+			return n;
+		}
+
+		ByteBuffer pending = rawData;
+		if (pending == null || !pending.hasRemaining())
+			pending = (secureChannel == null ? connection.removePendingData() : null);
+		if (pending != null) {
+			int n = Math.min(len, pending.remaining());
+			pending.get(data, offset, n);
+			if (pending != rawData && pending.hasRemaining())
+				connection.setPendingData(pending);
+			return n;
 		}
+
+		headerBuffer.limit(data.length);
+		headerBuffer.position(offset);
+		return connection.read(headerBuffer);
 	}
 
 	// **************************************************************************
@@ -249,7 +322,7 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 			host += (port != 80 ? ":" + port : "");
 		}
 
-		java.util.StringTokenizer st = new java.util.StringTokenizer(header[0]);
+		java.util.StringTokenizer st = new java.util.StringTokenizer(header.getLine(0));
 		if (st.hasMoreTokens())
 			method = st.nextToken().trim().toUpperCase();
 		if (st.hasMoreTokens())
@@ -261,7 +334,10 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 			version = protocol.substring(protocol.indexOf("/") + 1);
 		}
 
-		// Assemble requested url
+		// Assemble requested url. The path of an asterisk-form request (e.g.
+		// "OPTIONS *" or the HTTP/2 preface) refers to the server as a whole.
+		if (path.equals("*"))
+			path = "/";
 		if (path.toLowerCase().startsWith("http://" + host.toLowerCase())
 		        || path.toLowerCase().startsWith("https://" + host.toLowerCase())) {
 			url = new java.net.URL(path);
@@ -333,41 +409,14 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 */
 	@Override
 	public String getHeader(String name) {
-		for (String entry : header) {
-			if (entry != null) {
-				if (entry.contains(":")) {
-					String key = entry.substring(0, entry.indexOf(":"));
-					if (key.equalsIgnoreCase(name)) {
-						return entry.substring(entry.indexOf(":") + 1).trim();
-					}
-				}
-			}
-		}
-		return null;
+		return header.get(name);
 	}
 
 	// **************************************************************************
 	// ** setHeader
 	// **************************************************************************
 	public void setHeader(String name, String value) {
-		for (int i = 0; i < header.length; i++) {
-			String entry = header[i];
-			if (entry != null) {
-				if (entry.contains(":")) {
-					String key = entry.substring(0, entry.indexOf(":"));
-					if (key.equalsIgnoreCase(name)) {
-						header[i] = name + ": " + value;
-						return;
-					}
-				}
-			}
-		}
-
-		// If we're still here, simply add an entry to the end of the array
-		String[] header = new String[this.header.length + 1];
-		System.arraycopy(this.header, 0, header, 0, this.header.length);
-		header[header.length - 1] = name + ": " + value;
-		this.header = header;
+		header.set(name, value);
 	}
 
 	// **************************************************************************
@@ -384,18 +433,7 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 */
 	@Override
 	public java.util.Enumeration<String> getHeaders(String name) {
-		java.util.ArrayList<String> headers = new java.util.ArrayList<String>();
-		for (String entry : header) {
-			if (entry != null) {
-				if (entry.contains(":")) {
-					String key = entry.substring(0, entry.indexOf(":"));
-					if (key.equalsIgnoreCase(name)) {
-						headers.add(entry.substring(entry.indexOf(":") + 1).trim());
-					}
-				}
-			}
-		}
-		return java.util.Collections.enumeration(headers);
+		return java.util.Collections.enumeration(header.getAll(name));
 	}
 
 	// **************************************************************************
@@ -407,16 +445,7 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 */
 	@Override
 	public java.util.Enumeration<String> getHeaderNames() {
-		java.util.ArrayList<String> headers = new java.util.ArrayList<String>();
-		for (String entry : header) {
-			if (entry != null) {
-				if (entry.contains(":")) {
-					String key = entry.substring(0, entry.indexOf(":"));
-					headers.add(key);
-				}
-			}
-		}
-		return java.util.Collections.enumeration(headers);
+		return java.util.Collections.enumeration(header.getNames());
 	}
 
 	// **************************************************************************
@@ -806,12 +835,159 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 */
 	public boolean isKeepAlive() {
 		if (isKeepAlive == null) {
+
+			// HTTP/1.1 connections are persistent unless the client sends a
+			// "close" token. HTTP/1.0 clients have to ask for a keep-alive.
 			String connType = getHeader("Connection");
-			isKeepAlive = (connType == null ? false : connType.toUpperCase().contains("KEEP-ALIVE"));
+			if (connType == null) {
+				isKeepAlive = "1.1".equals(version);
+			} else {
+				connType = connType.toUpperCase();
+				if (connType.contains("CLOSE"))
+					isKeepAlive = false;
+				else if (connType.contains("KEEP-ALIVE"))
+					isKeepAlive = true;
+				else
+					isKeepAlive = "1.1".equals(version);
+			}
 		}
 		return isKeepAlive;
 	}
 
+	// **************************************************************************
+	// ** setKeepAlive
+	// **************************************************************************
+	/**
+	 * Used by the server to disable persistent connections (e.g. if keep-alive
+	 * is turned off or the maximum number of requests per connection has been
+	 * reached). Must be called before the response is created.
+	 */
+	public void setKeepAlive(boolean isKeepAlive) {
+		if (!isKeepAlive)
+			this.isKeepAlive = false;
+	}
+
+	// **************************************************************************
+	// ** validateBody
+	// **************************************************************************
+	/**
+	 * Used to check how the length of the request body is determined (RFC
+	 * 9112, section 6.3). Throws a ServletException with a 400 status code if
+	 * the request has a Transfer-Encoding and "chunked" is not the last
+	 * encoding, since the end of the body can't be found. If the request has
+	 * both a Transfer-Encoding and a Content-Length, the Content-Length is
+	 * ignored and the connection is closed after the response. In both cases
+	 * the request could be an attempt to smuggle a second request past a
+	 * proxy. This method is called automatically by the server. Do not call
+	 * this method from your application.
+	 */
+	public void validateBody() throws ServletException {
+		if (stream != null || getHeader("Transfer-Encoding") == null)
+			return;
+		if (!isChunked()) {
+			isKeepAlive = false;
+			throw new ServletException(400, "Bad Request: Unsupported Transfer-Encoding");
+		}
+		if (getHeader("Content-Length") != null)
+			isKeepAlive = false;
+	}
+
+	// **************************************************************************
+	// ** isChunked
+	// **************************************************************************
+	/**
+	 * Returns true if the body is sent with a "chunked" Transfer-Encoding.
+	 * Chunked has to be the last encoding applied to the body.
+	 */
+	boolean isChunked() {
+		String transferEncoding = getHeader("Transfer-Encoding");
+		if (transferEncoding == null)
+			return false;
+		int idx = transferEncoding.lastIndexOf(',');
+		return transferEncoding.substring(idx + 1).trim().equalsIgnoreCase("chunked");
+	}
+
+	// **************************************************************************
+	// ** skipBody
+	// **************************************************************************
+	/**
+	 * Used to read and discard any bytes in the request body that were not
+	 * consumed by the servlet so that the next request on a persistent
+	 * connection starts at the right position. Returns false if the remaining
+	 * body cannot be skipped (e.g. the length of the body is unknown), in
+	 * which case the connection should be closed. This method is called
+	 * automatically by the server. Do not call this method from your
+	 * application.
+	 */
+	public boolean skipBody() {
+		if (header == null || isWebSocket())
+			return false;
+
+		ServletInputStream is = getInputStream();
+		if (is.isFinished())
+			return true;
+
+		// If the client is waiting for a "100 Continue" response, it may or
+		// may not send the body. Close the connection.
+		if (isExpectContinue() && !continueSent)
+			return false;
+
+		long remaining = is.getRemaining();
+		if (remaining > maxSkipSize)
+			return false; // cheaper to close the connection
+
+		ByteBuffer buf = BufferPool.DEFAULT.acquire();
+		try {
+			long skipped = 0;
+			int numBytesRead;
+			while ((numBytesRead = is.read(buf.array(), buf.arrayOffset(), buf.capacity())) != -1) {
+				skipped += numBytesRead;
+				if (skipped > maxSkipSize)
+					return false; // e.g. large chunked body
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			BufferPool.DEFAULT.release(buf);
+		}
+	}
+
+	// **************************************************************************
+	// ** sendContinue
+	// **************************************************************************
+	/**
+	 * Used to send a "100 Continue" response to a client that is waiting for
+	 * permission to send the request body ("Expect: 100-continue"). Called
+	 * automatically when the servlet starts to read the body, so the client
+	 * only sends the body if the servlet actually reads it.
+	 */
+	protected void sendContinue() throws IOException {
+		if (continueSent)
+			return;
+		continueSent = true;
+		if (!isExpectContinue())
+			return;
+
+		byte[] b = "HTTP/1.1 100 Continue\r\n\r\n".getBytes("UTF-8");
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		if (secureChannel != null)
+			secureChannel.write(buf);
+		else
+			connection.write(buf, b.length);
+	}
+
+	/**
+	 * Returns true if the client sent an "Expect: 100-continue" header over
+	 * HTTP/1.1.
+	 */
+	private boolean isExpectContinue() {
+		if (stream != null || !"1.1".equals(version))
+			return false;
+		String expect = getHeader("Expect");
+		return (expect != null && expect.trim().equalsIgnoreCase("100-continue"));
+	}
+
 	// **************************************************************************
 	// ** isWebSocket
 	// **************************************************************************
@@ -866,7 +1042,7 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 * Used to determine whether the Connection is encrypted (e.g. SSL/TLS)
 	 */
 	public boolean isEncrypted() {
-		return sslEngine != null;
+		return secureChannel != null;
 	}
 
 	// **************************************************************************
@@ -1166,14 +1342,31 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	// **************************************************************************
 	/**
 	 * Returns the "Content-Length" specified in the http request header.
+	 * Returns -1 if the length is not known or greater than
+	 * Integer.MAX_VALUE. Use getContentLengthLong() for large bodies.
 	 */
 	@Override
 	public int getContentLength() {
+		long contentLength = getContentLengthLong();
+		return (contentLength > Integer.MAX_VALUE ? -1 : (int) contentLength);
+	}
+
+	// **************************************************************************
+	// ** getContentLengthLong
+	// **************************************************************************
+	/**
+	 * Returns the "Content-Length" specified in the http request header as a
+	 * long or -1 if the length is not known.
+	 */
+	@Override
+	public long getContentLengthLong() {
 		if (contentLength == null) {
 			try {
-				contentLength = Integer.parseInt(getHeader("Content-Length"));
+				contentLength = Long.parseLong(getHeader("Content-Length").trim());
+				if (contentLength < 0)
+					contentLength = -1L;
 			} catch (Exception e) {
-				contentLength = -1;
+				contentLength = -1L;
 			}
 		}
 		return contentLength;
@@ -1185,59 +1378,46 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	/**
 	 * Returns the body of the http request as a byte array. Reads all remaining
 	 * bytes from the socket. Therefore, you should only call this method once.
-	 * Subsequent calls will return an empty array.
+	 * Subsequent calls will return an empty array. Note that the entire body
+	 * is kept in memory. Use getInputStream() or getInputStream().getChannel()
+	 * to process large bodies.
 	 */
 	public byte[] getBody() throws IOException {
 
-		// Only POST should have a body. Otherwise, return an empty array.
-		if (!this.getMethod().equals("POST"))
-			return new byte[0];
-
-		// If the client specified a Content-Length of 0, simply return an empty
-		// array. Otherwise, the server will wait up to 2 minutes trying to read
-		// data from the socket.
-		int contentLength = getContentLength();
-		if (contentLength < 1)
+		// Return an empty array if there is no body (e.g. GET requests)
+		ServletInputStream is = getInputStream();
+		if (is.isFinished())
 			return new byte[0];
 
-		// Set initial buffer size and buffer
-		int bufferSize = 24576; // 24kb
-		if (contentLength > 0 && contentLength < bufferSize)
-			bufferSize = contentLength;
-		ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
-		java.io.ByteArrayOutputStream bas = new java.io.ByteArrayOutputStream();
-
-		boolean decrypt = isEncrypted();
-		while (true) {
-
-			// Update the buffer size as needed. This will help avoid a 15
-			// second
-			// wait period when reading bytes from the socket.
-			if (contentLength > 0) {
-				int remaining = contentLength - bas.size();
-				if (remaining < bufferSize)
-					buf = ByteBuffer.allocateDirect(remaining);
+		// If the size of the body is known, read the body directly into an
+		// array of the right size
+		long remaining = is.getRemaining();
+		if (remaining > Integer.MAX_VALUE - 8)
+			throw new IOException("Request body is too large: " + remaining + " bytes");
+		if (remaining >= 0) {
+			byte[] body = new byte[(int) remaining];
+			int offset = 0;
+			while (offset < body.length) {
+				int numBytesRead = is.read(body, offset, body.length - offset);
+				if (numBytesRead < 0)
+					throw new IOException("Unexpected end of request body");
+				offset += numBytesRead;
 			}
+			return body;
+		}
 
-			// Try to fill the buffer with bytes from the socket
-			int numBytesRead = read(buf, decrypt);
-			if (numBytesRead > 0) {
-				byte[] b = new byte[numBytesRead];
-				buf.get(b, 0, numBytesRead);
-				bas.write(b);
-				if (contentLength < 0 && numBytesRead != bufferSize)
-					break; // <-- Is this a valid use case? Can Content-Length
-					       // be undefined?
-				if (bas.size() == contentLength)
-					break;
-			} else {
-				break;
+		// Otherwise, read the body in chunks (e.g. chunked transfer encoding)
+		java.io.ByteArrayOutputStream bas = new java.io.ByteArrayOutputStream();
+		ByteBuffer buf = BufferPool.DEFAULT.acquire();
+		try {
+			byte[] b = buf.array();
+			int numBytesRead;
+			while ((numBytesRead = is.read(b, buf.arrayOffset(), buf.capacity())) != -1) {
+				bas.write(b, buf.arrayOffset(), numBytesRead);
 			}
+		} finally {
+			BufferPool.DEFAULT.release(buf);
 		}
-
-		buf.clear();
-		buf = null;
-
 		return bas.toByteArray();
 	}
 
@@ -1318,6 +1498,10 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 * 
 	 * Note that the form iterator reads data directly from the socket
 	 * connection. Therefore, you should only call this method once.
+	 * "multipart/form-data" is read in bulk and values are streamed from the
+	 * client as they are read. Limits for the size of the form data can be set
+	 * with the HttpServlet.setFormLimits() method. If a limit is exceeded or
+	 * the form data is malformed, the iterator throws an UncheckedIOException.
 	 * <p/>
 	 *
 	 * More information on HTML form data can be found here:<br/>
@@ -1337,17 +1521,25 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 			boundary = "&";
 		} else if (contentType.contains("multipart/form-data")) {
 			for (String s : contentType.split(";")) {
-				s = s.toLowerCase().trim();
-				if (s.toLowerCase().trim().startsWith("boundary=")) {
-					boundary = s.trim().substring("boundary=".length());
+				s = s.trim();
+				if (s.toLowerCase().startsWith("boundary=")) {
+					// Note that the boundary is case sensitive
+					boundary = s.substring("boundary=".length()).trim();
+					if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\""))
+						boundary = boundary.substring(1, boundary.length() - 1);
 					break;
 				}
 			}
+			if (boundary == null)
+				throw new IOException("Boundary is undefined.");
+
+			multipartParser = new MultipartParser(getInputStream(), boundary, servlet.getMaxFormPartSize(),
+			        servlet.getMaxFormSize(), servlet.getFormSpillThreshold());
 		} else {
 			throw new IOException("Unsupported Content-Type: " + contentType);
 		}
 
-		return new FormIterator(getInputStream(), boundary);
+		return new FormIterator(getInputStream(), multipartParser, boundary);
 	}
 
 	// **************************************************************************
@@ -1361,10 +1553,12 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 		private FormInput currInput = null;
 		private FormInput prevInput = null;
 		private ServletInputStream is;
+		private MultipartParser parser;
 		private String boundary;
 
-		private FormIterator(ServletInputStream is, String boundary) {
+		private FormIterator(ServletInputStream is, MultipartParser parser, String boundary) {
 			this.is = is;
+			this.parser = parser;
 			this.boundary = boundary;
 		}
 
@@ -1388,10 +1582,21 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 
 		private void getNextInput() {
 			try {
-				FormInput input = new FormInput(is, prevInput, boundary);
+				FormInput input;
+				if (parser == null)
+					input = new FormInput(is, prevInput, boundary);
+				else
+					input = new FormInput(parser, prevInput, boundary);
 				if (currInput != null)
 					prevInput = currInput;
 				currInput = input;
+			} catch (IOException e) {
+				currInput = null;
+
+				// Errors reported by the parser (e.g. size limits) have a
+				// message. Other exceptions simply mark the end of the form.
+				if (parser != null && e.getMessage() != null)
+					throw new java.io.UncheckedIOException(e);
 			} catch (Exception e) {
 				currInput = null;
 			}
@@ -1881,18 +2086,7 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 */
 	@Override
 	public String toString() {
-		StringBuffer out = new StringBuffer();
-		for (String entry : header) {
-			if (entry != null) {
-				entry = entry.trim();
-				if (entry.length() > 0) {
-					out.append(entry);
-					out.append("\r\n");
-				}
-			}
-		}
-		out.append("\r\n");
-		return out.toString();
+		return header.toString();
 	}
 
 	// **************************************************************************
@@ -1905,6 +2099,38 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 */
 	public void clear() {
 
+		// Hand any bytes that belong to the next request back to the
+		// connection. Copy raw bytes since they may point to the pooled header
+		// buffer. Decrypted bytes are kept by the SecureChannel.
+		if (connection != null) {
+			if (secureChannel != null) {
+				secureChannel.release();
+			} else if (rawData != null && rawData.hasRemaining()) {
+				ByteBuffer pending = ByteBuffer.allocate(rawData.remaining());
+				pending.put(rawData);
+				pending.flip();
+				connection.setPendingData(pending);
+			}
+		}
+		appData = null;
+		rawData = null;
+		stream = null;
+
+		// Delete temp files used to cache form values
+		if (multipartParser != null) {
+			multipartParser.close();
+			multipartParser = null;
+		}
+
+		// Return the header buffer to the pool
+		if (header != null) {
+			header.clear();
+		}
+		if (headerBuffer != null) {
+			BufferPool.DEFAULT.release(headerBuffer);
+			headerBuffer = null;
+		}
+
 		if (parameters != null) {
 			parameters.clear();
 			parameters = null;
@@ -1921,252 +2147,25 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 		return connection;
 	}
 
-	// **************************************************************************
-	// ** getApplicationData
-	// **************************************************************************
 	/**
-	 * Returns the next available TLS application data record as a byte array.
-	 * Note that the bytes are automatically decrypted (unwrapped).
+	 * Returns the HTTP/2 stream used to receive the request or null if the
+	 * request was sent over HTTP/1.x.
 	 */
-	private byte[] getApplicationData() throws IOException {
-
-		// Read the next 5 bytes from the socket channel. This should contain
-		// TLS
-		// record information.
-		if (recordHeader == null) {
-			recordHeader = ByteBuffer.allocateDirect(5);
-			read(recordHeader, false);
-		}
-
-		// Verify that the message contains application data
-		recordHeader.rewind();
-		byte firstByte = recordHeader.get();
-		if (firstByte != 23)
-			throw new IOException(
-			        "Invalid record found when processing TLS application data. First byte is: " + firstByte);
-
-		// Get the length of the TLS record
-		recordHeader.position(3);
-		int recordLength = Integer.parseInt(getHex(recordHeader) + getHex(recordHeader), 16);
-		recordHeader.rewind();
-
-		// Read the TLS record
-		ByteBuffer recordData = ByteBuffer.allocateDirect(recordLength);
-		int ttl = read(recordData, false);
-		if (ttl < recordLength) {
-			while (ttl < recordLength) {
-				recordData.position(ttl);
-				ByteBuffer tmp = ByteBuffer.allocateDirect(recordLength - ttl);
-				ttl += read(tmp, false);
-				recordData.put(tmp);
-			}
-			recordData.rewind();
-		}
-
-		// Merge the TLS header and record data into a single buffer
-		ByteBuffer tlsRecord = ByteBuffer.allocateDirect(recordLength + recordHeader.capacity());
-		tlsRecord.put(recordHeader);
-		tlsRecord.put(recordData);
-		tlsRecord.rewind();
-
-		// Decrypt the application data
-		byte[] arr = decrypt(tlsRecord);
-
-		// Clean up
-		recordHeader.clear();
-		recordData.clear();
-		tlsRecord.clear();
-
-		recordHeader = recordData = tlsRecord = null;
-
-		// Return array
-		return arr;
+	Http2Connection.Stream getStream() {
+		return stream;
 	}
 
 	// **************************************************************************
 	// ** decrypt
 	// **************************************************************************
 	/**
-	 * Used to decrypt a TLS record.
-	 */
-	public byte[] decrypt(ByteBuffer tlsRecord) throws IOException {
-		ByteBuffer output = ByteBuffer.allocateDirect(tlsRecord.capacity());
-		SSLEngineResult serverResult = sslEngine.unwrap(tlsRecord, output);
-		runDelegatedTasks(serverResult, sslEngine);
-
-		byte[] arr = new byte[output.position()];
-		output.rewind();
-		output.get(arr);
-
-		output.clear();
-		output = null;
-
-		return arr;
-	}
-
-	// **************************************************************************
-	// ** printTLS
-	// **************************************************************************
-	/**
-	 * Used to parse the first couple bytes of a SSL/TLS message.
-	 * http://www.iana.org/assignments/tls-parameters/tls-parameters.xml
+	 * Used to decrypt bytes read from the socket. The bytes may contain any
+	 * number of TLS records. Bytes of an incomplete record are kept until the
+	 * rest of the record is decrypted with the next call. Returns an empty
+	 * array if there are no complete records.
 	 */
-	private void printTLS(ByteBuffer buf) throws IOException {
-
-		if (1 > 0)
-			return;
-
-		int orgPos = buf.position();
-		buf.rewind();
-
-		boolean startEncryption = false;
-		try {
-			while (true) {
-				int ct = buf.get();
-				String contentType = "";
-				switch (ct) {
-				case 20:
-					contentType = "change_cipher_spec";
-					break;
-				case 21:
-					contentType = "alert";
-					break;
-				case 22:
-					contentType = "handshake";
-					break;
-				case 23:
-					contentType = "application_data";
-					break;
-				case 24:
-					contentType = "heartbeat";
-					break;
-				default:
-					contentType = "unknown";
-					break;
-				}
-
-				if (contentType.equals("unknown"))
-					break;
-
-				String sslVersion = buf.get() + "." + buf.get(); // 0x0301 =>
-				                                                 // 3.1 -
-				                                                 // SSLv3/TLSv1
-				log().t("sslVersion", sslVersion);
-
-				int recordLength = Integer.parseInt(getHex(buf) + getHex(buf), 16);
-				log().t("recordLength", recordLength);
-
-				log().t(contentType, ct);
-
-				if (startEncryption || contentType.equals("application_data")) {
-					log().t(" *** Encrypted Message **** ");
-					for (int i = 0; i < recordLength; i++) {
-						buf.get();
-					}
-				} else {
-
-					int ttl = 0;
-					while (ttl < recordLength) {
-
-						int handshake = buf.get();
-						String handshakeType = "";
-						switch (handshake) {
-						case 0:
-							handshakeType = "hello_request";
-							break;
-						case 1:
-							handshakeType = "client_hello";
-							break;
-						case 2:
-							handshakeType = "server_hello";
-							break;
-						case 3:
-							handshakeType = "hello_verify_request";
-							break;
-						case 4:
-							handshakeType = "NewSessionTicket";
-							break;
-
-						case 11:
-							handshakeType = "certificate";
-							break;
-						case 12:
-							handshakeType = "server_key_exchange";
-							break;
-						case 13:
-							handshakeType = "certificate_request";
-							break;
-						case 14:
-							handshakeType = "server_hello_done";
-							break;
-						case 15:
-							handshakeType = "certificate_verify";
-							break;
-						case 16:
-							handshakeType = "client_key_exchange";
-							break;
-
-						case 20:
-							handshakeType = "finished";
-							break;
-						case 21:
-							handshakeType = "certificate_url";
-							break;
-						case 22:
-							handshakeType = "certificate_status";
-							break;
-						case 23:
-							handshakeType = "supplemental_data";
-							break;
-
-						default:
-							handshakeType = "unknown";
-							break;
-						}
-						ttl++;
-
-						int length = 0;
-						if (recordLength > 1) {
-
-							length = Integer.parseInt(getHex(buf) + getHex(buf) + getHex(buf), 16);
-							ttl += 3;
-
-							for (int i = 0; i < length; i++) {
-								buf.get();
-								ttl++;
-							}
-
-						}
-
-						log().d(handshakeType, handshake, length);
-					}
-
-				}
-
-				if (contentType.equals("change_cipher_spec"))
-					startEncryption = true;
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		buf.position(orgPos);
-	}
-
-	private String getHex(java.nio.ByteBuffer buf) {
-		return getHex(buf.get());
-	}
-
-	private String getHex(byte[] bytes) {
-		StringBuffer str = new StringBuffer(bytes.length);
-		for (byte b : bytes) {
-			str.append(String.format("%02X", b));
-			str.append(" ");
-		}
-		return str.toString().trim();
-	}
-
-	private String getHex(byte b) {
-		return getHex(new byte[] { b });
+	public byte[] decrypt(ByteBuffer buf) throws IOException {
+		return secureChannel.unwrap(buf);
 	}
 
 	// **************************************************************************
@@ -2178,11 +2177,9 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 * @param decrypt
 	 *            Flag used to indicate whether to decrypt the data read from
 	 *            the socket. This is required when processing SSL/TLS
-	 *            application data. If true, the method will fetch the next
-	 *            available TLS application record. Note that the TLS record
-	 *            will rarely match the requested buffer size/capacity. In this
-	 *            case, we will fetch n-number of TLS records from the client
-	 *            until we have filled the buffer.
+	 *            application data. If true, the method will return bytes
+	 *            decrypted by the SecureChannel. Note that the buffer may not
+	 *            be filled completely.
 	 *
 	 * @return The number of bytes in the buffer.
 	 */
@@ -2191,46 +2188,44 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 		int numBytesRead;
 		buf.rewind();
 
-		if (decrypt) {
-
-			// Fill appData with the next TLS record
-			if (appData == null || (appData != null && (appData.position() == appData.capacity()))) {
-				byte[] arr = getApplicationData();
-				appData = ByteBuffer.allocateDirect(arr.length);
-				appData.put(arr);
-				appData.rewind();
-			}
-
-			if (buf.capacity() <= appData.remaining()) {
-				byte[] arr = new byte[buf.capacity()];
-				appData.get(arr);
-				buf.put(arr);
-				numBytesRead = arr.length;
-				arr = null;
-			} else {
+		if (stream != null) {
 
-				buf.put(appData);
-				while (buf.position() < buf.capacity()) {
+			// Read the body from the HTTP/2 stream
+			numBytesRead = stream.read(buf);
 
-					byte[] arr = getApplicationData();
-					appData = ByteBuffer.allocateDirect(arr.length);
-					appData.put(arr);
-					appData.rewind();
-
-					if (buf.remaining() < appData.remaining()) {
-						arr = new byte[buf.remaining()];
-						appData.get(arr);
-						buf.put(arr);
-					} else {
-						buf.put(appData);
-					}
-				}
+		} else if (decrypt) {
 
-				numBytesRead = buf.position();
+			// Get the decrypted bytes from the SecureChannel. The channel
+			// reads and decrypts more records from the socket as needed.
+			if (appData == null || !appData.hasRemaining()) {
+				appData = secureChannel.read();
+				if (appData == null)
+					return -1;
 			}
 
+			int n = Math.min(buf.remaining(), appData.remaining());
+			ByteBuffer src = appData.duplicate();
+			src.limit(src.position() + n);
+			buf.put(src);
+			appData.position(appData.position() + n);
+			numBytesRead = n;
+
 		} else {
-			numBytesRead = connection.read(buf);
+			ByteBuffer pending = rawData;
+			if (pending == null || !pending.hasRemaining())
+				pending = (secureChannel == null ? connection.removePendingData() : null);
+			if (pending != null) {
+				int n = Math.min(buf.remaining(), pending.remaining());
+				ByteBuffer src = pending.duplicate();
+				src.limit(src.position() + n);
+				buf.put(src);
+				pending.position(pending.position() + n);
+				if (pending != rawData && pending.hasRemaining())
+					connection.setPendingData(pending);
+				numBytesRead = n;
+			} else {
+				numBytesRead = connection.read(buf);
+			}
 		}
 
 		buf.rewind();
@@ -2238,176 +2233,37 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	}
 
 	// **************************************************************************
-	// ** nextByte
-	// **************************************************************************
-	protected Byte nextByte(boolean decrypt) throws IOException {
-		int numBytesRead = read(oneByte, decrypt);
-		if (numBytesRead == -1)
-			return null;
-		return oneByte.get(0);
-	}
-
+	// ** read
 	// **************************************************************************
-	// ** initHandshake
-	// **************************************************************************
-	/**
-	 * Used to perform an SSL/TLS handshake. The handshake consists of several
-	 * message exchanges between the client and the server. The handshake is
-	 * initiated with a client hello message which includes a list of supported
-	 * ciphers. The server responds with a server hello response which includes
-	 * a selected cipher and a certificate chain. If the certificate is accepted
-	 * by the client and the selected cipher is valid, the client will send a
-	 * reply that may include a certificate chain, a certificate verify message,
-	 * change cipher spec request, and a client finished message. At this point,
-	 * if everything goes well, the server will reply with a change cipher spec
-	 * response and a server finished message. This will signal the end of a
-	 * successful handshake.
-	 */
-	private void initHandshake() throws ServletException, IOException {
-
-		/**
-		 * Stores data received directly from the network. This consists of
-		 * encrypted data and handshake information. This buffer is filled with
-		 * data read from the socket and emptied by SSLEngine.unwrap()
-		 */
-		ByteBuffer inNetData = ByteBuffer.allocate(maxRecordSize);
-
-		/**
-		 * Stores decrypted data received from the peer. This buffer is filled
-		 * by SSLEngine.unwrap() with decrypted application data and emptied by
-		 * the application.
-		 */
-		ByteBuffer inAppData = ByteBuffer.allocate(maxRecordSize);
-
-		/**
-		 * Stores decrypted application data that is to be sent to the other
-		 * peer. The application fills this buffer, which is then emptied by
-		 * SSLEngine.wrap().
-		 */
-		ByteBuffer outAppData = ByteBuffer.allocate(maxRecordSize);
-
-		/**
-		 * Stores data that is to be sent to the network, including handshake
-		 * and encrypted application data. This buffer is filled by
-		 * SSLEngine.wrap() and emptied by writing it to the network.
-		 */
-		ByteBuffer outNetData = ByteBuffer.allocate(maxRecordSize);
-
-		// Fill the inNetData buffer with client data from the socket. Remember
-		// that the first 5 bytes has already been read in the constructor.
-		inNetData.put(recordHeader);
-		recordHeader.position(3);
-		int recordLength = Integer.parseInt(getHex(recordHeader) + getHex(recordHeader), 16);
-		ByteBuffer temp = ByteBuffer.allocateDirect(recordLength);
-		read(temp, false);
-		temp.rewind();
-		inNetData.put(temp);
-		int inNetDataLength = inNetData.position();
-		inNetData.rewind();
-		recordHeader = null; // <--Null this out so we can process application
-		                     // data!
-
-		int x = 0;
-
-		SSLEngineResult serverResult = null; // results from server's last
-		                                     // operation
-
-		//
-		while (!isEngineClosed(sslEngine)) {
-
-			log().t("== Handshake ", x);
-
-			// Read new bytes from the socket
-			if (serverResult != null) {
-				inNetData.clear();
-				inNetDataLength = read(inNetData, false);
-				inNetData.rewind();
-			}
-
-			printTLS(inNetData);
-
-			// Try to unwrap the client message
-			HandshakeStatus status = HandshakeStatus.NEED_UNWRAP;
-			while (status == HandshakeStatus.NEED_UNWRAP) {
-				serverResult = sslEngine.unwrap(inNetData, inAppData);
-				log().t("server unwrap", serverResult);
-				status = runDelegatedTasks(serverResult, sslEngine);
-
-				// Fetch more data from the client as needed
-				if ((status == HandshakeStatus.NEED_UNWRAP) && (inNetDataLength == inNetData.position())) {
-					inNetData.clear();
-					inNetDataLength = read(inNetData, false);
-					inNetData.rewind();
-				}
-			}
-
-			while (status == HandshakeStatus.NEED_WRAP) {
-				serverResult = sslEngine.wrap(outAppData, outNetData);
-				log().t("\r\nserver wrap: ", serverResult);
-				status = runDelegatedTasks(serverResult, sslEngine);
-			}
-
-			int len = outNetData.position();
-			if (len > 0) {
-
-				printTLS(outNetData);
-
-				byte[] arr = new byte[len];
-				outNetData.rewind();
-				outNetData.get(arr);
-				outNetData.clear();
-
-				temp.clear();
-				temp = ByteBuffer.allocateDirect(arr.length);
-				temp.put(arr);
-				temp.flip();
-				connection.write(temp, temp.capacity());
-
-			} else {
-				log().t("Nothing to Send?");
-				throw new ServletException();
-			}
-
-			if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
-				return;
-			}
-
-			x++;
-		}
-
+	/**
+	 * Used to read bytes from the request body into the given array. Blocks
+	 * until at least one byte is available. Returns -1 at the end of the
+	 * stream.
+	 */
+	protected int read(byte[] b, int off, int len, boolean decrypt) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(b, off, len).slice();
+		int numBytesRead = 0;
+		while (numBytesRead == 0)
+			numBytesRead = read(buf, decrypt);
+		return numBytesRead;
 	}
 
 	// **************************************************************************
-	// ** runDelegatedTasks
+	// ** nextByte
 	// **************************************************************************
-	/**
-	 * Used to process results from the SSLEngine. If the result indicates that
-	 * we have outstanding tasks to do, go ahead and run them in this thread.
-	 */
-	private HandshakeStatus runDelegatedTasks(SSLEngineResult result, SSLEngine engine) throws IOException {
-
-		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK
-		        || result.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
-
-			Runnable runnable;
-			while ((runnable = engine.getDelegatedTask()) != null) {
-				log().t("\trunning delegated task...");
-				runnable.run();
-			}
-
-			HandshakeStatus hsStatus = engine.getHandshakeStatus();
-			if (hsStatus == HandshakeStatus.NEED_TASK) {
-				throw new IOException("handshake shouldn't need additional tasks");
-			}
-			log().t("\tnew HandshakeStatus", hsStatus);
-
-		}
+	protected Byte nextByte(boolean decrypt) throws IOException {
 
-		return engine.getHandshakeStatus();
-	}
+		// Read directly from the buffered bytes if we can
+		ByteBuffer buf = (decrypt ? appData : rawData);
+		if (buf != null && buf.hasRemaining())
+			return buf.get();
 
-	private static boolean isEngineClosed(SSLEngine engine) {
-		return (engine.isOutboundDone() && engine.isInboundDone());
+		if (oneByte == null)
+			oneByte = ByteBuffer.allocate(1);
+		int numBytesRead = read(oneByte, decrypt);
+		if (numBytesRead == -1)
+			return null;
+		return oneByte.get(0);
 	}
 
 	// **************************************************************************
@@ -2418,26 +2274,19 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	 * differ from the input buffer size. The output buffer is always full.
 	 */
 	protected ByteBuffer wrap(ByteBuffer buf) throws IOException {
-
 		buf.rewind();
+		return secureChannel.wrap(buf);
+	}
 
-		ByteBuffer outNetData = ByteBuffer.allocate(maxRecordSize);
-		SSLEngineResult serverResult = null;
-		HandshakeStatus status = HandshakeStatus.NEED_WRAP;
-		while (status == HandshakeStatus.NEED_WRAP) {
-			serverResult = sslEngine.wrap(buf, outNetData);
-			log().t("server wrap", serverResult);
-			status = runDelegatedTasks(serverResult, sslEngine);
-		}
-
-		byte[] arr = new byte[serverResult.bytesProduced()];
-		outNetData.rewind();
-		outNetData.get(arr);
-		buf = ByteBuffer.allocate(arr.length);
-		buf.put(arr);
-
-		buf.rewind();
-		return buf;
+	// **************************************************************************
+	// ** getSecureChannel
+	// **************************************************************************
+	/**
+	 * Returns the SecureChannel used to decrypt the request and encrypt the
+	 * response or null if the request is not encrypted.
+	 */
+	protected SecureChannel getSecureChannel() {
+		return secureChannel;
 	}
 
 	// private void log(String str, SSLEngineResult result) {
@@ -2454,12 +2303,6 @@ public class HttpServletRequest extends MLog implements javax.servlet.http.HttpS
 	// }
 	// }
 
-	@Override
-	public long getContentLengthLong() {
-		// TODO Auto-generated method stub
-		return 0;
-	}
-
 	@Override
 	public AsyncContext startAsync() throws IllegalStateException {
 		// TODO Auto-generated method stub
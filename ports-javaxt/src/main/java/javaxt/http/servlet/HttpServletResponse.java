@@ -1,14 +1,12 @@
 package javaxt.http.servlet;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.TimeZone;
-import java.util.zip.GZIPOutputStream;
 
 import javaxt.http.Server.SocketConnection;
 
@@ -43,6 +41,15 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 	private Long startRange, endRange;
 	private ServletOutputStream servletOutputStream;
 
+	/** HTTP/2 stream used to send the response, if any. */
+	private Http2Connection.Stream stream;
+
+	/**
+	 * Minimum size of a file that is memory mapped when sent over an encrypted
+	 * connection. Zero or less to disable memory mapping.
+	 */
+	private static long memoryMapThreshold = 0;
+
 	// **************************************************************************
 	// ** Constructor
 	// **************************************************************************
@@ -52,10 +59,12 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 		this.connection = connection;
 		this.headers = new java.util.HashMap<String, String>();
 		this.request = request;
+		this.stream = request.getStream();
 
-		// Set default response headers
+		// Set default response headers. HTTP/2 has no connection header.
 		setHeader("Accept-Ranges", "bytes");
-		setHeader("Connection", (request.isKeepAlive() ? "Keep-Alive" : "Close"));
+		if (stream == null)
+			setHeader("Connection", (request.isKeepAlive() ? "Keep-Alive" : "Close"));
 		setHeader("Server", request.getServletContext().getServerInfo());
 		setHeader("Date", getDate(Calendar.getInstance()));
 		setStatus(200, "OK");
@@ -385,6 +394,35 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 			bufferSize = size;
 	}
 
+	// **************************************************************************
+	// ** setMemoryMapThreshold
+	// **************************************************************************
+	/**
+	 * Used to memory map files of the given size or larger when they are sent
+	 * over an encrypted connection. Memory mapped files are encrypted straight
+	 * from the file system cache instead of being copied into a buffer first.
+	 * Note that some operating systems (e.g. Windows) lock mapped files until
+	 * the mapping is garbage collected. Disabled by default. Unencrypted
+	 * connections always copy files directly to the socket.
+	 *
+	 * @param size
+	 *            File size in bytes. Zero or less to disable memory mapping.
+	 */
+	public static void setMemoryMapThreshold(long size) {
+		memoryMapThreshold = size;
+	}
+
+	// **************************************************************************
+	// ** getMemoryMapThreshold
+	// **************************************************************************
+	/**
+	 * Returns the minimum size of a file that is memory mapped when sent over
+	 * an encrypted connection.
+	 */
+	public static long getMemoryMapThreshold() {
+		return memoryMapThreshold;
+	}
+
 	// **************************************************************************
 	// ** setBufferSize
 	// **************************************************************************
@@ -632,17 +670,7 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 			if (bytes.length <= bufferSize) {
 
 				// Compress the byte array
-				ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length);
-				GZIPOutputStream out = new GZIPOutputStream(bos, bytes.length);
-				out.write(bytes);
-				out.finish();
-				out.close();
-
-				bytes = bos.toByteArray();
-
-				bos.reset();
-				bos = null;
-				out = null;
+				bytes = GzipOutputStream.compress(bytes, 0, bytes.length);
 
 				// Set content length. This is extremely important for
 				// persistant
@@ -655,13 +683,7 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 				writeHeader();
 
 				// Write the body
-				ByteBuffer output = ByteBuffer.allocateDirect(bytes.length);
-				output.put(bytes);
-				output.flip();
-				write(output, output.capacity());
-
-				output.clear();
-				output = null;
+				writeBody(bytes);
 
 			} else { // Chunk the output
 
@@ -672,20 +694,10 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 				writeHeader();
 
 				// Incrementally compress the byte array and chunk the output
-				GZIPOutputStream out = new GZIPOutputStream(new ConnectionOutputStream(), bufferSize);
-				java.io.InputStream inputStream = new ByteArrayInputStream(bytes);
-				byte[] b = new byte[bufferSize];
-				int x = 0;
-				while ((x = inputStream.read(b)) != -1) {
-					out.write(b, 0, x);
-				}
-				inputStream.close();
-
-				out.finish();
+				GzipOutputStream out = new GzipOutputStream(new ConnectionOutputStream(), bufferSize);
+				out.write(bytes, 0, bytes.length);
 				out.close();
-
 				out = null;
-				b = null;
 
 			}
 		} else { // no compression
@@ -816,86 +828,153 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 			setHeader("Content-Disposition", "attachment;filename=\"" + fileName + "\"");
 		}
 
-		// If the file is small enough, convert it to a byte array and call the
-		// other write method.
-		if (file.length() <= bufferSize) {
-			byte[] b = new byte[(int) file.length()];
-			java.io.FileInputStream is = new java.io.FileInputStream(file);
-			java.nio.channels.FileChannel inputStream = is.getChannel();
-
-			ByteBuffer buf = ByteBuffer.allocateDirect(b.length);
-			buf.rewind();
-			inputStream.read(buf);
-			buf.rewind();
-			buf.get(b);
-
-			inputStream.close();
-			is.close();
-
-			write(b);
-			return;
+		// Check whether to compress the response. Range requests are always
+		// served from the uncompressed file.
+		boolean gzip = false, br = false;
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding != null && fileSize > 50 && startRange == null) {
+			acceptEncoding = acceptEncoding.toLowerCase();
+			gzip = acceptEncoding.contains("gzip");
+			br = acceptEncoding.contains("br");
 		}
 
-		// Check whether to compress the response
-		boolean gzip = false;
-		String acceptEncoding = request.getHeader("Accept-Encoding");
-		if (acceptEncoding != null) {
-			if (acceptEncoding.toLowerCase().contains("gzip")) {
-				gzip = true;
-			}
+		// Send a precompressed copy of the file if one is available (e.g.
+		// "app.js.br" or "app.js.gz")
+		java.io.File sidecar = null;
+		if (br)
+			sidecar = getSidecar(file, ".br");
+		if (sidecar == null && gzip)
+			sidecar = getSidecar(file, ".gz");
+		if (sidecar != null) {
+			setHeader("Content-Encoding", sidecar.getName().endsWith(".br") ? "br" : "gzip");
+			setHeader("Vary", "Accept-Encoding");
+			CompressionCache.DEFAULT.addBytesSaved(fileSize, sidecar.length());
+			writeFile(sidecar, sidecar.length());
+			return;
 		}
 
 		// Dump file contents to servlet output stream
 		if (gzip) {
 
+			// Send a cached copy of the compressed file if we can
+			byte[] b = CompressionCache.DEFAULT.get(file);
+			if (b != null) {
+				setContentLength(b.length);
+				setHeader("Content-Encoding", "gzip");
+				setHeader("Vary", "Accept-Encoding");
+				writeHeader();
+				writeBody(b);
+				return;
+			}
+
 			// Write header before sending the file contents. Ensure that the
 			// output is chunked and the content encoding is correct.
 			setHeader("Transfer-Encoding", "chunked");
 			setHeader("Content-Encoding", "gzip");
+			setHeader("Vary", "Accept-Encoding");
 			writeHeader();
 
-			GZIPOutputStream out = new GZIPOutputStream(new ConnectionOutputStream(), bufferSize);
-			java.io.InputStream inputStream = new java.io.FileInputStream(file);
-			byte[] b = new byte[bufferSize];
-			int x = 0;
-			while ((x = inputStream.read(b)) != -1) {
-				out.write(b, 0, x);
+			// Close both streams even if the client disconnects so the file
+			// handle is released and the Deflater is returned to the pool
+			try (java.io.InputStream inputStream = new java.io.FileInputStream(file);
+			        GzipOutputStream out = new GzipOutputStream(new ConnectionOutputStream(), bufferSize)) {
+				b = new byte[bufferSize];
+				int x = 0;
+				while ((x = inputStream.read(b)) != -1) {
+					out.write(b, 0, x);
+				}
 			}
-			inputStream.close();
 
-			out.finish();
-			out.close();
+		} else {
+			writeFile(file, fileSize);
+		}
+	}
 
-			out = null;
-			b = null;
+	// **************************************************************************
+	// ** writeFile
+	// **************************************************************************
+	/**
+	 * Used to write the header and the contents of a file to the client as-is.
+	 * Honors range requests.
+	 */
+	private void writeFile(java.io.File file, long fileSize) throws IOException {
 
-		} else {
+		// Write header before sending the file contents. Note that the
+		// header is used to validate the range request, if any.
+		setContentLength(fileSize);
+		writeHeader();
+		if (getStatus() == 416)
+			return;
 
-			// Write header before sending the file contents.
-			setContentLength(fileSize);
-			writeHeader();
+		// Find the bytes to send
+		long position = (startRange == null ? 0 : startRange);
+		long end = (endRange == null ? fileSize : Math.min(endRange + 1, fileSize));
+		if (position >= end)
+			return;
 
-			// Send the contents of a file to the client
-			java.io.FileInputStream is = new java.io.FileInputStream(file);
-			java.nio.channels.FileChannel inputStream = is.getChannel();
+		// Send the contents of a file to the client
+		java.io.FileInputStream is = new java.io.FileInputStream(file);
+		java.nio.channels.FileChannel inputStream = is.getChannel();
+		try {
+			if (!request.isEncrypted() && stream == null) {
+
+				// Copy bytes directly from the file to the socket
+				connection.transferFrom(inputStream, position, end - position);
+
+			} else if (memoryMapThreshold > 0 && fileSize >= memoryMapThreshold) {
+
+				// Map the file into memory and encrypt the bytes straight
+				// from the mapped region
+				ByteBuffer map = inputStream.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, position,
+				        end - position);
+				while (map.hasRemaining()) {
+					int length = Math.min(bufferSize, map.remaining());
+					ByteBuffer buf = map.slice();
+					buf.limit(length);
+					send(buf, length);
+					map.position(map.position() + length);
+				}
 
-			ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+			} else {
 
-			while (inputStream.read(buf) > -1) {
-				writeChunk(buf);
-				buf.clear();
-				buf.rewind();
+				// Read the file into a pooled buffer and encrypt the bytes
+				ByteBuffer buf = javaxt.http.BufferPool.DEFAULT.acquire();
+				try {
+					while (position < end) {
+						buf.clear();
+						if (buf.capacity() > end - position)
+							buf.limit((int) (end - position));
+						int x = inputStream.read(buf, position);
+						if (x < 0)
+							break;
+						position += x;
+						buf.flip();
+						send(buf, x);
+					}
+				} finally {
+					javaxt.http.BufferPool.DEFAULT.release(buf);
+				}
 			}
-
+		} finally {
 			inputStream.close();
 			is.close();
-
-			inputStream = null;
-			is = null;
-
 		}
 	}
 
+	// **************************************************************************
+	// ** getSidecar
+	// **************************************************************************
+	/**
+	 * Returns a precompressed copy of a file (e.g. "app.js.gz") or null if
+	 * there is no copy or if the copy is older than the file.
+	 */
+	private static java.io.File getSidecar(java.io.File file, String ext) {
+		java.io.File sidecar = new java.io.File(file.getPath() + ext);
+		if (sidecar.isFile() && sidecar.lastModified() >= file.lastModified())
+			return sidecar;
+		return null;
+	}
+
 	// **************************************************************************
 	// ** write
 	// **************************************************************************
@@ -934,7 +1013,7 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 		// Write body. Compress as needed.
 		java.io.OutputStream out;
 		if (gzip)
-			out = new GZIPOutputStream(new ConnectionOutputStream(), bufferSize);
+			out = new GzipOutputStream(new ConnectionOutputStream(), bufferSize);
 		else
 			out = new ConnectionOutputStream();
 		byte[] b = new byte[bufferSize];
@@ -1027,6 +1106,21 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 			}
 		}
 
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, buf.remaining());
+				buf.put(b, off, n);
+				off += n;
+				len -= n;
+				if (buf.position() == buf.capacity()) {
+					writeChunk(buf);
+					buf.clear();
+					buf.rewind();
+				}
+			}
+		}
+
 		@Override
 		public void flush() throws IOException {
 			close();
@@ -1051,8 +1145,11 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 	 */
 	private void writeChunk(ByteBuffer buf) throws IOException {
 
-		// Late check to see if we should chunk the output
-		if (chunked == null) {
+		// Late check to see if we should chunk the output. HTTP/2 has its
+		// own framing.
+		if (chunked == null && stream != null) {
+			chunked = false;
+		} else if (chunked == null) {
 			String TransferEncoding = getHeader("Transfer-Encoding");
 			chunked = (TransferEncoding != null ? TransferEncoding.equalsIgnoreCase("chunked") : false);
 		}
@@ -1210,11 +1307,40 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 			}
 		}
 
-		if (request.isEncrypted()) {
-			buf = request.wrap(buf);
-			length = buf.capacity();
+		send(buf, length);
+	}
+
+	// **************************************************************************
+	// ** send
+	// **************************************************************************
+	/**
+	 * Used to encrypt the bytes as needed and write them to the SocketChannel.
+	 * Unlike the write method, ignores range requests.
+	 */
+	private void send(ByteBuffer buf, int length) throws IOException {
+		if (stream != null) {
+			stream.write(buf, length);
+			return;
+		}
+		javaxt.http.SecureChannel secureChannel = connection.getSecureChannel();
+		if (secureChannel != null)
+			secureChannel.write(buf);
+		else
+			connection.write(buf, length);
+	}
+
+	// **************************************************************************
+	// ** writeBody
+	// **************************************************************************
+	/**
+	 * Used to write a byte array to the client in bufferSize slices, without
+	 * copying the bytes into a new buffer.
+	 */
+	private void writeBody(byte[] bytes) throws IOException {
+		for (int i = 0; i < bytes.length; i += bufferSize) {
+			int length = Math.min(bufferSize, bytes.length - i);
+			write(ByteBuffer.wrap(bytes, i, length).slice(), length);
 		}
-		connection.write(buf, length);
 	}
 
 	// **************************************************************************
@@ -1270,7 +1396,14 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 
 		if (writeHeader == false)
 			return;
-		else {
+		else if (stream != null) {
+
+			// Send the header in a HEADERS frame
+			prepareHeader();
+			writeHeader = false;
+			stream.writeHeaders(getHeaderFields());
+
+		} else {
 
 			byte[] header = getHeader().getBytes(charSet);
 			ByteBuffer output = ByteBuffer.allocateDirect(header.length);
@@ -1291,6 +1424,77 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 	 * Returns the raw HTTP response header.
 	 */
 	public String getHeader() {
+		prepareHeader();
+
+		// Add status line
+		StringBuffer header = new StringBuffer();
+		header.append("HTTP/1.1 " + statusCode + (statusMessage == null ? "" : " " + statusMessage) + "\r\n");
+
+		// Add headers
+		java.util.Iterator<String> it = headers.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			String val = headers.get(key);
+			if (val != null)
+				header.append(key + ": " + val + "\r\n");
+		}
+
+		// Add cookies
+		if (!cookies.isEmpty()) {
+			header.append("Set-Cookie: ");
+			java.util.Iterator<Cookie> cookie = cookies.iterator();
+			while (cookie.hasNext()) {
+				header.append(cookie.next().toString());
+				if (cookie.hasNext())
+					header.append(" ");
+			}
+			header.append("\r\n");
+		}
+
+		header.append("\r\n");
+		return header.toString();
+	}
+
+	// **************************************************************************
+	// ** getHeaderFields
+	// **************************************************************************
+	/**
+	 * Returns the response header as a list of HTTP/2 header fields. Names
+	 * and values are given in pairs. Names are in lower case. Headers that
+	 * are specific to HTTP/1.x connections are removed.
+	 */
+	private java.util.List<String> getHeaderFields() {
+		java.util.ArrayList<String> fields = new java.util.ArrayList<String>();
+		fields.add(":status");
+		fields.add(String.valueOf(statusCode));
+		java.util.Iterator<String> it = headers.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			String val = headers.get(key);
+			if (val == null)
+				continue;
+			key = key.toLowerCase();
+			if (key.equals("connection") || key.equals("keep-alive") || key.equals("proxy-connection")
+			        || key.equals("transfer-encoding") || key.equals("upgrade"))
+				continue;
+			fields.add(key);
+			fields.add(val);
+		}
+		for (Cookie cookie : cookies) {
+			fields.add("set-cookie");
+			fields.add(cookie.toString());
+		}
+		return fields;
+	}
+
+	// **************************************************************************
+	// ** prepareHeader
+	// **************************************************************************
+	/**
+	 * Used to update the status and headers before the header is sent (e.g.
+	 * range requests and new sessions).
+	 */
+	private void prepareHeader() {
 
 		// Update the status code and message as needed
 		if (statusCode == null)
@@ -1354,34 +1558,6 @@ public class HttpServletResponse implements javax.servlet.http.HttpServletRespon
 			if (session.isNew())
 				addCookie(new Cookie("JSESSIONID", session.getID()));
 		}
-
-		// Add status line
-		StringBuffer header = new StringBuffer();
-		header.append("HTTP/1.1 " + statusCode + (statusMessage == null ? "" : " " + statusMessage) + "\r\n");
-
-		// Add headers
-		java.util.Iterator<String> it = headers.keySet().iterator();
-		while (it.hasNext()) {
-			String key = it.next();
-			String val = headers.get(key);
-			if (val != null)
-				header.append(key + ": " + val + "\r\n");
-		}
-
-		// Add cookies
-		if (!cookies.isEmpty()) {
-			header.append("Set-Cookie: ");
-			java.util.Iterator<Cookie> cookie = cookies.iterator();
-			while (cookie.hasNext()) {
-				header.append(cookie.next().toString());
-				if (cookie.hasNext())
-					header.append(" ");
-			}
-			header.append("\r\n");
-		}
-
-		header.append("\r\n");
-		return header.toString();
 	}
 
 	// **************************************************************************
@@ -18,13 +18,22 @@ import javax.servlet.http.HttpSessionContext;
 
 public class HttpSession implements javax.servlet.http.HttpSession {
 
-	private static final ConcurrentHashMap<String, HttpSession> sessions = new ConcurrentHashMap<String, HttpSession>();
+	private static volatile SessionStore sessions = new MemorySessionStore();
 
-	private static final ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<String, Object>();
+	private static final java.security.SecureRandom random = new java.security.SecureRandom();
+
+	/** Default timeout for new sessions, in seconds (30 minutes). */
+	private static volatile int defaultMaxInactiveInterval = 1800;
+
+	private final ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<String, Object>();
 
 	private String sessionID;
-	private long lastAccessTime = -1;
+	private volatile long lastAccessTime = -1;
 	private long creationTime;
+	private volatile int maxInactiveInterval = defaultMaxInactiveInterval;
+
+	/** Used by the MemorySessionStore to track the session. */
+	Object storeEntry;
 
 	// **************************************************************************
 	// ** Constructor
@@ -35,20 +44,22 @@ public class HttpSession implements javax.servlet.http.HttpSession {
 	protected HttpSession() {
 
 		// Create new session and add it to the list of active sessions
-		while (true) {
+		creationTime = System.currentTimeMillis();
+		do {
 			sessionID = CreateID(28);
-			synchronized (sessions) {
-				if (sessions.get(sessionID) == null) {
-					creationTime = new java.util.Date().getTime();
-					sessions.put(sessionID, this);
-					sessions.notifyAll();
-					break;
-				}
-			}
-		}
-
-		// TODO: Create timer task to periodically clean up old sessions
+		} while (!sessions.add(this));
+	}
 
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Used by a SessionStore to restore a session (e.g. from disk). The session
+	 * is not added to the list of active sessions.
+	 */
+	protected HttpSession(String sessionID, long creationTime) {
+		this.sessionID = sessionID;
+		this.creationTime = creationTime;
 	}
 
 	// **************************************************************************
@@ -118,11 +129,7 @@ public class HttpSession implements javax.servlet.http.HttpSession {
 	 */
 	@Override
 	public Object getAttribute(String name) {
-		Object val = null;
-		synchronized (map) {
-			val = map.get(name);
-		}
-		return val;
+		return map.get(name);
 	}
 
 	// **************************************************************************
@@ -133,22 +140,28 @@ public class HttpSession implements javax.servlet.http.HttpSession {
 	 */
 	@Override
 	public void setAttribute(String name, Object value) {
-		synchronized (map) {
+		if (value == null)
+			map.remove(name);
+		else
 			map.put(name, value);
-			map.notifyAll();
-		}
 	}
 
 	// **************************************************************************
 	// ** removeAttribute
 	// **************************************************************************
-	/** Removes the attribute with the given name from the servlet context. */
+	/** Removes the attribute with the given name from this session. */
 	@Override
 	public void removeAttribute(String name) {
-		synchronized (map) {
-			map.remove(name);
-			map.notifyAll();
-		}
+		map.remove(name);
+	}
+
+	// **************************************************************************
+	// ** getAttributeNames
+	// **************************************************************************
+	/** Returns the names of all the objects bound to this session. */
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		return map.keys();
 	}
 
 	// **************************************************************************
@@ -159,34 +172,116 @@ public class HttpSession implements javax.servlet.http.HttpSession {
 	 */
 	@Override
 	public void invalidate() {
-		synchronized (sessions) {
-			sessions.remove(sessionID);
-			sessions.notifyAll();
-		}
-		synchronized (map) {
-			map.clear();
-			map.notifyAll();
-		}
+		sessions.remove(sessionID);
+		map.clear();
+	}
+
+	// **************************************************************************
+	// ** setMaxInactiveInterval
+	// **************************************************************************
+	/**
+	 * Specifies the time, in seconds, between client requests before the
+	 * session expires. A zero or negative value indicates that the session
+	 * should never expire.
+	 */
+	@Override
+	public void setMaxInactiveInterval(int interval) {
+		maxInactiveInterval = interval;
+	}
+
+	// **************************************************************************
+	// ** getMaxInactiveInterval
+	// **************************************************************************
+	/**
+	 * Returns the time, in seconds, between client requests before the session
+	 * expires.
+	 */
+	@Override
+	public int getMaxInactiveInterval() {
+		return maxInactiveInterval;
+	}
+
+	// **************************************************************************
+	// ** isExpired
+	// **************************************************************************
+	/**
+	 * Returns true if the session has not been accessed within the
+	 * maxInactiveInterval.
+	 *
+	 * @param now
+	 *            Current time in milliseconds.
+	 */
+	public boolean isExpired(long now) {
+		int interval = maxInactiveInterval;
+		if (interval <= 0)
+			return false;
+		long lastAccess = (lastAccessTime < 0 ? creationTime : lastAccessTime);
+		return now - lastAccess > interval * 1000L;
+	}
+
+	/** Used by a SessionStore to restore the last access time. */
+	protected void setLastAccessedTime(long lastAccessTime) {
+		this.lastAccessTime = lastAccessTime;
 	}
 
 	/** Returns a session associated with a given session ID. */
 	protected static final HttpSession get(String sessionID) {
-		HttpSession session;
-		synchronized (sessions) {
-			session = sessions.get(sessionID);
-			if (session != null)
-				session.lastAccessTime = new java.util.Date().getTime();
-		}
+		HttpSession session = sessions.get(sessionID);
+		if (session != null)
+			session.lastAccessTime = System.currentTimeMillis();
 		return session;
 	}
 
+	// **************************************************************************
+	// ** setSessionStore
+	// **************************************************************************
+	/**
+	 * Used to replace the SessionStore used to keep track of active sessions.
+	 * The current store is closed. Sessions in the current store are not
+	 * copied to the new store.
+	 */
+	public static void setSessionStore(SessionStore store) {
+		if (store == null)
+			throw new IllegalArgumentException("SessionStore is null");
+		SessionStore prevStore = sessions;
+		sessions = store;
+		prevStore.close();
+	}
+
+	// **************************************************************************
+	// ** getSessionStore
+	// **************************************************************************
+	/**
+	 * Returns the SessionStore used to keep track of active sessions. By
+	 * default, sessions are kept in a MemorySessionStore.
+	 */
+	public static SessionStore getSessionStore() {
+		return sessions;
+	}
+
+	// **************************************************************************
+	// ** setDefaultMaxInactiveInterval
+	// **************************************************************************
+	/**
+	 * Used to set the timeout for new sessions, in seconds. A zero or negative
+	 * value indicates that sessions should never expire. Default is 30
+	 * minutes.
+	 */
+	public static void setDefaultMaxInactiveInterval(int interval) {
+		defaultMaxInactiveInterval = interval;
+	}
+
+	public static int getDefaultMaxInactiveInterval() {
+		return defaultMaxInactiveInterval;
+	}
+
 	/** Generates a random sequence of alpha-numeric characters. */
 	private static final String CreateID(int len) {
 		StringBuffer str = new StringBuffer(len);
 		final String strValid = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
 		for (int i = 1; i <= len; i++) {
-			int x = new java.util.Random().nextInt(strValid.length());
-			str.append(strValid.substring(x, x + 1));
+			int x = random.nextInt(strValid.length());
+			str.append(strValid.charAt(x));
 		}
 		return str.toString();
 	}
@@ -198,20 +293,7 @@ public class HttpSession implements javax.servlet.http.HttpSession {
 
 	@Override
 	public String getId() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public void setMaxInactiveInterval(int interval) {
-		// TODO Auto-generated method stub
-
-	}
-
-	@Override
-	public int getMaxInactiveInterval() {
-		// TODO Auto-generated method stub
-		return 0;
+		return sessionID;
 	}
 
 	@Override
@@ -222,31 +304,21 @@ public class HttpSession implements javax.servlet.http.HttpSession {
 
 	@Override
 	public Object getValue(String name) {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public Enumeration<String> getAttributeNames() {
-		// TODO Auto-generated method stub
-		return null;
+		return getAttribute(name);
 	}
 
 	@Override
 	public String[] getValueNames() {
-		// TODO Auto-generated method stub
-		return null;
+		return map.keySet().toArray(new String[0]);
 	}
 
 	@Override
 	public void putValue(String name, Object value) {
-		// TODO Auto-generated method stub
-
+		setAttribute(name, value);
 	}
 
 	@Override
 	public void removeValue(String name) {
-		// TODO Auto-generated method stub
-
+		removeAttribute(name);
 	}
 }
@@ -0,0 +1,267 @@
+package javaxt.http.servlet;
+
+//******************************************************************************
+//**  MemorySessionStore
+//******************************************************************************
+/**
+ * Default SessionStore. Keeps sessions in memory, ordered by last access.
+ * Expired sessions are removed when they are requested and by a sweep that
+ * runs at most once per second while the store is in use, so no background
+ * thread is needed. The sweep visits sessions in order of their expiry time
+ * and checks every session at least once a minute, so sessions that never
+ * expire and changes to the timeout of a session are handled. If the store
+ * reaches the maximum number of sessions, the least recently used session is
+ * evicted.
+ *
+ ******************************************************************************/
+
+public class MemorySessionStore implements SessionStore {
+
+	private final java.util.LinkedHashMap<String, HttpSession> sessions;
+	private int maxSessions;
+	private long lastSweep = 0;
+
+	/** Minimum time between sweeps, in milliseconds. */
+	private static final long SWEEP_INTERVAL = 1000;
+
+	/** Maximum time between checks of a session, in milliseconds. */
+	private static final long RECHECK_INTERVAL = 60000;
+
+	// Sessions ordered by the time they should be checked next
+	private final java.util.PriorityQueue<Expiry> expiries = new java.util.PriorityQueue<Expiry>();
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/** Creates a new store that holds up to 100,000 sessions. */
+	public MemorySessionStore() {
+		this(100000);
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Creates a new store.
+	 *
+	 * @param maxSessions
+	 *            Maximum number of sessions held by the store. Zero or less
+	 *            for no limit.
+	 */
+	public MemorySessionStore(int maxSessions) {
+		this.maxSessions = maxSessions;
+		this.sessions = new java.util.LinkedHashMap<String, HttpSession>(256, 0.75f, true);
+	}
+
+	// **************************************************************************
+	// ** add
+	// **************************************************************************
+	@Override
+	public boolean add(HttpSession session) {
+		java.util.ArrayList<HttpSession> evicted = null;
+		synchronized (sessions) {
+			if (sessions.containsKey(session.getID()))
+				return false;
+			sessions.put(session.getID(), session);
+			schedule(session, System.currentTimeMillis());
+
+			// Evict the least recently used sessions as needed
+			if (maxSessions > 0 && sessions.size() > maxSessions) {
+				evicted = new java.util.ArrayList<HttpSession>();
+				java.util.Iterator<HttpSession> it = sessions.values().iterator();
+				while (sessions.size() > maxSessions && it.hasNext()) {
+					HttpSession s = it.next();
+					s.storeEntry = null;
+					evicted.add(s);
+					it.remove();
+				}
+			}
+		}
+		if (evicted != null) {
+			for (HttpSession s : evicted)
+				onEvict(s);
+		}
+		sweep();
+		return true;
+	}
+
+	// **************************************************************************
+	// ** get
+	// **************************************************************************
+	@Override
+	public HttpSession get(String sessionID) {
+		HttpSession session;
+		synchronized (sessions) {
+			session = sessions.get(sessionID);
+			if (session != null && session.isExpired(System.currentTimeMillis())) {
+				sessions.remove(sessionID);
+				session.storeEntry = null;
+				session = null;
+			}
+		}
+		if (session == null) {
+			session = load(sessionID);
+			if (session != null && !add(session))
+				session = get(sessionID);
+		}
+		sweep();
+		return session;
+	}
+
+	// **************************************************************************
+	// ** remove
+	// **************************************************************************
+	@Override
+	public void remove(String sessionID) {
+		synchronized (sessions) {
+			HttpSession session = sessions.remove(sessionID);
+			if (session != null)
+				session.storeEntry = null;
+		}
+	}
+
+	// **************************************************************************
+	// ** size
+	// **************************************************************************
+	@Override
+	public int size() {
+		synchronized (sessions) {
+			return sessions.size();
+		}
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	@Override
+	public void close() {
+	}
+
+	// **************************************************************************
+	// ** getMaxSessions
+	// **************************************************************************
+	/** Returns the maximum number of sessions held by the store. */
+	public int getMaxSessions() {
+		synchronized (sessions) {
+			return maxSessions;
+		}
+	}
+
+	// **************************************************************************
+	// ** setMaxSessions
+	// **************************************************************************
+	/**
+	 * Used to set the maximum number of sessions held by the store. Zero or
+	 * less for no limit.
+	 */
+	public void setMaxSessions(int maxSessions) {
+		synchronized (sessions) {
+			this.maxSessions = maxSessions;
+		}
+	}
+
+	// **************************************************************************
+	// ** getSessions
+	// **************************************************************************
+	/**
+	 * Returns a copy of the sessions in the store, starting with the least
+	 * recently used session.
+	 */
+	protected java.util.List<HttpSession> getSessions() {
+		synchronized (sessions) {
+			return new java.util.ArrayList<HttpSession>(sessions.values());
+		}
+	}
+
+	// **************************************************************************
+	// ** onEvict
+	// **************************************************************************
+	/**
+	 * Called after a session was removed from the store to make room for a new
+	 * session. The default implementation does nothing.
+	 */
+	protected void onEvict(HttpSession session) {
+	}
+
+	// **************************************************************************
+	// ** load
+	// **************************************************************************
+	/**
+	 * Called when a session is not found in memory. Returns a session that was
+	 * evicted or saved earlier or null. The default implementation returns
+	 * null.
+	 */
+	protected HttpSession load(String sessionID) {
+		return null;
+	}
+
+	// **************************************************************************
+	// ** sweep
+	// **************************************************************************
+	/**
+	 * Used to remove expired sessions. Only the sessions that are due to be
+	 * checked are visited. Sessions that are still active (e.g. because they
+	 * were accessed since they were scheduled) are checked again later.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		synchronized (sessions) {
+			if (now - lastSweep < SWEEP_INTERVAL)
+				return;
+			lastSweep = now;
+			while (!expiries.isEmpty() && expiries.peek().time <= now) {
+				Expiry expiry = expiries.poll();
+				HttpSession session = expiry.session;
+				if (session.storeEntry != expiry)
+					continue; // Removed from the store or rescheduled
+				if (session.isExpired(now)) {
+					sessions.remove(session.getID());
+					session.storeEntry = null;
+				} else {
+					schedule(session, now);
+				}
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** schedule
+	// **************************************************************************
+	/**
+	 * Used to schedule the next check of a session: when the session expires
+	 * if it is not accessed again, but no later than a minute from now in case
+	 * the timeout of the session is changed.
+	 */
+	private void schedule(HttpSession session, long now) {
+		long time = now + RECHECK_INTERVAL;
+		int interval = session.getMaxInactiveInterval();
+		if (interval > 0) {
+			long lastAccess = session.getLastAccessedTime();
+			if (lastAccess < 0)
+				lastAccess = session.getCreationTime();
+			time = Math.max(now, Math.min(time, lastAccess + interval * 1000L + 1));
+		}
+		Expiry expiry = new Expiry(time, session);
+		session.storeEntry = expiry;
+		expiries.add(expiry);
+	}
+
+	// **************************************************************************
+	// ** Expiry
+	// **************************************************************************
+	/** Entry in the queue of sessions to check. */
+	private static class Expiry implements Comparable<Expiry> {
+		private final long time;
+		private final HttpSession session;
+
+		private Expiry(long time, HttpSession session) {
+			this.time = time;
+			this.session = session;
+		}
+
+		@Override
+		public int compareTo(Expiry other) {
+			return Long.compare(time, other.time);
+		}
+	}
+}
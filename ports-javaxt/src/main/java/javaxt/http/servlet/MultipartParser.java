@@ -0,0 +1,348 @@
+package javaxt.http.servlet;
+
+import java.io.IOException;
+
+//******************************************************************************
+//**  MultipartParser
+//******************************************************************************
+/**
+ * Used to parse "multipart/form-data" in the body of an http request. The body
+ * is read in large blocks and the boundaries between the parts are found with
+ * a Boyer-Moore-Horspool search, so the data of a part is copied in bulk
+ * instead of being inspected byte by byte. The parser enforces optional limits
+ * on the size of a part and on the total size of the body, and keeps track of
+ * the temp files used to cache large values so that they can be deleted once
+ * the request is done.
+ *
+ ******************************************************************************/
+
+class MultipartParser {
+
+	private static final int BUFFER_SIZE = 65536;
+	private static final int MAX_HEADER_SIZE = 16384;
+	private static final java.nio.charset.Charset UTF8 = java.nio.charset.Charset.forName("UTF-8");
+
+	private final java.io.InputStream is;
+	private final byte[] delimiter;
+	private final int[] shift = new int[256];
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos;
+	private int limit;
+
+	/** End of the data that can be returned without searching the buffer. */
+	private int end = -1;
+	/** True if a delimiter starts at the end. */
+	private boolean atDelimiter;
+
+	private final long maxPartSize;
+	private final long maxSize;
+	private final int spillThreshold;
+	private long totalBytesRead = 0;
+	private long partBytesRead = 0;
+
+	private int partNumber = 0;
+	private boolean inPart = true;
+	private boolean done = false;
+	private java.util.ArrayList<java.io.File> tempFiles;
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * @param is
+	 *            Input stream with the body of the request.
+	 * @param boundary
+	 *            Boundary found in the "Content-Type" header.
+	 * @param maxPartSize
+	 *            Maximum number of bytes in the body of a part or -1 for no
+	 *            limit.
+	 * @param maxSize
+	 *            Maximum number of bytes read from the input stream or -1 for
+	 *            no limit.
+	 * @param spillThreshold
+	 *            Size of a cached value, in bytes, beyond which the value is
+	 *            written to a temp file.
+	 */
+	protected MultipartParser(java.io.InputStream is, String boundary, long maxPartSize, long maxSize,
+	        int spillThreshold) throws IOException {
+
+		if (boundary == null || boundary.length() == 0 || boundary.length() > 256)
+			throw new IOException("Invalid boundary: " + boundary);
+
+		this.is = is;
+		this.maxPartSize = maxPartSize;
+		this.maxSize = maxSize;
+		this.spillThreshold = spillThreshold;
+
+		// Parts are separated by a CRLF followed by two dashes and the boundary
+		delimiter = ("\r\n--" + boundary).getBytes(UTF8);
+		int last = delimiter.length - 1;
+		for (int i = 0; i < shift.length; i++)
+			shift[i] = delimiter.length;
+		for (int i = 0; i < last; i++)
+			shift[delimiter[i] & 0xFF] = last - i;
+
+		// The first boundary is not preceded by a CRLF. Add one so that
+		// anything before the first boundary is read like the body of a part.
+		buf[0] = '\r';
+		buf[1] = '\n';
+		limit = 2;
+	}
+
+	// **************************************************************************
+	// ** nextPart
+	// **************************************************************************
+	/**
+	 * Skips any unread data in the current part and returns the headers of the
+	 * next part (e.g. "Content-Disposition"). Returns null if there are no
+	 * more parts.
+	 */
+	public java.util.HashMap<String, String> nextPart() throws IOException {
+		if (done)
+			return null;
+
+		// Skip the rest of the current part (or the preamble)
+		if (inPart) {
+			byte[] b = new byte[8192];
+			while (read(b, 0, b.length) != -1) {
+			}
+		}
+
+		// The delimiter is either followed by two dashes (end of the body) or
+		// by optional whitespace and a CRLF
+		if (!ensure(2))
+			throw new IOException("Unexpected end of multipart body");
+		if (buf[pos] == '-' && buf[pos + 1] == '-') {
+			pos += 2;
+			done = true;
+			return null;
+		}
+		if (readLine().trim().length() > 0)
+			throw new IOException("Malformed multipart boundary");
+
+		// Parse the headers of the part
+		java.util.HashMap<String, String> headers = new java.util.HashMap<String, String>();
+		int headerSize = 0;
+		while (true) {
+			String line = readLine();
+			headerSize += line.length() + 2;
+			if (headerSize > MAX_HEADER_SIZE)
+				throw new IOException("Multipart header is too large");
+			if (line.length() == 0)
+				break;
+
+			int idx = line.indexOf(":");
+			if (idx > 0)
+				headers.put(line.substring(0, idx).trim(), line.substring(idx + 1).trim());
+		}
+
+		partNumber++;
+		partBytesRead = 0;
+		inPart = true;
+		return headers;
+	}
+
+	// **************************************************************************
+	// ** read
+	// **************************************************************************
+	/**
+	 * Reads bytes from the body of the current part into the given array.
+	 * Returns -1 once the end of the part has been reached.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (!inPart)
+			return -1;
+		if (len == 0)
+			return 0;
+
+		while (true) {
+			if (end < 0)
+				search();
+
+			if (end > pos) {
+				int n = Math.min(len, end - pos);
+				System.arraycopy(buf, pos, b, off, n);
+				pos += n;
+				partBytesRead += n;
+				if (maxPartSize >= 0 && partBytesRead > maxPartSize && partNumber > 0)
+					throw new IOException("Form value exceeds the maximum size of " + maxPartSize + " bytes");
+				return n;
+			}
+
+			if (atDelimiter) {
+				pos += delimiter.length;
+				end = -1;
+				atDelimiter = false;
+				inPart = false;
+				return -1;
+			}
+
+			if (!fill())
+				throw new IOException("Unexpected end of multipart body");
+		}
+	}
+
+	// **************************************************************************
+	// ** getPartNumber
+	// **************************************************************************
+	/** Returns the number of the current part, starting at 1. */
+	public int getPartNumber() {
+		return partNumber;
+	}
+
+	// **************************************************************************
+	// ** getSpillThreshold
+	// **************************************************************************
+	/**
+	 * Returns the size of a cached value, in bytes, beyond which the value is
+	 * written to a temp file.
+	 */
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	// **************************************************************************
+	// ** createTempFile
+	// **************************************************************************
+	/**
+	 * Returns a new temp file used to cache a large value. The file is deleted
+	 * when the parser is closed, unless it has been moved.
+	 */
+	public synchronized java.io.File createTempFile() throws IOException {
+		java.io.File file = java.io.File.createTempFile("upload", ".tmp");
+		if (tempFiles == null)
+			tempFiles = new java.util.ArrayList<java.io.File>();
+		tempFiles.add(file);
+		return file;
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/** Used to delete any temp files created by the parser. */
+	public synchronized void close() {
+		if (tempFiles == null)
+			return;
+		for (java.io.File file : tempFiles)
+			file.delete();
+		tempFiles = null;
+	}
+
+	// **************************************************************************
+	// ** search
+	// **************************************************************************
+	/**
+	 * Used to find the next delimiter in the buffer. Sets the end of the data
+	 * that can be returned to the caller. If the delimiter is not found, the
+	 * end is set to the start of any trailing bytes that could be the
+	 * beginning of a delimiter.
+	 */
+	private void search() {
+		int m = delimiter.length;
+		int last = m - 1;
+		int i = pos;
+		while (i <= limit - m) {
+			int j = last;
+			while (buf[i + j] == delimiter[j]) {
+				if (j == 0) {
+					end = i;
+					atDelimiter = true;
+					return;
+				}
+				j--;
+			}
+			i += shift[buf[i + last] & 0xFF];
+		}
+
+		// Check whether the buffer ends with a partial delimiter
+		atDelimiter = false;
+		for (i = Math.max(pos, limit - last); i < limit; i++) {
+			if (buf[i] == '\r' && startsWithDelimiter(i)) {
+				end = i;
+				return;
+			}
+		}
+		end = limit;
+	}
+
+	/** Returns true if the bytes from the given offset to the limit match the
+	 * start of the delimiter. */
+	private boolean startsWithDelimiter(int offset) {
+		for (int i = offset, j = 0; i < limit; i++, j++) {
+			if (buf[i] != delimiter[j])
+				return false;
+		}
+		return true;
+	}
+
+	// **************************************************************************
+	// ** readLine
+	// **************************************************************************
+	/**
+	 * Returns the next line in the buffer, without the trailing CRLF.
+	 */
+	private String readLine() throws IOException {
+		int i = pos;
+		while (true) {
+			for (; i < limit; i++) {
+				if (buf[i] == '\n') {
+					int len = i - pos;
+					if (len > 0 && buf[i - 1] == '\r')
+						len--;
+					String line = new String(buf, pos, len, UTF8);
+					pos = i + 1;
+					end = -1;
+					return line;
+				}
+			}
+			if (limit - pos > MAX_HEADER_SIZE)
+				throw new IOException("Multipart header is too large");
+			int offset = i - pos;
+			if (!fill())
+				throw new IOException("Unexpected end of multipart body");
+			i = pos + offset;
+		}
+	}
+
+	// **************************************************************************
+	// ** ensure
+	// **************************************************************************
+	/**
+	 * Used to read more bytes until the buffer holds at least the given number
+	 * of unread bytes. Returns false if the end of the stream is reached.
+	 */
+	private boolean ensure(int n) throws IOException {
+		while (limit - pos < n) {
+			if (!fill())
+				return false;
+		}
+		return true;
+	}
+
+	// **************************************************************************
+	// ** fill
+	// **************************************************************************
+	/**
+	 * Used to move unread bytes to the start of the buffer and read more bytes
+	 * from the input stream. Returns false if the end of the stream is
+	 * reached.
+	 */
+	private boolean fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		end = -1;
+
+		int n = is.read(buf, limit, buf.length - limit);
+		if (n < 0)
+			return false;
+
+		totalBytesRead += n;
+		if (maxSize >= 0 && totalBytesRead > maxSize)
+			throw new IOException("Form data exceeds the maximum size of " + maxSize + " bytes");
+		limit += n;
+		return true;
+	}
+}
@@ -0,0 +1,284 @@
+package javaxt.http.servlet;
+
+import java.nio.charset.StandardCharsets;
+
+//******************************************************************************
+//**  RequestHeader
+//******************************************************************************
+/**
+ * Index over the raw bytes of an HTTP request header. The header is scanned
+ * once for line breaks and colons. Header names and values are kept as
+ * offsets into the raw bytes and are only converted to Strings when they are
+ * requested. Used by the HttpServletRequest.
+ *
+ ******************************************************************************/
+
+final class RequestHeader {
+
+	private byte[] data;
+	private int length;
+
+	/** Start, end and colon offsets for each line (3 ints per line). */
+	private int[] index = new int[3 * 24];
+	private int numLines;
+
+	/** Header lines as Strings. Only used after the header is modified. */
+	private String[] lines;
+
+	// **************************************************************************
+	// ** indexOfEnd
+	// **************************************************************************
+	/**
+	 * Returns the offset of the first byte after the empty line (CRLF CRLF)
+	 * that terminates the header or -1 if the end of the header has not been
+	 * reached. Scans the bytes between "from" and "to".
+	 */
+	static int indexOfEnd(byte[] data, int from, int to) {
+		for (int i = Math.max(from, 3); i < to; i++) {
+			if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r')
+				return i + 1;
+		}
+		return -1;
+	}
+
+	// **************************************************************************
+	// ** parse
+	// **************************************************************************
+	/**
+	 * Used to index the header lines found in the given bytes.
+	 *
+	 * @param end
+	 *            Offset of the first byte after the header, as returned by
+	 *            indexOfEnd().
+	 */
+	void parse(byte[] data, int end) {
+		this.data = data;
+		this.length = end;
+		this.numLines = 0;
+		this.lines = null;
+
+		int start = 0;
+		int colon = -1;
+		int max = end - 2; // skip the final CRLF
+		for (int i = 0; i < max; i++) {
+			byte b = data[i];
+			if (b == ':' && colon < 0) {
+				colon = i;
+			} else if (b == '\r' && data[i + 1] == '\n') {
+				addLine(start, i, colon);
+				start = i + 2;
+				colon = -1;
+				i++;
+			}
+		}
+	}
+
+	private void addLine(int start, int end, int colon) {
+		if (start == end)
+			return;
+		int n = numLines * 3;
+		if (n + 3 > index.length) {
+			int[] arr = new int[index.length * 2];
+			System.arraycopy(index, 0, arr, 0, index.length);
+			index = arr;
+		}
+		index[n] = start;
+		index[n + 1] = end;
+		index[n + 2] = colon;
+		numLines++;
+	}
+
+	// **************************************************************************
+	// ** size
+	// **************************************************************************
+	/** Returns the number of lines in the header, including the request line. */
+	int size() {
+		return lines != null ? lines.length : numLines;
+	}
+
+	// **************************************************************************
+	// ** getLength
+	// **************************************************************************
+	/** Returns the size of the raw header in bytes. */
+	int getLength() {
+		return length;
+	}
+
+	// **************************************************************************
+	// ** getLine
+	// **************************************************************************
+	/** Returns the given line as a String (e.g. the request line). */
+	String getLine(int i) {
+		if (lines != null)
+			return lines[i];
+		int n = i * 3;
+		return newString(index[n], index[n + 1]);
+	}
+
+	// **************************************************************************
+	// ** get
+	// **************************************************************************
+	/**
+	 * Returns the value of the first header with the given name or null if the
+	 * header is not found. The name is case insensitive.
+	 */
+	String get(String name) {
+		int i = find(name, 1);
+		return i < 0 ? null : getValue(i);
+	}
+
+	// **************************************************************************
+	// ** getAll
+	// **************************************************************************
+	/** Returns the values of all the headers with the given name. */
+	java.util.ArrayList<String> getAll(String name) {
+		java.util.ArrayList<String> values = new java.util.ArrayList<String>();
+		int i = find(name, 1);
+		while (i >= 0) {
+			values.add(getValue(i));
+			i = find(name, i + 1);
+		}
+		return values;
+	}
+
+	// **************************************************************************
+	// ** getNames
+	// **************************************************************************
+	/** Returns the names of all the headers. */
+	java.util.ArrayList<String> getNames() {
+		java.util.ArrayList<String> names = new java.util.ArrayList<String>();
+		for (int i = 1; i < size(); i++) {
+			String name = getName(i);
+			if (name != null)
+				names.add(name);
+		}
+		return names;
+	}
+
+	// **************************************************************************
+	// ** set
+	// **************************************************************************
+	/**
+	 * Used to update or add a header. Converts the header into Strings so
+	 * should only be used for the occasional update.
+	 */
+	void set(String name, String value) {
+		if (lines == null) {
+			String[] arr = new String[numLines];
+			for (int i = 0; i < numLines; i++)
+				arr[i] = getLine(i);
+			lines = arr;
+		}
+
+		int i = find(name, 1);
+		if (i >= 0) {
+			lines[i] = name + ": " + value;
+			return;
+		}
+
+		String[] arr = new String[lines.length + 1];
+		System.arraycopy(lines, 0, arr, 0, lines.length);
+		arr[lines.length] = name + ": " + value;
+		lines = arr;
+	}
+
+	// **************************************************************************
+	// ** toString
+	// **************************************************************************
+	/** Returns the header lines, each terminated with a CRLF. */
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < size(); i++) {
+			String entry = getLine(i).trim();
+			if (entry.length() > 0) {
+				out.append(entry);
+				out.append("\r\n");
+			}
+		}
+		out.append("\r\n");
+		return out.toString();
+	}
+
+	// **************************************************************************
+	// ** clear
+	// **************************************************************************
+	/**
+	 * Releases the reference to the raw bytes. The bytes usually come from a
+	 * pooled buffer and must not be accessed after the buffer is released.
+	 */
+	void clear() {
+		data = null;
+		lines = null;
+		numLines = 0;
+	}
+
+	// **************************************************************************
+	// ** Private Methods
+	// **************************************************************************
+
+	private int find(String name, int from) {
+		if (lines != null) {
+			for (int i = from; i < lines.length; i++) {
+				String entry = lines[i];
+				int colon = entry.indexOf(":");
+				if (colon > -1 && entry.substring(0, colon).equalsIgnoreCase(name))
+					return i;
+			}
+			return -1;
+		}
+
+		int len = name.length();
+		for (int i = from; i < numLines; i++) {
+			int n = i * 3;
+			int start = index[n];
+			int colon = index[n + 2];
+			if (colon - start != len)
+				continue;
+			boolean match = true;
+			for (int j = 0; j < len; j++) {
+				if (toLower(data[start + j]) != toLower((byte) name.charAt(j))) {
+					match = false;
+					break;
+				}
+			}
+			if (match)
+				return i;
+		}
+		return -1;
+	}
+
+	private String getName(int i) {
+		if (lines != null) {
+			int colon = lines[i].indexOf(":");
+			return colon > -1 ? lines[i].substring(0, colon) : null;
+		}
+		int n = i * 3;
+		if (index[n + 2] < 0)
+			return null;
+		return newString(index[n], index[n + 2]);
+	}
+
+	private String getValue(int i) {
+		if (lines != null) {
+			String entry = lines[i];
+			return entry.substring(entry.indexOf(":") + 1).trim();
+		}
+		int n = i * 3;
+		int start = index[n + 2] + 1;
+		int end = index[n + 1];
+		while (start < end && (data[start] & 0xFF) <= ' ')
+			start++;
+		while (end > start && (data[end - 1] & 0xFF) <= ' ')
+			end--;
+		return newString(start, end);
+	}
+
+	private String newString(int start, int end) {
+		return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int toLower(byte b) {
+		return (b >= 'A' && b <= 'Z') ? b + 32 : b;
+	}
+}
@@ -1,10 +1,12 @@
 package javaxt.http.servlet;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ReadListener;
 
 import de.mhus.lib.errors.NotSupportedException;
+import javaxt.http.BufferPool;
 
 //******************************************************************************
 //**  ServletInputStream
@@ -12,7 +14,12 @@ import de.mhus.lib.errors.NotSupportedException;
 /**
  * Provides an input stream for reading the body of an http request. Reads raw
  * bytes from a socket connection. Automatically decrypts the data if the data
- * is SSL/TLS encrypted.
+ * is SSL/TLS encrypted and decodes bodies sent with a "chunked"
+ * Transfer-Encoding. Bytes are only read from the socket when the caller asks
+ * for them, so a client sending a large body is slowed down to the rate at
+ * which the servlet consumes it and the memory used by the server does not
+ * depend on the size of the body. The getChannel() method can be used to read
+ * the body into ByteBuffers.
  *
  ******************************************************************************/
 
@@ -20,8 +27,17 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
 
 	private HttpServletRequest request;
 	private boolean decrypt;
-	private int totalBytesRead = 0;
-	private int contentLength = -1;
+	private long totalBytesRead = 0;
+	private long contentLength = -1;
+	private boolean chunked = false;
+	private long chunkRemaining = 0;
+	private boolean eof = false;
+	private boolean failed = false;
+	private byte[] oneByte;
+	private BodyChannel channel;
+
+	private static final int maxLineLength = 4096;
+	private static final int maxTrailerSize = 16384;
 
 	// **************************************************************************
 	// ** Constructor
@@ -29,7 +45,19 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
 	protected ServletInputStream(HttpServletRequest request) {
 		this.request = request;
 		this.decrypt = request.isEncrypted();
-		this.contentLength = request.getContentLength();
+		this.contentLength = request.getContentLengthLong();
+
+		// HTTP/2 bodies end with the stream. HTTP/1.x bodies are either
+		// chunked or have a Content-Length. Otherwise there is no body. Other
+		// transfer encodings are rejected by the server (see validateBody).
+		if (request.getStream() == null) {
+			if (request.isChunked()) {
+				chunked = true;
+				contentLength = -1;
+			} else if (contentLength < 0) {
+				eof = true;
+			}
+		}
 	}
 
 	// **************************************************************************
@@ -40,10 +68,10 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
 	 */
 	@Override
 	public int available() {
-		if (contentLength < 0)
+		long remaining = (chunked ? chunkRemaining : getRemaining());
+		if (eof || remaining < 0)
 			return 0;
-		else
-			return contentLength - totalBytesRead;
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
 	}
 
 	// **************************************************************************
@@ -67,20 +95,88 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
 	 */
 	@Override
 	public int read() throws IOException {
-		if (totalBytesRead == contentLength)
+		if (eof)
+			return -1;
+
+		if (chunked || contentLength < 0) {
+			if (oneByte == null)
+				oneByte = new byte[1];
+			int n = 0;
+			while (n == 0)
+				n = read(oneByte, 0, 1);
+			return (n < 0 ? -1 : oneByte[0] & 0xFF);
+		}
+
+		if (totalBytesRead == contentLength) {
+			eof = true;
 			return -1;
+		}
 
+		request.sendContinue();
 		Byte b = request.nextByte(decrypt);
 		if (b == null)
-			return -1; // throw new IOException();
+			throw new IOException("Unexpected end of request body");
 		totalBytesRead++;
 		return (int) b & 0xFF; // convert unsigned Byte to Int
 	}
 
+	// **************************************************************************
+	// ** read
+	// **************************************************************************
+	/**
+	 * Reads up to len bytes from the socket into the given array. Returns the
+	 * number of bytes read or -1 if the end of the stream has been reached.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (failed)
+			throw new IOException("Invalid request body");
+		if (len == 0)
+			return 0;
+		if (eof)
+			return -1;
+
+		request.sendContinue();
+		if (chunked) {
+			if (chunkRemaining == 0) {
+				chunkRemaining = readChunkSize();
+				if (chunkRemaining == 0) {
+					readTrailers();
+					eof = true;
+					return -1;
+				}
+			}
+			len = (int) Math.min(len, chunkRemaining);
+		} else if (contentLength >= 0) {
+			long remaining = contentLength - totalBytesRead;
+			if (remaining <= 0) {
+				eof = true;
+				return -1;
+			}
+			len = (int) Math.min(len, remaining);
+		}
+
+		int numBytesRead = request.read(b, off, len, decrypt);
+		if (numBytesRead < 0) {
+			eof = true;
+			if (chunked || contentLength >= 0)
+				throw new IOException("Unexpected end of request body");
+			return -1;
+		}
+		totalBytesRead += numBytesRead;
+
+		if (chunked) {
+			chunkRemaining -= numBytesRead;
+			if (chunkRemaining == 0 && readLine(maxLineLength).length() > 0)
+				throw fail("Invalid chunk");
+		}
+		return numBytesRead;
+	}
+
 	/*
 	 * public int readLine(byte[] b, int off, int len) throws IOException { int
 	 * totalBytesRead = 0; while (true){
-	 * 
+	 *
 	 * totalBytesRead++; if (totalBytesRead==len) break; } return
 	 * totalBytesRead; }
 	 */
@@ -92,7 +188,7 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
 	 * Returns a sequence of bytes from the socket. Stops when it reaches a
 	 * carriage return + line feed (CRLF) or the end of stream, whichever comes
 	 * first. If a CRLF is reached, the CRLF will be added to the array.
-	 * 
+	 *
 	 * @return x
 	 * @throws IOException
 	 */
@@ -127,9 +223,53 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
 		return bas.toByteArray();
 	}
 
+	// **************************************************************************
+	// ** getChannel
+	// **************************************************************************
+	/**
+	 * Returns a ReadableByteChannel used to read the body of the http request
+	 * into ByteBuffers. Bytes are read directly into heap buffers. Direct
+	 * buffers are filled via a pooled buffer. Example:
+	 *
+	 * <pre>
+	 * ReadableByteChannel channel = request.getInputStream().getChannel();
+	 * FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	 * ByteBuffer buf = ByteBuffer.allocate(65536);
+	 * while (channel.read(buf) != -1) {
+	 *     buf.flip();
+	 *     file.write(buf);
+	 *     buf.clear();
+	 * }
+	 * </pre>
+	 */
+	public java.nio.channels.ReadableByteChannel getChannel() {
+		if (channel == null)
+			channel = new BodyChannel();
+		return channel;
+	}
+
+	// **************************************************************************
+	// ** getRemaining
+	// **************************************************************************
+	/**
+	 * Returns the number of bytes left in the body or -1 if the length of the
+	 * body is unknown (e.g. chunked).
+	 */
+	protected long getRemaining() {
+		if (eof)
+			return 0;
+		if (chunked || contentLength < 0)
+			return -1;
+		return contentLength - totalBytesRead;
+	}
+
+	// **************************************************************************
+	// ** isFinished
+	// **************************************************************************
+	/** Returns true if all the bytes in the body have been read. */
 	@Override
 	public boolean isFinished() {
-		return false;
+		return eof || (!chunked && contentLength >= 0 && totalBytesRead >= contentLength);
 	}
 
 	@Override
@@ -142,4 +282,131 @@ public class ServletInputStream extends javax.servlet.ServletInputStream {
 		throw new NotSupportedException();
 	}
 
-}
\ No newline at end of file
+	// **************************************************************************
+	// ** readChunkSize
+	// **************************************************************************
+	/**
+	 * Used to read the size of the next chunk. Chunk extensions are ignored.
+	 */
+	private long readChunkSize() throws IOException {
+		String line = readLine(maxLineLength);
+		int idx = line.indexOf(';');
+		if (idx > -1)
+			line = line.substring(0, idx);
+		line = line.trim();
+		try {
+			if (line.length() == 0 || line.length() > 15)
+				throw new NumberFormatException();
+			long size = Long.parseLong(line, 16);
+			if (size < 0)
+				throw new NumberFormatException();
+			return size;
+		} catch (NumberFormatException e) {
+			throw fail("Invalid chunk size: " + line);
+		}
+	}
+
+	// **************************************************************************
+	// ** readTrailers
+	// **************************************************************************
+	/**
+	 * Used to read and discard the trailer fields that follow the last chunk.
+	 */
+	private void readTrailers() throws IOException {
+		int size = 0;
+		while (true) {
+			String line = readLine(maxLineLength);
+			if (line.length() == 0)
+				break;
+			size += line.length();
+			if (size > maxTrailerSize)
+				throw fail("Trailer is too large");
+		}
+	}
+
+	// **************************************************************************
+	// ** readLine
+	// **************************************************************************
+	/**
+	 * Used to read a line of the chunked encoding. Bytes are read one at a
+	 * time so that no bytes beyond the body are taken from the socket.
+	 * Returns the line without the CRLF.
+	 */
+	private String readLine(int maxLength) throws IOException {
+		StringBuilder str = new StringBuilder();
+		while (true) {
+			Byte b = request.nextByte(decrypt);
+			if (b == null)
+				throw fail("Unexpected end of request body");
+			if (b == '\n')
+				break;
+			if (b != '\r')
+				str.append((char) (b & 0xFF));
+			if (str.length() > maxLength)
+				throw fail("Chunk header is too large");
+		}
+		return str.toString();
+	}
+
+	// **************************************************************************
+	// ** fail
+	// **************************************************************************
+	/**
+	 * Used to stop reading a chunked body that is not encoded correctly.
+	 * Subsequent reads fail as well, so the rest of the body is not skipped
+	 * and the connection is closed instead of parsing the remaining bytes as
+	 * the next request.
+	 */
+	private IOException fail(String message) {
+		failed = true;
+		return new IOException(message);
+	}
+
+	// **************************************************************************
+	// ** BodyChannel
+	// **************************************************************************
+	/**
+	 * ReadableByteChannel view of the ServletInputStream.
+	 */
+	private class BodyChannel implements java.nio.channels.ReadableByteChannel {
+
+		private boolean open = true;
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!open)
+				throw new java.nio.channels.ClosedChannelException();
+			if (!dst.hasRemaining())
+				return 0;
+
+			if (dst.hasArray()) {
+				int n = ServletInputStream.this.read(dst.array(), dst.arrayOffset() + dst.position(),
+				        dst.remaining());
+				if (n > 0)
+					dst.position(dst.position() + n);
+				return n;
+			}
+
+			ByteBuffer buf = BufferPool.DEFAULT.acquire();
+			try {
+				int n = ServletInputStream.this.read(buf.array(), buf.arrayOffset(),
+				        Math.min(buf.capacity(), dst.remaining()));
+				if (n > 0)
+					dst.put(buf.array(), buf.arrayOffset(), n);
+				return n;
+			} finally {
+				BufferPool.DEFAULT.release(buf);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+}
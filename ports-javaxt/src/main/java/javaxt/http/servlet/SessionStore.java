@@ -0,0 +1,55 @@
+package javaxt.http.servlet;
+
+//******************************************************************************
+//**  SessionStore Interface
+//******************************************************************************
+/**
+ * Implementations of this class are used to keep track of active HttpSessions.
+ * The store used by the server can be set via HttpSession.setSessionStore().
+ * Implementations are expected to remove sessions that have expired (see
+ * HttpSession.getMaxInactiveInterval()) and must be thread safe.
+ *
+ ******************************************************************************/
+
+public interface SessionStore {
+
+	// **************************************************************************
+	// ** add
+	// **************************************************************************
+	/**
+	 * Used to add a new session to the store. Returns false if the store
+	 * already has a session with the same ID.
+	 */
+	public boolean add(HttpSession session);
+
+	// **************************************************************************
+	// ** get
+	// **************************************************************************
+	/**
+	 * Returns the session associated with the given session ID. Returns a null
+	 * if the session is not found or if the session has expired.
+	 */
+	public HttpSession get(String sessionID);
+
+	// **************************************************************************
+	// ** remove
+	// **************************************************************************
+	/** Used to remove a session from the store (e.g. invalidated session). */
+	public void remove(String sessionID);
+
+	// **************************************************************************
+	// ** size
+	// **************************************************************************
+	/** Returns the number of sessions in the store. */
+	public int size();
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/**
+	 * Called when the store is no longer used (e.g. replaced by another store
+	 * or on shutdown).
+	 */
+	public void close();
+
+}
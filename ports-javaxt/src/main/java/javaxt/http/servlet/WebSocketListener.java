@@ -2,17 +2,22 @@ package javaxt.http.servlet;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.mhus.lib.core.MLog;
+import javaxt.http.BufferPool;
+import javaxt.http.SecureChannel;
 import javaxt.http.Server;
 import javaxt.websocket.Frame;
 import javaxt.websocket.Frame.CloseFrame;
 import javaxt.websocket.FrameException;
 import javaxt.websocket.IncompleteFrameException;
+import javaxt.websocket.PerMessageDeflate;
 import javaxt.websocket.UTF8;
 
 //******************************************************************************
@@ -56,9 +61,8 @@ import javaxt.websocket.UTF8;
 public class WebSocketListener extends MLog {
 
 	private Server.SocketConnection connection;
-	private HttpServletRequest request;
+	private SecureChannel secureChannel;
 	private boolean debug = true;
-	private List<String> events = new LinkedList<String>();
 
 	private enum READYSTATE {
 		NOT_YET_CONNECTED, CONNECTING, OPEN, CLOSING, CLOSED
@@ -68,15 +72,68 @@ public class WebSocketListener extends MLog {
 		NONE, ONEWAY, TWOWAY
 	}
 
-	private READYSTATE readystate = READYSTATE.NOT_YET_CONNECTED;
-	private Frame current_continuous_frame;
-	private List<ByteBuffer> byteBufferList;
+	private volatile READYSTATE readystate = READYSTATE.NOT_YET_CONNECTED;
 	private boolean roleIsServer;
-	private ByteBuffer incompleteframe;
+
+	/** Compression settings negotiated with the client, if any. */
+	private PerMessageDeflate deflate;
+
+	// State of the message that is being received
+	private Frame.Opcode messageOpcode;
+	private boolean messageCompressed;
+	private CharsetDecoder textDecoder;
+	private ByteBuffer textRemainder;
+	private StringBuilder textMessage;
+	private java.io.ByteArrayOutputStream binaryMessage;
+
+	/**
+	 * Held while a message is sent so that frames of a fragmented message
+	 * (see sendPart) are not mixed with other messages.
+	 */
+	private final ReentrantLock messageLock = new ReentrantLock();
+	private boolean partCompressed;
+
+	private static boolean perMessageDeflate = true;
+	private static boolean contextTakeover = true;
+	private static int compressionThreshold = 256;
+
+	/**
+	 * Bytes read from the client that have not been decoded yet (e.g. an
+	 * incomplete frame). Acquired from the BufferPool as needed and returned
+	 * to the pool once all the bytes have been decoded so that idle sockets do
+	 * not hold on to a buffer. Always in write mode.
+	 */
+	private ByteBuffer inbound;
+
+	/**
+	 * Bytes that the socket did not accept right away. Sent by the selector
+	 * thread when the socket becomes writable.
+	 */
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	private long outboundSize = 0;
+	private boolean closeWhenSent = false;
+	private final ReentrantLock sendLock = new ReentrantLock();
+
+	private int maxFrameSize = 16 * 1024 * 1024; // 16MB
+	private int maxMessageSize = 16 * 1024 * 1024; // 16MB
+	private long maxQueueSize = 16 * 1024 * 1024; // 16MB
+
+	/**
+	 * Maximum number of socket reads per read event. Ensures that a busy
+	 * client does not keep a RequestProcessor thread to itself.
+	 */
+	private static final int maxReads = 16;
 
 	// **************************************************************************
 	// ** Constructor
 	// **************************************************************************
+	/**
+	 * Used to upgrade an HTTP request to a WebSocket. Returns right after the
+	 * handshake. From then on, the connection is monitored by the server's
+	 * selector and frames are decoded by the server's RequestProcessor
+	 * threads whenever the client sends data. No thread is tied to an open
+	 * WebSocket.
+	 */
 	public WebSocketListener(HttpServletRequest request, HttpServletResponse response)
 	        throws ServletException, IOException {
 
@@ -85,14 +142,14 @@ public class WebSocketListener extends MLog {
 			throw new ServletException("Invalid WebSocket request");
 
 		// Set local variables
-		this.request = request;
 		this.connection = request.getConnection();
+		this.secureChannel = connection.getSecureChannel();
 		roleIsServer = true;
-		byteBufferList = new ArrayList<ByteBuffer>();
 
 		log().d("New WebSocketListener");
 
-		// Upgrade the request
+		// Create the handshake response
+		byte[] header;
 		try {
 
 			response.setStatus(101, "Web Socket Protocol Handshake");
@@ -107,12 +164,14 @@ public class WebSocketListener extends MLog {
 			String finalKey = Base64.encode(sh1.digest(acc.getBytes()));
 			response.setHeader("Sec-WebSocket-Accept", finalKey);
 
-			byte[] header = response.getHeader().getBytes("UTF-8");
-			ByteBuffer output = ByteBuffer.allocateDirect(header.length);
-			output.put(header);
-			output.flip();
-			write(output, output.capacity());
-			output.clear();
+			// Compress messages if the client supports it
+			if (perMessageDeflate) {
+				deflate = PerMessageDeflate.negotiate(getExtensions(request), contextTakeover);
+				if (deflate != null)
+					response.setHeader("Sec-WebSocket-Extensions", deflate.getResponse());
+			}
+
+			header = response.getHeader().getBytes("UTF-8");
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -120,155 +179,176 @@ public class WebSocketListener extends MLog {
 			return;
 		}
 
+		// Take over the connection. From here on out, the server will notify
+		// the EventListener whenever the client sends data.
+		connection.upgrade(new EventListener());
+
+		// Destroy the response object. We'll be handling the response from here
+		// on out...
+		response.reset();
+
+		// Upgrade the request
+		write(ByteBuffer.wrap(header));
 		log().t("Upgraded Request!");
 
 		// Update readystate and notify listener
 		readystate = READYSTATE.OPEN;
 		onConnect();
+	}
 
-		// Destroy the response object. We'll be handling the response from here
-		// on out...
-		response.reset();
+	// **************************************************************************
+	// ** EventListener
+	// **************************************************************************
+	/**
+	 * Used to receive events from the SocketConnection. Read events are
+	 * dispatched by one of the server's RequestProcessor threads, write events
+	 * by the selector thread.
+	 */
+	private class EventListener extends Server.SocketConnection.Listener {
 
-		// Spawn thread and wait for "READ" events from the client
-		try {
-			Thread thread = new Thread(new EventProcessor());
-			thread.start();
-			thread.join();
-		} catch (Throwable t) {
-			// Throw servlet exception?
+		@Override
+		public void onReadable() {
+			read();
+		}
+
+		@Override
+		public void onWritable() {
+			flush();
+		}
+
+		@Override
+		public void onClose() {
+			onSocketClosed();
 		}
 	}
 
 	// **************************************************************************
-	// ** addEvent
+	// ** read
 	// **************************************************************************
 	/**
-	 * Used to add an event to the event queue (e.g. "READ" or "CLOSE").
+	 * Used to read and decode the bytes that are available from the client.
+	 * Never waits for the client. Incomplete frames are kept until the next
+	 * read event.
 	 */
-	private void addEvent(String event) {
-		synchronized (events) {
-			events.add(event);
-			events.notify();
+	private void read() {
+		try {
+			for (int i = 0; i < maxReads && readystate == READYSTATE.OPEN; i++) {
+				int numBytesRead = fill();
+				if (numBytesRead == 0)
+					break;
+				if (numBytesRead < 0) {
+					log().t("Client closed the connection");
+					closeConnection(false);
+					break;
+				}
+				decodeFrames();
+			}
+		} catch (FrameException e) {
+			onError(e);
+			close(e.getCloseCode(), e.getMessage(), false);
+		} catch (Exception e) {
+			if (readystate == READYSTATE.OPEN)
+				onError(e);
+			log().t("Closing connection!");
+			closeConnection(false);
+		} finally {
+
+			// Return the buffer to the pool if there are no bytes left to
+			// decode
+			if (inbound != null && inbound.position() == 0) {
+				BufferPool.DEFAULT.release(inbound);
+				inbound = null;
+			}
 		}
 	}
 
 	// **************************************************************************
-	// ** EventProcessor
+	// ** fill
 	// **************************************************************************
 	/**
-	 * Thread used to wait for new events (e.g. "READ" events).
+	 * Used to add bytes from the client to the inbound buffer. Returns the
+	 * number of bytes added, zero if no bytes are available or -1 if the
+	 * client closed the connection.
 	 */
-	private class EventProcessor implements Runnable {
-
-		public EventProcessor() {
-			// Start monitoring the SocketConnection for "readable" events.
-			// Do this after the SSL/TLS handshaking is completed by the
-			// HttpServletRequest class.
-			connection.addListener(new Server.SocketConnection.Listener() {
-				@Override
-				public void onReadable() {
-					log().t("onReadable!");
-					addEvent("READ");
-				}
-			});
+	private int fill() throws IOException {
+
+		// Add any bytes that were sent along with the upgrade request
+		ByteBuffer pending = connection.removePendingData();
+		if (pending != null) {
+			int n = pending.remaining();
+			ensureCapacity(n);
+			inbound.put(pending);
+			return n;
 		}
 
-		@Override
-		public void run() {
-
-			while (true) {
-
-				String event = null;
-				synchronized (events) {
-					while (events.isEmpty()) {
-						try {
-							events.wait();
-						} catch (InterruptedException e) {
-							return;
-						}
-					}
-					event = events.remove(0);
-					events.notifyAll();
-				}
+		// Decrypt the bytes as needed
+		if (secureChannel != null) {
+			ByteBuffer appData = secureChannel.tryRead();
+			if (appData == null)
+				return -1;
+			int n = appData.remaining();
+			if (n > 0) {
+				ensureCapacity(n);
+				inbound.put(appData);
+			}
+			return n;
+		}
 
-				if (event.equals("READ")) {
-					try {
+		ensureCapacity(1);
+		return connection.tryRead(inbound);
+	}
 
-						// Read bytes from the socket
-						int bufferSize = 1024;
-						ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
-						int numBytesRead = connection.getChannel().read(buf); // request.read(buf);
-						if (numBytesRead > 0) {
-							buf.rewind();
-
-							// If the buffer is filled to capacity, chances are
-							// that there are more bytes to read from the socket
-							if (numBytesRead == bufferSize) {
-								java.io.ByteArrayOutputStream bas = new java.io.ByteArrayOutputStream();
-
-								byte[] b = new byte[numBytesRead];
-								buf.get(b, 0, numBytesRead);
-								bas.write(b);
-
-								while (true) {
-									buf.clear();
-									numBytesRead = connection.getChannel().read(buf); // request.read(buf);
-
-									b = new byte[numBytesRead];
-									buf.get(b, 0, numBytesRead);
-									bas.write(b);
-
-									if (numBytesRead < bufferSize) {
-										break;
-									}
-								}
-
-								buf = ByteBuffer.allocateDirect(bas.size());
-								buf.put(bas.toByteArray());
-								buf.rewind();
-							}
-
-							// Decrypt the buffer as needed
-							if (request.isEncrypted()) {
-								byte[] arr = request.decrypt(buf);
-								buf = ByteBuffer.allocateDirect(arr.length);
-								buf.put(arr);
-								buf.rewind();
-							}
-
-							// Decode frames
-							List<Frame> frames = decodeFrames(buf);
-							for (Frame frame : frames) {
-								log().t("read frame", frame);
-								processFrame(frame);
-							}
-						}
-					} catch (FrameException e) {
-						onError(e);
-						close(e.getCloseCode(), e.getMessage(), false);
-					} catch (Exception e) {
-						if (readystate == READYSTATE.OPEN) {
-							onError(e);
-							onDisconnect(CloseFrame.ABNORMAL_CLOSE, "", false);
-						}
-						try {
-							log().t("Closing connection!");
-							connection.close();
-						} catch (IOException ex) {
-						}
-						return;
-					}
-				} else {
-					try {
-						log().t("Closing connection!");
-						connection.close();
-					} catch (Exception e) {
-					}
-					return;
+	// **************************************************************************
+	// ** decodeFrames
+	// **************************************************************************
+	/**
+	 * Decodes and processes the complete frames in the inbound buffer. Bytes
+	 * of an incomplete frame are moved to the start of the buffer and the
+	 * buffer is enlarged as needed to hold the entire frame.
+	 */
+	private void decodeFrames() throws FrameException, IOException {
+		int frameSize = 0;
+		inbound.flip();
+		try {
+			while (inbound.hasRemaining() && readystate == READYSTATE.OPEN) {
+				inbound.mark();
+				Frame frame;
+				try {
+					frame = Frame.translateSingleFrame(inbound, deflate != null);
+				} catch (IncompleteFrameException e) {
+					inbound.reset();
+					frameSize = checkAlloc(e.getPreferredSize());
+					if (frameSize > maxFrameSize)
+						throw new FrameException(CloseFrame.TOOBIG, "Frame is larger than " + maxFrameSize + " bytes");
+					break;
 				}
+				log().t("read frame", frame);
+				processFrame(frame);
 			}
+		} finally {
+			inbound.compact();
 		}
+		if (frameSize > 0)
+			ensureCapacity(frameSize - inbound.position());
+	}
+
+	// **************************************************************************
+	// ** ensureCapacity
+	// **************************************************************************
+	/**
+	 * Used to ensure that the inbound buffer can take the given number of
+	 * bytes. Replaces pooled buffers with a larger buffer as needed.
+	 */
+	private void ensureCapacity(int length) {
+		if (inbound == null)
+			inbound = BufferPool.DEFAULT.acquire();
+		if (inbound.remaining() >= length)
+			return;
+		ByteBuffer buf = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + length));
+		inbound.flip();
+		buf.put(inbound);
+		BufferPool.DEFAULT.release(inbound);
+		inbound = buf;
 	}
 
 	// **************************************************************************
@@ -318,6 +398,72 @@ public class WebSocketListener extends MLog {
 	public void onBinary(ByteBuffer buf) {
 	}
 
+	// **************************************************************************
+	// ** onTextPart
+	// **************************************************************************
+	/**
+	 * Called as parts of a text message are received (e.g. fragments or
+	 * chunks of a compressed message). Override this method to process large
+	 * messages as a stream. The default implementation collects the parts
+	 * and calls onText() once the message is complete.
+	 *
+	 * @param last
+	 *            True if this is the last part of the message. Note that the
+	 *            last part may be empty.
+	 */
+	public void onTextPart(String str, boolean last) {
+		if (textMessage == null) {
+			if (last) {
+				onText(str);
+				return;
+			}
+			textMessage = new StringBuilder(str.length() * 2);
+		}
+		textMessage.append(str);
+		if (last) {
+			String message = textMessage.toString();
+			textMessage = null;
+			onText(message);
+		}
+	}
+
+	// **************************************************************************
+	// ** onBinaryPart
+	// **************************************************************************
+	/**
+	 * Called as parts of a binary message are received. Override this method
+	 * to process large messages as a stream. The buffer is only valid until
+	 * the method returns. The default implementation collects the parts and
+	 * calls onBinary() once the message is complete.
+	 *
+	 * @param last
+	 *            True if this is the last part of the message. Note that the
+	 *            last part may be empty.
+	 */
+	public void onBinaryPart(ByteBuffer buf, boolean last) {
+		if (binaryMessage == null) {
+			if (last) {
+				onBinary(buf);
+				return;
+			}
+			binaryMessage = new java.io.ByteArrayOutputStream(Math.max(32, buf.remaining() * 2));
+		}
+		int length = buf.remaining();
+		if (buf.hasArray()) {
+			binaryMessage.write(buf.array(), buf.arrayOffset() + buf.position(), length);
+			buf.position(buf.limit());
+		} else if (length > 0) {
+			byte[] b = new byte[length];
+			buf.get(b);
+			binaryMessage.write(b, 0, length);
+		}
+		if (last) {
+			ByteBuffer message = ByteBuffer.wrap(binaryMessage.toByteArray());
+			binaryMessage = null;
+			onBinary(message);
+		}
+	}
+
 	// **************************************************************************
 	// ** send
 	// **************************************************************************
@@ -326,8 +472,93 @@ public class WebSocketListener extends MLog {
 	 */
 	public void send(String str) {
 		try {
-			send(Frame.createFrame(str, !roleIsServer));
+			sendMessage(Frame.Opcode.TEXT, ByteBuffer.wrap(UTF8.encode(str)));
+		} catch (IOException e) {
+		}
+	}
+
+	// **************************************************************************
+	// ** send
+	// **************************************************************************
+	/**
+	 * Used to send binary data to the client. Sends the remaining bytes in the
+	 * buffer.
+	 */
+	public void send(ByteBuffer buf) {
+		try {
+			sendMessage(Frame.Opcode.BINARY, buf.slice());
+		} catch (IOException e) {
+		}
+	}
+
+	// **************************************************************************
+	// ** sendPart
+	// **************************************************************************
+	/**
+	 * Used to send a text message in parts so that large messages never have
+	 * to be held in memory as a whole. Each part is sent as a separate frame.
+	 * The message is complete once a part is sent with the last flag set.
+	 * Until then, messages sent by other threads are held back, so the last
+	 * part should be sent in a finally block. Do not call send() from the
+	 * same thread before the message is complete. Note that a surrogate pair
+	 * must not be split across parts.
+	 */
+	public void sendPart(String str, boolean last) throws IOException {
+		sendPart(Frame.Opcode.TEXT, ByteBuffer.wrap(UTF8.encode(str)), last);
+	}
+
+	// **************************************************************************
+	// ** sendPart
+	// **************************************************************************
+	/**
+	 * Used to send a binary message in parts. Sends the remaining bytes in the
+	 * buffer. See sendPart(String, boolean) for more information.
+	 */
+	public void sendPart(ByteBuffer buf, boolean last) throws IOException {
+		sendPart(Frame.Opcode.BINARY, buf.slice(), last);
+	}
+
+	private void sendPart(Frame.Opcode opcode, ByteBuffer data, boolean last) throws IOException {
+		boolean isFirst = !messageLock.isHeldByCurrentThread();
+		if (isFirst) {
+			messageLock.lock();
+			partCompressed = (deflate != null);
+		}
+		boolean isDone = last;
+		try {
+			Frame frame = Frame.get(isFirst ? opcode : Frame.Opcode.CONTINUOUS);
+			frame.setFin(last);
+			frame.setRSV1(isFirst && partCompressed);
+			frame.setPayload(partCompressed ? deflate.compress(data, last) : data);
+			send(frame);
 		} catch (IOException e) {
+			isDone = true;
+			throw e;
+		} finally {
+			if (isDone)
+				messageLock.unlock();
+		}
+	}
+
+	// **************************************************************************
+	// ** sendMessage
+	// **************************************************************************
+	/**
+	 * Used to send a complete message. Compresses the message if the client
+	 * supports compression and the message is large enough.
+	 */
+	private void sendMessage(Frame.Opcode opcode, ByteBuffer data) throws IOException {
+		if (messageLock.isHeldByCurrentThread())
+			throw new IllegalStateException("Previous message was not completed. See sendPart().");
+		messageLock.lock();
+		try {
+			boolean compress = (deflate != null && data.remaining() >= compressionThreshold);
+			Frame frame = Frame.get(opcode);
+			frame.setRSV1(compress);
+			frame.setPayload(compress ? deflate.compress(data, true) : data);
+			send(frame);
+		} finally {
+			messageLock.unlock();
 		}
 	}
 
@@ -339,11 +570,94 @@ public class WebSocketListener extends MLog {
 	 */
 	private void send(Frame frame) throws IOException {
 		ByteBuffer buf = frame.getByteBuffer(!roleIsServer);
-		int length = buf.capacity();
 		buf.flip();
 
 		log().t("send frame", frame);
-		write(buf, length);
+		write(buf);
+	}
+
+	// **************************************************************************
+	// ** broadcast
+	// **************************************************************************
+	/**
+	 * Used to send a text message to many clients (e.g. all the clients that
+	 * subscribed to a topic). The message is encoded once and the same bytes
+	 * are queued for every client, so a slow client does not hold up the
+	 * others. Clients that are not connected are skipped.
+	 *
+	 * @return Number of clients the message was sent to.
+	 */
+	public static int broadcast(String str, Iterable<? extends WebSocketListener> listeners) {
+		return broadcast(Frame.Opcode.TEXT, ByteBuffer.wrap(UTF8.encode(str)), listeners);
+	}
+
+	// **************************************************************************
+	// ** broadcast
+	// **************************************************************************
+	/**
+	 * Used to send binary data to many clients. Sends the remaining bytes in
+	 * the buffer. See broadcast(String, Iterable) for more information.
+	 *
+	 * @return Number of clients the data was sent to.
+	 */
+	public static int broadcast(ByteBuffer buf, Iterable<? extends WebSocketListener> listeners) {
+		return broadcast(Frame.Opcode.BINARY, buf.slice(), listeners);
+	}
+
+	/**
+	 * Used to send a message to many clients. The message is encoded once for
+	 * all the clients that do not use compression and once for all the
+	 * clients that use compression without context takeover. Messages for
+	 * clients with context takeover have to be compressed one by one.
+	 */
+	private static int broadcast(Frame.Opcode opcode, ByteBuffer data, Iterable<? extends WebSocketListener> listeners) {
+		ByteBuffer plain = null;
+		ByteBuffer compressed = null;
+		int numClients = 0;
+		for (WebSocketListener listener : listeners) {
+			if (!listener.isOpen())
+				continue;
+
+			listener.messageLock.lock();
+			try {
+				ByteBuffer buf;
+				PerMessageDeflate deflate = listener.deflate;
+				if (deflate == null || data.remaining() < compressionThreshold) {
+					if (plain == null)
+						plain = encode(opcode, data.duplicate(), false);
+					buf = plain.duplicate();
+				} else if (!deflate.isContextTakeover()) {
+					if (compressed == null)
+						compressed = encode(opcode, deflate.compress(data.duplicate(), true), true);
+					buf = compressed.duplicate();
+				} else {
+					buf = encode(opcode, deflate.compress(data.duplicate(), true), true);
+				}
+				listener.write(buf);
+				numClients++;
+			} catch (IOException e) {
+			} finally {
+				listener.messageLock.unlock();
+			}
+		}
+		return numClients;
+	}
+
+	private static ByteBuffer encode(Frame.Opcode opcode, ByteBuffer payload, boolean compressed) throws IOException {
+		Frame frame = Frame.get(opcode);
+		frame.setRSV1(compressed);
+		frame.setPayload(payload);
+		ByteBuffer buf = frame.getByteBuffer(false);
+		buf.flip();
+		return buf;
+	}
+
+	// **************************************************************************
+	// ** isOpen
+	// **************************************************************************
+	/** Returns true if the WebSocket is connected. */
+	public boolean isOpen() {
+		return readystate == READYSTATE.OPEN;
 	}
 
 	// **************************************************************************
@@ -380,12 +694,16 @@ public class WebSocketListener extends MLog {
 	 *            the server.
 	 */
 	private void close(int code, String message, boolean remote) {
-		if (readystate == READYSTATE.CLOSED)
-			return;
+		READYSTATE prevState;
+		synchronized (this) {
+			prevState = readystate;
+			if (prevState == READYSTATE.CLOSING || prevState == READYSTATE.CLOSED)
+				return;
+			readystate = READYSTATE.CLOSING;
+		}
 
 		log().t("Close!");
-		if (readystate == READYSTATE.OPEN) {
-			readystate = READYSTATE.CLOSING;
+		if (prevState == READYSTATE.OPEN) {
 
 			if (code == CloseFrame.ABNORMAL_CLOSE) {
 				remote = false;
@@ -414,99 +732,240 @@ public class WebSocketListener extends MLog {
 			}
 		}
 
-		addEvent("CLOSE");
+		readystate = READYSTATE.CLOSED;
 		onDisconnect(code, message, remote);
 
-		incompleteframe = null;
-		readystate = READYSTATE.CLOSED;
+		// Close the socket once the close frame has been sent
+		closeConnection(code != CloseFrame.ABNORMAL_CLOSE);
 	}
 
 	// **************************************************************************
-	// ** write
+	// ** closeConnection
 	// **************************************************************************
 	/**
-	 * Used to send bytes to the client. This implementation relies on the
-	 * HttpServletRequest class.
+	 * Used to close the underlying socket.
+	 *
+	 * @param flush
+	 *            If true, waits for any queued bytes to be sent before closing
+	 *            the socket. Does not block the caller.
 	 */
-	private void write(ByteBuffer buf, int length) throws IOException {
-		if (request.isEncrypted()) {
-			buf = request.wrap(buf);
-			length = buf.capacity();
+	private void closeConnection(boolean flush) {
+		if (flush) {
+			sendLock.lock();
+			try {
+				if (!outbound.isEmpty()) {
+					closeWhenSent = true;
+					return;
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
 		}
-		connection.write(buf, length);
 	}
 
 	// **************************************************************************
-	// ** decodeFrames
+	// ** onSocketClosed
+	// **************************************************************************
+	/**
+	 * Called when the underlying socket is closed, either by this class or by
+	 * the server (e.g. idle connection or server shutdown).
+	 */
+	private void onSocketClosed() {
+		boolean wasOpen;
+		synchronized (this) {
+			wasOpen = (readystate == READYSTATE.OPEN);
+			readystate = READYSTATE.CLOSED;
+		}
+
+		sendLock.lock();
+		try {
+			outbound.clear();
+			outboundSize = 0;
+		} finally {
+			sendLock.unlock();
+		}
+
+		// Release the Deflater and Inflater unless another thread is sending
+		// a message. In that case, they are released by the garbage collector.
+		if (deflate != null && messageLock.tryLock()) {
+			try {
+				deflate.close();
+			} finally {
+				messageLock.unlock();
+			}
+		}
+
+		if (wasOpen)
+			onDisconnect(CloseFrame.ABNORMAL_CLOSE, "", false);
+	}
+
+	// **************************************************************************
+	// ** write
 	// **************************************************************************
 	/**
-	 * Decodes raw bytes into a list of Frames.
+	 * Used to send bytes to the client without blocking. Bytes that the socket
+	 * does not accept right away are queued and sent by the selector thread
+	 * once the socket is writable again. The connection is closed if a client
+	 * falls so far behind that the queue exceeds the maximum queue size.
 	 */
-	private List<Frame> decodeFrames(ByteBuffer buffer) throws FrameException {
-		while (true) {
-			List<Frame> frames = new LinkedList<Frame>();
-			Frame cur;
+	private void write(ByteBuffer buf) throws IOException {
+		boolean overflow = false;
+		sendLock.lock();
+		try {
+			if (closeWhenSent)
+				throw new IOException("WebSocket is closed.");
 
-			if (incompleteframe != null) {
-				// complete an incomplete frame
-				try {
-					buffer.mark();
-					int available_next_byte_count = buffer.remaining();// The
-					                                                   // number
-					                                                   // of
-					                                                   // bytes
-					                                                   // received
-					int expected_next_byte_count = incompleteframe.remaining();// The
-					                                                           // number
-					                                                           // of
-					                                                           // bytes
-					                                                           // to
-					                                                           // complete
-					                                                           // the
-					                                                           // incomplete
-					                                                           // frame
-
-					if (expected_next_byte_count > available_next_byte_count) {
-						// did not receive enough bytes to complete the frame
-						incompleteframe.put(buffer.array(), buffer.position(), available_next_byte_count);
-						buffer.position(buffer.position() + available_next_byte_count);
-						return Collections.emptyList();
-					}
-					incompleteframe.put(buffer.array(), buffer.position(), expected_next_byte_count);
-					buffer.position(buffer.position() + expected_next_byte_count);
-					cur = Frame.translateSingleFrame((ByteBuffer) incompleteframe.duplicate().position(0));
-					frames.add(cur);
-					incompleteframe = null;
-				} catch (IncompleteFrameException e) {
-					// extending as much as suggested
-					ByteBuffer extendedframe = ByteBuffer.allocate(checkAlloc(e.getPreferredSize()));
-					assert (extendedframe.limit() > incompleteframe.limit());
-					incompleteframe.rewind();
-					extendedframe.put(incompleteframe);
-					incompleteframe = extendedframe;
-					continue;
-				}
+			// Encrypt the bytes as needed. Records are encrypted and queued
+			// while holding the lock so that they are sent in order.
+			if (secureChannel != null)
+				buf = secureChannel.wrap(buf);
+
+			if (outbound.isEmpty()) {
+				connection.tryWrite(buf);
+				if (!buf.hasRemaining())
+					return;
 			}
 
-			while (buffer.hasRemaining()) {// Read as much as possible full
-			                               // frames
-				buffer.mark();
-				try {
-					cur = Frame.translateSingleFrame(buffer);
-					if (cur == null)
-						return frames;
-					frames.add(cur);
-				} catch (IncompleteFrameException e) {
-					// remember the incomplete data
-					buffer.reset();
-					int pref = e.getPreferredSize();
-					incompleteframe = ByteBuffer.allocate(checkAlloc(pref));
-					incompleteframe.put(buffer);
-					break;
-				}
+			if (outboundSize + buf.remaining() > maxQueueSize) {
+				overflow = true;
+			} else {
+				outbound.add(buf);
+				outboundSize += buf.remaining();
+				connection.setWriteInterest(true);
+			}
+		} finally {
+			sendLock.unlock();
+		}
+
+		if (overflow) {
+			close(CloseFrame.ABNORMAL_CLOSE, "", false);
+			throw new IOException("Client is not reading fast enough.");
+		}
+	}
+
+	// **************************************************************************
+	// ** flush
+	// **************************************************************************
+	/**
+	 * Used to send queued bytes to the client. Called by the selector thread
+	 * when the socket is writable.
+	 */
+	private void flush() {
+		boolean close;
+		sendLock.lock();
+		try {
+			while (!outbound.isEmpty()) {
+				ByteBuffer buf = outbound.peek();
+				outboundSize -= connection.tryWrite(buf);
+				if (buf.hasRemaining())
+					return;
+				outbound.poll();
 			}
-			return frames;
+			connection.setWriteInterest(false);
+			close = closeWhenSent;
+		} catch (IOException e) {
+			close = true;
+		} finally {
+			sendLock.unlock();
+		}
+		if (close)
+			closeConnection(false);
+	}
+
+	// **************************************************************************
+	// ** setMaxFrameSize
+	// **************************************************************************
+	/**
+	 * Used to set the maximum size of a frame sent by the client, in bytes.
+	 * Larger frames are rejected with a "message too big" close code.
+	 * Default is 16MB.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	// **************************************************************************
+	// ** setMaxQueueSize
+	// **************************************************************************
+	/**
+	 * Used to set the maximum number of bytes that may be waiting to be sent
+	 * to the client. Clients that fall further behind are disconnected.
+	 * Default is 16MB.
+	 */
+	public void setMaxQueueSize(long maxQueueSize) {
+		this.maxQueueSize = maxQueueSize;
+	}
+
+	// **************************************************************************
+	// ** setMaxMessageSize
+	// **************************************************************************
+	/**
+	 * Used to set the maximum size of a message collected for onText() and
+	 * onBinary(), after decompression. Larger messages are rejected with a
+	 * "message too big" close code. Does not apply to messages that are
+	 * processed as a stream (see onTextPart). Default is 16MB.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	// **************************************************************************
+	// ** setPerMessageDeflate
+	// **************************************************************************
+	/**
+	 * Used to enable or disable the permessage-deflate extension (RFC 7692)
+	 * for new WebSocket connections. If enabled, messages are compressed
+	 * whenever the client supports it. Enabled by default.
+	 */
+	public static void setPerMessageDeflate(boolean enabled) {
+		perMessageDeflate = enabled;
+	}
+
+	// **************************************************************************
+	// ** setContextTakeover
+	// **************************************************************************
+	/**
+	 * Used to specify whether compressed connections keep the compression
+	 * state between messages. Context takeover compresses similar messages
+	 * far better, but each connection holds a Deflater and an Inflater
+	 * (a few hundred KB of native memory) for as long as it is open. Disable
+	 * to serve many connections with little memory. Enabled by default.
+	 * Applies to new WebSocket connections.
+	 */
+	public static void setContextTakeover(boolean enabled) {
+		contextTakeover = enabled;
+	}
+
+	// **************************************************************************
+	// ** setCompressionThreshold
+	// **************************************************************************
+	/**
+	 * Used to set the minimum size of a message that is compressed, in bytes.
+	 * Smaller messages are sent as-is. Default is 256 bytes.
+	 */
+	public static void setCompressionThreshold(int numBytes) {
+		compressionThreshold = numBytes;
+	}
+
+	// **************************************************************************
+	// ** getExtensions
+	// **************************************************************************
+	/**
+	 * Returns the extensions requested by the client. Combines multiple
+	 * "Sec-WebSocket-Extensions" headers into one comma separated list.
+	 */
+	private static String getExtensions(HttpServletRequest request) {
+		String extensions = null;
+		java.util.Enumeration<String> it = request.getHeaders("Sec-WebSocket-Extensions");
+		while (it != null && it.hasMoreElements()) {
+			String str = it.nextElement();
+			extensions = (extensions == null ? str : extensions + ", " + str);
 		}
+		return extensions;
 	}
 
 	// **************************************************************************
@@ -533,94 +992,125 @@ public class WebSocketListener extends MLog {
 			send(new Frame.PongFrame((Frame.PingFrame) frame));
 		} else if (curop == Frame.Opcode.PONG) {
 			// this.lastPong = System.currentTimeMillis();
-		} else if (!frame.isFin() || curop == Frame.Opcode.CONTINUOUS) {
-
-			if (curop != Frame.Opcode.CONTINUOUS) {
-				if (current_continuous_frame != null)
-					throw new FrameException(CloseFrame.PROTOCOL_ERROR,
-					        "Previous continuous frame sequence not completed.");
-				current_continuous_frame = frame;
-				byteBufferList.add(frame.getPayloadData());
-			} else if (frame.isFin()) {
-				if (current_continuous_frame == null)
-					throw new FrameException(CloseFrame.PROTOCOL_ERROR, "Continuous frame sequence was not started.");
-				byteBufferList.add(frame.getPayloadData());
-				if (current_continuous_frame.getOpcode() == Frame.Opcode.TEXT) {
-					current_continuous_frame.setPayload(getPayloadFromByteBufferList());
-					current_continuous_frame.isValid();
-					try {
-						onText(UTF8.decode(current_continuous_frame.getPayloadData()));
-					} catch (RuntimeException e) {
-						onError(e);
-					}
-				} else if (current_continuous_frame.getOpcode() == Frame.Opcode.BINARY) {
-					current_continuous_frame.setPayload(getPayloadFromByteBufferList());
-					current_continuous_frame.isValid();
-					try {
-						onBinary(current_continuous_frame.getPayloadData());
-					} catch (RuntimeException e) {
-						onError(e);
-					}
-				}
-				current_continuous_frame = null;
-				byteBufferList.clear();
-			} else if (current_continuous_frame == null) {
+		} else if (curop == Frame.Opcode.TEXT || curop == Frame.Opcode.BINARY) {
+			if (messageOpcode != null)
+				throw new FrameException(CloseFrame.PROTOCOL_ERROR, "Previous continuous frame sequence not completed.");
+			messageOpcode = curop;
+			messageCompressed = frame.isRSV1();
+			processData(frame);
+		} else if (curop == Frame.Opcode.CONTINUOUS) {
+			if (messageOpcode == null)
 				throw new FrameException(CloseFrame.PROTOCOL_ERROR, "Continuous frame sequence was not started.");
-			}
+			if (frame.isRSV1())
+				throw new FrameException(CloseFrame.PROTOCOL_ERROR, "Continuous frame cant have rsv1==true set");
+			processData(frame);
+		} else {
+			throw new FrameException(CloseFrame.PROTOCOL_ERROR, "non control or continious frame expected");
+		}
+	}
 
-			// Check if the whole payload is valid utf8, when the opcode
-			// indicates a text
-			if (curop == Frame.Opcode.TEXT) {
-				if (!UTF8.isValid(frame.getPayloadData())) {
-					throw new FrameException(CloseFrame.NO_UTF8);
+	// **************************************************************************
+	// ** processData
+	// **************************************************************************
+	/**
+	 * Used to pass the payload of a data frame to onTextPart() or
+	 * onBinaryPart(). Compressed payloads are decompressed in chunks so that
+	 * a message is never decompressed into memory as a whole.
+	 */
+	private void processData(Frame frame) throws FrameException {
+		boolean last = frame.isFin();
+		ByteBuffer payload = frame.getPayloadData();
+		if (!messageCompressed) {
+			processData(payload, last);
+		} else {
+			deflate.setInput(payload, last);
+			ByteBuffer buf = BufferPool.DEFAULT.acquire();
+			try {
+				byte[] b = buf.array();
+				while (true) {
+					int length = 0;
+					int n;
+					while (length < b.length && (n = deflate.inflate(b, length, b.length - length)) > 0) {
+						length += n;
+					}
+					boolean isDone = (length < b.length);
+					if (length > 0 || (isDone && last))
+						processData(ByteBuffer.wrap(b, 0, length), isDone && last);
+					if (isDone)
+						break;
 				}
+			} finally {
+				BufferPool.DEFAULT.release(buf);
 			}
+		}
+		if (last)
+			messageOpcode = null;
+	}
 
-			// Checking if the current continous frame contains a correct
-			// payload with the other frames combined
-			if (curop == Frame.Opcode.CONTINUOUS && current_continuous_frame != null) {
-				byteBufferList.add(frame.getPayloadData());
-			}
-		} else if (current_continuous_frame != null) {
-			throw new FrameException(CloseFrame.PROTOCOL_ERROR, "Continuous frame sequence not completed.");
-		} else if (curop == Frame.Opcode.TEXT) {
+	private void processData(ByteBuffer data, boolean last) throws FrameException {
+		if (messageOpcode == Frame.Opcode.TEXT) {
+			String str = decodeText(data, last);
 			try {
-				onText(UTF8.decode(frame.getPayloadData()));
+				onTextPart(str, last);
 			} catch (RuntimeException e) {
 				onError(e);
 			}
-		} else if (curop == Frame.Opcode.BINARY) {
+		} else {
 			try {
-				onBinary(frame.getPayloadData());
+				onBinaryPart(data, last);
 			} catch (RuntimeException e) {
 				onError(e);
 			}
-		} else {
-			throw new FrameException(CloseFrame.PROTOCOL_ERROR, "non control or continious frame expected");
+		}
+
+		// Check the size of messages collected by onTextPart and onBinaryPart
+		if ((textMessage != null && textMessage.length() > maxMessageSize)
+		        || (binaryMessage != null && binaryMessage.size() > maxMessageSize)) {
+			textMessage = null;
+			binaryMessage = null;
+			throw new FrameException(CloseFrame.TOOBIG, "Message is larger than " + maxMessageSize + " bytes");
 		}
 	}
 
 	// **************************************************************************
-	// ** getPayloadFromByteBufferList
+	// ** decodeText
 	// **************************************************************************
 	/**
-	 * Method to generate a full bytebuffer out of all the fragmented frame
-	 * payload.
+	 * Used to decode a part of a text message. Bytes of a character that is
+	 * split between parts are kept for the next part.
 	 */
-	private ByteBuffer getPayloadFromByteBufferList() throws FrameException {
-		long totalSize = 0;
-		for (ByteBuffer buffer : byteBufferList) {
-			totalSize += buffer.limit();
+	private String decodeText(ByteBuffer data, boolean last) throws FrameException {
+		if (textDecoder == null)
+			textDecoder = Charset.forName("UTF-8").newDecoder();
+
+		if (textRemainder != null) {
+			ByteBuffer b = ByteBuffer.allocate(textRemainder.remaining() + data.remaining());
+			b.put(textRemainder);
+			b.put(data);
+			b.flip();
+			data = b;
+			textRemainder = null;
 		}
-		if (totalSize > Integer.MAX_VALUE) {
-			throw new FrameException("Payloadsize is to big...");
+
+		CharBuffer out = CharBuffer.allocate(data.remaining());
+		CoderResult result = textDecoder.decode(data, out, last);
+		if (!result.isError() && last)
+			result = textDecoder.flush(out);
+		if (result.isError() || (last && data.hasRemaining())) {
+			textDecoder.reset();
+			throw new FrameException(CloseFrame.NO_UTF8);
 		}
-		ByteBuffer resultingByteBuffer = ByteBuffer.allocate((int) totalSize);
-		for (ByteBuffer buffer : byteBufferList) {
-			resultingByteBuffer.put(buffer);
+
+		if (last) {
+			textDecoder.reset();
+		} else if (data.hasRemaining()) {
+			textRemainder = ByteBuffer.allocate(data.remaining());
+			textRemainder.put(data);
+			textRemainder.flip();
 		}
-		resultingByteBuffer.flip();
-		return resultingByteBuffer;
+
+		out.flip();
+		return out.toString();
 	}
 
 	// **************************************************************************
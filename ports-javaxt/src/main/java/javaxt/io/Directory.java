@@ -5,7 +5,6 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
@@ -38,6 +37,7 @@ public class Directory implements Comparable {
 	private FileSystemWatcher FileSystemWatcher;
 	private File.FileAttributes attr;
 	private long lastAttrUpdate = 0;
+	private java.util.Set<DirectoryWalker> walkers; // <--active recursive searches
 
 	public static final String PathSeparator = System.getProperty("file.separator");
 	protected static final boolean isWindows = System.getProperty("os.name").toLowerCase().startsWith("windows");
@@ -824,30 +824,23 @@ public class Directory implements Comparable {
 		if (this.exists()) {
 			if (RecursiveSearch) {
 
-				// Get list of all the files and folders in the directory
-				List items = getChildren(true, filter, false);
-				ArrayList<File> files = new ArrayList<File>();
-				try {
-					Object item;
-					while (true) {
-						synchronized (items) {
-							while (items.isEmpty()) {
-								items.wait();
-							}
-							item = items.remove(0);
-							items.notifyAll();
-						}
-
-						if (item == null) {
-							break;
-						} else {
-							if (item instanceof File) {
-								files.add((File) item);
+				// Find all the files in the directory
+				final ArrayList<File> files = new ArrayList<File>();
+				DirectoryWalker walker = new DirectoryWalker(filter) {
+					@Override
+					protected void found(java.nio.file.Path path, boolean isDirectory) {
+						if (!isDirectory) {
+							File file = new File(path.toString());
+							synchronized (files) {
+								files.add(file);
 							}
 						}
 					}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
+				};
+				if (!search(walker)) {
+					synchronized (files) {
+						return files.toArray(new File[files.size()]);
+					}
 				}
 
 				// Sort the list
@@ -923,32 +916,23 @@ public class Directory implements Comparable {
 
 			if (RecursiveSearch) {
 
-				// Get list of all the files and folders in the directory
-				List items = getChildren(true, null, false);
-				ArrayList<Directory> directories = new ArrayList<Directory>();
-				try {
-					Object item;
-					while (true) {
-						synchronized (items) {
-							while (items.isEmpty()) {
-								items.wait();
-							}
-							item = items.remove(0);
-							items.notifyAll();
-						}
-
-						if (item == null) {
-							break;
-						} else {
-							if (item instanceof Directory) {
-								directories.add((Directory) item);
+				// Find all the subdirectories
+				final ArrayList<Directory> directories = new ArrayList<Directory>();
+				DirectoryWalker walker = new DirectoryWalker(null) {
+					@Override
+					protected void found(java.nio.file.Path path, boolean isDirectory) {
+						if (isDirectory) {
+							Directory dir = new Directory(path.toString());
+							synchronized (directories) {
+								directories.add(dir);
 							}
 						}
 					}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
+				};
+				search(walker);
+				synchronized (directories) {
+					return directories.toArray(new Directory[directories.size()]);
 				}
-				return directories.toArray(new Directory[directories.size()]);
 
 			} else {
 				java.io.FileFilter fileFilter = new java.io.FileFilter() {
@@ -1030,7 +1014,9 @@ public class Directory implements Comparable {
 	 *            If true, will perform a multi-threaded, recursive directory
 	 *            search to find all the files and folders found in the current
 	 *            directory, including any subdirectories. If false, the method
-	 *            will simply return items found in the current directory. <br/>
+	 *            will simply return items found in the current directory. The
+	 *            search runs in a shared ForkJoinPool (see the walk method).
+	 *            <br/>
 	 *
 	 *            Note that if the thread is interrupted for whatever reason
 	 *            during a recursive search, the search will stop immediately.
@@ -1095,47 +1081,47 @@ public class Directory implements Comparable {
 
 			if (RecursiveSearch) {
 
-				// Create list to store items found in the directory
-				List items = new LinkedList();
-
-				// Create a file filter
-				FileFilter fileFilter = new FileFilter(filter);
-
-				// Spawn threads used to crawl through the file system
-				long directoryID = Long
-				        .valueOf(java.util.Calendar.getInstance().getTimeInMillis() + "" + new Random().nextInt(100000))
-				        .longValue();
-				int numThreads = 20; // <-- this should be set dynamically and
-				                     // self tuning
-				DirectorySearch.deleteCache();
-				DirectorySearch search = new DirectorySearch(fileFilter, items, directoryID, numThreads);
-				for (int i = 0; i < numThreads; i++) {
-					Thread t = new Thread(search);
-					t.setName("DirectorySearch_" + directoryID + "-" + i);
-					t.start();
-				}
+				// Create list to store items found in the directory. Items are
+				// removed from the head of the list by clients that don't wait.
+				final List<Object> items = wait ? new ArrayList<Object>() : new LinkedList<Object>();
+				final boolean notify = !wait;
 
-				// Initiate search
-				DirectorySearch.updatePool(this);
-
-				if (wait) {
+				// Search the directory
+				DirectoryWalker walker = new DirectoryWalker(filter) {
+					@Override
+					protected void found(java.nio.file.Path path, boolean isDirectory) {
+						Object item;
+						if (isDirectory)
+							item = new Directory(path.toString());
+						else
+							item = new File(path.toString());
+						synchronized (items) {
+							items.add(item);
+							if (notify)
+								items.notifyAll();
+						}
+					}
 
-					synchronized (items) {
-						while (!items.contains(null)) {
-							try {
-								items.wait();
-							} catch (InterruptedException e) {
-								DirectorySearch.stop();
-								Thread.currentThread().interrupt();
-								return items;
+					@Override
+					protected void done() {
+						if (notify) {
+							synchronized (items) {
+								items.add(null);
+								items.notifyAll();
 							}
 						}
-
-						items.remove(null);
-						items.notifyAll();
 					}
+				};
 
+				if (wait) {
+					if (!search(walker)) {
+						synchronized (items) {
+							return new ArrayList<Object>(items);
+						}
+					}
 					Collections.sort(items, new FileComparer(this));
+				} else {
+					start(walker);
 				}
 
 				// Return list
@@ -1193,6 +1179,152 @@ public class Directory implements Comparable {
 		}
 	}
 
+	// **************************************************************************
+	// ** walk
+	// **************************************************************************
+	/**
+	 * Returns a stream of the files and folders found in this directory and its
+	 * subdirectories. Directories are searched in parallel by a small pool of
+	 * threads that is created for each stream, and paths are returned as soon
+	 * as they are found, in no particular order. Unlike getChildren, the
+	 * results are not sorted and File/Directory objects are not created. If
+	 * the caller falls behind, the search pauses once 8192 paths are waiting.
+	 * Close the stream to stop the search early. Streams that are not closed
+	 * (e.g. after findFirst) are stopped once they are garbage collected.
+	 * Example:
+	 *
+	 * <pre>
+	 * try (Stream&lt;Path&gt; paths = directory.walk("*.txt")) {
+	 *     long size = paths.filter(Files::isRegularFile).count();
+	 * }
+	 * </pre>
+	 *
+	 * Symbolic links to directories are returned but not followed.
+	 *
+	 * @param filter
+	 *            A file filter. You can pass in a java.io.FileFilter, a String
+	 *            (e.g. "*.txt"), or an array of Strings (e.g. String[]{"*.txt",
+	 *            "*.doc"}). Wildcard filters are supported. Note that the
+	 *            filter is only applied to files, not directories.
+	 */
+	public java.util.stream.Stream<java.nio.file.Path> walk(Object filter) {
+
+		final Object end = new Object();
+		final java.util.concurrent.BlockingQueue<Object> queue = new java.util.concurrent.LinkedBlockingQueue<Object>(
+		        8192);
+
+		// Use a separate pool so that threads waiting for the consumer don't
+		// hold up other searches in the shared pool
+		final java.util.concurrent.ForkJoinPool pool = DirectoryWalker
+		        .newPool(Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors())), "DirectoryStream-");
+
+		final DirectoryWalker walker = new DirectoryWalker(filter) {
+			@Override
+			protected void found(java.nio.file.Path path, boolean isDirectory) {
+				put(queue, path);
+			}
+
+			@Override
+			protected void done() {
+				try {
+					if (isCancelled())
+						queue.clear();
+					put(queue, end);
+				} finally {
+					pool.shutdown();
+				}
+			}
+		};
+
+		java.util.Spliterator<java.nio.file.Path> spliterator = new java.util.Spliterators.AbstractSpliterator<java.nio.file.Path>(
+		        Long.MAX_VALUE, java.util.Spliterator.NONNULL | java.util.Spliterator.DISTINCT) {
+			private boolean finished = false;
+
+			@Override
+			public boolean tryAdvance(java.util.function.Consumer<? super java.nio.file.Path> action) {
+				if (finished)
+					return false;
+				Object item;
+				try {
+					item = queue.take();
+				} catch (InterruptedException e) {
+					walker.cancel();
+					Thread.currentThread().interrupt();
+					finished = true;
+					return false;
+				}
+				if (item == end) {
+					finished = true;
+					return false;
+				}
+				action.accept((java.nio.file.Path) item);
+				return true;
+			}
+		};
+
+		// The walker only keeps a weak reference to the spliterator so the
+		// search is cancelled once the stream is no longer reachable
+		walker.setOwner(spliterator);
+
+		if (this.exists()) {
+			start(walker, pool);
+		} else {
+			queue.add(end);
+			pool.shutdown();
+		}
+
+		return java.util.stream.StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				walker.cancel();
+				queue.clear();
+			}
+		});
+	}
+
+	// **************************************************************************
+	// ** start
+	// **************************************************************************
+	/**
+	 * Used to start a recursive search of this directory. The search can be
+	 * cancelled via the stop method.
+	 */
+	private void start(DirectoryWalker walker) {
+		start(walker, null);
+	}
+
+	private void start(DirectoryWalker walker, java.util.concurrent.ForkJoinPool pool) {
+		synchronized (this) {
+			if (walkers == null)
+				walkers = java.util.Collections
+				        .newSetFromMap(new ConcurrentHashMap<DirectoryWalker, Boolean>());
+		}
+		if (pool == null)
+			walker.start(getFile().toPath(), walkers);
+		else
+			walker.start(getFile().toPath(), walkers, pool);
+	}
+
+	// **************************************************************************
+	// ** search
+	// **************************************************************************
+	/**
+	 * Used to run a recursive search of this directory and wait for it to
+	 * complete. Returns false if the search was interrupted, in which case the
+	 * search is cancelled and the interrupted status of the thread is set.
+	 */
+	private boolean search(DirectoryWalker walker) {
+		start(walker);
+		try {
+			walker.await();
+			return true;
+		} catch (InterruptedException e) {
+			walker.cancel();
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
 	// **************************************************************************
 	// ** getSharedDrives
 	// **************************************************************************
@@ -1755,10 +1887,14 @@ public class Directory implements Comparable {
 		if (FileSystemWatcher != null)
 			FileSystemWatcher.stop();
 
-		try {
-			// for (int i=0; i<20; i++)
-			DirectorySearch.stop();
-		} catch (Exception e) {
+		java.util.Set<DirectoryWalker> walkers;
+		synchronized (this) {
+			walkers = this.walkers;
+		}
+		if (walkers != null) {
+			for (DirectoryWalker walker : walkers) {
+				walker.cancel();
+			}
 		}
 	}
 
@@ -1943,7 +2079,7 @@ public class Directory implements Comparable {
 	 * Used to sort a list containing files/folders in alphabetical order. Note
 	 * that directories are listed first.
 	 */
-	private class FileComparer implements Comparator {
+	private class FileComparer implements Comparator<Object> {
 
 		private int z;
 
@@ -2110,549 +2246,263 @@ class FileFilter {
 }// End FileFilter Class
 
 // ******************************************************************************
-// ** Directory Search
+// ** DirectoryWalker
 // ******************************************************************************
 /**
- * Thread used crawl through a file system and find files/folders. This is a
- * recursive search and may take some time to complete.
+ * Used to crawl through a file system and find files/folders. Each directory
+ * is listed by a separate task in a shared ForkJoinPool so that subdirectories
+ * are searched in parallel; idle threads steal pending directories from busy
+ * ones. Items are passed to the found() method as soon as they are found, in
+ * no particular order. The directory used to start the search is not
+ * included. Symbolic links to directories are reported but not followed.
+ * <p/>
+ * The found() and done() methods must not block when the walker runs in the
+ * shared pool. Walkers that hand items to a consumer (e.g. a Stream) should
+ * run in their own pool (see newPool) and use the put method, which gives up
+ * if the consumer is no longer reachable.
  *
  ******************************************************************************/
 
-class DirectorySearch implements Runnable {
+abstract class DirectoryWalker {
 
-	private static java.util.concurrent.ConcurrentHashMap map;
-	private static java.util.concurrent.ConcurrentHashMap lut;
+	private static java.util.concurrent.ForkJoinPool pool;
+
+	private final FileFilter filter;
+	private volatile boolean cancelled = false;
+	private final java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+	private final java.util.concurrent.atomic.AtomicBoolean finished = new java.util.concurrent.atomic.AtomicBoolean();
+	private java.util.Set<DirectoryWalker> walkers;
+	private java.lang.ref.WeakReference<Object> owner;
 
 	// **************************************************************************
 	// ** Constructor
 	// **************************************************************************
 	/**
-	 * Creates a new instance of DirectorySearch. Note that this thread needs to
-	 * be named! Unfortunately, this has to happen outside of this class.
-	 * Example:
-	 *
-	 * <pre>
-	 * Thread t = new Thread(new DirectorySearch(filter, files));
-	 * t.setName("DirectorySearch-" + id);
-	 * t.start();
-	 * </pre>
-	 *
 	 * @param filter
-	 *            A file filter. *
-	 * @param items
-	 *            A List (e.g. LinkedList) used to store items found in this
-	 *            directory.
+	 *            A file filter (see Directory.getChildren). Note that the filter
+	 *            is only applied to files, not directories.
 	 */
-	public DirectorySearch(FileFilter filter, List items, long directoryID, int numThreads) {
-
-		String parentThread = Thread.currentThread().getName();
-		// System.out.println(parentThread);
-
-		if (map == null) {
-			map = new ConcurrentHashMap();
-		}
-
-		if (getVars() == null) {
-			createVars(filter, items, directoryID, numThreads);
-		}
-
-		if (lut == null)
-			lut = new ConcurrentHashMap();
-		synchronized (lut) {
-			if (lut.get(parentThread) == null)
-				lut.put(parentThread, directoryID);
-			else {
-
-				// System.out.println(parentThread + " entering wait state...");
-				while (!lut.isEmpty()) {
-					try {
-						lut.wait();
-					} catch (InterruptedException e) {
-						// If interrupted, return immediately
-						Thread.currentThread().interrupt();
-						return;
-					}
-				}
-				// System.out.println(parentThread + " exited wait state!");
-
-				createVars(filter, items, directoryID, numThreads);
+	public DirectoryWalker(Object filter) {
+		this.filter = filter instanceof FileFilter ? (FileFilter) filter : new FileFilter(filter);
+	}
 
-				lut.put(parentThread, directoryID);
-				lut.notifyAll();
-			}
-		}
+	/** Called for each file and directory found. Must be thread safe. */
+	protected abstract void found(java.nio.file.Path path, boolean isDirectory);
 
-		// System.out.println(parentThread + " " + lut.get(parentThread) + " vs
-		// " + directoryID);
+	/** Called once when the search is complete or has been cancelled. */
+	protected void done() {
 	}
 
 	// **************************************************************************
-	// ** createVars
+	// ** start
 	// **************************************************************************
 	/**
-	 * Used to instantiate local variables used by this thread and it's
-	 * siblings. The variables are all stored in a hashmap and accessed via a
-	 * directoryID.
+	 * Used to start searching a directory.
+	 *
+	 * @param walkers
+	 *            A set of active searches. The walker is removed from the set
+	 *            when the search is complete.
 	 */
-	private static void createVars(FileFilter filter, List items, long directoryID, int numThreads) {
-		synchronized (map) {
-			ConcurrentHashMap vars = new ConcurrentHashMap();
-			vars.put("items", items);
-			vars.put("filter", filter);
-			vars.put("pool", new java.util.LinkedList());
-			vars.put("path", new java.util.LinkedList());
-			vars.put("status", new java.util.LinkedList());
-			vars.put("threads", new LinkedList()); // <--list of active threads
-			vars.put("activatedThreads", new ConcurrentHashMap());
-			vars.put("numThreads", numThreads);
-			map.put(directoryID, vars);
-		}
+	public void start(java.nio.file.Path root, java.util.Set<DirectoryWalker> walkers) {
+		start(root, walkers, getPool());
 	}
 
 	// **************************************************************************
-	// ** getVars
+	// ** start
 	// **************************************************************************
 	/**
-	 * Used to retrieve variables associated with this thread.
+	 * Used to start searching a directory using a given pool.
 	 */
-	private static ConcurrentHashMap getVars() {
-
-		String currentThread = Thread.currentThread().getName();
-		if (currentThread.startsWith("DirectorySearch_")) {
-			Long directoryID = getDirectoryID();
-			return (ConcurrentHashMap) map.get(directoryID);
-		} else {
-
-			if (lut == null)
-				return null;
-
-			Long directoryID = null;
-			synchronized (lut) {
-				directoryID = (Long) lut.get(currentThread);
-			}
-
-			// System.out.println(currentThread + " vs " + directoryID);
-
-			if (directoryID == null)
-				return null;
-			else
-				return (ConcurrentHashMap) map.get(directoryID);
-		}
+	public void start(java.nio.file.Path root, java.util.Set<DirectoryWalker> walkers,
+	        java.util.concurrent.ForkJoinPool pool) {
+		this.walkers = walkers;
+		if (walkers != null)
+			walkers.add(this);
+		pool.execute(new Task(null, root));
 	}
 
 	// **************************************************************************
-	// ** deleteCache
+	// ** setOwner
 	// **************************************************************************
+	/**
+	 * Used to set the object that consumes the items found by the walker. Only
+	 * a weak reference is kept. The search is cancelled by the put method
+	 * once the owner has been garbage collected.
+	 */
+	public void setOwner(Object owner) {
+		this.owner = new java.lang.ref.WeakReference<Object>(owner);
+	}
 
-	public static void deleteCache() {
-
-		if (map != null) {
-			ConcurrentHashMap vars = getVars();
-			if (vars != null) {
-				synchronized (vars) {
-					List path = (List) vars.get("path");
-					List items = (List) vars.get("items");
-					List status = (List) vars.get("status");
-
-					synchronized (path) {
-						path.clear();
-					}
-					synchronized (items) {
-						items.clear();
-					}
-					synchronized (status) {
-						status.clear();
-					}
-
-					vars.remove("startTime");
-					vars.remove("root");
-				}
-			}
-		}
+	public void cancel() {
+		cancelled = true;
 	}
 
-	private static Long getDirectoryID() {
-		try {
-			String id = Thread.currentThread().getName();
-			id = id.substring(id.indexOf("_") + 1);
-			id = id.substring(0, id.indexOf("-"));
-			// System.out.println(id + " vs " +
-			// Thread.currentThread().getName());
-			return Long.valueOf(id).longValue();
-		} catch (Exception e) {
-			return 0L;
-		}
+	public boolean isCancelled() {
+		return cancelled;
 	}
 
 	// **************************************************************************
-	// ** Stop
+	// ** await
 	// **************************************************************************
-	/** Used to stop the current thread. */
+	/** Used to wait for the search to complete. */
 
-	public static void stop() {
-		updatePool(null);
+	public void await() throws InterruptedException {
+		latch.await();
 	}
 
 	// **************************************************************************
-	// ** updatePool
+	// ** put
 	// **************************************************************************
-	/** Used to add a new directory to the pool. */
-
-	public static void updatePool(Directory directory) {
-
-		ConcurrentHashMap vars = getVars();
-		Long startTime = null;
-		if (vars.get("startTime") != null)
-			startTime = (Long) vars.get("startTime");
-
-		// if start time is null, then this is the first time the pool has been
-		// modified
-		if (startTime == null) {
-			synchronized (vars) {
-				vars.put("startTime", getStartTime());
-				vars.put("root", directory);
-				vars.notifyAll();
-			}
-		}
-
-		boolean updatePool = true;
-		if (directory == null) {
-			if (Thread.currentThread().getName().equalsIgnoreCase("Finalizer")) {
-				updatePool = false;
-			}
-		}
-
-		if (updatePool) {
-			List pool = (List) vars.get("pool");
-			synchronized (pool) {
-				pool.add(directory);
-				pool.notifyAll();
+	/**
+	 * Used to add an item to a bounded queue. Waits for space in the queue
+	 * until the item is added, the search is cancelled or the owner has been
+	 * garbage collected (see setOwner). Returns true if the item was added.
+	 */
+	protected boolean put(java.util.concurrent.BlockingQueue<Object> queue, Object item) {
+		try {
+			while (!queue.offer(item, 100, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+				if (owner != null && owner.get() == null)
+					cancel();
+				if (cancelled)
+					return false;
 			}
+			return true;
+		} catch (InterruptedException e) {
+			cancel();
+			return false;
 		}
-
 	}
 
 	// **************************************************************************
-	// ** Add File
+	// ** accept
 	// **************************************************************************
-	/** Used to add a file to the list of items found. */
-
-	private static void addFile(File file) {
-
-		ConcurrentHashMap vars = getVars();
-		List items = (List) vars.get("items");
-
-		synchronized (items) {
-			items.add(file);
-			items.notifyAll();
-		}
+	private boolean accept(java.nio.file.Path path) {
+		if (filter.usesIOFilter())
+			return filter.accept(path.toFile());
+		else
+			return filter.accept(path.toString());
 	}
 
 	// **************************************************************************
-	// ** Add Directory
+	// ** finish
 	// **************************************************************************
-	/** Used to add a directory to the list of items found. */
-
-	private static void addDirectory(Directory directory) {
-
-		ConcurrentHashMap vars = getVars();
-		List items = (List) vars.get("items");
-		Directory root = (Directory) vars.get("root");
-
-		synchronized (items) {
-			if (!directory.equals(root)) {
-				items.add(directory);
-				items.notifyAll();
+	private void finish() {
+		if (finished.compareAndSet(false, true)) {
+			if (walkers != null)
+				walkers.remove(this);
+			try {
+				done();
+			} finally {
+				latch.countDown();
 			}
 		}
 	}
 
-	private static void addPath(Directory directory) {
-		List path = (List) getVars().get("path");
-		synchronized (path) {
-			path.add(directory.toString());
-		}
-	}
-
-	private static void removePath(Directory directory) {
-		List path = (List) getVars().get("path");
-		synchronized (path) {
-			path.remove(directory.toString());
-		}
-	}
-
 	// **************************************************************************
-	// ** Get Status
+	// ** getPool
 	// **************************************************************************
 	/**
-	 * Used to retrieve the status object. The status object is a List that will
-	 * remain empty until all of the threads have completed searching the file
-	 * system. While status.isEmpty() call status.wait();
+	 * Returns the pool used to search directories. Listing directories is
+	 * mostly I/O bound so the pool has more threads than processors. The
+	 * threads are daemon threads.
 	 */
-	public static List getStatus() {
-
-		ConcurrentHashMap vars = getVars();
-		List status = (List) vars.get("status");
-
-		return status;
+	private static synchronized java.util.concurrent.ForkJoinPool getPool() {
+		if (pool == null) {
+			int numThreads = Math.max(4, Math.min(32, Runtime.getRuntime().availableProcessors() * 4));
+			pool = newPool(numThreads, "DirectoryWalker-");
+		}
+		return pool;
 	}
 
 	// **************************************************************************
-	// ** Update Status
+	// ** newPool
 	// **************************************************************************
 	/**
-	 * Used to insert an entry into the status object. This is used to notify
-	 * the client that all threads have completed searching the file system.
+	 * Returns a new pool of daemon threads. The caller is responsible for
+	 * shutting down the pool.
 	 */
-	private static void updateStatus() {
-
-		ConcurrentHashMap vars = getVars();
-		List status = (List) vars.get("status");
-		List items = (List) vars.get("items");
-		Long startTime = (Long) vars.get("startTime");
-
-		synchronized (status) {
-			status.add("ellapsedTime = " + getEllapsedTime(startTime) + " ms");
-			status.notifyAll();
-			// System.out.println(Thread.currentThread().getName() + " Updated
-			// Status!");
-		}
-		synchronized (items) {
-			items.add(null);
-			items.notifyAll();
-		}
-
-		((List) vars.get("pool")).clear();
-		((List) vars.get("path")).clear();
-		((List) vars.get("threads")).clear();
-		((ConcurrentHashMap) vars.get("activatedThreads")).clear();
-
-		// Update the lut
-		synchronized (lut) {
-			long directoryID = getDirectoryID();
-			java.util.Iterator it = lut.keySet().iterator();
-			while (it.hasNext()) {
-				String parentThread = (String) it.next();
-				if ((Long) lut.get(parentThread) == directoryID) {
-					lut.remove(parentThread);
-					lut.notifyAll();
-					break;
-				}
-			}
-		}
+	public static java.util.concurrent.ForkJoinPool newPool(int numThreads, final String name) {
+		return new java.util.concurrent.ForkJoinPool(numThreads,
+		        new java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			        private final java.util.concurrent.atomic.AtomicInteger count = new java.util.concurrent.atomic.AtomicInteger();
 
+			        @Override
+			        public java.util.concurrent.ForkJoinWorkerThread newThread(java.util.concurrent.ForkJoinPool pool) {
+				        java.util.concurrent.ForkJoinWorkerThread t = java.util.concurrent.ForkJoinPool.defaultForkJoinWorkerThreadFactory
+				                .newThread(pool);
+				        t.setName(name + count.incrementAndGet());
+				        t.setDaemon(true);
+				        return t;
+			        }
+		        }, null, false);
 	}
 
 	// **************************************************************************
-	// ** Get Items
+	// ** Task
 	// **************************************************************************
 	/**
-	 * Used to retrieve a list of files and folders found in this directory.
+	 * Used to list a single directory. A new task is forked for each
+	 * subdirectory. The search is complete when all the tasks are complete.
 	 */
-	public static List getItems() {
-		return (List) getVars().get("items");
-	}
+	private class Task extends java.util.concurrent.CountedCompleter<Void> {
 
-	// **************************************************************************
-	// ** Run
-	// **************************************************************************
-	/** Processes entries in the pool. Waits and add children to the array. */
-
-	@Override
-	public void run() {
-
-		// Get shared variables
-		ConcurrentHashMap vars = getVars();
-		if (vars == null)
-			return; // <--This should never happen!
-
-		List threads = (List) vars.get("threads");
-		ConcurrentHashMap activatedThreads = (ConcurrentHashMap) vars.get("activatedThreads");
-		List path = (List) vars.get("path");
-		List pool = (List) vars.get("pool");
-		FileFilter filter = (FileFilter) vars.get("filter");
-		int numThreads = (Integer) vars.get("numThreads");
-		String threadID = Thread.currentThread().getName();
-
-		while (true) {
-			Directory dir;
-
-			// Wait for new directories to be added to the pool
-			synchronized (pool) {
-				while (pool.isEmpty()) {
-					try {
-						pool.wait();
-					} catch (InterruptedException e) {
-						// If interrupted, return immediately
-						Thread.currentThread().interrupt();
-						return;
-					}
-				}
-
-				// Update the list of active threads
-				synchronized (threads) {
-					threads.add(threadID);
-				}
-				synchronized (activatedThreads) {
-					if (activatedThreads.get(threadID) == null) {
-						activatedThreads.put(threadID, true);
-					}
-				}
+		private static final long serialVersionUID = 1L;
+		private final java.nio.file.Path dir;
 
-				Object obj = pool.get(0);
-				if (obj == null) {
-					// System.out.println("Terminating Thread: " + threadID);
-					synchronized (threads) {
-						threads.remove(threadID);
-					}
-					synchronized (activatedThreads) {
-						activatedThreads.replace(threadID, false);
-						if (activatedThreads.size() == numThreads) {
-							if (!activatedThreads.containsValue(true)) {
-								updateStatus();
-							}
-						}
-					}
-					return;
-				} else {
-					dir = (Directory) obj;
-					pool.remove(obj);
-					pool.notifyAll();
-				}
-			}
-
-			// Process directory
-			if (dir != null) {
-
-				// Notify Path/Status Object of new task
-				addPath(dir);
-
-				// Add subdirectories to the processing pool and insert files
-				// into file array
-				Object[] items = dir.listFiles();
-				if (items != null) {
-					for (int i = 0; i < items.length; i++) {
-						Object obj = items[i];
-						boolean isDirectory = false;
-						boolean accept = false;
-						if (obj instanceof String) {
-							String s = (String) obj;
-							accept = filter.accept(s);
-							isDirectory = s.replace("\\", "/").endsWith("/");
-						} else if (obj instanceof java.io.File) {
-							java.io.File f = (java.io.File) obj;
-							accept = filter.accept(f);
-							isDirectory = f.isDirectory();
-						}
-
-						if (accept) {
-
-							if (isDirectory) {
-
-								// Add directory to the array and update the
-								// pool
-								Directory d = null;
-								if (obj instanceof String) {
-									d = (new Directory((String) obj));
-								} else if (obj instanceof java.io.File) {
-									d = (new Directory((java.io.File) obj));
-								}
-								if (d != null) {
-									addDirectory(d);
-									updatePool(d);
-								}
-							} else {
+		private Task(Task parent, java.nio.file.Path dir) {
+			super(parent);
+			this.dir = dir;
+		}
 
-								// Add File to the array
-								if (obj instanceof String) {
-									addFile(new File((String) obj));
-								} else if (obj instanceof java.io.File) {
-									addFile(new File((java.io.File) obj));
-								}
+		@Override
+		public void compute() {
+			if (!cancelled) {
+				try (java.nio.file.DirectoryStream<java.nio.file.Path> stream = java.nio.file.Files
+				        .newDirectoryStream(dir)) {
+					for (java.nio.file.Path path : stream) {
+						if (cancelled)
+							break;
 
-							}
+						java.nio.file.attribute.BasicFileAttributes attr;
+						try {
+							attr = java.nio.file.Files.readAttributes(path,
+							        java.nio.file.attribute.BasicFileAttributes.class,
+							        java.nio.file.LinkOption.NOFOLLOW_LINKS);
+						} catch (java.io.IOException e) {
+							continue;
 						}
-					}
-				}
-
-				// Notify Path/Status Object of task completion
-				removePath(dir);
-
-				synchronized (threads) {
-					threads.remove(threadID);
-				}
 
-				// Check whether we're done processing all the directories and
-				// notify the client
-				synchronized (path) {
-					if (path.isEmpty()) {
-						synchronized (pool) {
-							if (pool.isEmpty()) {
-								synchronized (threads) {
-									if (threads.isEmpty()) {
-										// System.out.println("Terminating
-										// Thread: " + threadID + "*");
-										synchronized (activatedThreads) {
-											activatedThreads.replace(threadID, false);
-										}
-										updatePool(null);
-										return;
-									}
-								}
-							}
+						if (attr.isSymbolicLink()) {
+							if (java.nio.file.Files.isDirectory(path))
+								found(path, true);
+							else if (accept(path))
+								found(path, false);
+						} else if (attr.isDirectory()) {
+							found(path, true);
+							addToPendingCount(1);
+							new Task(this, path).fork();
+						} else if (accept(path)) {
+							found(path, false);
 						}
 					}
+				} catch (java.io.IOException | java.nio.file.DirectoryIteratorException | SecurityException e) {
+					// Skip directories that can't be read
 				}
-
 			}
-			/*
-			 * else{ //Found null entry. This is our que to stop waiting for new
-			 * directories... //System.out.println("Terminating Thread: " +
-			 * Thread.currentThread().getName());
-			 * 
-			 * 
-			 * 
-			 * 
-			 * synchronized (threads){ String threadID =
-			 * Thread.currentThread().getName(); threads.remove(threadID); }
-			 * 
-			 * 
-			 * synchronized (activatedThreads){
-			 * activatedThreads.replace(Thread.currentThread().getName(),
-			 * false); if (activatedThreads.containsValue(true)){
-			 * updatePool(null); } else{
-			 * 
-			 * if (activatedThreads.size()<numThreads){ updatePool(null); }
-			 * else{ //System.out.println(this.getDirectoryID() + " activated "
-			 * + activatedThreads.size() + " threads"); updateStatus(); } } }
-			 * 
-			 * return; }
-			 */
-
-		} // end while
-
-	} // end run
-
-	// **************************************************************************
-	// ** Get Start Time
-	// **************************************************************************
-	/** Used to set the start time. Returns the current time in milliseconds. */
-
-	private static long getStartTime() {
-		return java.util.Calendar.getInstance().getTimeInMillis();
-	}
+			tryComplete();
+		}
 
-	// **************************************************************************
-	// ** Get Ellapsed Time
-	// **************************************************************************
-	/** Used to compute the ellapsed time in milliseconds. */
+		@Override
+		public void onCompletion(java.util.concurrent.CountedCompleter<?> caller) {
+			if (getCompleter() == null)
+				finish();
+		}
 
-	private static long getEllapsedTime(long StartTime) {
-		try {
-			long endTime = java.util.Calendar.getInstance().getTimeInMillis();
-			return endTime - StartTime;
-		} catch (Exception e) {
-			return 0;
+		@Override
+		public boolean onExceptionalCompletion(Throwable ex, java.util.concurrent.CountedCompleter<?> caller) {
+			if (getCompleter() == null)
+				finish();
+			return true;
 		}
 	}
 
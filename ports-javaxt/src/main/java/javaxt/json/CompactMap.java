@@ -0,0 +1,347 @@
+package javaxt.json;
+
+//******************************************************************************
+//**  CompactMap
+//******************************************************************************
+/**
+ * Insertion-ordered map used by JSONObjects in compact mode. Keys and values
+ * are stored in parallel arrays instead of one entry object per key. Small
+ * maps are searched linearly; larger maps use an open addressing table of
+ * indexes into the key array. Integers, longs and doubles are stored as
+ * primitives and are only boxed when they are read.
+ *
+ ******************************************************************************/
+
+class CompactMap extends java.util.AbstractMap<String, Object> {
+
+	private static final byte OBJECT = 0;
+	private static final byte INTEGER = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+
+	/** Maps with up to this many keys are searched without a hash table. */
+	private static final int LINEAR_SCAN = 8;
+
+	private static final String[] NO_KEYS = new String[0];
+	private static final Object[] NO_VALUES = new Object[0];
+
+	private String[] keys = NO_KEYS;
+	private Object[] values = NO_VALUES;
+	private long[] numbers; // created when the first number is added
+	private byte[] types;
+	private int[] table; // index + 1 of each key, 0 for empty slots
+	private int size = 0;
+	private int modCount = 0;
+
+	// **************************************************************************
+	// ** get
+	// **************************************************************************
+	@Override
+	public Object get(Object key) {
+		int i = indexOf(key);
+		return i < 0 ? null : valueAt(i);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	// **************************************************************************
+	// ** put
+	// **************************************************************************
+	@Override
+	public Object put(String key, Object value) {
+		int i = indexOf(key);
+		Object prev = null;
+		if (i < 0)
+			i = append(key);
+		else
+			prev = valueAt(i);
+
+		if (value instanceof Integer) {
+			setNumber(i, INTEGER, ((Integer) value).longValue());
+		} else if (value instanceof Long) {
+			setNumber(i, LONG, ((Long) value).longValue());
+		} else if (value instanceof Double) {
+			setNumber(i, DOUBLE, Double.doubleToRawLongBits(((Double) value).doubleValue()));
+		} else {
+			values[i] = value;
+			if (types != null)
+				types[i] = OBJECT;
+		}
+		return prev;
+	}
+
+	// **************************************************************************
+	// ** put
+	// **************************************************************************
+	/**
+	 * Used to add a long without boxing it. Values that fit in an int are
+	 * returned as Integers, like the values parsed by JSONTokener.
+	 */
+	protected void put(String key, long value) {
+		int i = indexOf(key);
+		if (i < 0)
+			i = append(key);
+		setNumber(i, value == (int) value ? INTEGER : LONG, value);
+	}
+
+	// **************************************************************************
+	// ** put
+	// **************************************************************************
+	/** Used to add a double without boxing it. */
+
+	protected void put(String key, double value) {
+		int i = indexOf(key);
+		if (i < 0)
+			i = append(key);
+		setNumber(i, DOUBLE, Double.doubleToRawLongBits(value));
+	}
+
+	// **************************************************************************
+	// ** remove
+	// **************************************************************************
+	@Override
+	public Object remove(Object key) {
+		int i = indexOf(key);
+		if (i < 0)
+			return null;
+		Object prev = valueAt(i);
+		removeAt(i);
+		return prev;
+	}
+
+	@Override
+	public void clear() {
+		keys = NO_KEYS;
+		values = NO_VALUES;
+		numbers = null;
+		types = null;
+		table = null;
+		size = 0;
+		modCount++;
+	}
+
+	// **************************************************************************
+	// ** entrySet
+	// **************************************************************************
+	@Override
+	public java.util.Set<Entry<String, Object>> entrySet() {
+		return new java.util.AbstractSet<Entry<String, Object>>() {
+			@Override
+			public java.util.Iterator<Entry<String, Object>> iterator() {
+				return new java.util.Iterator<Entry<String, Object>>() {
+					private int next = 0;
+					private int last = -1;
+					private int expectedModCount = modCount;
+
+					@Override
+					public boolean hasNext() {
+						return next < size;
+					}
+
+					@Override
+					public Entry<String, Object> next() {
+						if (modCount != expectedModCount)
+							throw new java.util.ConcurrentModificationException();
+						if (next >= size)
+							throw new java.util.NoSuchElementException();
+						last = next++;
+						final String key = keys[last];
+						return new java.util.AbstractMap.SimpleEntry<String, Object>(key, valueAt(last)) {
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public Object setValue(Object value) {
+								super.setValue(value);
+								return CompactMap.this.put(key, value);
+							}
+						};
+					}
+
+					@Override
+					public void remove() {
+						if (last < 0)
+							throw new IllegalStateException();
+						if (modCount != expectedModCount)
+							throw new java.util.ConcurrentModificationException();
+						removeAt(last);
+						next = last;
+						last = -1;
+						expectedModCount = modCount;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	// **************************************************************************
+	// ** valueAt
+	// **************************************************************************
+	private Object valueAt(int i) {
+		if (types == null)
+			return values[i];
+		switch (types[i]) {
+		case INTEGER:
+			return Integer.valueOf((int) numbers[i]);
+		case LONG:
+			return Long.valueOf(numbers[i]);
+		case DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(numbers[i]));
+		default:
+			return values[i];
+		}
+	}
+
+	private void setNumber(int i, byte type, long bits) {
+		if (types == null) {
+			types = new byte[keys.length];
+			numbers = new long[keys.length];
+		}
+		types[i] = type;
+		numbers[i] = bits;
+		values[i] = null;
+	}
+
+	// **************************************************************************
+	// ** indexOf
+	// **************************************************************************
+	private int indexOf(Object key) {
+		if (key == null)
+			return -1;
+		if (table == null) {
+			for (int i = 0; i < size; i++) {
+				String k = keys[i];
+				if (k == key || k.equals(key))
+					return i;
+			}
+			return -1;
+		}
+		int mask = table.length - 1;
+		int h = hash(key) & mask;
+		while (true) {
+			int slot = table[h];
+			if (slot == 0)
+				return -1;
+			String k = keys[slot - 1];
+			if (k == key || k.equals(key))
+				return slot - 1;
+			h = (h + 1) & mask;
+		}
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	// **************************************************************************
+	// ** append
+	// **************************************************************************
+	/** Used to add a new key. Returns the index of the key. */
+
+	private int append(String key) {
+		if (key == null)
+			throw new NullPointerException("Null key.");
+		if (size == keys.length) {
+			int capacity = Math.max(4, size * 2);
+			keys = java.util.Arrays.copyOf(keys, capacity);
+			values = java.util.Arrays.copyOf(values, capacity);
+			if (types != null) {
+				types = java.util.Arrays.copyOf(types, capacity);
+				numbers = java.util.Arrays.copyOf(numbers, capacity);
+			}
+		}
+		int i = size++;
+		keys[i] = key;
+		modCount++;
+
+		if (table != null && size * 2 <= table.length) {
+			insert(i);
+		} else if (size > LINEAR_SCAN) {
+			rehash();
+		}
+		return i;
+	}
+
+	// **************************************************************************
+	// ** removeAt
+	// **************************************************************************
+	/** Used to remove an entry and shift the following entries down. */
+
+	private void removeAt(int i) {
+		int n = size - i - 1;
+		if (n > 0) {
+			System.arraycopy(keys, i + 1, keys, i, n);
+			System.arraycopy(values, i + 1, values, i, n);
+			if (types != null) {
+				System.arraycopy(types, i + 1, types, i, n);
+				System.arraycopy(numbers, i + 1, numbers, i, n);
+			}
+		}
+		size--;
+		keys[size] = null;
+		values[size] = null;
+		modCount++;
+		if (table != null) {
+			if (size > LINEAR_SCAN)
+				rehash();
+			else
+				table = null;
+		}
+	}
+
+	// **************************************************************************
+	// ** rehash
+	// **************************************************************************
+	private void rehash() {
+		int capacity = Integer.highestOneBit(size * 4 - 1);
+		table = new int[capacity];
+		for (int i = 0; i < size; i++) {
+			insert(i);
+		}
+	}
+
+	private void insert(int i) {
+		int mask = table.length - 1;
+		int h = hash(keys[i]) & mask;
+		while (table[h] != 0) {
+			h = (h + 1) & mask;
+		}
+		table[h] = i + 1;
+	}
+
+	// **************************************************************************
+	// ** KeyPool
+	// **************************************************************************
+	/**
+	 * Used to share key strings across the objects created while parsing a
+	 * document. Objects in an array usually have the same keys, so each key is
+	 * only stored once. The number of keys in the pool is limited in case the
+	 * keys are data (e.g. ids).
+	 */
+	static class KeyPool {
+		private static final int MAX_SIZE = 4096;
+		private final java.util.HashMap<String, String> keys = new java.util.HashMap<String, String>();
+
+		protected String intern(String key) {
+			String str = keys.get(key);
+			if (str != null)
+				return str;
+			if (keys.size() < MAX_SIZE)
+				keys.put(key, key);
+			return key;
+		}
+	}
+}
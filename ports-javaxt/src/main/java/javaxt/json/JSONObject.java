@@ -13,7 +13,10 @@ import javaxt.utils.Value;
  * Used to create and parse JSON documents. JSON documents are an unordered
  * collection of name/value pairs. Its external form is a string wrapped in
  * curly braces with colons between the names and values, and commas between the
- * values and names.
+ * values and names. <br>
+ *
+ * JSONObjects can be created in a compact mode to reduce the memory used by
+ * large documents (see the JSONObject(boolean) constructor).
  *
  * @author json.org
  * @version 2016-08-15
@@ -22,13 +25,33 @@ import javaxt.utils.Value;
 
 public class JSONObject {
 
-	private final java.util.LinkedHashMap<String, Object> map;
+	private final java.util.Map<String, Object> map;
 
 	// **************************************************************************
 	// ** Constructor
 	// **************************************************************************
 	public JSONObject() {
-		map = new java.util.LinkedHashMap<String, Object>();
+		this(false);
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Used to create a new/empty JSONObject.
+	 *
+	 * @param compact
+	 *            If true, keys and values are stored in arrays instead of a
+	 *            LinkedHashMap and numbers are stored as primitives until they
+	 *            are read. This uses a lot less memory for documents with many
+	 *            small objects and numbers. Values are boxed each time they
+	 *            are read.
+	 */
+	public JSONObject(boolean compact) {
+		if (compact)
+			map = new CompactMap();
+		else
+			map = new java.util.LinkedHashMap<String, Object>();
 	}
 
 	// **************************************************************************
@@ -44,7 +67,22 @@ public class JSONObject {
 	 *            <small>(right brace) </small>.
 	 */
 	public JSONObject(String source) throws JSONException {
-		this(new JSONTokener(source));
+		this(new JSONTokener(source, false));
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Construct a JSONObject from a source JSON text string.
+	 *
+	 * @param compact
+	 *            If true, the JSONObject and all the JSONObjects found in the
+	 *            source are created in compact mode. Keys are shared by all
+	 *            the objects in the document.
+	 */
+	public JSONObject(String source, boolean compact) throws JSONException {
+		this(new JSONTokener(source, compact));
 	}
 
 	// **************************************************************************
@@ -54,7 +92,7 @@ public class JSONObject {
 	 * Construct a JSONObject from a JSONTokener.
 	 */
 	protected JSONObject(JSONTokener x) throws JSONException {
-		this();
+		this(x.isCompact());
 		char c;
 		String key;
 
@@ -70,7 +108,7 @@ public class JSONObject {
 				return;
 			default:
 				x.back();
-				key = x.nextValue().toString();
+				key = x.intern(x.nextValue().toString());
 			}
 
 			// The key is followed by ':'.
@@ -155,6 +193,15 @@ public class JSONObject {
 		}
 	}
 
+	// **************************************************************************
+	// ** isCompact
+	// **************************************************************************
+	/** Returns true if the JSONObject was created in compact mode. */
+
+	public boolean isCompact() {
+		return map instanceof CompactMap;
+	}
+
 	// **************************************************************************
 	// ** getValue
 	// **************************************************************************
@@ -378,6 +425,45 @@ public class JSONObject {
 		}
 	}
 
+	// **************************************************************************
+	// ** put
+	// **************************************************************************
+	/**
+	 * Used to add a long without boxing it in compact mode. Values that fit in
+	 * an int are stored as Integers, as in JSONTokener.
+	 */
+	protected void put(String key, long value) {
+		if (key == null) {
+			throw new NullPointerException("Null key.");
+		}
+		if (map instanceof CompactMap) {
+			((CompactMap) map).put(key, value);
+		} else if (value == (int) value) {
+			map.put(key, Integer.valueOf((int) value));
+		} else {
+			map.put(key, Long.valueOf(value));
+		}
+	}
+
+	// **************************************************************************
+	// ** put
+	// **************************************************************************
+	/** Used to add a double without boxing it in compact mode. */
+
+	protected void put(String key, double value) throws JSONException {
+		if (key == null) {
+			throw new NullPointerException("Null key.");
+		}
+		if (Double.isInfinite(value) || Double.isNaN(value)) {
+			throw new JSONException("JSON does not allow non-finite numbers.");
+		}
+		if (map instanceof CompactMap) {
+			((CompactMap) map).put(key, value);
+		} else {
+			map.put(key, Double.valueOf(value));
+		}
+	}
+
 	// **************************************************************************
 	// ** remove
 	// **************************************************************************
@@ -631,7 +717,7 @@ public class JSONObject {
 		}
 	}
 
-	private static Writer quote(String string, Writer w) throws IOException {
+	protected static Writer quote(String string, Writer w) throws IOException {
 		if (string == null || string.length() == 0) {
 			w.write("\"\"");
 			return w;
@@ -642,11 +728,20 @@ public class JSONObject {
 		String hhhh;
 		int i;
 		int len = string.length();
+		int start = 0; // start of the characters that don't need escaping
 
 		w.write('"');
 		for (i = 0; i < len; i += 1) {
 			b = c;
 			c = string.charAt(i);
+			if (c >= ' ' && c != '\\' && c != '"' && c != '/' && c < '\u0080'
+			        || c >= '\u00a0' && (c < '\u2000' || c >= '\u2100')) {
+				continue;
+			}
+			if (i > start) {
+				w.write(string, start, i - start);
+			}
+			start = i + 1;
 			switch (c) {
 			case '\\':
 			case '"':
@@ -685,6 +780,9 @@ public class JSONObject {
 				}
 			}
 		}
+		if (len > start) {
+			w.write(string, start, len - start);
+		}
 		w.write('"');
 		return w;
 	}
@@ -721,11 +819,25 @@ class JSONTokener {
 	private boolean usePrevious;
 	/** the number of characters read in the previous line. */
 	private long characterPreviousLine;
+	/** keys shared by the objects in compact mode. */
+	private final CompactMap.KeyPool keys;
 
 	// **************************************************************************
 	// ** Constructor
 	// **************************************************************************
 	protected JSONTokener(String s) {
+		this(s, false);
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * @param compact
+	 *            If true, JSONObjects are created in compact mode.
+	 */
+	protected JSONTokener(String s, boolean compact) {
+		this.keys = compact ? new CompactMap.KeyPool() : null;
 		java.io.Reader reader = new java.io.StringReader(s);
 		this.reader = reader.markSupported() ? reader : new java.io.BufferedReader(reader);
 		this.eof = false;
@@ -737,6 +849,19 @@ class JSONTokener {
 		this.line = 1;
 	}
 
+	/** Returns true if JSONObjects are created in compact mode. */
+	protected boolean isCompact() {
+		return keys != null;
+	}
+
+	/**
+	 * Returns a shared instance of the given key in compact mode so that
+	 * objects with the same keys don't each hold a copy of the keys.
+	 */
+	protected String intern(String key) {
+		return keys == null ? key : keys.intern(key);
+	}
+
 	/**
 	 * Back up one character. This provides a sort of lookahead capability, so
 	 * that you can test for a digit or letter before attempting to parse the
@@ -0,0 +1,649 @@
+package javaxt.json;
+
+import java.io.IOException;
+
+import javaxt.utils.Value;
+
+//******************************************************************************
+//**  JSONReader
+//******************************************************************************
+/**
+ * Used to parse large JSON documents without loading them into memory. The
+ * reader returns one event at a time (e.g. START_OBJECT, KEY, NUMBER) and
+ * only buffers the text of the current key or value. Nested objects and
+ * arrays can be loaded into a JSONObject or JSONArray as needed. Example:
+ *
+ * <pre>
+ * JSONReader reader = new JSONReader(request.getInputStream());
+ * reader.next(); // START_ARRAY
+ * while (reader.next() == JSONReader.Event.START_OBJECT) {
+ *     JSONObject json = reader.readObject();
+ *     ...
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * Multiple documents separated by whitespace (e.g. newline delimited JSON)
+ * are returned one after the other.
+ *
+ ******************************************************************************/
+
+public class JSONReader implements java.io.Closeable {
+
+	public static enum Event {
+		START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, STRING, NUMBER, BOOLEAN, NULL
+	}
+
+	// Scopes
+	private static final int EMPTY_OBJECT = 1;
+	private static final int NONEMPTY_OBJECT = 2;
+	private static final int DANGLING_KEY = 3;
+	private static final int EMPTY_ARRAY = 4;
+	private static final int NONEMPTY_ARRAY = 5;
+
+	private final java.io.Reader reader;
+	private final char[] buffer = new char[8192];
+	private int pos = 0;
+	private int limit = 0;
+	private long offset = 0;
+	private long line = 1;
+	private long lineStart = 0;
+
+	private int[] stack = new int[32];
+	private int depth = 0;
+
+	private Event event;
+	private final StringBuilder text = new StringBuilder();
+	private boolean bool;
+	private boolean isDecimal;
+	private CompactMap.KeyPool keys;
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	public JSONReader(java.io.Reader reader) {
+		this.reader = reader;
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/** Used to read a UTF-8 encoded JSON document from an InputStream. */
+
+	public JSONReader(java.io.InputStream input) {
+		this(new java.io.InputStreamReader(input, java.nio.charset.StandardCharsets.UTF_8));
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Used to read a UTF-8 encoded JSON document from a ByteBuffer. The
+	 * position of the buffer is not changed.
+	 */
+	public JSONReader(java.nio.ByteBuffer buffer) {
+		this(new ByteBufferInputStream(buffer.duplicate()));
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	public JSONReader(String source) {
+		this(new java.io.StringReader(source));
+	}
+
+	// **************************************************************************
+	// ** setCompact
+	// **************************************************************************
+	/**
+	 * Used to create the JSONObjects returned by readObject in compact mode
+	 * (see JSONObject). Keys are shared by all the objects read from the
+	 * document and numbers are not boxed.
+	 */
+	public void setCompact(boolean compact) {
+		keys = compact ? new CompactMap.KeyPool() : null;
+	}
+
+	public boolean isCompact() {
+		return keys != null;
+	}
+
+	// **************************************************************************
+	// ** hasNext
+	// **************************************************************************
+	/**
+	 * Returns true if there are more events. Returns false after the end of
+	 * the last document has been reached.
+	 */
+	public boolean hasNext() throws JSONException {
+		return depth > 0 || peek() != -1;
+	}
+
+	// **************************************************************************
+	// ** next
+	// **************************************************************************
+	/**
+	 * Used to read the next event from the document.
+	 *
+	 * @throws JSONException
+	 *             If the document is malformed or if there are no more events.
+	 */
+	public Event next() throws JSONException {
+		int c = read();
+		if (depth == 0)
+			return event = readValue(c);
+
+		switch (stack[depth - 1]) {
+		case EMPTY_OBJECT:
+			if (c == '}')
+				return end(Event.END_OBJECT);
+			return event = readKey(c);
+		case NONEMPTY_OBJECT:
+			if (c == '}')
+				return end(Event.END_OBJECT);
+			if (c != ',')
+				throw syntaxError("Expected a ',' or '}'");
+			return event = readKey(read());
+		case DANGLING_KEY:
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			return event = readValue(c);
+		case EMPTY_ARRAY:
+			if (c == ']')
+				return end(Event.END_ARRAY);
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			return event = readValue(c);
+		default:
+			if (c == ']')
+				return end(Event.END_ARRAY);
+			if (c != ',')
+				throw syntaxError("Expected a ',' or ']'");
+			return event = readValue(read());
+		}
+	}
+
+	// **************************************************************************
+	// ** getEvent
+	// **************************************************************************
+	/** Returns the current event. */
+
+	public Event getEvent() {
+		return event;
+	}
+
+	// **************************************************************************
+	// ** getDepth
+	// **************************************************************************
+	/**
+	 * Returns the number of objects and arrays that enclose the current
+	 * position.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	// **************************************************************************
+	// ** getString
+	// **************************************************************************
+	/**
+	 * Returns the text of the current key, string, number or boolean. Returns
+	 * null for null values and for the start and end of objects and arrays.
+	 */
+	public String getString() {
+		if (event == null)
+			return null;
+		switch (event) {
+		case KEY:
+		case STRING:
+		case NUMBER:
+			return text.toString();
+		case BOOLEAN:
+			return bool ? "true" : "false";
+		default:
+			return null;
+		}
+	}
+
+	// **************************************************************************
+	// ** getLong
+	// **************************************************************************
+	/**
+	 * Returns the current number as a long. Integers are parsed without
+	 * creating a String.
+	 */
+	public long getLong() throws JSONException {
+		if (event == Event.NUMBER && !isDecimal && text.length() < 19) {
+			long value = 0;
+			boolean negative = text.charAt(0) == '-';
+			for (int i = negative ? 1 : 0; i < text.length(); i++) {
+				value = value * 10 + (text.charAt(i) - '0');
+			}
+			return negative ? -value : value;
+		}
+		return (long) getDouble();
+	}
+
+	// **************************************************************************
+	// ** getDouble
+	// **************************************************************************
+	/** Returns the current number as a double. */
+
+	public double getDouble() throws JSONException {
+		if (event != Event.NUMBER && event != Event.STRING)
+			throw new JSONException("Current event is not a number: " + event);
+		try {
+			return Double.parseDouble(text.toString());
+		} catch (NumberFormatException e) {
+			throw new JSONException("Invalid number: " + text, e);
+		}
+	}
+
+	// **************************************************************************
+	// ** getBoolean
+	// **************************************************************************
+	public boolean getBoolean() throws JSONException {
+		if (event != Event.BOOLEAN)
+			throw new JSONException("Current event is not a boolean: " + event);
+		return bool;
+	}
+
+	// **************************************************************************
+	// ** getValue
+	// **************************************************************************
+	/**
+	 * Returns the current value. Objects and arrays are read into a
+	 * JSONObject or JSONArray (see readObject and readArray). Integers are
+	 * returned as Integer or Long values, decimals as Double values.
+	 */
+	public Value getValue() throws JSONException {
+		return new Value(toObject());
+	}
+
+	// **************************************************************************
+	// ** readObject
+	// **************************************************************************
+	/**
+	 * Used to read the current object into a JSONObject. The current event
+	 * must be START_OBJECT. The reader is positioned at the END_OBJECT event
+	 * when this method returns. As with JSONObject, keys with null values are
+	 * skipped.
+	 */
+	public JSONObject readObject() throws JSONException {
+		if (event != Event.START_OBJECT)
+			throw new JSONException("Current event is not START_OBJECT: " + event);
+		JSONObject json = new JSONObject(keys != null);
+		while (next() == Event.KEY) {
+			String key = text.toString();
+			if (keys != null)
+				key = keys.intern(key);
+			if (json.has(key))
+				throw syntaxError("Duplicate key \"" + key + "\"");
+			next();
+			if (event == Event.NUMBER) {
+				if (!isDecimal && text.length() < 19)
+					json.put(key, getLong());
+				else
+					json.put(key, getDouble());
+			} else {
+				json.setValue(key, new Value(toObject()));
+			}
+		}
+		return json;
+	}
+
+	// **************************************************************************
+	// ** readArray
+	// **************************************************************************
+	/**
+	 * Used to read the current array into a JSONArray. The current event must
+	 * be START_ARRAY. The reader is positioned at the END_ARRAY event when this
+	 * method returns.
+	 */
+	public JSONArray readArray() throws JSONException {
+		if (event != Event.START_ARRAY)
+			throw new JSONException("Current event is not START_ARRAY: " + event);
+		JSONArray arr = new JSONArray();
+		while (next() != Event.END_ARRAY) {
+			arr.add(toObject());
+		}
+		return arr;
+	}
+
+	// **************************************************************************
+	// ** skip
+	// **************************************************************************
+	/**
+	 * Used to skip the current object or array. Does nothing if the current
+	 * event is not START_OBJECT or START_ARRAY.
+	 */
+	public void skip() throws JSONException {
+		if (event != Event.START_OBJECT && event != Event.START_ARRAY)
+			return;
+		int d = depth;
+		while (depth >= d) {
+			next();
+		}
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	@Override
+	public void close() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+		}
+	}
+
+	// **************************************************************************
+	// ** toObject
+	// **************************************************************************
+	/** Returns the current value as a java object. */
+
+	private Object toObject() throws JSONException {
+		switch (event) {
+		case START_OBJECT:
+			return readObject();
+		case START_ARRAY:
+			return readArray();
+		case STRING:
+			return text.toString();
+		case BOOLEAN:
+			return bool;
+		case NUMBER:
+			if (!isDecimal && text.length() < 19) {
+				long l = getLong();
+				if (l == (int) l)
+					return Integer.valueOf((int) l);
+				return Long.valueOf(l);
+			}
+			return getDouble();
+		case NULL:
+			return null;
+		default:
+			throw syntaxError("Unexpected " + event);
+		}
+	}
+
+	// **************************************************************************
+	// ** end
+	// **************************************************************************
+	private Event end(Event event) {
+		depth--;
+		return this.event = event;
+	}
+
+	// **************************************************************************
+	// ** push
+	// **************************************************************************
+	private void push(int scope) {
+		if (depth == stack.length)
+			stack = java.util.Arrays.copyOf(stack, depth * 2);
+		stack[depth++] = scope;
+	}
+
+	// **************************************************************************
+	// ** readKey
+	// **************************************************************************
+	private Event readKey(int c) throws JSONException {
+		if (c != '"' && c != '\'')
+			throw syntaxError("Expected a key");
+		readString((char) c);
+		if (read() != ':')
+			throw syntaxError("Expected a ':' after a key");
+		stack[depth - 1] = DANGLING_KEY;
+		return Event.KEY;
+	}
+
+	// **************************************************************************
+	// ** readValue
+	// **************************************************************************
+	private Event readValue(int c) throws JSONException {
+		switch (c) {
+		case '{':
+			push(EMPTY_OBJECT);
+			return Event.START_OBJECT;
+		case '[':
+			push(EMPTY_ARRAY);
+			return Event.START_ARRAY;
+		case '"':
+		case '\'':
+			readString((char) c);
+			return Event.STRING;
+		case 't':
+			readLiteral("rue");
+			bool = true;
+			return Event.BOOLEAN;
+		case 'f':
+			readLiteral("alse");
+			bool = false;
+			return Event.BOOLEAN;
+		case 'n':
+			readLiteral("ull");
+			return Event.NULL;
+		case -1:
+			throw syntaxError("Unexpected end of input");
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				readNumber((char) c);
+				return Event.NUMBER;
+			}
+			throw syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	// **************************************************************************
+	// ** readString
+	// **************************************************************************
+	/**
+	 * Used to read a quoted string into the text buffer. Characters between
+	 * escape sequences are copied from the read buffer in blocks.
+	 */
+	private void readString(char quote) throws JSONException {
+		text.setLength(0);
+		while (true) {
+			int start = pos;
+			while (pos < limit) {
+				char c = buffer[pos];
+				if (c == quote) {
+					text.append(buffer, start, pos - start);
+					pos++;
+					return;
+				}
+				if (c == '\\') {
+					text.append(buffer, start, pos - start);
+					pos++;
+					text.append(readEscape());
+					start = pos;
+					continue;
+				}
+				pos++;
+			}
+			text.append(buffer, start, pos - start);
+			if (!fill())
+				throw syntaxError("Unterminated string");
+		}
+	}
+
+	// **************************************************************************
+	// ** readEscape
+	// **************************************************************************
+	private char readEscape() throws JSONException {
+		int c = readChar();
+		switch (c) {
+		case 'b':
+			return '\b';
+		case 't':
+			return '\t';
+		case 'n':
+			return '\n';
+		case 'f':
+			return '\f';
+		case 'r':
+			return '\r';
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int h = Character.digit(readChar(), 16);
+				if (h < 0)
+					throw syntaxError("Illegal escape.");
+				value = (value << 4) + h;
+			}
+			return (char) value;
+		case '"':
+		case '\'':
+		case '\\':
+		case '/':
+			return (char) c;
+		default:
+			throw syntaxError("Illegal escape.");
+		}
+	}
+
+	// **************************************************************************
+	// ** readNumber
+	// **************************************************************************
+	private void readNumber(char first) throws JSONException {
+		text.setLength(0);
+		text.append(first);
+		isDecimal = false;
+		while (true) {
+			if (pos == limit && !fill())
+				break;
+			char c = buffer[pos];
+			if (c >= '0' && c <= '9') {
+				text.append(c);
+			} else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+				isDecimal = true;
+				text.append(c);
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if (text.length() == 1 && first == '-')
+			throw syntaxError("Invalid number");
+		if (!isDecimal && text.length() == 2 && first == '-' && text.charAt(1) == '0')
+			isDecimal = true; // "-0"
+	}
+
+	// **************************************************************************
+	// ** readLiteral
+	// **************************************************************************
+	private void readLiteral(String rest) throws JSONException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (readChar() != rest.charAt(i))
+				throw syntaxError("Unexpected literal");
+		}
+	}
+
+	// **************************************************************************
+	// ** read
+	// **************************************************************************
+	/**
+	 * Returns the next character that is not whitespace and moves past it.
+	 * Returns -1 at the end of the input.
+	 */
+	private int read() throws JSONException {
+		int c = peek();
+		if (c != -1)
+			pos++;
+		return c;
+	}
+
+	// **************************************************************************
+	// ** peek
+	// **************************************************************************
+	/**
+	 * Returns the next character that is not whitespace without moving past
+	 * it. Returns -1 at the end of the input.
+	 */
+	private int peek() throws JSONException {
+		while (true) {
+			if (pos == limit && !fill())
+				return -1;
+			char c = buffer[pos];
+			if (c == '\n') {
+				line++;
+				lineStart = offset + pos + 1;
+			} else if (c != ' ' && c != '\t' && c != '\r') {
+				return c;
+			}
+			pos++;
+		}
+	}
+
+	// **************************************************************************
+	// ** readChar
+	// **************************************************************************
+	private int readChar() throws JSONException {
+		if (pos == limit && !fill())
+			throw syntaxError("Unexpected end of input");
+		return buffer[pos++];
+	}
+
+	// **************************************************************************
+	// ** fill
+	// **************************************************************************
+	/**
+	 * Used to read more characters into the buffer. Returns false at the end
+	 * of the input.
+	 */
+	private boolean fill() throws JSONException {
+		offset += limit;
+		pos = 0;
+		limit = 0;
+		try {
+			int n;
+			while ((n = reader.read(buffer, 0, buffer.length)) == 0) {
+			}
+			if (n < 0)
+				return false;
+			limit = n;
+			return true;
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+	}
+
+	// **************************************************************************
+	// ** syntaxError
+	// **************************************************************************
+	private JSONException syntaxError(String message) {
+		long index = offset + pos;
+		return new JSONException(message + " at " + index + " [character " + (index - lineStart + 1) + " line "
+		        + line + "]");
+	}
+
+	// **************************************************************************
+	// ** ByteBufferInputStream
+	// **************************************************************************
+	/** Used to read bytes from a ByteBuffer. */
+
+	private static class ByteBufferInputStream extends java.io.InputStream {
+		private final java.nio.ByteBuffer buffer;
+
+		private ByteBufferInputStream(java.nio.ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
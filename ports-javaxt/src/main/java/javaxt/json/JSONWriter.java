@@ -0,0 +1,333 @@
+package javaxt.json;
+
+import java.io.IOException;
+
+import javaxt.utils.Value;
+
+//******************************************************************************
+//**  JSONWriter
+//******************************************************************************
+/**
+ * Used to write large JSON documents to a stream without building a
+ * JSONObject or JSONArray in memory. Values are written as soon as they are
+ * added. Example:
+ *
+ * <pre>
+ * JSONWriter json = new JSONWriter(response.getOutputStream());
+ * json.startObject();
+ * json.key("name").value("Smith");
+ * json.key("records");
+ * json.write(recordset);
+ * json.endObject();
+ * json.close();
+ * </pre>
+ *
+ * Multiple documents written one after the other are separated by a new line
+ * (e.g. newline delimited JSON).
+ *
+ ******************************************************************************/
+
+public class JSONWriter implements java.io.Closeable, java.io.Flushable {
+
+	// Scopes
+	private static final int EMPTY_OBJECT = 1;
+	private static final int NONEMPTY_OBJECT = 2;
+	private static final int DANGLING_KEY = 3;
+	private static final int EMPTY_ARRAY = 4;
+	private static final int NONEMPTY_ARRAY = 5;
+
+	private final java.io.Writer writer;
+	private int[] stack = new int[32];
+	private int depth = 0;
+	private boolean hasDocument = false;
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	public JSONWriter(java.io.Writer writer) {
+		this.writer = writer;
+	}
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * Used to write UTF-8 encoded JSON to an OutputStream (e.g. a
+	 * ServletOutputStream). Output is buffered; call flush or close when
+	 * done.
+	 */
+	public JSONWriter(java.io.OutputStream output) {
+		this(new java.io.BufferedWriter(
+		        new java.io.OutputStreamWriter(output, java.nio.charset.StandardCharsets.UTF_8), 8192));
+	}
+
+	// **************************************************************************
+	// ** startObject
+	// **************************************************************************
+	public JSONWriter startObject() throws JSONException {
+		return open(EMPTY_OBJECT, '{');
+	}
+
+	// **************************************************************************
+	// ** endObject
+	// **************************************************************************
+	public JSONWriter endObject() throws JSONException {
+		return close(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+	}
+
+	// **************************************************************************
+	// ** startArray
+	// **************************************************************************
+	public JSONWriter startArray() throws JSONException {
+		return open(EMPTY_ARRAY, '[');
+	}
+
+	// **************************************************************************
+	// ** endArray
+	// **************************************************************************
+	public JSONWriter endArray() throws JSONException {
+		return close(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+	}
+
+	// **************************************************************************
+	// ** key
+	// **************************************************************************
+	/** Used to write the key of the next value in an object. */
+
+	public JSONWriter key(String key) throws JSONException {
+		if (key == null)
+			throw new NullPointerException("Null key.");
+		int scope = depth > 0 ? stack[depth - 1] : 0;
+		if (scope != EMPTY_OBJECT && scope != NONEMPTY_OBJECT)
+			throw new JSONException("Misplaced key.");
+		try {
+			if (scope == NONEMPTY_OBJECT)
+				writer.write(',');
+			JSONObject.quote(key, writer);
+			writer.write(':');
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		stack[depth - 1] = DANGLING_KEY;
+		return this;
+	}
+
+	// **************************************************************************
+	// ** value
+	// **************************************************************************
+	public JSONWriter value(String value) throws JSONException {
+		beforeValue();
+		try {
+			if (value == null)
+				writer.write("null");
+			else
+				JSONObject.quote(value, writer);
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		return this;
+	}
+
+	// **************************************************************************
+	// ** value
+	// **************************************************************************
+	public JSONWriter value(long value) throws JSONException {
+		beforeValue();
+		try {
+			writer.write(Long.toString(value));
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		return this;
+	}
+
+	// **************************************************************************
+	// ** value
+	// **************************************************************************
+	/**
+	 * Used to write a double. Trailing zeros are removed as in
+	 * JSONObject.toString (e.g. 1.0 is written as 1).
+	 *
+	 * @throws JSONException
+	 *             If the value is infinite or NaN.
+	 */
+	public JSONWriter value(double value) throws JSONException {
+		if (Double.isInfinite(value) || Double.isNaN(value))
+			throw new JSONException("JSON does not allow non-finite numbers.");
+		beforeValue();
+		try {
+			String str = Double.toString(value);
+			if (str.endsWith(".0"))
+				writer.write(str, 0, str.length() - 2);
+			else
+				writer.write(str);
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		return this;
+	}
+
+	// **************************************************************************
+	// ** value
+	// **************************************************************************
+	public JSONWriter value(boolean value) throws JSONException {
+		beforeValue();
+		try {
+			writer.write(value ? "true" : "false");
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		return this;
+	}
+
+	// **************************************************************************
+	// ** value
+	// **************************************************************************
+	/**
+	 * Used to write an object. The value should be a Boolean, Number, String,
+	 * JSONObject, JSONArray, javaxt.utils.Value or null. Other objects are
+	 * written as strings.
+	 */
+	public JSONWriter value(Object value) throws JSONException {
+		if (value instanceof Value)
+			value = ((Value) value).toObject();
+		if (value instanceof String)
+			return value((String) value);
+		if (value instanceof Long || value instanceof Integer || value instanceof Short)
+			return value(((Number) value).longValue());
+		if (value instanceof Double)
+			return value(((Double) value).doubleValue());
+		if (value instanceof Boolean)
+			return value(((Boolean) value).booleanValue());
+		beforeValue();
+		try {
+			JSONObject.writeValue(writer, value, 0, 0);
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		return this;
+	}
+
+	// **************************************************************************
+	// ** write
+	// **************************************************************************
+	/**
+	 * Used to write the records in a Recordset as an array of objects, from
+	 * the current record to the end of the Recordset. Each record is written
+	 * as it is read so the records are not held in memory. Use a streaming
+	 * Recordset (see Recordset.setStreaming) to export large tables. Returns
+	 * the number of records written.
+	 */
+	public long write(javaxt.sql.Recordset rs) throws JSONException {
+		startArray();
+		long count = 0;
+		while (rs.hasNext()) {
+			javaxt.sql.Field[] fields = rs.getFields();
+			startObject();
+			for (int i = 0; i < fields.length; i++) {
+				key(fields[i].getName());
+				value(fields[i].getValue());
+			}
+			endObject();
+			count++;
+			rs.moveNext();
+		}
+		endArray();
+		return count;
+	}
+
+	// **************************************************************************
+	// ** flush
+	// **************************************************************************
+	@Override
+	public void flush() throws JSONException {
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/**
+	 * Used to flush and close the underlying stream.
+	 *
+	 * @throws JSONException
+	 *             If an object or array has not been closed.
+	 */
+	@Override
+	public void close() throws JSONException {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		if (depth > 0)
+			throw new JSONException("Incomplete document.");
+	}
+
+	// **************************************************************************
+	// ** open
+	// **************************************************************************
+	private JSONWriter open(int scope, char c) throws JSONException {
+		beforeValue();
+		try {
+			writer.write(c);
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		if (depth == stack.length)
+			stack = java.util.Arrays.copyOf(stack, depth * 2);
+		stack[depth++] = scope;
+		return this;
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	private JSONWriter close(int empty, int nonempty, char c) throws JSONException {
+		int scope = depth > 0 ? stack[depth - 1] : 0;
+		if (scope != empty && scope != nonempty)
+			throw new JSONException("Misplaced '" + c + "'.");
+		depth--;
+		try {
+			writer.write(c);
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+		return this;
+	}
+
+	// **************************************************************************
+	// ** beforeValue
+	// **************************************************************************
+	/** Used to write a separator before a value, if needed. */
+
+	private void beforeValue() throws JSONException {
+		try {
+			if (depth == 0) {
+				if (hasDocument)
+					writer.write('\n');
+				hasDocument = true;
+				return;
+			}
+			switch (stack[depth - 1]) {
+			case DANGLING_KEY:
+				stack[depth - 1] = NONEMPTY_OBJECT;
+				break;
+			case EMPTY_ARRAY:
+				stack[depth - 1] = NONEMPTY_ARRAY;
+				break;
+			case NONEMPTY_ARRAY:
+				writer.write(',');
+				break;
+			default:
+				throw new JSONException("Expected a key.");
+			}
+		} catch (IOException e) {
+			throw new JSONException(e);
+		}
+	}
+}
@@ -0,0 +1,663 @@
+package javaxt.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.mhus.lib.core.MLog;
+
+//******************************************************************************
+//**  BulkLoader
+//******************************************************************************
+/**
+ * Used to insert a large number of rows into a table. Rows are collected into
+ * batches and the batches are written in parallel using connections from a
+ * ConnectionPool. Each batch is written in its own transaction and retried if
+ * it fails. The number of batches waiting to be written is bounded so that
+ * add() blocks when the database cannot keep up. Example:
+ *
+ * <pre>
+ * BulkLoader loader = new BulkLoader(pool, "ORDERS", "ID", "AMOUNT", "NAME");
+ * loader.setThreads(4);
+ * while (...) {
+ *     loader.setLong(0, id);
+ *     loader.setDouble(1, amount);
+ *     loader.setObject(2, name);
+ *     loader.addRow();
+ * }
+ * loader.close();
+ * </pre>
+ *
+ * Depending on the driver, rows are written with a PostgreSQL COPY
+ * statement, with multi-row INSERT statements (e.g. "VALUES (?,?),(?,?)") or
+ * with JDBC batches.
+ *
+ ******************************************************************************/
+
+public class BulkLoader extends MLog {
+
+	/** Methods used to write a batch of rows. */
+	public enum Method {
+		/** JDBC batch of single-row INSERT statements. */
+		BATCH,
+		/** INSERT statements with multiple rows in the VALUES clause. */
+		VALUES,
+		/** PostgreSQL COPY FROM STDIN. */
+		COPY
+	}
+
+	private final ConnectionPool pool;
+	private final String tableName;
+	private final String[] columns;
+	private Method method;
+	private int maxParameters;
+	private int batchSize = 1000;
+	private int numThreads = 2;
+	private int maxRetries = 3;
+
+	private java.util.concurrent.ExecutorService executor;
+	private java.util.concurrent.Semaphore inFlight;
+	private Batch batch;
+	private volatile SQLException error;
+	private boolean isClosed = false;
+
+	private final AtomicLong rowCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+
+	private static final byte NULL = 0;
+	private static final byte LONG = 1;
+	private static final byte DOUBLE = 2;
+	private static final byte OBJECT = 3;
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/**
+	 * @param pool
+	 *            Used to get connections to the database.
+	 * @param tableName
+	 *            Name of the table.
+	 * @param columns
+	 *            Names of the columns, in the same order as the values of a
+	 *            row.
+	 */
+	public BulkLoader(ConnectionPool pool, String tableName, String... columns) throws SQLException {
+		if (columns == null || columns.length == 0)
+			throw new IllegalArgumentException("No columns specified.");
+		this.pool = pool;
+		this.tableName = tableName;
+		this.columns = columns.clone();
+
+		// Find the driver and choose the fastest method it supports
+		Connection conn = pool.getConnection();
+		try {
+			Driver driver = conn.getDatabase() == null ? null : conn.getDatabase().getDriver();
+			String vendor = (driver == null || driver.getVendor() == null) ? "" : driver.getVendor();
+			if (vendor.equals("PostgreSQL")) {
+				method = (isCopySupported(conn.getConnection()) ? Method.COPY : Method.VALUES);
+				maxParameters = 32767;
+			} else if (vendor.equals("MySQL")) {
+				method = Method.VALUES;
+				maxParameters = 65535;
+			} else if (vendor.equals("SQLServer")) {
+				method = Method.VALUES;
+				maxParameters = 2000;
+			} else if (vendor.equals("SQLite")) {
+				method = Method.VALUES;
+				maxParameters = 999;
+			} else if (vendor.equals("H2") || vendor.equals("Derby") || vendor.equals("DB2")) {
+				method = Method.VALUES;
+				maxParameters = 1000;
+			} else {
+				method = Method.BATCH;
+				maxParameters = 1000;
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	// **************************************************************************
+	// ** setMethod
+	// **************************************************************************
+	/**
+	 * Used to override the method used to write rows. Must be called before
+	 * the first row is added.
+	 */
+	public void setMethod(Method method) {
+		this.method = method;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	/** Used to set the number of rows per batch/transaction. Default is 1000. */
+	public void setBatchSize(int batchSize) {
+		if (batchSize > 0)
+			this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Used to set the number of batches written in parallel. Must be called
+	 * before the first row is added. Should not exceed the size of the
+	 * ConnectionPool. Default is 2.
+	 */
+	public void setThreads(int numThreads) {
+		if (numThreads > 0)
+			this.numThreads = numThreads;
+	}
+
+	public int getThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Used to set the number of times a batch is retried after an error.
+	 * Default is 3.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = Math.max(0, maxRetries);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	// **************************************************************************
+	// ** setLong
+	// **************************************************************************
+	/** Used to set a value in the current row. */
+
+	public void setLong(int column, long value) {
+		Batch batch = getBatch();
+		int i = batch.index(column);
+		batch.types[i] = LONG;
+		batch.longs[i] = value;
+	}
+
+	// **************************************************************************
+	// ** setDouble
+	// **************************************************************************
+	/** Used to set a value in the current row. */
+
+	public void setDouble(int column, double value) {
+		Batch batch = getBatch();
+		int i = batch.index(column);
+		batch.types[i] = DOUBLE;
+		batch.doubles[i] = value;
+	}
+
+	// **************************************************************************
+	// ** setObject
+	// **************************************************************************
+	/** Used to set a value in the current row. Null values are allowed. */
+
+	public void setObject(int column, Object value) {
+		Batch batch = getBatch();
+		int i = batch.index(column);
+		batch.types[i] = (value == null ? NULL : OBJECT);
+		batch.objects[i] = value;
+	}
+
+	// **************************************************************************
+	// ** addRow
+	// **************************************************************************
+	/**
+	 * Used to add the current row to the batch. Values that have not been set
+	 * are null. Blocks if too many batches are waiting to be written.
+	 */
+	public void addRow() throws SQLException {
+		Batch batch = getBatch();
+		batch.size++;
+		if (batch.size == batch.capacity) {
+			try {
+				submit(batch);
+			} finally {
+				this.batch = null;
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** add
+	// **************************************************************************
+	/** Used to add a row with the given values. */
+
+	public void add(Object... values) throws SQLException {
+		if (values.length != columns.length)
+			throw new IllegalArgumentException("Expected " + columns.length + " values.");
+		for (int i = 0; i < values.length; i++) {
+			setObject(i, values[i]);
+		}
+		addRow();
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/**
+	 * Used to write the remaining rows and wait for all the batches to be
+	 * written. Throws the first error that could not be resolved by retrying
+	 * a batch.
+	 */
+	public void close() throws SQLException {
+		if (isClosed)
+			return;
+		try {
+			if (batch != null && batch.size > 0 && error == null)
+				submit(batch);
+			batch = null;
+		} finally {
+			isClosed = true;
+			if (executor != null) {
+				executor.shutdown();
+				try {
+					while (!executor.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES)) {
+					}
+				} catch (InterruptedException e) {
+					executor.shutdownNow();
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/** Returns the number of rows that have been committed. */
+	public long getRowCount() {
+		return rowCount.get();
+	}
+
+	/** Returns the number of batches that have been committed. */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/** Returns the number of times a batch was retried. */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	// **************************************************************************
+	// ** getBatch
+	// **************************************************************************
+	private Batch getBatch() {
+		if (isClosed)
+			throw new IllegalStateException("BulkLoader is closed.");
+		if (batch == null)
+			batch = new Batch(batchSize, columns.length);
+		return batch;
+	}
+
+	// **************************************************************************
+	// ** submit
+	// **************************************************************************
+	/**
+	 * Used to queue a batch. Blocks while the maximum number of batches are
+	 * being written or waiting to be written.
+	 */
+	private void submit(final Batch batch) throws SQLException {
+		if (error != null)
+			throw error;
+		if (executor == null) {
+			inFlight = new java.util.concurrent.Semaphore(numThreads * 2);
+			executor = java.util.concurrent.Executors.newFixedThreadPool(numThreads,
+			        new java.util.concurrent.ThreadFactory() {
+				        private int i = 0;
+
+				        @Override
+				        public synchronized Thread newThread(Runnable r) {
+					        Thread t = new Thread(r, "BulkLoader-" + (++i));
+					        t.setDaemon(true);
+					        return t;
+				        }
+			        });
+		}
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			throw new SQLException("Interrupted while waiting to submit a batch.", e);
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (error == null)
+						write(batch);
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	// **************************************************************************
+	// ** write
+	// **************************************************************************
+	/**
+	 * Used to write a batch in a transaction. The transaction is rolled back
+	 * and retried if an error occurs.
+	 */
+	private void write(Batch batch) {
+		for (int attempt = 0;; attempt++) {
+			Connection conn = null;
+			java.sql.Connection c = null;
+			boolean autoCommit = true;
+			try {
+				conn = pool.getValidConnection();
+				c = conn.getConnection();
+				autoCommit = c.getAutoCommit();
+				c.setAutoCommit(false);
+
+				if (method == Method.COPY)
+					copy(c, batch);
+				else if (method == Method.VALUES)
+					insertValues(conn, batch);
+				else
+					insertBatch(conn, batch);
+
+				c.commit();
+				rowCount.addAndGet(batch.size);
+				batchCount.incrementAndGet();
+				return;
+			} catch (Exception e) {
+				if (c != null) {
+					try {
+						c.rollback();
+					} catch (SQLException ex) {
+					}
+				}
+				if (attempt >= maxRetries) {
+					synchronized (this) {
+						if (error == null) {
+							error = (e instanceof SQLException ? (SQLException) e : new SQLException(e));
+						}
+					}
+					log().e("Failed to write batch of " + batch.size + " rows", e);
+					return;
+				}
+				retryCount.incrementAndGet();
+				log().d("Retrying batch after error", e);
+				try {
+					Thread.sleep(Math.min(100L << attempt, 5000));
+				} catch (InterruptedException ex) {
+					synchronized (this) {
+						if (error == null) {
+							error = new SQLException("Interrupted while retrying a batch of " + batch.size + " rows", e);
+						}
+					}
+					Thread.currentThread().interrupt();
+					return;
+				}
+			} finally {
+				if (c != null) {
+					try {
+						c.setAutoCommit(autoCommit);
+					} catch (SQLException e) {
+					}
+				}
+				if (conn != null)
+					conn.close();
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** insertBatch
+	// **************************************************************************
+	/** Used to write a batch with single-row INSERT statements. */
+
+	private void insertBatch(Connection conn, Batch batch) throws SQLException {
+		StatementCache cache = conn.getStatementCache();
+		PreparedStatement stmt = cache.prepare(getInsert(1), java.sql.Statement.NO_GENERATED_KEYS);
+		try {
+			for (int row = 0; row < batch.size; row++) {
+				bind(stmt, 1, batch, row);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		} catch (SQLException e) {
+			try {
+				stmt.clearBatch();
+			} catch (SQLException ex) {
+			}
+			throw e;
+		} finally {
+			cache.release(stmt);
+		}
+	}
+
+	// **************************************************************************
+	// ** insertValues
+	// **************************************************************************
+	/**
+	 * Used to write a batch with INSERT statements that insert multiple rows
+	 * at once. The number of rows per statement is limited by the maximum
+	 * number of parameters supported by the database.
+	 */
+	private void insertValues(Connection conn, Batch batch) throws SQLException {
+		StatementCache cache = conn.getStatementCache();
+		int rowsPerStatement = Math.max(1, Math.min(batch.size, maxParameters / columns.length));
+		int row = 0;
+		while (row < batch.size) {
+			int numRows = Math.min(rowsPerStatement, batch.size - row);
+			PreparedStatement stmt = cache.prepare(getInsert(numRows), java.sql.Statement.NO_GENERATED_KEYS);
+			try {
+				int id = 1;
+				for (int i = 0; i < numRows; i++) {
+					id = bind(stmt, id, batch, row + i);
+				}
+				stmt.executeUpdate();
+			} finally {
+				cache.release(stmt);
+			}
+			row += numRows;
+		}
+	}
+
+	// **************************************************************************
+	// ** copy
+	// **************************************************************************
+	/**
+	 * Used to write a batch with a PostgreSQL "COPY ... FROM STDIN" statement.
+	 * The PostgreSQL CopyManager is called via reflection so the driver is not
+	 * required to compile this class.
+	 */
+	private void copy(java.sql.Connection c, Batch batch) throws Exception {
+		StringBuilder str = new StringBuilder(batch.size * columns.length * 8);
+		for (int row = 0; row < batch.size; row++) {
+			for (int col = 0; col < columns.length; col++) {
+				if (col > 0)
+					str.append('\t');
+				int i = row * columns.length + col;
+				switch (batch.types[i]) {
+				case LONG:
+					str.append(batch.longs[i]);
+					break;
+				case DOUBLE:
+					str.append(batch.doubles[i]);
+					break;
+				case OBJECT:
+					appendCopyValue(str, batch.objects[i]);
+					break;
+				default:
+					str.append("\\N");
+				}
+			}
+			str.append('\n');
+		}
+
+		StringBuilder sql = new StringBuilder("COPY " + tableName + " (");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				sql.append(",");
+			sql.append(columns[i]);
+		}
+		sql.append(") FROM STDIN");
+
+		Object copyManager = getCopyManager(c);
+		try {
+			copyManager.getClass().getMethod("copyIn", String.class, java.io.Reader.class).invoke(copyManager,
+			        sql.toString(), new java.io.StringReader(str.toString()));
+		} catch (java.lang.reflect.InvocationTargetException e) {
+			Throwable t = e.getCause();
+			if (t instanceof Exception)
+				throw (Exception) t;
+			throw e;
+		}
+	}
+
+	/**
+	 * Used to append a value to a row in the PostgreSQL COPY text format.
+	 */
+	private static void appendCopyValue(StringBuilder str, Object value) {
+		if (value instanceof byte[]) {
+			str.append("\\\\x");
+			for (byte b : (byte[]) value) {
+				str.append(Character.forDigit((b >> 4) & 0xF, 16));
+				str.append(Character.forDigit(b & 0xF, 16));
+			}
+			return;
+		}
+		if (value instanceof java.util.Date && !(value instanceof java.sql.Timestamp)
+		        && !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time)) {
+			value = new java.sql.Timestamp(((java.util.Date) value).getTime());
+		}
+		String s = value.toString();
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			switch (ch) {
+			case '\\':
+				str.append("\\\\");
+				break;
+			case '\t':
+				str.append("\\t");
+				break;
+			case '\n':
+				str.append("\\n");
+				break;
+			case '\r':
+				str.append("\\r");
+				break;
+			default:
+				str.append(ch);
+			}
+		}
+	}
+
+	/** Returns the CopyManager of a PostgreSQL connection. */
+	private static Object getCopyManager(java.sql.Connection c) throws Exception {
+		Class<?> pgConnection = Class.forName("org.postgresql.PGConnection", true, c.getClass().getClassLoader());
+		Object pgConn = c.unwrap(pgConnection);
+		return pgConnection.getMethod("getCopyAPI").invoke(pgConn);
+	}
+
+	/** Returns true if COPY can be used with a given connection. */
+	private static boolean isCopySupported(java.sql.Connection c) {
+		try {
+			return getCopyManager(c) != null;
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	// **************************************************************************
+	// ** getInsert
+	// **************************************************************************
+	/** Returns an INSERT statement for the given number of rows. */
+
+	private String getInsert(int numRows) {
+		StringBuilder sql = new StringBuilder("INSERT INTO " + tableName + " (");
+		StringBuilder row = new StringBuilder("(");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				sql.append(",");
+				row.append(",");
+			}
+			sql.append(columns[i]);
+			row.append("?");
+		}
+		row.append(")");
+		sql.append(") VALUES ");
+		for (int i = 0; i < numRows; i++) {
+			if (i > 0)
+				sql.append(",");
+			sql.append(row);
+		}
+		return sql.toString();
+	}
+
+	// **************************************************************************
+	// ** bind
+	// **************************************************************************
+	/**
+	 * Used to set the parameters of a statement for a given row. Returns the
+	 * index of the next parameter.
+	 */
+	private int bind(PreparedStatement stmt, int id, Batch batch, int row) throws SQLException {
+		for (int col = 0; col < columns.length; col++) {
+			int i = row * columns.length + col;
+			switch (batch.types[i]) {
+			case LONG:
+				stmt.setLong(id, batch.longs[i]);
+				break;
+			case DOUBLE:
+				stmt.setDouble(id, batch.doubles[i]);
+				break;
+			case OBJECT:
+				Object value = batch.objects[i];
+				if (value instanceof java.util.Date && !(value instanceof java.sql.Timestamp)
+				        && !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time)) {
+					value = new java.sql.Timestamp(((java.util.Date) value).getTime());
+				}
+				stmt.setObject(id, value);
+				break;
+			default:
+				stmt.setNull(id, java.sql.Types.NULL);
+			}
+			id++;
+		}
+		return id;
+	}
+
+	// **************************************************************************
+	// ** Batch
+	// **************************************************************************
+	/**
+	 * Rows of a batch. Values are stored in flat arrays (row by row) so that
+	 * numbers are not boxed.
+	 */
+	private static class Batch {
+		private final int numColumns;
+		private final int capacity;
+		private final byte[] types;
+		private final long[] longs;
+		private final double[] doubles;
+		private final Object[] objects;
+		private int size = 0;
+
+		private Batch(int batchSize, int numColumns) {
+			this.numColumns = numColumns;
+			this.capacity = batchSize;
+			int n = batchSize * numColumns;
+			types = new byte[n];
+			longs = new long[n];
+			doubles = new double[n];
+			objects = new Object[n];
+		}
+
+		/** Returns the index of a column in the current row. */
+		private int index(int column) {
+			if (column < 0 || column >= numColumns)
+				throw new IndexOutOfBoundsException("Invalid column: " + column);
+			return size * numColumns + column;
+		}
+	}
+}
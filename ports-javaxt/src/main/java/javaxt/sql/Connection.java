@@ -12,7 +12,10 @@ public class Connection {
 
 	private java.sql.Connection Conn = null;
 	private long Speed;
+	private StatementCache statementCache;
 	private Database database;
+	private Runnable onClose;
+	private volatile boolean closed = false;
 
 	// **************************************************************************
 	// ** Constructor
@@ -25,6 +28,20 @@ public class Connection {
 		open(conn);
 	}
 
+	/**
+	 * Used by the ConnectionPool to wrap a pooled connection. The Database and
+	 * the StatementCache belong to the physical connection and are reused
+	 * across borrows. Closing the Connection calls onClose instead of closing
+	 * the JDBC Connection.
+	 */
+	protected Connection(java.sql.Connection conn, Database database, StatementCache statementCache,
+	        Runnable onClose) {
+		this.database = database;
+		this.statementCache = statementCache;
+		this.onClose = onClose;
+		this.Conn = conn;
+	}
+
 	// **************************************************************************
 	// ** isOpen
 	// **************************************************************************
@@ -40,6 +57,8 @@ public class Connection {
 	/** Used to determine whether the connection is closed. */
 
 	public boolean isClosed() {
+		if (closed)
+			return true;
 		try {
 			return Conn.isClosed();
 		} catch (Exception e) {
@@ -161,6 +180,17 @@ public class Connection {
 	/** Used to close a connection to the database, freeing up connections */
 
 	public void close() {
+		if (onClose != null) {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+			onClose.run();
+			return;
+		}
+		if (statementCache != null)
+			statementCache.clear();
 		try {
 			Conn.close();
 		} catch (Exception e) {
@@ -190,6 +220,22 @@ public class Connection {
 		execute("COMMIT");
 	}
 
+	// **************************************************************************
+	// ** getStatementCache
+	// **************************************************************************
+	/**
+	 * Returns the cache of prepared statements used by Recordsets opened with
+	 * this connection. The statements are closed when the connection is
+	 * closed. Connections borrowed from a ConnectionPool share the cache of
+	 * the physical connection, which is closed when the pool retires the
+	 * connection.
+	 */
+	public synchronized StatementCache getStatementCache() {
+		if (statementCache == null)
+			statementCache = new StatementCache(Conn);
+		return statementCache;
+	}
+
 	// **************************************************************************
 	// ** getDatabase
 	// **************************************************************************
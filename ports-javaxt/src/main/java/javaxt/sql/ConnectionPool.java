@@ -3,9 +3,12 @@ package javaxt.sql;
 import java.io.PrintWriter;
 //import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
@@ -13,12 +16,27 @@ import javax.sql.ConnectionPoolDataSource;
 import javax.sql.PooledConnection;
 
 import de.mhus.lib.core.MLog;
+import javaxt.utils.Histogram;
 
 //******************************************************************************
 //**  ConnectionPool
 //******************************************************************************
 /**
  * A lightweight standalone JDBC connection pool manager.
+ * <p/>
+ * Idle connections are kept on a lock-free stack and every thread remembers
+ * the last connection it returned, so a thread that repeatedly borrows and
+ * returns a connection usually gets the same connection back with a single
+ * compare-and-set. A background task validates idle connections (keepalive),
+ * retires connections that have reached their maximum lifetime and reports
+ * connections that have been borrowed for too long (leak detection). The time
+ * spent waiting for a connection and the time connections are used are
+ * recorded in histograms.
+ * <p/>
+ * Each physical connection keeps one JDBC Connection handle and one
+ * StatementCache while it is in the pool, so prepared statements are reused
+ * across borrows. The cache is closed when the pool retires the connection.
+ * Open transactions are rolled back when a connection is returned.
  *
  ******************************************************************************/
 
@@ -39,6 +57,9 @@ public class ConnectionPool extends MLog {
 	// - Added getMaxConnections method
 	// - Renamed dispose method to close
 	// - Minor code formatting
+	// - Replaced the synchronized recycled connection list with a lock-free
+	// stack, added thread-affine borrowing, background validation, maximum
+	// lifetime, leak detection and histograms
 
 	private ConnectionPoolDataSource dataSource;
 	private int maxConnections;
@@ -46,22 +67,51 @@ public class ConnectionPool extends MLog {
 	private PrintWriter logWriter;
 	private Semaphore semaphore;
 	private PoolConnectionEventListener poolConnectionEventListener;
-
-	// The following variables must only be accessed within synchronized blocks.
-	// @GuardedBy("this") could by used in the future.
-	private LinkedList<PooledConnection> recycledConnections; // list of
-	                                                          // inactive
-	                                                          // PooledConnections
-	private int activeConnections; // number of active (open) connections of
-	                               // this pool
-	private boolean isDisposed; // true if this connection pool has been
-	                            // disposed
-	private boolean doPurgeConnection; // flag to purge the connection currently
-	                                   // beeing closed instead of recycling it
-	private PooledConnection connectionInTransition; // a PooledConnection which
-	                                                 // is currently within a
-	                                                 // PooledConnection.getConnection()
-	                                                 // call, or null
+	private volatile boolean isDisposed; // true if this connection pool has
+	                                     // been disposed
+
+	// Pooled connections, keyed by PooledConnection
+	private final ConcurrentHashMap<PooledConnection, PoolEntry> entries = new ConcurrentHashMap<PooledConnection, PoolEntry>();
+	private final AtomicInteger totalConnections = new AtomicInteger();
+
+	// Lock-free (Treiber) stack of idle connections. Nodes are never reused
+	// so the stack is not subject to the ABA problem. The stack may contain
+	// connections that have been borrowed or removed in the meantime. These
+	// are skipped when the stack is popped.
+	private final AtomicReference<Node> idle = new AtomicReference<Node>();
+
+	// Last connection returned by the current thread
+	private final ThreadLocal<PoolEntry> lastEntry = new ThreadLocal<PoolEntry>();
+
+	// Used to wake up threads that hold a permit but found no idle connection
+	// (e.g. all the connections are being validated). The counter is
+	// incremented whenever a connection becomes idle or is removed.
+	private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+	private final java.util.concurrent.locks.Condition available = lock.newCondition();
+	private final java.util.concurrent.atomic.AtomicLong changes = new java.util.concurrent.atomic.AtomicLong();
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	// Settings (in milliseconds)
+	private volatile long maxLifetime = 30 * 60 * 1000;
+	private volatile long keepaliveTime = 2 * 60 * 1000;
+	private volatile long leakDetectionThreshold = 0;
+	private static final long validationBypass = 500;
+	private static final long housekeepingInterval = 15 * 1000;
+
+	// Statistics
+	private final Histogram waitTimes = new Histogram();
+	private final Histogram usageTimes = new Histogram();
+	private final LongAdder createdConnections = new LongAdder();
+	private final LongAdder closedConnections = new LongAdder();
+	private final LongAdder leakedConnections = new LongAdder();
+
+	private java.util.concurrent.ScheduledFuture<?> housekeeper;
+	private static java.util.concurrent.ScheduledExecutorService scheduler;
+
+	private static final int IDLE = 0;
+	private static final int IN_USE = 1;
+	private static final int RESERVED = 2; // being validated or closed
+	private static final int REMOVED = -1;
 
 	/**
 	 * Thrown in {@link #getConnection()} or {@link #getValidConnection()} when
@@ -133,29 +183,26 @@ public class ConnectionPool extends MLog {
 			throw new IllegalArgumentException("Invalid maxConnections value.");
 		}
 		semaphore = new Semaphore(maxConnections, true);
-		recycledConnections = new LinkedList<PooledConnection>();
 		poolConnectionEventListener = new PoolConnectionEventListener();
 	}
 
 	/**
-	 * Closes all unused pooled connections.
+	 * Closes all unused pooled connections. Connections that are still in use
+	 * are closed when they are returned to the pool.
 	 */
-	public synchronized void close() throws SQLException {
-		if (isDisposed) {
-			return;
-		}
-		isDisposed = true;
-		SQLException e = null;
-		while (!recycledConnections.isEmpty()) {
-			PooledConnection pconn = recycledConnections.remove();
-			try {
-				pconn.close();
-			} catch (SQLException e2) {
-				if (e == null) {
-					e = e2;
-				}
+	public void close() throws SQLException {
+		synchronized (this) {
+			if (isDisposed) {
+				return;
+			}
+			isDisposed = true;
+			if (housekeeper != null) {
+				housekeeper.cancel(false);
+				housekeeper = null;
 			}
 		}
+		SQLException e = closeIdleConnections();
+		signalAvailable();
 		if (e != null) {
 			throw e;
 		}
@@ -176,19 +223,149 @@ public class ConnectionPool extends MLog {
 	 *             <code>timeout</code> seconds.
 	 */
 	public Connection getConnection() throws SQLException {
-		return new Connection(getConnection2(timeoutMs));
+		return getConnection(borrow(timeoutMs));
 	}
 
-	private java.sql.Connection getConnection2(long timeoutMs) throws SQLException {
-		// This routine is unsynchronized, because semaphore.tryAcquire() may
-		// block.
-		synchronized (this) {
-			if (isDisposed) {
-				throw new IllegalStateException("Connection pool has been disposed.");
+	/**
+	 * Retrieves a connection from the connection pool and ensures that it is
+	 * valid by calling {@link Connection#isValid(int)}.
+	 *
+	 * <p>
+	 * Connections that were used or validated within the last 500
+	 * milliseconds are not tested again. Idle connections are validated in
+	 * the background (see {@link #setKeepaliveTime(int)}) so invalid
+	 * connections are usually removed from the pool before they are
+	 * borrowed. If a connection is not valid, the method tries to get another
+	 * connection until one is valid (or a timeout occurs).
+	 *
+	 * <p>
+	 * Pooled connections may become invalid when e.g. the database server is
+	 * restarted.
+	 *
+	 * @throws TimeoutException
+	 *             when no valid connection becomes available within
+	 *             <code>timeout</code> seconds.
+	 */
+	public Connection getValidConnection() {
+		long timeoutTime = System.currentTimeMillis() + timeoutMs;
+		long delay = 10;
+		while (true) {
+			long rtime = timeoutTime - System.currentTimeMillis();
+			if (rtime <= 0) {
+				throw new TimeoutException("Timeout while waiting for a valid database connection.");
+			}
+
+			PoolEntry entry;
+			try {
+				entry = borrow(rtime);
+			} catch (SQLException e) {
+				// Failed to open a new connection (e.g. database is down).
+				// Back off before trying again.
+				try {
+					Thread.sleep(Math.min(delay, rtime));
+				} catch (InterruptedException e2) {
+					throw new RuntimeException("Interrupted while waiting for a valid database connection.", e2);
+				}
+				delay = Math.min(delay * 2, 250);
+				continue;
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - Math.max(entry.lastUsed, entry.lastValidated) < validationBypass) {
+				return getConnection(entry);
+			}
+
+			int rtimeSecs = Math.max(1, (int) ((timeoutTime - now + 999) / 1000));
+			try {
+				if (entry.handle.isValid(rtimeSecs)) {
+					entry.lastValidated = System.currentTimeMillis();
+					return getConnection(entry);
+				}
+			} catch (SQLException e) {
 			}
+
+			// The connection is not valid. Remove it from the pool when it is
+			// closed and try again without delay.
+			entry.evict = true;
+			try {
+				entry.handle.close();
+			} catch (SQLException e) {
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** getConnection
+	// **************************************************************************
+	/**
+	 * Returns a Connection for a borrowed entry. The Database and the
+	 * StatementCache used by the Connection are created once per physical
+	 * connection. Closing the Connection returns the entry to the pool.
+	 */
+	private Connection getConnection(final PoolEntry entry) {
+		if (entry.database == null) {
+			entry.database = new Connection(entry.handle).getDatabase();
+		}
+		if (entry.statementCache == null) {
+			entry.statementCache = new StatementCache(entry.handle);
+		}
+		final Object token = entry.borrowToken.get();
+		return new Connection(entry.handle, entry.database, entry.statementCache, new Runnable() {
+			@Override
+			public void run() {
+				if (entry.borrowToken.compareAndSet(token, null)) {
+					release(entry);
+				}
+			}
+		});
+	}
+
+	// **************************************************************************
+	// ** openHandle
+	// **************************************************************************
+	/**
+	 * Used to get a JDBC Connection for a physical connection. The handle is
+	 * kept open while the connection is in the pool so that the statements
+	 * in the StatementCache stay valid. A new handle (and a new cache) is
+	 * only created if the previous handle was closed, e.g. by a caller that
+	 * closed the JDBC Connection instead of the javaxt Connection.
+	 */
+	private void openHandle(PoolEntry entry) throws SQLException {
+		java.sql.Connection handle = entry.handle;
+		if (handle != null && !handle.isClosed()) {
+			return;
+		}
+		closeStatements(entry);
+		entry.handle = entry.pconn.getConnection();
+	}
+
+	// **************************************************************************
+	// ** closeStatements
+	// **************************************************************************
+	/** Used to close the cached statements of a physical connection. */
+
+	private void closeStatements(PoolEntry entry) {
+		StatementCache cache = entry.statementCache;
+		entry.statementCache = null;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	// **************************************************************************
+	// ** borrow
+	// **************************************************************************
+	/**
+	 * Used to borrow a connection from the pool. Waits for a permit if
+	 * <code>maxConnections</code> connections are in use.
+	 */
+	private PoolEntry borrow(long timeoutMs) throws SQLException {
+		if (isDisposed) {
+			throw new IllegalStateException("Connection pool has been disposed.");
 		}
+		long startTime = System.nanoTime();
 		try {
-			if (!semaphore.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+			if (!semaphore.tryAcquire() && !semaphore.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
 				throw new TimeoutException();
 			}
 		} catch (InterruptedException e) {
@@ -196,9 +373,30 @@ public class ConnectionPool extends MLog {
 		}
 		boolean ok = false;
 		try {
-			java.sql.Connection conn = getConnection3();
+			PoolEntry entry = take(startTime + timeoutMs * 1000000L);
+			try {
+				// The JDBC driver may call
+				// ConnectionEventListener.connectionErrorOccurred() from
+				// within PooledConnection.getConnection(). The permit is
+				// released below in that case.
+				entry.inTransition = true;
+				openHandle(entry);
+			} catch (SQLException e) {
+				remove(entry);
+				throw e;
+			} finally {
+				entry.inTransition = false;
+			}
+
+			long now = System.currentTimeMillis();
+			entry.borrowToken.set(new Object());
+			entry.borrowedAt = now;
+			entry.leakReported = false;
+			entry.borrower = (leakDetectionThreshold > 0 ? new Exception("Connection borrowed by "
+			        + Thread.currentThread().getName()) : null);
+			waitTimes.record((System.nanoTime() - startTime) / 1000);
 			ok = true;
-			return conn;
+			return entry;
 		} finally {
 			if (!ok) {
 				semaphore.release();
@@ -206,163 +404,373 @@ public class ConnectionPool extends MLog {
 		}
 	}
 
-	private synchronized java.sql.Connection getConnection3() throws SQLException {
-		if (isDisposed) { // test again within synchronized lock
-			throw new IllegalStateException("Connection pool has been disposed.");
+	// **************************************************************************
+	// ** take
+	// **************************************************************************
+	/**
+	 * Returns an idle connection or opens a new connection. The caller must
+	 * hold a permit.
+	 */
+	private PoolEntry take(long deadline) throws SQLException {
+
+		// Try the connection last returned by this thread
+		PoolEntry entry = lastEntry.get();
+		if (entry != null) {
+			if (entry.state.compareAndSet(IDLE, IN_USE)) {
+				if (!isExpired(entry, System.currentTimeMillis()))
+					return entry;
+				remove(entry);
+			}
+			lastEntry.remove();
+		}
+
+		boolean waiting = false;
+		try {
+			while (true) {
+				if (isDisposed) {
+					throw new IllegalStateException("Connection pool has been disposed.");
+				}
+				long changes = this.changes.get();
+
+				// Try the idle connections
+				entry = pop();
+				if (entry != null) {
+					if (entry.state.compareAndSet(IDLE, IN_USE)) {
+						if (!isExpired(entry, System.currentTimeMillis()))
+							return entry;
+						remove(entry);
+					}
+					continue;
+				}
+
+				// Open a new connection if the pool is not full
+				int total = totalConnections.get();
+				if (total < maxConnections) {
+					if (totalConnections.compareAndSet(total, total + 1)) {
+						return create();
+					}
+					continue;
+				}
+
+				// Otherwise, a connection is about to become idle (e.g. it is
+				// being validated or it was just returned). Register as a
+				// waiter and check again before waiting so that a signal
+				// can't be missed.
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+				if (!waiting) {
+					waiting = true;
+					waiters.incrementAndGet();
+					continue;
+				}
+				lock.lock();
+				try {
+					if (this.changes.get() == changes) {
+						available.awaitNanos(remaining);
+					}
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while waiting for a database connection.", e);
+				} finally {
+					lock.unlock();
+				}
+			}
+		} finally {
+			if (waiting) {
+				waiters.decrementAndGet();
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** signalAvailable
+	// **************************************************************************
+	/**
+	 * Called when a connection became idle or was removed from the pool. Wakes
+	 * up threads waiting in take(), if any.
+	 */
+	private void signalAvailable() {
+		changes.incrementAndGet();
+		if (waiters.get() > 0) {
+			lock.lock();
+			try {
+				available.signalAll();
+			} finally {
+				lock.unlock();
+			}
 		}
+	}
+
+	// **************************************************************************
+	// ** create
+	// **************************************************************************
+	/**
+	 * Used to open a new physical connection. The caller must have
+	 * incremented the totalConnections.
+	 */
+	private PoolEntry create() throws SQLException {
 		PooledConnection pconn;
-		if (!recycledConnections.isEmpty()) {
-			pconn = recycledConnections.remove();
-		} else {
+		try {
 			pconn = dataSource.getPooledConnection();
-			pconn.addConnectionEventListener(poolConnectionEventListener);
+		} catch (SQLException | RuntimeException e) {
+			totalConnections.decrementAndGet();
+			throw e;
 		}
-		java.sql.Connection conn;
+		createdConnections.increment();
+
+		PoolEntry entry = new PoolEntry(pconn);
+		entry.state.set(IN_USE);
+		entries.put(pconn, entry);
+		pconn.addConnectionEventListener(poolConnectionEventListener);
+		startHousekeeper();
+		return entry;
+	}
+
+	// **************************************************************************
+	// ** release
+	// **************************************************************************
+	/**
+	 * Called when a borrowed connection is closed by the application. Returns
+	 * the connection to the pool or closes it if it has been marked for
+	 * eviction or reached its maximum lifetime.
+	 */
+	private void release(PoolEntry entry) {
+		long now = System.currentTimeMillis();
+		usageTimes.record((now - entry.borrowedAt) * 1000);
+		entry.lastUsed = now;
+		entry.borrower = null;
+
+		// Roll back any open transaction so the next borrower gets the
+		// connection in its default state
+		java.sql.Connection handle = entry.handle;
 		try {
-			// The JDBC driver may call
-			// ConnectionEventListener.connectionErrorOccurred()
-			// from within PooledConnection.getConnection(). To detect this
-			// within
-			// disposeConnection(), we temporarily set connectionInTransition.
-			connectionInTransition = pconn;
-			conn = pconn.getConnection();
-		} finally {
-			connectionInTransition = null;
+			if (handle != null && !handle.isClosed() && !handle.getAutoCommit()) {
+				handle.rollback();
+				handle.setAutoCommit(true);
+			}
+		} catch (SQLException | RuntimeException e) {
+			entry.evict = true;
+		}
+
+		if (entry.evict || isDisposed || isExpired(entry, now)) {
+			remove(entry);
+			semaphore.release();
+			return;
+		}
+
+		entry.state.set(IDLE);
+		lastEntry.set(entry);
+		push(entry);
+		signalAvailable();
+		semaphore.release();
+
+		// Close the connection if the pool was closed in the meantime
+		if (isDisposed) {
+			closeIdleConnections();
 		}
-		activeConnections++;
-		assertInnerState();
-		return conn;
 	}
 
+	// **************************************************************************
+	// ** remove
+	// **************************************************************************
 	/**
-	 * Retrieves a connection from the connection pool and ensures that it is
-	 * valid by calling {@link Connection#isValid(int)}.
-	 *
-	 * <p>
-	 * If a connection is not valid, the method tries to get another connection
-	 * until one is valid (or a timeout occurs).
-	 *
-	 * <p>
-	 * Pooled connections may become invalid when e.g. the database server is
-	 * restarted.
-	 *
-	 * <p>
-	 * This method is slower than {@link #getConnection()} because the JDBC
-	 * driver has to send an extra command to the database server to test the
-	 * connection.
-	 *
-	 * <p>
-	 * This method requires Java 1.6 or newer.
-	 *
-	 * @throws TimeoutException
-	 *             when no valid connection becomes available within
-	 *             <code>timeout</code> seconds.
+	 * Used to remove a connection from the pool and close it. Returns the
+	 * previous state of the connection.
 	 */
-	public Connection getValidConnection() {
-		long time = System.currentTimeMillis();
-		long timeoutTime = time + timeoutMs;
-		int triesWithoutDelay = getInactiveConnections() + 1;
-		while (true) {
-			java.sql.Connection conn = getValidConnection2(time, timeoutTime);
-			if (conn != null) {
-				return new Connection(conn);
-			}
-			triesWithoutDelay--;
-			if (triesWithoutDelay <= 0) {
-				triesWithoutDelay = 0;
+	private int remove(PoolEntry entry) {
+		int state = entry.state.getAndSet(REMOVED);
+		if (state == REMOVED) {
+			return state;
+		}
+		entries.remove(entry.pconn);
+		totalConnections.decrementAndGet();
+		closedConnections.increment();
+		entry.pconn.removeConnectionEventListener(poolConnectionEventListener);
+		closeStatements(entry);
+		closeConnectionAndIgnoreException(entry.pconn);
+		signalAvailable();
+		return state;
+	}
+
+	// **************************************************************************
+	// ** closeIdleConnections
+	// **************************************************************************
+	/**
+	 * Used to close all idle connections. Returns the first exception thrown
+	 * by a connection, if any.
+	 */
+	private SQLException closeIdleConnections() {
+		SQLException e = null;
+		while (pop() != null) {
+		}
+		for (PoolEntry entry : entries.values()) {
+			if (entry.state.compareAndSet(IDLE, RESERVED)) {
+				entry.state.set(REMOVED);
+				entries.remove(entry.pconn);
+				totalConnections.decrementAndGet();
+				closedConnections.increment();
+				entry.pconn.removeConnectionEventListener(poolConnectionEventListener);
+				closeStatements(entry);
 				try {
-					Thread.sleep(250);
-				} catch (InterruptedException e) {
-					throw new RuntimeException("Interrupted while waiting for a valid database connection.", e);
+					entry.pconn.close();
+				} catch (SQLException e2) {
+					if (e == null) {
+						e = e2;
+					}
 				}
 			}
-			time = System.currentTimeMillis();
-			if (time >= timeoutTime) {
-				throw new TimeoutException("Timeout while waiting for a valid database connection.");
-			}
 		}
+		return e;
 	}
 
-	private java.sql.Connection getValidConnection2(long time, long timeoutTime) {
-		long rtime = Math.max(1, timeoutTime - time);
-		java.sql.Connection conn;
-		try {
-			conn = getConnection2(rtime);
-		} catch (SQLException e) {
-			return null;
+	// **************************************************************************
+	// ** push
+	// **************************************************************************
+	/** Adds an idle connection to the stack, unless it is already there. */
+	private void push(PoolEntry entry) {
+		if (entry.inStack.getAndSet(true)) {
+			return;
 		}
-		rtime = timeoutTime - System.currentTimeMillis();
-		int rtimeSecs = Math.max(1, (int) ((rtime + 999) / 1000));
-		try {
-			if (conn.isValid(rtimeSecs)) {
-				return conn;
+		Node node = new Node(entry);
+		while (true) {
+			Node head = idle.get();
+			node.next = head;
+			if (idle.compareAndSet(head, node)) {
+				return;
 			}
-		} catch (SQLException e) {
 		}
-		// This Exception should never occur. If it nevertheless occurs, it's
-		// because of an error in the
-		// JDBC driver which we ignore and assume that the connection is not
-		// valid.
-		// When isValid() returns false, the JDBC driver should have already
-		// called connectionErrorOccurred()
-		// and the PooledConnection has been removed from the pool, i.e. the
-		// PooledConnection will
-		// not be added to recycledConnections when Connection.close() is
-		// called.
-		// But to be sure that this works even with a faulty JDBC driver, we
-		// call purgeConnection().
-		purgeConnection(conn);
-		return null;
-	}
-
-	// Purges the PooledConnection associated with the passed Connection from
-	// the connection pool.
-	private synchronized void purgeConnection(java.sql.Connection conn) {
-		try {
-			doPurgeConnection = true;
-			// (A potential problem of this program logic is that setting the
-			// doPurgeConnection flag
-			// has an effect only if the JDBC driver calls connectionClosed()
-			// synchronously within
-			// Connection.close().)
-			conn.close();
-		} catch (SQLException e) {
-		}
-		// ignore exception from close()
-		finally {
-			doPurgeConnection = false;
+	}
+
+	// **************************************************************************
+	// ** pop
+	// **************************************************************************
+	/**
+	 * Removes a connection from the stack. Note that the connection may no
+	 * longer be idle.
+	 */
+	private PoolEntry pop() {
+		while (true) {
+			Node head = idle.get();
+			if (head == null) {
+				return null;
+			}
+			if (idle.compareAndSet(head, head.next)) {
+				head.entry.inStack.set(false);
+				return head.entry;
+			}
 		}
 	}
 
-	private synchronized void recycleConnection(PooledConnection pconn) {
-		if (isDisposed || doPurgeConnection) {
-			disposeConnection(pconn);
+	// **************************************************************************
+	// ** isExpired
+	// **************************************************************************
+	/** Returns true if the connection has reached its maximum lifetime. */
+	private boolean isExpired(PoolEntry entry, long now) {
+		long maxLifetime = this.maxLifetime;
+		return maxLifetime > 0 && now - entry.createdAt >= maxLifetime;
+	}
+
+	// **************************************************************************
+	// ** startHousekeeper
+	// **************************************************************************
+	/**
+	 * Used to schedule the background task that validates idle connections,
+	 * retires old connections and detects leaks. The task runs on a daemon
+	 * thread shared by all pools.
+	 */
+	private synchronized void startHousekeeper() {
+		if (housekeeper != null || isDisposed) {
 			return;
 		}
-		if (activeConnections <= 0) {
-			throw new AssertionError();
+		synchronized (ConnectionPool.class) {
+			if (scheduler == null) {
+				scheduler = java.util.concurrent.Executors
+				        .newSingleThreadScheduledExecutor(new java.util.concurrent.ThreadFactory() {
+					        @Override
+					        public Thread newThread(Runnable r) {
+						        Thread t = new Thread(r, "ConnectionPool-Housekeeper");
+						        t.setDaemon(true);
+						        return t;
+					        }
+				        });
+			}
 		}
-		activeConnections--;
-		semaphore.release();
-		recycledConnections.add(pconn);
-		assertInnerState();
+		housekeeper = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					housekeep();
+				} catch (Throwable e) {
+					log().e("Housekeeping failed", e);
+				}
+			}
+		}, housekeepingInterval, housekeepingInterval, TimeUnit.MILLISECONDS);
 	}
 
-	private synchronized void disposeConnection(PooledConnection pconn) {
-		pconn.removeConnectionEventListener(poolConnectionEventListener);
-		if (!recycledConnections.remove(pconn) && pconn != connectionInTransition) {
-			// If the PooledConnection is not in the recycledConnections list
-			// and is not currently within a PooledConnection.getConnection()
-			// call,
-			// we assume that the connection was active.
-			if (activeConnections <= 0) {
-				throw new AssertionError();
+	// **************************************************************************
+	// ** housekeep
+	// **************************************************************************
+	/**
+	 * Called periodically to retire idle connections that have reached their
+	 * maximum lifetime, validate connections that have been idle for longer
+	 * than the keepalive time and report connections that have been borrowed
+	 * for longer than the leak detection threshold.
+	 */
+	private void housekeep() {
+		for (PoolEntry entry : entries.values()) {
+			if (isDisposed) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			int state = entry.state.get();
+
+			if (state == IN_USE) {
+				long threshold = leakDetectionThreshold;
+				if (threshold > 0 && !entry.leakReported && now - entry.borrowedAt > threshold) {
+					entry.leakReported = true;
+					leakedConnections.increment();
+					log().w("Possible connection leak. Connection has been in use for " + (now - entry.borrowedAt)
+					        + " ms.", entry.borrower);
+				}
+				continue;
+			}
+			if (state != IDLE) {
+				continue;
+			}
+
+			boolean expired = isExpired(entry, now);
+			long keepaliveTime = this.keepaliveTime;
+			boolean validate = keepaliveTime > 0
+			        && now - Math.max(entry.lastUsed, entry.lastValidated) >= keepaliveTime;
+			if (!expired && !validate) {
+				continue;
+			}
+			if (!entry.state.compareAndSet(IDLE, RESERVED)) {
+				continue;
+			}
+			if (expired) {
+				remove(entry);
+				continue;
+			}
+
+			// Validate the connection using the handle kept by the entry
+			boolean valid = false;
+			try {
+				openHandle(entry);
+				valid = entry.handle.isValid(5);
+			} catch (SQLException e) {
+			}
+			if (valid) {
+				entry.lastValidated = System.currentTimeMillis();
+				if (entry.state.compareAndSet(RESERVED, IDLE)) {
+					push(entry);
+					signalAvailable();
+				}
+			} else {
+				remove(entry);
 			}
-			activeConnections--;
-			semaphore.release();
 		}
-		closeConnectionAndIgnoreException(pconn);
-		assertInnerState();
 	}
 
 	private void closeConnectionAndIgnoreException(PooledConnection pconn) {
@@ -385,29 +793,70 @@ public class ConnectionPool extends MLog {
 		}
 	}
 
-	private synchronized void assertInnerState() {
-		if (activeConnections < 0) {
-			throw new AssertionError();
-		}
-		if (activeConnections + recycledConnections.size() > maxConnections) {
-			throw new AssertionError();
-		}
-		if (activeConnections + semaphore.availablePermits() > maxConnections) {
-			throw new AssertionError();
-		}
-	}
-
 	private class PoolConnectionEventListener implements ConnectionEventListener {
 		@Override
 		public void connectionClosed(ConnectionEvent event) {
-			PooledConnection pconn = (PooledConnection) event.getSource();
-			recycleConnection(pconn);
+			// The JDBC Connection of a borrowed entry was closed directly
+			// (e.g. because it was found to be invalid). Events fired while
+			// the entry is idle or reserved are ignored.
+			PoolEntry entry = entries.get(event.getSource());
+			if (entry != null && entry.state.get() == IN_USE && !entry.inTransition
+			        && entry.borrowToken.getAndSet(null) != null) {
+				release(entry);
+			}
 		}
 
 		@Override
 		public void connectionErrorOccurred(ConnectionEvent event) {
 			PooledConnection pconn = (PooledConnection) event.getSource();
-			disposeConnection(pconn);
+			PoolEntry entry = entries.get(pconn);
+			if (entry == null) {
+				pconn.removeConnectionEventListener(this);
+				closeConnectionAndIgnoreException(pconn);
+				return;
+			}
+			boolean inTransition = entry.inTransition;
+			entry.borrowToken.set(null);
+			if (remove(entry) == IN_USE && !inTransition) {
+				usageTimes.record((System.currentTimeMillis() - entry.borrowedAt) * 1000);
+				semaphore.release();
+			}
+		}
+	}
+
+	// **************************************************************************
+	// ** PoolEntry
+	// **************************************************************************
+	/** A physical connection managed by the pool. */
+	private static class PoolEntry {
+		private final PooledConnection pconn;
+		private final AtomicInteger state = new AtomicInteger(IDLE);
+		private final java.util.concurrent.atomic.AtomicBoolean inStack = new java.util.concurrent.atomic.AtomicBoolean();
+		private final long createdAt = System.currentTimeMillis();
+		private volatile long lastUsed = createdAt;
+		private volatile long lastValidated = createdAt;
+		private volatile long borrowedAt;
+		private volatile boolean inTransition;
+		private volatile boolean evict;
+		private volatile boolean leakReported;
+		private volatile Exception borrower;
+		private volatile java.sql.Connection handle;
+		private volatile StatementCache statementCache;
+		private final AtomicReference<Object> borrowToken = new AtomicReference<Object>();
+		private Database database;
+
+		private PoolEntry(PooledConnection pconn) {
+			this.pconn = pconn;
+		}
+	}
+
+	/** Node in the stack of idle connections. */
+	private static class Node {
+		private final PoolEntry entry;
+		private Node next;
+
+		private Node(PoolEntry entry) {
+			this.entry = entry;
 		}
 	}
 
@@ -421,8 +870,8 @@ public class ConnectionPool extends MLog {
 	 *
 	 * @return the number of active connections.
 	 **/
-	public synchronized int getActiveConnections() {
-		return activeConnections;
+	public int getActiveConnections() {
+		return count(IN_USE);
 	}
 
 	/**
@@ -435,8 +884,26 @@ public class ConnectionPool extends MLog {
 	 *
 	 * @return the number of inactive connections.
 	 **/
-	public synchronized int getInactiveConnections() {
-		return recycledConnections.size();
+	public int getInactiveConnections() {
+		return count(IDLE);
+	}
+
+	private int count(int state) {
+		int n = 0;
+		for (PoolEntry entry : entries.values()) {
+			if (entry.state.get() == state) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of physical connections that are currently open,
+	 * including connections that are being validated.
+	 */
+	public int getTotalConnections() {
+		return totalConnections.get();
 	}
 
 	public int getMaxConnections() {
@@ -450,4 +917,77 @@ public class ConnectionPool extends MLog {
 	public int getTimeout() {
 		return Math.round(timeoutMs / 1000);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Used to set the maximum lifetime of a connection, in seconds. Older
+	 * connections are closed once they are returned to the pool or, if they
+	 * are idle, by the background task. Use 0 to keep connections open
+	 * indefinitely. Default is 30 minutes.
+	 */
+	public void setMaxLifetime(int seconds) {
+		maxLifetime = Math.max(0, seconds) * 1000L;
+	}
+
+	public int getMaxLifetime() {
+		return (int) (maxLifetime / 1000);
+	}
+
+	/**
+	 * Used to set the time, in seconds, after which an idle connection is
+	 * validated by the background task. Invalid connections are removed from
+	 * the pool. Use 0 to disable background validation. Default is 2
+	 * minutes.
+	 */
+	public void setKeepaliveTime(int seconds) {
+		keepaliveTime = Math.max(0, seconds) * 1000L;
+	}
+
+	public int getKeepaliveTime() {
+		return (int) (keepaliveTime / 1000);
+	}
+
+	/**
+	 * Used to set the time, in seconds, after which a borrowed connection that
+	 * has not been closed is reported as a possible leak. The log message
+	 * includes the stack trace of the code that borrowed the connection. Use
+	 * 0 to disable leak detection (default).
+	 */
+	public void setLeakDetectionThreshold(int seconds) {
+		leakDetectionThreshold = Math.max(0, seconds) * 1000L;
+	}
+
+	public int getLeakDetectionThreshold() {
+		return (int) (leakDetectionThreshold / 1000);
+	}
+
+	/**
+	 * Returns a histogram of the time, in microseconds, that callers waited
+	 * for a connection (including the time to open new connections).
+	 */
+	public Histogram getWaitTimes() {
+		return waitTimes;
+	}
+
+	/**
+	 * Returns a histogram of the time, in microseconds, that connections were
+	 * borrowed before they were returned to the pool.
+	 */
+	public Histogram getUsageTimes() {
+		return usageTimes;
+	}
+
+	/** Returns the number of physical connections opened by the pool. */
+	public long getCreatedConnections() {
+		return createdConnections.sum();
+	}
+
+	/** Returns the number of physical connections closed by the pool. */
+	public long getClosedConnections() {
+		return closedConnections.sum();
+	}
+
+	/** Returns the number of connections that were reported as leaks. */
+	public long getLeakedConnections() {
+		return leakedConnections.sum();
+	}
+}
@@ -31,6 +31,7 @@ public class Database implements Cloneable {
 	private java.util.Properties properties;
 	private String querystring;
 	private ConnectionPoolDataSource ConnectionPoolDataSource;
+	private MetadataCache metadataCache;
 	private static final Class<?>[] stringType = { String.class };
 	private static final Class<?>[] integerType = { Integer.TYPE };
 
@@ -572,12 +573,23 @@ public class Database implements Cloneable {
 	// ** getTables
 	// **************************************************************************
 	/**
-	 * Used to retrieve an array of tables found in this database.
+	 * Used to retrieve an array of tables found in this database. The list of
+	 * tables is cached (see getMetadataCache).
 	 */
 	public static Table[] getTables(Connection conn) {
 		try {
-			java.util.ArrayList<Table> tables = new java.util.ArrayList<Table>();
 			DatabaseMetaData dbmd = conn.getConnection().getMetaData();
+			Database database = conn.getDatabase();
+			if (database != null) {
+				Table[] tables = database.getMetadataCache().getTables(conn);
+				Table[] arr = new Table[tables.length];
+				for (int i = 0; i < tables.length; i++) {
+					arr[i] = new Table(tables[i], dbmd);
+				}
+				return arr;
+			}
+
+			java.util.ArrayList<Table> tables = new java.util.ArrayList<Table>();
 			ResultSet rs = dbmd.getTables(null, null, null, new String[] { "TABLE" });
 			while (rs.next()) {
 				tables.add(new Table(rs, dbmd));
@@ -590,6 +602,23 @@ public class Database implements Cloneable {
 		}
 	}
 
+	// **************************************************************************
+	// ** getMetadataCache
+	// **************************************************************************
+	/**
+	 * Returns the cache used to store the tables, columns and primary keys of
+	 * this database. The cache is shared by all Database objects with the same
+	 * url and username. Use MetadataCache.invalidate() after changing the
+	 * schema.
+	 */
+	public MetadataCache getMetadataCache() {
+		if (metadataCache == null) {
+			MetadataCache cache = MetadataCache.getCache(this);
+			metadataCache = (cache == null ? new MetadataCache() : cache);
+		}
+		return metadataCache;
+	}
+
 	// **************************************************************************
 	// ** getCatalogs
 	// **************************************************************************
@@ -17,6 +17,8 @@ public class Field {
 	private String Schema = null;
 	protected String Class = null;
 	protected boolean RequiresUpdate = false;
+	protected java.sql.ResultSet rs = null; // used to load the value lazily
+	private int index;
 
 	// **************************************************************************
 	// ** Constructor
@@ -102,11 +104,35 @@ public class Field {
 	/** Returns the value for this field. */
 
 	public Value getValue() {
-		if (Value == null)
-			Value = new Value(null);
+		if (Value == null) {
+			Object obj = null;
+			if (rs != null) {
+				try {
+					obj = rs.getObject(index);
+				} catch (java.sql.SQLException e) {
+				}
+				rs = null;
+			}
+			Value = new Value(obj);
+		}
 		return Value;
 	}
 
+	// **************************************************************************
+	// ** load
+	// **************************************************************************
+	/**
+	 * Used to set the value of this field to the value of a given column in
+	 * the current row of a ResultSet. The value is only read from the
+	 * ResultSet when getValue() is called.
+	 */
+	protected void load(java.sql.ResultSet rs, int i) {
+		this.rs = rs;
+		this.index = i;
+		Value = null;
+		RequiresUpdate = false;
+	}
+
 	// **************************************************************************
 	// ** getTable
 	// **************************************************************************
@@ -161,6 +187,7 @@ public class Field {
 		Name = null;
 		Type = null;
 		Value = new Value(null);
+		rs = null;
 		Table = null;
 		Schema = null;
 		Class = null;
@@ -0,0 +1,227 @@
+package javaxt.sql;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+
+//******************************************************************************
+//**  MetadataCache
+//******************************************************************************
+/**
+ * Used to cache the tables, columns and primary keys of a database so that
+ * metadata queries are not sent to the server for every record that is
+ * inserted or updated via a Recordset. A cache is shared by all the Database
+ * objects with the same url and username. Entries expire after a
+ * configurable time to live. Use one of the invalidate methods after the
+ * schema has been changed (e.g. after a "CREATE TABLE" or "ALTER TABLE"
+ * statement).
+ *
+ ******************************************************************************/
+
+public class MetadataCache {
+
+	private static final java.util.concurrent.ConcurrentHashMap<String, MetadataCache> caches = new java.util.concurrent.ConcurrentHashMap<String, MetadataCache>();
+
+	private volatile long ttl = 10 * 60 * 1000;
+	private volatile TableList tables;
+	private final java.util.concurrent.ConcurrentHashMap<String, TableInfo> info = new java.util.concurrent.ConcurrentHashMap<String, TableInfo>();
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	/** Creates a cache that is not shared with other Database objects. */
+
+	protected MetadataCache() {
+	}
+
+	// **************************************************************************
+	// ** getCache
+	// **************************************************************************
+	/**
+	 * Returns the cache for a given database. Returns null if the url of the
+	 * database cannot be determined (e.g. the driver is unknown).
+	 */
+	protected static MetadataCache getCache(Database database) {
+		String key;
+		try {
+			key = database.getURL() + ";user=" + database.getUserName();
+		} catch (Exception e) {
+			return null;
+		}
+		MetadataCache cache = caches.get(key);
+		if (cache == null) {
+			cache = new MetadataCache();
+			MetadataCache prev = caches.putIfAbsent(key, cache);
+			if (prev != null)
+				cache = prev;
+		}
+		return cache;
+	}
+
+	// **************************************************************************
+	// ** setTimeToLive
+	// **************************************************************************
+	/**
+	 * Used to set the time, in seconds, after which cached metadata is read
+	 * from the database again. A value of 0 disables the cache. Default is 10
+	 * minutes.
+	 */
+	public void setTimeToLive(int seconds) {
+		ttl = Math.max(0, seconds) * 1000L;
+	}
+
+	public int getTimeToLive() {
+		return (int) (ttl / 1000);
+	}
+
+	// **************************************************************************
+	// ** invalidate
+	// **************************************************************************
+	/** Used to remove all the entries in the cache. */
+
+	public void invalidate() {
+		tables = null;
+		info.clear();
+	}
+
+	// **************************************************************************
+	// ** invalidate
+	// **************************************************************************
+	/**
+	 * Used to remove the entries for a given table (e.g. after the table has
+	 * been altered). The list of tables is read again as well.
+	 */
+	public void invalidate(String tableName) {
+		tables = null;
+		if (tableName != null)
+			info.remove(tableName.toLowerCase());
+	}
+
+	// **************************************************************************
+	// ** getTables
+	// **************************************************************************
+	/**
+	 * Returns the tables found in the database. Note that the Table objects
+	 * are shared and use the metadata of the connection that was used to load
+	 * them.
+	 */
+	protected Table[] getTables(Connection conn) throws java.sql.SQLException {
+		TableList list = tables;
+		if (list == null || isExpired(list.loaded)) {
+			DatabaseMetaData dbmd = conn.getConnection().getMetaData();
+			java.util.ArrayList<Table> arr = new java.util.ArrayList<Table>();
+			ResultSet rs = dbmd.getTables(null, null, null, new String[] { "TABLE" });
+			try {
+				while (rs.next()) {
+					arr.add(new Table(rs, dbmd));
+				}
+			} finally {
+				rs.close();
+			}
+			list = new TableList(arr.toArray(new Table[arr.size()]));
+			if (ttl > 0)
+				tables = list;
+		}
+		return list.tables;
+	}
+
+	// **************************************************************************
+	// ** getPrimaryKeys
+	// **************************************************************************
+	/**
+	 * Returns the primary keys of a given table. Returns null if the table is
+	 * not found or if the keys cannot be read.
+	 */
+	public Key[] getPrimaryKeys(Connection conn, String tableName) {
+		TableInfo table = getTableInfo(conn, tableName);
+		if (table == null || table.table == null)
+			return null;
+		Key[] keys = table.primaryKeys;
+		if (keys == null) {
+			try {
+				keys = table.table.getPrimaryKeys(conn.getConnection().getMetaData());
+			} catch (Exception e) {
+				return null;
+			}
+			table.primaryKeys = keys;
+		}
+		return keys;
+	}
+
+	// **************************************************************************
+	// ** getColumns
+	// **************************************************************************
+	/**
+	 * Returns the columns of a given table. Returns null if the table is not
+	 * found or if the columns cannot be read.
+	 */
+	public Column[] getColumns(Connection conn, String tableName) {
+		TableInfo table = getTableInfo(conn, tableName);
+		if (table == null || table.table == null)
+			return null;
+		Column[] columns = table.columns;
+		if (columns == null) {
+			try {
+				columns = table.table.getColumns(conn.getConnection().getMetaData());
+			} catch (Exception e) {
+				return null;
+			}
+			table.columns = columns;
+		}
+		return columns;
+	}
+
+	// **************************************************************************
+	// ** getTableInfo
+	// **************************************************************************
+	/**
+	 * Returns the cache entry for a given table. Tables that are not found are
+	 * cached as well so that the lookup is not repeated for every record.
+	 */
+	private TableInfo getTableInfo(Connection conn, String tableName) {
+		if (tableName == null)
+			return null;
+		String key = tableName.toLowerCase();
+		TableInfo table = info.get(key);
+		if (table != null && !isExpired(table.loaded))
+			return table;
+
+		table = new TableInfo();
+		try {
+			DatabaseMetaData dbmd = conn.getConnection().getMetaData();
+			ResultSet rs = dbmd.getTables(null, null, tableName, new String[] { "TABLE" });
+			try {
+				if (rs.next())
+					table.table = new Table(rs, dbmd);
+			} finally {
+				rs.close();
+			}
+		} catch (Exception e) {
+			return null;
+		}
+		if (ttl > 0)
+			info.put(key, table);
+		return table;
+	}
+
+	private boolean isExpired(long loaded) {
+		return System.currentTimeMillis() - loaded >= ttl;
+	}
+
+	/** Cached list of tables. */
+	private static class TableList {
+		private final Table[] tables;
+		private final long loaded = System.currentTimeMillis();
+
+		private TableList(Table[] tables) {
+			this.tables = tables;
+		}
+	}
+
+	/** Cached metadata for a table. */
+	private static class TableInfo {
+		private Table table;
+		private volatile Key[] primaryKeys;
+		private volatile Column[] columns;
+		private final long loaded = System.currentTimeMillis();
+	}
+}
@@ -10,7 +10,11 @@ package javaxt.sql;
  * Note that this implementation is incomplete and needs a lot more testing. For
  * example, the parser does not yet handle unions, subselects, and having
  * clauses. Other potential problems include arithmetic operators in the where
- * clause ("where posting_time + 60 > sysdate").
+ * clause ("where posting_time + 60 > sysdate"). <br>
+ *
+ * SQL statements are split into tokens in a single pass. The clauses of
+ * recently parsed statements are kept in a bounded cache keyed by the SQL
+ * text so that a statement is only tokenized once.
  *
  ******************************************************************************/
 
@@ -19,7 +23,7 @@ public class Parser {
 	private java.util.HashMap sql = new java.util.HashMap();
 
 	private static String[] sqlOperators = new String[] { "IS NULL", "IS NOT NULL", "BETWEEN", "CONTAINS", "LIKE", "<>",
-	        "<=", ">=", "=", "<", ">", "IN", "MATCHES", "SOME", "NOT EXISTS", "EXISTS" };
+	        "!=", "<=", ">=", "=", "<", ">", "IN", "MATCHES", "SOME", "NOT EXISTS", "EXISTS" };
 
 	private static String[] sqlKeywords = new String[] { "SELECT", "FROM", "WHERE", "ORDER BY", "GROUP BY", "HAVING" };
 
@@ -28,6 +32,15 @@ public class Parser {
 	        "RIGHT OUTER JOIN", "RIGHT INNER JOIN", "FULL OUTER JOIN", "LEFT OUTER JOIN", "LEFT INNER JOIN",
 	        "NATURAL JOIN", "RIGHT JOIN", "INNER JOIN", "OUTER JOIN", "CROSS JOIN", "LEFT JOIN", "JOIN" };
 
+	private static int cacheSize = 1000;
+	private static final java.util.LinkedHashMap<String, String[]> cache = new java.util.LinkedHashMap<String, String[]>(
+	        16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(java.util.Map.Entry<String, String[]> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
 	private SelectStatement[] selectStatements = null;
 	private WhereStatement[] whereStatements = null;
 	private OrderByStatement[] orderByStatements = null;
@@ -68,133 +81,107 @@ public class Parser {
 		if (sql == null)
 			return;
 
-		// Trim the sql statement
-		sql = sql.replace("\n", " ");
-		sql = sql.replace("\r", " ");
-		sql = sql.replace("\t", " ");
-		sql = sql.trim();
-		if (sql.endsWith(";"))
-			sql = sql.substring(0, sql.length() - 1).trim();
-		if (sql.length() <= 0)
-			return;
-
-		// Set local variables;
-		boolean insideSingleQuotes = false;
-		boolean insideDoubleQuotes = false;
-		boolean insideParenthesis = false;
-
-		int parenthesis = 0;
-
-		String s = sql;
-		String c = "";
-
-		// Create a list of possible sql keywords found in the sql statement
-		java.util.Vector keywords = new java.util.Vector();
-		String t = sql.toUpperCase();
+		String[] clauses = parse(sql);
 		for (int i = 0; i < sqlKeywords.length; i++) {
-			if (t.contains(sqlKeywords[i]))
-				keywords.add(sqlKeywords[i]);
+			if (clauses[i] != null)
+				this.sql.put(sqlKeywords[i], clauses[i]);
 		}
+	}
 
-		String currentKeyword = null;
-		String previousKeyword = null;
-
-		StringBuffer phrase = new StringBuffer();
-
-		for (int i = 0; i < s.length(); i++) {
-
-			c = s.substring(i, i + 1);
+	// **************************************************************************
+	// ** parse
+	// **************************************************************************
+	/**
+	 * Used to split an sql statement into clauses. Returns an array with an
+	 * entry for each of the sqlKeywords. The array is shared via the cache and
+	 * must not be modified.
+	 */
+	private static String[] parse(String sql) {
 
-			if (c.equals("\"")) {
-				if (!insideDoubleQuotes)
-					insideDoubleQuotes = true;
-				else
-					insideDoubleQuotes = false;
-			}
-			if (c.equals("'")) {
-				if (!insideSingleQuotes)
-					insideSingleQuotes = true;
-				else
-					insideSingleQuotes = false;
-			}
+		String[] clauses;
+		synchronized (cache) {
+			clauses = cache.get(sql);
+		}
+		if (clauses != null)
+			return clauses;
 
-			if ((c.equals("(") && !insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-				insideParenthesis = true;
-				parenthesis = 0;
-			}
-			if ((c.equals("(")) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-				parenthesis += 1;
-			}
-			if ((c.equals(")") && insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-				parenthesis = parenthesis - 1;
-				if (parenthesis == 0)
-					insideParenthesis = false;
+		// Trim the sql statement
+		String s = sql.replace('\n', ' ').replace('\r', ' ').replace('\t', ' ').trim();
+		if (s.endsWith(";"))
+			s = s.substring(0, s.length() - 1).trim();
+
+		// Find the keywords that are not wrapped in quotes or parentheses. Only
+		// the first occurrence of a keyword is used.
+		clauses = new String[sqlKeywords.length];
+		boolean[] found = new boolean[sqlKeywords.length];
+		Tokens tokens = new Tokens(s);
+		int prevKeyword = -1;
+		int prevEnd = 0;
+		for (int i = 0; i < tokens.size; i++) {
+			if (tokens.depth[i] != 0 || tokens.type[i] != Tokens.WORD)
+				continue;
+			for (int j = 0; j < sqlKeywords.length; j++) {
+				if (found[j])
+					continue;
+				int next = tokens.match(i, sqlKeywords[j]);
+				if (next < 0)
+					continue;
+				if (prevKeyword >= 0)
+					clauses[prevKeyword] = s.substring(prevEnd, tokens.start[i]).trim();
+				found[j] = true;
+				prevKeyword = j;
+				prevEnd = tokens.end[next - 1];
+				i = next - 1;
+				break;
 			}
+		}
+		if (prevKeyword >= 0)
+			clauses[prevKeyword] = s.substring(prevEnd).trim();
+		for (int i = 0; i < clauses.length; i++) {
+			if (clauses[i] != null && clauses[i].length() == 0)
+				clauses[i] = null;
+		}
 
-			phrase.append(c);
-
-			if (!insideDoubleQuotes && !insideSingleQuotes && !insideParenthesis) {
-
-				for (int j = 0; j < keywords.size(); j++) {
-					String keyword = keywords.get(j).toString();
-
-					if (keyword.startsWith(c.toUpperCase()) && (i + keyword.length()) <= s.length()) {
-
-						String str = s.substring(i, i + keyword.length());
-						if (str.equalsIgnoreCase(keyword)) { // Found a string
-						                                     // that contains an
-						                                     // sql keyword!
-
-							// Check whether the string is an actual keyword or
-							// part of another word
-							String a = "";
-							String b = "";
-							if (i > 0)
-								a = s.substring(i - 1, i);
-							if (i + keyword.length() + 1 < s.length())
-								b = s.substring(i + keyword.length(), i + keyword.length() + 1);
-
-							if ((a.equals("") || a.equals(" ") || a.equals(")") || a.equals("]") || a.equals("\"")
-							        || (keyword.equals("FROM") && a.equals("*")))
-							        && (b.equals("") || b.equals(" ") || b.equals("(") || b.equals("[")
-							                || b.equals("\"") || (keyword.equals("SELECT") && b.equals("*")))) {
-
-								currentKeyword = keyword;
-
-								String entry = phrase.substring(0, phrase.length() - 1).trim();
-								if (entry.length() > 0) {
-
-									Object prevStatement = this.sql.get(previousKeyword);
-									if (prevStatement == null) {
-										this.sql.put(previousKeyword, entry);
-									}
-
-									this.sql.put(currentKeyword, null);
-								}
-
-								phrase = new StringBuffer();
-								i = i + (keyword.length() - 1);
-
-								previousKeyword = currentKeyword;
-								keywords.remove(j);
-								break;
-							}
-						}
-
-					}
+		synchronized (cache) {
+			if (cacheSize > 0)
+				cache.put(sql, clauses);
+		}
+		return clauses;
+	}
 
-				}
+	// **************************************************************************
+	// ** setCacheSize
+	// **************************************************************************
+	/**
+	 * Used to set the maximum number of sql statements kept in the parse
+	 * cache. A value of 0 disables the cache. Default is 1000.
+	 */
+	public static void setCacheSize(int size) {
+		synchronized (cache) {
+			cacheSize = Math.max(0, size);
+			java.util.Iterator<String> it = cache.keySet().iterator();
+			while (cache.size() > cacheSize) {
+				it.next();
+				it.remove();
 			}
+		}
+	}
 
-			if (i == (s.length() - 1)) {
-				if (phrase.toString().trim().equals(s)) {
-				} else {
-					this.sql.put(previousKeyword, phrase.toString().trim());
+	public static int getCacheSize() {
+		synchronized (cache) {
+			return cacheSize;
+		}
+	}
 
-				}
-			}
+	// **************************************************************************
+	// ** clearCache
+	// **************************************************************************
+	/** Used to remove all the sql statements from the parse cache. */
 
-		} // end parsing text
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
 	}
 
 	// //**************************************************************************
@@ -336,74 +323,13 @@ public class Parser {
 			this.columnName = stripFunctions(statement);
 
 			// Find the alias, defined by the "AS" keyword
-			if (statement.toUpperCase().contains("AS")) {
-
-				boolean insideSingleQuotes = false;
-				boolean insideDoubleQuotes = false;
-				boolean insideParenthesis = false;
-				int parenthesis = 0;
-				String s = statement;
-				String c = "";
-
-				for (int i = 0; i < s.length(); i++) {
-
-					c = s.substring(i, i + 1);
-
-					if (c.equals("\"")) {
-						if (!insideDoubleQuotes)
-							insideDoubleQuotes = true;
-						else
-							insideDoubleQuotes = false;
-					}
-					if (c.equals("'")) {
-						if (!insideSingleQuotes)
-							insideSingleQuotes = true;
-						else
-							insideSingleQuotes = false;
-					}
-					if ((c.equals("(") && !insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						insideParenthesis = true;
-						parenthesis = 0;
-					}
-					if ((c.equals("(")) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						parenthesis += 1;
-					}
-					if ((c.equals(")") && insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						parenthesis = parenthesis - 1;
-						if (parenthesis == 0)
-							insideParenthesis = false;
-					}
-
-					if (!insideDoubleQuotes && !insideSingleQuotes && !insideParenthesis) {
-
-						if (c.equalsIgnoreCase("A") && (i + 3) < s.length()) {
-							String keyword = s.substring(i, i + 2);
-							if (keyword.equalsIgnoreCase("AS")) {
-
-								String as = s.substring(i + 2);
-
-								String prevChar = "";
-								String nextChar = "";
-								if (i - 1 >= 0 && i + 3 <= s.length()) {
-									prevChar = s.substring(i - 1, i);
-									nextChar = s.substring(i + 2, i + 3);
-								}
-
-								if ((prevChar.equals(" ") || prevChar.equals(")") || prevChar.equals("]")
-								        || prevChar.equals("\""))
-								        && (nextChar.equals(" ") || nextChar.equals("(") || nextChar.equals("[")
-								                || nextChar.equals("\""))) {
-									this.alias = removeParentheses(as);
-									this.columnName = stripFunctions(s.substring(0, i - 1).trim());
-								}
-
-							}
-						}
-					}
-
-				} // end parsing text
-
-			} // end if
+			Tokens tokens = new Tokens(statement);
+			for (int i = 1; i < tokens.size - 1; i++) {
+				if (tokens.depth[i] == 0 && tokens.match(i, "AS") > 0) {
+					this.alias = removeParentheses(statement.substring(tokens.end[i]));
+					this.columnName = stripFunctions(statement.substring(0, tokens.start[i]).trim());
+				}
+			}
 
 			// Iterate throught the list of operands and identify any exposed
 			// columns (columns that are not wrapped in quotes)
@@ -459,71 +385,26 @@ public class Parser {
 
 		if (fromClause.toUpperCase().contains("JOIN")) {
 
-			boolean insideSingleQuotes = false;
-			boolean insideDoubleQuotes = false;
-			String s = fromClause;
-			String c = "";
-
-			StringBuffer phrase = new StringBuffer();
-
-			for (int i = 0; i < s.length(); i++) {
-
-				c = s.substring(i, i + 1);
-
-				if (c.equals("\"")) {
-					if (!insideDoubleQuotes)
-						insideDoubleQuotes = true;
-					else
-						insideDoubleQuotes = false;
-				}
-				if (c.equals("'")) {
-					if (!insideSingleQuotes)
-						insideSingleQuotes = true;
-					else
-						insideSingleQuotes = false;
-				}
-
-				phrase.append(c);
-
-				if (!insideDoubleQuotes && !insideSingleQuotes) {
-
-					for (int j = 0; j < joinTypes.length; j++) {
-						String joinType = joinTypes[j];
-						if (joinType.startsWith(c.toUpperCase()) && (i + joinType.length()) <= s.length()) {
-							String keyword = s.substring(i, i + joinType.length());
-
-							if (keyword.equalsIgnoreCase(joinType)) {
-
-								String entry = phrase.substring(0, phrase.length() - 1).trim();
-								if (entry.length() > 0) {
-
-									phrase = new StringBuffer();
-									i = i + (keyword.length() - 1);
-
-									fromStatement.addEntry(entry);
-
-									// System.out.println("(+) " + entry + " ("
-									// + keyword + ")");
-
-								}
-
-								break;
-							}
-
-						}
-					}
-
-				}
-
-				if (i == (s.length() - 1)) {
-					if (phrase.toString().trim().equals(s)) {
-					} else {
-						String entry = phrase.toString().trim();
+			Tokens tokens = new Tokens(fromClause);
+			int start = 0;
+			for (int i = 0; i < tokens.size; i++) {
+				for (int j = 0; j < joinTypes.length; j++) {
+					int next = tokens.match(i, joinTypes[j]);
+					if (next < 0)
+						continue;
+					String entry = fromClause.substring(start, tokens.start[i]).trim();
+					if (entry.length() > 0)
 						fromStatement.addEntry(entry);
-					}
+					start = tokens.end[next - 1];
+					i = next - 1;
+					break;
 				}
-
-			} // end parsing text
+			}
+			if (start > 0) {
+				String entry = fromClause.substring(start).trim();
+				if (entry.length() > 0)
+					fromStatement.addEntry(entry);
+			}
 
 		} else {
 			String[] tables = javaxt.utils.string.split(fromClause, ",");
@@ -637,142 +518,62 @@ public class Parser {
 			return new WhereStatement[0];
 		} else {
 
-			// Create a list of sql fragments to parse
-			java.util.List list = new java.util.LinkedList();
-
-			// Add Where Clause to the list of sql fragments to parse
-			list.add(whereClause);
-
-			// Iterate through all the sql fragments and extract individual
-			// statements
-			for (int x = 0; x < list.size(); x++) {
-
-				boolean insideSingleQuotes = false;
-				boolean insideDoubleQuotes = false;
-				boolean insideParenthesis = false;
-
-				int parenthesis = 0;
-
-				String s = list.get(x).toString().trim();
-				String c = "";
-
-				/*
-				 * System.out.println(); System.out.println(
-				 * "-----------------------------------------");
-				 * System.out.println(s); System.out.println(
-				 * "-----------------------------------------");
-				 */
-
-				StringBuffer phrase = new StringBuffer();
-
-				for (int i = 0; i < s.length(); i++) {
-
-					c = s.substring(i, i + 1);
-
-					if (c.equals("\"")) {
-						if (!insideDoubleQuotes)
-							insideDoubleQuotes = true;
-						else
-							insideDoubleQuotes = false;
-					}
-					if (c.equals("'")) {
-						if (!insideSingleQuotes)
-							insideSingleQuotes = true;
-						else
-							insideSingleQuotes = false;
-					}
-
-					if ((c.equals("(") && !insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						insideParenthesis = true;
-						parenthesis = 0;
-					}
-					if ((c.equals("(")) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						parenthesis += 1;
-					}
-					if ((c.equals(")") && insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						parenthesis = parenthesis - 1;
-						if (parenthesis == 0)
-							insideParenthesis = false;
-					}
-
-					phrase.append(c);
-
-					if (!insideDoubleQuotes && !insideSingleQuotes && !insideParenthesis) {
-
-						String keyword = null;
-						if (c.equalsIgnoreCase("A") && (i + 3) < s.length()) {
-							keyword = s.substring(i, i + 3);
-							if (!keyword.equalsIgnoreCase("AND"))
-								keyword = null;
-						} else if (c.equalsIgnoreCase("O") && (i + 2) < s.length()) {
-							keyword = s.substring(i, i + 2);
-							if (!keyword.equalsIgnoreCase("OR"))
-								keyword = null;
-						}
-
-						if (keyword != null) {
-
-							String entry = phrase.substring(0, phrase.length() - 1).trim();
-							entry = removeParentheses(entry);
-							if (entry.length() > 0) {
-								list.add(entry);
-								phrase = new StringBuffer();
-								i = i + (keyword.length() - 1);
-								// System.out.println("(+) " + entry);
-							}
-						}
-					}
-
-					if (i == (s.length() - 1)) {
-						if (phrase.toString().trim().equals(s)) { // <--might
-						                                          // need to
-						                                          // check the
-						                                          // size of the
-						                                          // list as
-						                                          // well
-						} else {
-
-							String entry = phrase.toString().trim();
-							// entry = phrase.substring(0,
-							// phrase.length()-1).trim();
-							entry = removeParentheses(entry);
-							list.add(entry);
-							list.remove(x);
-
-							// System.out.println("(+) " + entry + " *");
-							// System.out.println("(-) " + s);
-						}
-					}
-
-				} // end parsing text
-
-			}
-
-			// Create a list of possible SQL Operators found in the Where clause
-			java.util.List operators = new java.util.LinkedList();
-			for (int i = 0; i < Parser.sqlOperators.length; i++) {
-				String operator = Parser.sqlOperators[i];
-				if (whereClause.toUpperCase().contains(operator)) {
-					operators.add(operator);
-				}
-			}
-			String[] sqlOperators = new String[operators.size()];
-			for (int i = 0; i < sqlOperators.length; i++) {
-				sqlOperators[i] = (String) operators.get(i);
-			}
+			// Split the where clause into individual conditions
+			java.util.List<String> list = new java.util.ArrayList<String>();
+			splitConditions(whereClause, list);
 
 			// Iterate through all the where statements and create an array
 			WhereStatement[] statements = new WhereStatement[list.size()];
-			for (int i = 0; i < list.size(); i++) {
-				String entry = list.get(i).toString();
-				// System.out.println("xx " + entry);
-				statements[i] = new WhereStatement(entry, sqlOperators);
+			for (int i = 0; i < statements.length; i++) {
+				statements[i] = new WhereStatement(list.get(i), sqlOperators);
 			}
 			this.whereStatements = statements;
 			return statements;
 		}
 	}
 
+	// **************************************************************************
+	// ** splitConditions
+	// **************************************************************************
+	/**
+	 * Used to split a where clause into individual conditions. Conditions are
+	 * separated by "AND" and "OR" operators that are not wrapped in quotes or
+	 * parentheses. The "AND" following a "BETWEEN" operator is part of the
+	 * condition. Conditions wrapped in parentheses are split recursively.
+	 */
+	private void splitConditions(String clause, java.util.List<String> list) {
+
+		clause = clause.trim();
+		if (clause.length() == 0)
+			return;
+
+		Tokens tokens = new Tokens(clause);
+		int start = 0;
+		boolean between = false;
+		for (int i = 0; i < tokens.size; i++) {
+			if (tokens.depth[i] != 0 || tokens.type[i] != Tokens.WORD)
+				continue;
+			if (tokens.match(i, "BETWEEN") > 0) {
+				between = true;
+			} else if (tokens.match(i, "AND") > 0 && between) {
+				between = false;
+			} else if (tokens.match(i, "AND") > 0 || tokens.match(i, "OR") > 0) {
+				splitConditions(clause.substring(start, tokens.start[i]), list);
+				start = tokens.end[i];
+			}
+		}
+
+		if (start > 0) {
+			splitConditions(clause.substring(start), list);
+		} else {
+			String s = removeParentheses(clause);
+			if (s.length() < clause.length())
+				splitConditions(s, list);
+			else
+				list.add(clause);
+		}
+	}
+
 	// **************************************************************************
 	// ** WhereStatement
 	// **************************************************************************
@@ -787,7 +588,7 @@ public class Parser {
 		private String leftOperand = null;
 		private String rightOperand = null;
 		private String operator = null;
-		private java.util.List exposedColumns = new java.util.LinkedList();
+		private java.util.List<String> exposedColumns = new java.util.LinkedList<String>();
 
 		public WhereStatement(String statement) {
 			this(statement, sqlOperators);
@@ -798,136 +599,44 @@ public class Parser {
 
 			if (statement != null) {
 
-				// Trim down the list of sql operators
-				java.util.Vector array = new java.util.Vector();
-				for (int i = 0; i < sqlOperators.length; i++) {
-					String sqlOperator = sqlOperators[i];
-					if (statement.toUpperCase().contains(sqlOperator)) {
-						array.add(sqlOperator);
-					}
-				}
-				sqlOperators = new String[array.size()];
-				for (int i = 0; i < sqlOperators.length; i++) {
-					sqlOperators[i] = (String) array.get(i);
-				}
-
-				boolean insideSingleQuotes = false;
-				boolean insideDoubleQuotes = false;
-				boolean insideParenthesis = false;
-				int parenthesis = 0;
-				String s = statement;
-				String c = "";
-				StringBuffer phrase = new StringBuffer();
-				java.util.List list = new java.util.LinkedList();
-
-				for (int i = 0; i < s.length(); i++) {
-
-					c = s.substring(i, i + 1);
-
-					if (c.equals("\"")) {
-						if (!insideDoubleQuotes)
-							insideDoubleQuotes = true;
-						else
-							insideDoubleQuotes = false;
-					}
-					if (c.equals("'")) {
-						if (!insideSingleQuotes)
-							insideSingleQuotes = true;
-						else
-							insideSingleQuotes = false;
-					}
-
-					if ((c.equals("(") && !insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						insideParenthesis = true;
-						parenthesis = 0;
-					}
-					if ((c.equals("(")) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						parenthesis += 1;
-					}
-					if ((c.equals(")") && insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-						parenthesis = parenthesis - 1;
-						if (parenthesis == 0)
-							insideParenthesis = false;
-					}
-
-					phrase.append(c);
-
-					if (!insideDoubleQuotes && !insideSingleQuotes && !insideParenthesis) {
-
-						for (int j = 0; j < sqlOperators.length; j++) {
-							String sqlOperator = sqlOperators[j];
-
-							if (sqlOperator.toUpperCase().startsWith(c.toUpperCase())
-							        && (i + sqlOperator.length()) <= s.length()) {
-
-								String keyword = s.substring(i, i + sqlOperator.length());
-								if (keyword.equalsIgnoreCase(sqlOperator)) {
-
-									String a = "";
-									String b = "";
-									if (i > 0)
-										a = s.substring(i - 1, i);
-									if (i + keyword.length() + 1 < s.length())
-										b = s.substring(i + keyword.length(), i + keyword.length() + 1);
-
-									if (
-									// Check if keyword is part of another word
-									((a.equals("") || a.equals(" ") || a.equals(")") || a.equals("]") || a.equals("\""))
-									        && (b.equals("") || b.equals(" ") || b.equals("(") || b.equals("[")
-									                || b.equals("\"")))
-									        || (
-									// Check if keyword is a symbol
-									keyword.equals("<>") || keyword.equals("<=") || keyword.equals(">=")
-									        || keyword.equals("=") || keyword.equals("<") || keyword.equals(">"))) {
-
-										String entry = phrase.substring(0, phrase.length() - 1).trim();
-										i = i + (keyword.length() - 1);
-										phrase = new StringBuffer();
-
-										if (entry.length() > 0) {
-											list.add(entry);
-											this.operator = keyword;
-											this.leftOperand = entry;
-										} else {
-											// Things like "NOT EXISTS"
-											// statements
-											this.operator = keyword;
-											this.leftOperand = null;
-										}
-										break;
-									}
-								}
-							}
+				// Find the first operator that is not wrapped in quotes or
+				// parentheses
+				java.util.List<String> list = new java.util.LinkedList<String>();
+				Tokens tokens = new Tokens(statement);
+				for (int i = 0; i < tokens.size && this.operator == null; i++) {
+					if (tokens.depth[i] != 0)
+						continue;
+					for (int j = 0; j < sqlOperators.length; j++) {
+						int next = tokens.match(i, sqlOperators[j]);
+						if (next < 0)
+							continue;
+
+						this.operator = statement.substring(tokens.start[i], tokens.end[next - 1]);
+
+						// Things like "NOT EXISTS" statements don't have a
+						// left operand
+						String entry = statement.substring(0, tokens.start[i]).trim();
+						if (entry.length() > 0) {
+							list.add(entry);
+							this.leftOperand = entry;
 						}
-					}
-
-					if (i == (s.length() - 1)) {
-						if (phrase.toString().trim().equals(s)) {
-						} else {
-
-							String entry = phrase.toString().trim();
-							if (entry.length() > 0) {
-
-								if (!entry.equalsIgnoreCase("null")) {
-									list.add(entry);
-								}
-
-								// System.out.println("(+) " + entry + " **");
-								// System.out.println("(-) " + s);
 
-								this.rightOperand = entry;
+						entry = statement.substring(tokens.end[next - 1]).trim();
+						if (entry.length() > 0) {
+							if (!entry.equalsIgnoreCase("null")) {
+								list.add(entry);
 							}
-
+							this.rightOperand = entry;
 						}
+						break;
 					}
-
-				} // end parsing text
+				}
 
 				// Iterate throught the list of operands and identify any
 				// exposed columns (columns that are not wrapped in quotes)
-				exposedColumns = new java.util.LinkedList();
+				exposedColumns = new java.util.LinkedList<String>();
 				for (int i = 0; i < list.size(); i++) {
-					String entry = (String) list.get(i);
+					String entry = list.get(i);
 					if (entry != null) {
 						entry = stripFunctions(entry);
 						if (isExposed(entry)) {
@@ -1487,59 +1196,15 @@ public class Parser {
 
 		if (text.startsWith("(") && text.endsWith(")")) {
 
-			boolean insideSingleQuotes = false;
-			boolean insideDoubleQuotes = false;
-			boolean insideParenthesis = false;
-
-			int parenthesis = 0;
-			int gaps = 0;
-
-			String s = text;
-			String c = "";
-
-			for (int i = 0; i < s.length(); i++) {
-
-				c = s.substring(i, i + 1);
-
-				if (c.equals("\"")) {
-					if (!insideDoubleQuotes)
-						insideDoubleQuotes = true;
-					else
-						insideDoubleQuotes = false;
-				}
-				if (c.equals("'")) {
-					if (!insideSingleQuotes)
-						insideSingleQuotes = true;
-					else
-						insideSingleQuotes = false;
-				}
-
-				if ((c.equals("(") && !insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-					insideParenthesis = true;
-					parenthesis = 0;
-				}
-				if ((c.equals("(")) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-					parenthesis += 1;
-				}
-				if ((c.equals(")") && insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-					parenthesis = parenthesis - 1;
-					if (parenthesis == 0) {
-
-						insideParenthesis = false;
-
-						if (i + 1 < s.length()) {
-							String nextString = s.substring(i + 1).trim();
-							if (!nextString.startsWith("("))
-								gaps++;
-						}
-
-					}
+			// Remove the parentheses if the first one is closed by the last one
+			Tokens tokens = new Tokens(text);
+			for (int i = 1; i < tokens.size; i++) {
+				if (tokens.type[i] == Tokens.CLOSE && tokens.depth[i] == 0) {
+					if (i == tokens.size - 1)
+						text = text.substring(1, text.length() - 1).trim();
+					break;
 				}
 			}
-
-			if (gaps == 0)
-				text = text.substring(1, text.length() - 1).trim();
-
 		}
 
 		return text;
@@ -1560,76 +1225,155 @@ public class Parser {
 		else
 			statement = statement.trim();
 
-		if (statement.contains(",") == false) {
+		if (statement.indexOf(',') < 0) {
 			return new String[] { statement };
 
 		} else {
 
-			boolean insideSingleQuotes = false;
-			boolean insideDoubleQuotes = false;
-			boolean insideParenthesis = false;
-
-			int parenthesis = 0;
-
-			String s = statement + " "; // <-- something's not quite right b/c
-			                            // we need this extra space at the
-			                            // end...
-			String c = "";
-			StringBuffer str = new StringBuffer();
-			java.util.List list = new java.util.LinkedList();
-
-			for (int i = 0; i < s.length(); i++) {
-
-				c = s.substring(i, i + 1);
-
-				if (c.equals("\"")) {
-					if (!insideDoubleQuotes)
-						insideDoubleQuotes = true;
-					else
-						insideDoubleQuotes = false;
-				}
-				if (c.equals("'")) {
-					if (!insideSingleQuotes)
-						insideSingleQuotes = true;
-					else
-						insideSingleQuotes = false;
-				}
-
-				if ((c.equals("(") && !insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-					insideParenthesis = true;
-					parenthesis = 0;
-				}
-				if ((c.equals("(")) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-					parenthesis += 1;
-				}
-				if ((c.equals(")") && insideParenthesis) && (!insideDoubleQuotes && !insideSingleQuotes)) {
-					parenthesis = parenthesis - 1;
-					if (parenthesis == 0)
-						insideParenthesis = false;
+			// Split the statement on commas that are not wrapped in quotes or
+			// parentheses
+			java.util.List<String> list = new java.util.ArrayList<String>();
+			Tokens tokens = new Tokens(statement);
+			int start = 0;
+			for (int i = 0; i < tokens.size; i++) {
+				if (tokens.type[i] == Tokens.COMMA && tokens.depth[i] == 0) {
+					list.add(statement.substring(start, tokens.start[i]).trim());
+					start = tokens.end[i];
 				}
+			}
+			list.add(statement.substring(start).trim());
+			return list.toArray(new String[list.size()]);
+		}
 
-				str.append(c);
+	}
 
-				if (c.equals(",") || i == (s.length() - 1)) {
-					if (!insideDoubleQuotes && !insideSingleQuotes && !insideParenthesis) {
+	// **************************************************************************
+	// ** Tokens
+	// **************************************************************************
+	/**
+	 * Used to split an sql fragment into tokens in a single pass. Tokens are
+	 * stored as offsets into the fragment so that clauses and operands can be
+	 * extracted with a single substring. Whitespace is skipped. Quoted strings
+	 * and identifiers ('...', "...", `...` and [...]) are returned as a single
+	 * token. Each token records the parenthesis depth at which it was found;
+	 * parentheses are recorded at the depth outside of the group.
+	 */
+	private static class Tokens {
+
+		private static final int WORD = 0;
+		private static final int QUOTED = 1;
+		private static final int SYMBOL = 2;
+		private static final int OPEN = 3;
+		private static final int CLOSE = 4;
+		private static final int COMMA = 5;
+
+		private final String sql;
+		private int size = 0;
+		private int[] type;
+		private int[] start;
+		private int[] end;
+		private int[] depth;
+
+		private Tokens(String sql) {
+			this.sql = sql;
+			int len = sql.length();
+			int capacity = Math.max(8, len / 4);
+			type = new int[capacity];
+			start = new int[capacity];
+			end = new int[capacity];
+			depth = new int[capacity];
+
+			int level = 0;
+			int i = 0;
+			while (i < len) {
+				char c = sql.charAt(i);
+				if (c <= ' ') {
+					i++;
+					continue;
+				}
 
-						String element = str.substring(0, str.length() - 1).toString().trim();
-						list.add(element);
-						str = new StringBuffer();
+				int from = i;
+				if (c == '\'' || c == '"' || c == '`' || c == '[') {
+					char q = c == '[' ? ']' : c;
+					i++;
+					while (i < len) {
+						if (sql.charAt(i++) == q) {
+							// Quotes are escaped by doubling them
+							if (i < len && sql.charAt(i) == q && q != ']')
+								i++;
+							else
+								break;
+						}
+					}
+					add(QUOTED, from, i, level);
+				} else if (c == '(') {
+					add(OPEN, from, ++i, level++);
+				} else if (c == ')') {
+					if (level > 0)
+						level--;
+					add(CLOSE, from, ++i, level);
+				} else if (c == ',') {
+					add(COMMA, from, ++i, level);
+				} else if (isWordChar(c)) {
+					while (i < len && isWordChar(sql.charAt(i)))
+						i++;
+					add(WORD, from, i, level);
+				} else {
+					i++;
+					if (i < len) {
+						char n = sql.charAt(i);
+						if ((c == '<' && (n == '>' || n == '=')) || ((c == '>' || c == '!') && n == '=')
+						        || (c == '|' && n == '|') || (c == ':' && n == ':'))
+							i++;
 					}
+					add(SYMBOL, from, i, level);
 				}
+			}
+		}
 
-			} // end for loop
+		private static boolean isWordChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$' || c == '#' || c == '@';
+		}
 
-			// Convert list into an array of statements
-			String[] statements = new String[list.size()];
-			for (int i = 0; i < statements.length; i++) {
-				statements[i] = list.get(i).toString();
+		private void add(int type, int start, int end, int depth) {
+			if (size == this.type.length) {
+				int capacity = size * 2;
+				this.type = java.util.Arrays.copyOf(this.type, capacity);
+				this.start = java.util.Arrays.copyOf(this.start, capacity);
+				this.end = java.util.Arrays.copyOf(this.end, capacity);
+				this.depth = java.util.Arrays.copyOf(this.depth, capacity);
 			}
-			return statements;
-
+			this.type[size] = type;
+			this.start[size] = start;
+			this.end[size] = end;
+			this.depth[size] = depth;
+			size++;
 		}
 
+		/**
+		 * Used to match a phrase (e.g. "ORDER BY" or "<=") against the tokens
+		 * starting at a given index. Words in the phrase are separated by a
+		 * single space and are matched ignoring case. Returns the index of the
+		 * token following the phrase or -1 if the phrase does not match.
+		 */
+		private int match(int index, String phrase) {
+			int len = phrase.length();
+			int offset = 0;
+			while (true) {
+				int next = phrase.indexOf(' ', offset);
+				if (next < 0)
+					next = len;
+				if (index >= size)
+					return -1;
+				int length = end[index] - start[index];
+				if (length != next - offset || !sql.regionMatches(true, start[index], phrase, offset, length))
+					return -1;
+				index++;
+				if (next == len)
+					return index;
+				offset = next + 1;
+			}
+		}
 	}
 
 	public void debug() {
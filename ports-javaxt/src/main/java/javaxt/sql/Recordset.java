@@ -162,6 +162,7 @@ public class Recordset {
 		this.sqlString = sqlString;
 		this.Connection = Connection;
 		this.isReadOnly = ReadOnly;
+		this.isKeylessUpdateChecked = false;
 		this.driver = Connection.getDatabase().getDriver();
 		if (driver == null)
 			driver = new Driver("", "", "");
@@ -195,11 +196,20 @@ public class Recordset {
 
 				// Set AutoCommit to false when fetchSize is specified.
 				// Otherwise it will fetch back all the records at once
-				if (fetchSize != null)
+				if (fetchSize != null || isStreaming)
 					Conn.setAutoCommit(false);
 
+				// Streaming mode uses a forward-only cursor. MySQL only
+				// streams rows with a fetch size of Integer.MIN_VALUE.
+				if (isStreaming) {
+					stmt = Conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					if (fetchSize == null)
+						stmt.setFetchSize("MySQL".equalsIgnoreCase(driver.getVendor()) ? Integer.MIN_VALUE
+						        : streamingFetchSize);
+				}
+
 				// DB2 and SQLite only support forward cursors
-				if (driver.equals("DB2") || driver.equals("SQLite")) {
+				else if (driver.equals("DB2") || driver.equals("SQLite")) {
 					stmt = Conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 				}
 
@@ -343,7 +353,10 @@ public class Recordset {
 
 					EOF = false;
 					for (int i = 1; i <= cols; i++) {
-						Fields[i - 1].Value = new Value(rs.getObject(i));
+						if (isStreaming && ReadOnly)
+							Fields[i - 1].load(rs, i);
+						else
+							Fields[i - 1].Value = new Value(rs.getObject(i));
 					}
 					x += 1;
 				}
@@ -376,8 +389,12 @@ public class Recordset {
 
 		// Close recordset
 		try {
-			if (State == 1)
-				executeBatch();
+			try {
+				if (State == 1)
+					executeBatch();
+			} finally {
+				releaseBatch();
+			}
 			if (rs != null)
 				rs.close();
 			if (stmt != null)
@@ -437,6 +454,29 @@ public class Recordset {
 			this.fetchSize = fetchSize;
 	}
 
+	// **************************************************************************
+	// ** setStreaming
+	// **************************************************************************
+	/**
+	 * Used to read large result sets in a read-only Recordset. Must be called
+	 * before the Recordset is opened. In streaming mode, records are read with
+	 * a forward-only cursor and fetched from the server in blocks (1000 rows
+	 * unless a fetch size is set). Values are only read from the ResultSet
+	 * when requested so getLong() and getDouble() do not create any objects.
+	 * Note that the move() method is not supported with a forward-only
+	 * cursor.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.isStreaming = streaming;
+	}
+
+	public boolean isStreaming() {
+		return isStreaming;
+	}
+
+	private boolean isStreaming = false;
+	private static final int streamingFetchSize = 1000;
+
 	// **************************************************************************
 	// ** getConnection
 	// **************************************************************************
@@ -477,6 +517,7 @@ public class Recordset {
 			for (int i = 1; i <= Fields.length; i++) {
 				Field Field = Fields[i - 1];
 				Field.Value = null;
+				Field.rs = null;
 				Field.RequiresUpdate = false;
 			}
 		}
@@ -546,26 +587,18 @@ public class Recordset {
 				}
 			}
 
-			// Find primary key for the table. This slows things down
-			// quite a bit but we need it for the "where" clause.
+			// Find primary key for the table. We need it for the "where"
+			// clause. The keys are cached so the metadata is only read once
+			// per table.
 			java.util.ArrayList<Field> keys = new java.util.ArrayList<Field>();
-			try {
-				java.sql.DatabaseMetaData dbmd = Conn.getMetaData();
-				java.sql.ResultSet r2 = dbmd.getTables(null, null, Fields[0].getTable(), new String[] { "TABLE" });
-				if (r2.next()) {
-					Table table = new Table(r2, dbmd);
-					Key[] arr = table.getPrimaryKeys();
-					if (arr != null) {
-						for (int i = 0; i < arr.length; i++) {
-							Key key = arr[i];
-							Field field = getField(key.getColumn());
-							if (field != null)
-								keys.add(field);
-						}
-					}
+			Key[] arr = getMetadataCache().getPrimaryKeys(Connection, Fields[0].getTable());
+			if (arr != null) {
+				for (int i = 0; i < arr.length; i++) {
+					Key key = arr[i];
+					Field field = getField(key.getColumn());
+					if (field != null)
+						keys.add(field);
 				}
-				r2.close();
-			} catch (Exception e) {
 			}
 
 			// Build the where clause
@@ -589,21 +622,26 @@ public class Recordset {
 					sql.append(where);
 				}
 
-				// Find how many records will be affected by this update
-				int numRecords;
-				java.sql.ResultSet r2 = stmt
-				        .executeQuery("SELECT COUNT(*) FROM " + tableName + (where == null ? "" : " WHERE " + where));
-				try {
-					numRecords = r2.getInt(1);
-				} catch (Exception e) {
+				// Find how many records will be affected by this update. The
+				// where clause is the same for every record so the count is
+				// only checked for the first update.
+				int numRecords = 0;
+				if (!isKeylessUpdateChecked) {
+					isKeylessUpdateChecked = true;
+					java.sql.ResultSet r2 = stmt.executeQuery(
+					        "SELECT COUNT(*) FROM " + tableName + (where == null ? "" : " WHERE " + where));
 					try {
-						r2.first(); // SQLServer needs this!
 						numRecords = r2.getInt(1);
-					} catch (Exception ex) {
-						numRecords = Integer.MAX_VALUE;
+					} catch (Exception e) {
+						try {
+							r2.first(); // SQLServer needs this!
+							numRecords = r2.getInt(1);
+						} catch (Exception ex) {
+							numRecords = Integer.MAX_VALUE;
+						}
 					}
+					r2.close();
 				}
-				r2.close();
 
 				// Warn user that there might be a problem with the update
 				if (numRecords > 1) {
@@ -633,22 +671,82 @@ public class Recordset {
 			}
 		}
 
-		// Get prepared statement
+		// Get prepared statement. Statements are reused via the statement
+		// cache of the connection.
 		java.sql.PreparedStatement stmt;
+		StatementCache statementCache = Connection.getStatementCache();
 		if (batchSize > 1) {
 			if (batchedStatements == null)
 				batchedStatements = new java.util.HashMap<String, java.sql.PreparedStatement>();
 			stmt = batchedStatements.get(sql.toString());
 			if (stmt == null) {
-				stmt = Conn.prepareStatement(sql.toString());
+				stmt = statementCache.prepare(sql.toString(), java.sql.Statement.NO_GENERATED_KEYS);
 				batchedStatements.put(sql.toString(), stmt);
 				Conn.setAutoCommit(false);
 			}
 		} else {
-			stmt = Conn.prepareStatement(sql.toString(), java.sql.Statement.RETURN_GENERATED_KEYS);
+			stmt = statementCache.prepare(sql.toString(), java.sql.Statement.RETURN_GENERATED_KEYS);
 		}
 
-		// Set values using a prepared statement
+		// Set values and run the update. Statements that are not batched are
+		// returned to the cache when done, even if a value can't be set.
+		try {
+			setValues(stmt, fields);
+
+			if (batchSize == 1) {
+				try {
+					stmt.executeUpdate();
+				} catch (SQLException e) {
+					StringBuffer err = new StringBuffer();
+					err.append("Error executing update:\n");
+					err.append(sql.toString());
+					err.append("\n");
+					// err.append("\n Values:\n");
+					for (int i = 0; i < fields.size(); i++) {
+						if (i > 0)
+							err.append("\n");
+						Field field = fields.get(i);
+						err.append("  - " + field.getName() + ": ");
+						String val = field.getValue().toString();
+						if (val != null && val.length() > 100)
+							val = val.substring(0, 100) + "...";
+						err.append(val);
+					}
+
+					e.setNextException(new SQLException(err.toString()));
+					throw e;
+				}
+
+				if (InsertOnUpdate) {
+					java.sql.ResultSet generatedKeys = stmt.getGeneratedKeys();
+					if (generatedKeys.next()) {
+						this.GeneratedKey = new Value(generatedKeys.getString(1));
+					}
+					generatedKeys.close();
+					InsertOnUpdate = false;
+				}
+
+			} else {
+				stmt.addBatch();
+				numBatches++;
+
+				if (numBatches == batchSize) {
+					executeBatch();
+				}
+			}
+		} finally {
+			if (batchSize == 1)
+				statementCache.release(stmt);
+		}
+	}
+
+	// **************************************************************************
+	// ** setValues
+	// **************************************************************************
+	/** Used to set the values of a prepared statement. */
+
+	private void setValues(java.sql.PreparedStatement stmt, java.util.ArrayList<Field> fields)
+	        throws java.sql.SQLException {
 		int id = 1;
 		for (int i = 0; i < fields.size(); i++) {
 
@@ -746,49 +844,6 @@ public class Recordset {
 
 			id++;
 		}
-
-		// Update
-		if (batchSize == 1) {
-			try {
-				stmt.executeUpdate();
-			} catch (SQLException e) {
-
-				StringBuffer err = new StringBuffer();
-				err.append("Error executing update:\n");
-				err.append(sql.toString());
-				err.append("\n");
-				// err.append("\n Values:\n");
-				for (int i = 0; i < fields.size(); i++) {
-					if (i > 0)
-						err.append("\n");
-					Field field = fields.get(i);
-					err.append("  - " + field.getName() + ": ");
-					String val = field.getValue().toString();
-					if (val != null && val.length() > 100)
-						val = val.substring(0, 100) + "...";
-					err.append(val);
-				}
-
-				e.setNextException(new SQLException(err.toString()));
-				throw e;
-			}
-
-			if (InsertOnUpdate) {
-				java.sql.ResultSet generatedKeys = stmt.getGeneratedKeys();
-				if (generatedKeys.next()) {
-					this.GeneratedKey = new Value(generatedKeys.getString(1));
-				}
-				InsertOnUpdate = false;
-			}
-
-		} else {
-			stmt.addBatch();
-			numBatches++;
-
-			if (numBatches == batchSize) {
-				executeBatch();
-			}
-		}
 	}
 
 	// **************************************************************************
@@ -898,6 +953,7 @@ public class Recordset {
 
 	private int numBatches = 0;
 	private int batchSize = 1;
+	private boolean isKeylessUpdateChecked = false;
 	private java.util.HashMap<String, java.sql.PreparedStatement> batchedStatements;
 
 	// **************************************************************************
@@ -928,21 +984,49 @@ public class Recordset {
 		if (batchedStatements == null)
 			return 0;
 		int ttl = 0;
+		StatementCache statementCache = Connection.getStatementCache();
 		java.util.Iterator<String> it = batchedStatements.keySet().iterator();
-		while (it.hasNext()) {
-			java.sql.PreparedStatement stmt = batchedStatements.get(it.next());
+		try {
+			while (it.hasNext()) {
+				java.sql.PreparedStatement stmt = batchedStatements.get(it.next());
+
+				int[] rowsUpdated = stmt.executeBatch();
+				if (rowsUpdated.length > 0)
+					ttl += rowsUpdated.length;
 
-			int[] rowsUpdated = stmt.executeBatch();
-			if (rowsUpdated.length > 0)
-				ttl += rowsUpdated.length;
+				if (Conn.getAutoCommit() == false) {
+					Conn.commit();
+				}
 
-			if (Conn.getAutoCommit() == false) {
-				Conn.commit();
+				it.remove();
+				statementCache.release(stmt);
 			}
+		} finally {
+			releaseBatch();
+		}
+		return ttl;
+	}
+
+	// **************************************************************************
+	// ** releaseBatch
+	// **************************************************************************
+	/**
+	 * Used to discard the batches that were not executed and to return their
+	 * statements to the statement cache.
+	 */
+	private void releaseBatch() {
+		if (batchedStatements == null)
+			return;
+		StatementCache statementCache = Connection.getStatementCache();
+		for (java.sql.PreparedStatement stmt : batchedStatements.values()) {
+			try {
+				stmt.clearBatch();
+			} catch (SQLException e) {
+			}
+			statementCache.release(stmt);
 		}
 		batchedStatements.clear();
 		numBatches = 0;
-		return ttl;
 	}
 
 	// **************************************************************************
@@ -1181,6 +1265,23 @@ public class Recordset {
 	/** Move the cursor to the next record in the recordset. */
 
 	public boolean moveNext() {
+		try {
+			return next();
+		} catch (Exception e) {
+			EOF = true;
+			return false;
+			// System.out.println("ERROR MoveNext: " + e.toString());
+		}
+	}
+
+	// **************************************************************************
+	// ** next
+	// **************************************************************************
+	/**
+	 * Used to move the cursor to the next record. Unlike moveNext(), errors
+	 * are thrown to the caller.
+	 */
+	private boolean next() throws SQLException {
 
 		if (EOF == true)
 			return false;
@@ -1188,27 +1289,168 @@ public class Recordset {
 		if (x >= MaxRecords - 1) {
 			EOF = true;
 			return false;
-		} else {
-			try {
-				if (rs.next()) {
-					for (int i = 1; i <= Fields.length; i++) {
-						Field Field = Fields[i - 1];
-						Field.Value = new Value(rs.getObject(i));
-						Field.RequiresUpdate = false;
-					}
-					x += 1;
-					return true;
-				} else {
-					EOF = true;
+		}
+
+		boolean hasNext;
+		try {
+			hasNext = rs.next();
+		} catch (SQLException e) {
+			EOF = true;
+			throw e;
+		}
+		if (!hasNext) {
+			EOF = true;
+			return false;
+		}
+
+		// Values are only read from the ResultSet when requested in
+		// streaming mode
+		boolean lazy = isStreaming && isReadOnly;
+		for (int i = 1; i <= Fields.length; i++) {
+			Field Field = Fields[i - 1];
+			if (lazy) {
+				Field.load(rs, i);
+			} else {
+				Field.Value = new Value(rs.getObject(i));
+				Field.RequiresUpdate = false;
+			}
+		}
+		x += 1;
+		return true;
+	}
+
+	// **************************************************************************
+	// ** stream
+	// **************************************************************************
+	/**
+	 * Returns a Stream with one element per record, starting at the current
+	 * record. The mapper is called for each record and is used to read values
+	 * from the Recordset (e.g. via getLong or getValue). The Recordset is
+	 * closed when the last record has been read or when the Stream is closed.
+	 * Example:
+	 *
+	 * <pre>
+	 * Recordset rs = new Recordset();
+	 * rs.setStreaming(true);
+	 * rs.open("SELECT ID, AMOUNT FROM ORDERS", conn);
+	 * double total = rs.stream(new Function&lt;Recordset, Double&gt;() {
+	 *     public Double apply(Recordset rs) {
+	 *         try {
+	 *             return rs.getDouble(1);
+	 *         } catch (SQLException e) {
+	 *             throw new RuntimeException(e);
+	 *         }
+	 *     }
+	 * }).mapToDouble(Double::doubleValue).sum();
+	 * </pre>
+	 *
+	 * SQLExceptions thrown while moving to the next record are wrapped in
+	 * RuntimeExceptions. The mapper has to do the same for exceptions thrown
+	 * by the getters, as shown above.
+	 */
+	public <T> java.util.stream.Stream<T> stream(final java.util.function.Function<Recordset, T> mapper) {
+		java.util.Spliterator<T> spliterator = new java.util.Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+		        java.util.Spliterator.ORDERED) {
+			@Override
+			public boolean tryAdvance(java.util.function.Consumer<? super T> action) {
+				if (State != 1 || EOF) {
+					if (State == 1)
+						close();
 					return false;
 				}
-			} catch (Exception e) {
-				EOF = true;
-				return false;
-				// System.out.println("ERROR MoveNext: " + e.toString());
+				action.accept(mapper.apply(Recordset.this));
+				try {
+					next();
+				} catch (SQLException e) {
+					close();
+					throw new RuntimeException(e);
+				}
+				return true;
+			}
+		};
+		return java.util.stream.StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				if (State == 1)
+					close();
+			}
+		});
+	}
+
+	// **************************************************************************
+	// ** getLong
+	// **************************************************************************
+	/**
+	 * Returns the value of a field in the current record as a long, without
+	 * creating a Value. Returns 0 if the value is null (see wasNull).
+	 *
+	 * @param i
+	 *            Index of the field, starting at 0 (same as getValue).
+	 */
+	public long getLong(int i) throws SQLException {
+		Field field = Fields[i];
+		if (field.RequiresUpdate || InsertOnUpdate) {
+			Long val = field.getValue().toLong();
+			wasNull = (val == null);
+			return wasNull ? 0 : val;
+		}
+		long val = rs.getLong(i + 1);
+		wasNull = rs.wasNull();
+		return val;
+	}
+
+	public long getLong(String FieldName) throws SQLException {
+		return getLong(indexOf(FieldName));
+	}
+
+	// **************************************************************************
+	// ** getDouble
+	// **************************************************************************
+	/**
+	 * Returns the value of a field in the current record as a double, without
+	 * creating a Value. Returns 0 if the value is null (see wasNull).
+	 *
+	 * @param i
+	 *            Index of the field, starting at 0 (same as getValue).
+	 */
+	public double getDouble(int i) throws SQLException {
+		Field field = Fields[i];
+		if (field.RequiresUpdate || InsertOnUpdate) {
+			Double val = field.getValue().toDouble();
+			wasNull = (val == null);
+			return wasNull ? 0 : val;
+		}
+		double val = rs.getDouble(i + 1);
+		wasNull = rs.wasNull();
+		return val;
+	}
+
+	public double getDouble(String FieldName) throws SQLException {
+		return getDouble(indexOf(FieldName));
+	}
+
+	// **************************************************************************
+	// ** wasNull
+	// **************************************************************************
+	/**
+	 * Returns true if the last value read via getLong or getDouble was null.
+	 */
+	public boolean wasNull() {
+		return wasNull;
+	}
+
+	private boolean wasNull = false;
+
+	/** Returns the index of a given field or throws an exception. */
+	private int indexOf(String FieldName) throws SQLException {
+		Field field = getField(FieldName);
+		if (field != null) {
+			for (int i = 0; i < Fields.length; i++) {
+				if (Fields[i] == field)
+					return i;
 			}
 		}
-		// return false;
+		throw new SQLException("Field not found: " + FieldName);
 	}
 
 	// **************************************************************************
@@ -1363,7 +1605,10 @@ public class Recordset {
 		java.util.ArrayList<Column> matches = new java.util.ArrayList<Column>();
 
 		for (Table table : tables) {
-			for (Column column : table.getColumns()) {
+			Column[] arr = getMetadataCache().getColumns(Connection, table.getName());
+			if (arr == null)
+				continue;
+			for (Column column : arr) {
 				if (column.getName().equalsIgnoreCase(field.getName())) {
 					matches.add(column);
 				}
@@ -1391,6 +1636,16 @@ public class Recordset {
 		return null;
 	}
 
+	// **************************************************************************
+	// ** getMetadataCache
+	// **************************************************************************
+	/**
+	 * Returns the cache used to look up tables, columns and keys.
+	 */
+	private MetadataCache getMetadataCache() {
+		return Connection.getDatabase().getMetadataCache();
+	}
+
 	// **************************************************************************
 	// ** getRecordCount
 	// **************************************************************************
@@ -0,0 +1,160 @@
+package javaxt.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+//******************************************************************************
+//**  StatementCache
+//******************************************************************************
+/**
+ * Used to reuse prepared statements on a connection. Statements are keyed by
+ * their SQL. A statement is removed from the cache while it is in use and
+ * added back when it is released, so a statement is never shared by two
+ * callers at the same time. The least recently used statements are closed
+ * when the cache is full. All statements are closed when the connection is
+ * closed.
+ *
+ ******************************************************************************/
+
+public class StatementCache {
+
+	private final java.sql.Connection conn;
+	private int maxSize = 64;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private final java.util.LinkedHashMap<String, PreparedStatement> statements = new java.util.LinkedHashMap<String, PreparedStatement>(
+	        16, 0.75f, true);
+	private final java.util.IdentityHashMap<PreparedStatement, String> borrowed = new java.util.IdentityHashMap<PreparedStatement, String>();
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	protected StatementCache(java.sql.Connection conn) {
+		this.conn = conn;
+	}
+
+	// **************************************************************************
+	// ** prepare
+	// **************************************************************************
+	/**
+	 * Returns a prepared statement for the given SQL. The statement must be
+	 * returned to the cache via the release method when it is no longer
+	 * needed.
+	 *
+	 * @param autoGeneratedKeys
+	 *            Either Statement.RETURN_GENERATED_KEYS or
+	 *            Statement.NO_GENERATED_KEYS.
+	 */
+	public synchronized PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+		String key = autoGeneratedKeys + ":" + sql;
+		PreparedStatement stmt = statements.remove(key);
+		if (stmt != null && stmt.isClosed())
+			stmt = null;
+		if (stmt == null) {
+			misses++;
+			stmt = conn.prepareStatement(sql, autoGeneratedKeys);
+		} else {
+			hits++;
+		}
+		borrowed.put(stmt, key);
+		return stmt;
+	}
+
+	// **************************************************************************
+	// ** release
+	// **************************************************************************
+	/**
+	 * Used to return a statement to the cache. The statement is closed if it
+	 * was not created by the cache, if an identical statement has been cached
+	 * in the meantime or if caching is disabled.
+	 */
+	public synchronized void release(PreparedStatement stmt) {
+		if (stmt == null)
+			return;
+		String key = borrowed.remove(stmt);
+		if (key == null || maxSize == 0 || statements.containsKey(key)) {
+			close(stmt);
+			return;
+		}
+		try {
+			stmt.clearParameters();
+		} catch (SQLException e) {
+			close(stmt);
+			return;
+		}
+		statements.put(key, stmt);
+		trim();
+	}
+
+	// **************************************************************************
+	// ** clear
+	// **************************************************************************
+	/** Used to close all the statements in the cache. */
+
+	public synchronized void clear() {
+		for (PreparedStatement stmt : statements.values())
+			close(stmt);
+		statements.clear();
+	}
+
+	// **************************************************************************
+	// ** setMaxSize
+	// **************************************************************************
+	/**
+	 * Used to set the maximum number of statements in the cache. A value of 0
+	 * disables the cache. Default is 64.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		trim();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/** Returns the number of idle statements in the cache. */
+	public synchronized int getSize() {
+		return statements.size();
+	}
+
+	/** Returns the number of times a cached statement was reused. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Returns the number of statements that had to be prepared. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Returns the number of statements closed to make room in the cache. */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "StatementCache: size=" + statements.size() + ", hits=" + hits + ", misses=" + misses + ", evictions="
+		        + evictions;
+	}
+
+	/** Used to close the least recently used statements. */
+	private void trim() {
+		java.util.Iterator<PreparedStatement> it = statements.values().iterator();
+		while (statements.size() > maxSize) {
+			PreparedStatement eldest = it.next();
+			it.remove();
+			evictions++;
+			close(eldest);
+		}
+	}
+
+	private void close(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+		}
+	}
+}
@@ -32,6 +32,16 @@ public class Table implements Comparable {
 		}
 	}
 
+	/** Used to create a copy of a table that uses the given metadata. */
+
+	protected Table(Table table, java.sql.DatabaseMetaData dbmd) {
+		this.Name = table.Name;
+		this.Description = table.Description;
+		this.Catalog = table.Catalog;
+		this.Schema = table.Schema;
+		this.dbmd = dbmd;
+	}
+
 	private Table() {
 	}
 
@@ -65,10 +75,14 @@ public class Table implements Comparable {
 	 * found.
 	 */
 	public Column[] getColumns() {
+		return getColumns(dbmd);
+	}
+
+	protected Column[] getColumns(java.sql.DatabaseMetaData dbmd) {
 		try {
 			java.util.ArrayList<Column> columns = new java.util.ArrayList<Column>();
-			Key[] Keys = getPrimaryKeys();
-			Key[] FKeys = getForeignKeys();
+			Key[] Keys = getPrimaryKeys(dbmd);
+			Key[] FKeys = getForeignKeys(dbmd);
 
 			java.sql.ResultSet rs = dbmd.getColumns(Catalog, Schema, Name, null);
 			while (rs.next()) {
@@ -115,6 +129,10 @@ public class Table implements Comparable {
 	 * table.
 	 */
 	public Key[] getPrimaryKeys() {
+		return getPrimaryKeys(dbmd);
+	}
+
+	protected Key[] getPrimaryKeys(java.sql.DatabaseMetaData dbmd) {
 		try {
 			java.util.ArrayList<Key> keys = new java.util.ArrayList<Key>();
 			java.sql.ResultSet rs = dbmd.getPrimaryKeys(Catalog, Schema, Name);
@@ -143,6 +161,10 @@ public class Table implements Comparable {
 	 * Returns a list of foreign keys found in this table.
 	 */
 	public Key[] getForeignKeys() {
+		return getForeignKeys(dbmd);
+	}
+
+	protected Key[] getForeignKeys(java.sql.DatabaseMetaData dbmd) {
 		try {
 			java.util.ArrayList<Key> keys = new java.util.ArrayList<Key>();
 			java.sql.ResultSet rs = dbmd.getImportedKeys(Catalog, Schema, Name);
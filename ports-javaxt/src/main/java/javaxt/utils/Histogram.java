@@ -0,0 +1,158 @@
+package javaxt.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//******************************************************************************
+//**  Histogram
+//******************************************************************************
+/**
+ * Lock-free histogram used to record the distribution of positive values
+ * (e.g. response times in microseconds). Similar to an HdrHistogram, the
+ * values are counted in buckets that grow exponentially: each power of two is
+ * split into 32 linear sub-buckets, so the bucket of a value is found with a
+ * few bit operations and percentiles are accurate to about 3%. Values from 0
+ * to 2^40 are tracked. Larger values are counted in the last bucket.
+ * <p/>
+ * Recording a value does not allocate memory, so histograms can be updated on
+ * every request.
+ *
+ ******************************************************************************/
+
+public class Histogram {
+
+	/** Number of bits used for the sub-buckets (32 per power of two). */
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/** Highest power of two that is tracked. */
+	private static final int MAX_EXPONENT = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	// **************************************************************************
+	// ** record
+	// **************************************************************************
+	/** Used to add a value to the histogram. Negative values are ignored. */
+	public void record(long value) {
+		if (value < 0)
+			return;
+		counts.incrementAndGet(getIndex(value));
+		count.increment();
+		sum.add(value);
+		long currMax = max.get();
+		while (value > currMax) {
+			if (max.compareAndSet(currMax, value))
+				break;
+			currMax = max.get();
+		}
+	}
+
+	// **************************************************************************
+	// ** getCount
+	// **************************************************************************
+	/** Returns the number of values recorded. */
+	public long getCount() {
+		return count.sum();
+	}
+
+	// **************************************************************************
+	// ** getMean
+	// **************************************************************************
+	/** Returns the average of the values recorded or 0 if there are none. */
+	public double getMean() {
+		long n = count.sum();
+		if (n == 0)
+			return 0;
+		return sum.sum() / (double) n;
+	}
+
+	// **************************************************************************
+	// ** getMax
+	// **************************************************************************
+	/** Returns the largest value recorded. */
+	public long getMax() {
+		return max.get();
+	}
+
+	// **************************************************************************
+	// ** getPercentile
+	// **************************************************************************
+	/**
+	 * Returns the value below which the given percentage of the values fall.
+	 * The result is the upper bound of the bucket that holds the percentile
+	 * and never exceeds the largest value recorded. Returns 0 if no values
+	 * were recorded.
+	 *
+	 * @param percentile
+	 *            Value between 0 and 100 (e.g. 99.9).
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		int length = counts.length();
+		long[] snapshot = new long[length];
+		for (int i = 0; i < length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100d * total);
+		if (rank < 1)
+			rank = 1;
+		long n = 0;
+		for (int i = 0; i < length; i++) {
+			n += snapshot[i];
+			if (n >= rank)
+				return Math.min(getUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	// **************************************************************************
+	// ** reset
+	// **************************************************************************
+	/**
+	 * Used to remove all the values. Values recorded while the histogram is
+	 * being reset may be partially removed.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	// **************************************************************************
+	// ** getIndex
+	// **************************************************************************
+	/** Returns the index of the bucket used to count the given value. */
+	private static int getIndex(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT)
+			return (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT - 1;
+		int mantissa = (int) (value >>> (exponent - SUB_BITS));
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + (mantissa - SUB_COUNT);
+	}
+
+	// **************************************************************************
+	// ** getUpperBound
+	// **************************************************************************
+	/** Returns the largest value counted in the given bucket. */
+	private static long getUpperBound(int index) {
+		int row = index >>> SUB_BITS;
+		int sub = index & (SUB_COUNT - 1);
+		if (row == 0)
+			return sub;
+		long lower = (long) (SUB_COUNT + sub) << (row - 1);
+		return lower + (1L << (row - 1)) - 1;
+	}
+}
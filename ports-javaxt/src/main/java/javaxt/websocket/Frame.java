@@ -315,10 +315,14 @@ public abstract class Frame {
 			super(Opcode.TEXT);
 		}
 
+		/**
+		 * Checks whether the payload is valid UTF-8. Fragments and compressed
+		 * payloads are validated when the message is decoded.
+		 */
 		@Override
 		public void isValid() throws FrameException {
 			super.isValid();
-			if (!UTF8.isValid(getPayloadData())) {
+			if (isFin() && !isRSV1() && !UTF8.isValid(getPayloadData())) {
 				throw new FrameException(CloseFrame.NO_UTF8);
 			}
 		}
@@ -626,6 +630,21 @@ public abstract class Frame {
 	// ** translateSingleFrame
 	// **************************************************************************
 	public static Frame translateSingleFrame(ByteBuffer buffer) throws IncompleteFrameException, FrameException {
+		return translateSingleFrame(buffer, false);
+	}
+
+	// **************************************************************************
+	// ** translateSingleFrame
+	// **************************************************************************
+	/**
+	 * Used to decode a frame.
+	 *
+	 * @param allowRSV1
+	 *            If true, data frames may have the RSV1 bit set. Used when
+	 *            the permessage-deflate extension was negotiated.
+	 */
+	public static Frame translateSingleFrame(ByteBuffer buffer, boolean allowRSV1)
+	        throws IncompleteFrameException, FrameException {
 		int maxpacketsize = buffer.remaining();
 		int realpacketsize = 2;
 		if (maxpacketsize < realpacketsize) {
@@ -711,8 +730,7 @@ public abstract class Frame {
 		frame.setRSV3(rsv3);
 		payload.flip();
 		frame.setPayload(payload);
-		isFrameValid(frame);
-		// getExtension().decodeFrame(frame);
+		isFrameValid(frame, allowRSV1);
 
 		frame.isValid();
 		return frame;
@@ -741,6 +759,8 @@ public abstract class Frame {
 		        .allocate(1 + (sizebytes > 1 ? sizebytes + 1 : sizebytes) + (mask ? 4 : 0) + mes.remaining());
 		byte optcode = getByte(framedata.getOpcode());
 		byte one = (byte) (framedata.isFin() ? -128 : 0);
+		if (framedata.isRSV1())
+			one |= 0x40;
 		one |= optcode;
 		buf.put(one);
 		byte[] payloadlengthbytes = toByteArray(mes.remaining(), sizebytes);
@@ -805,8 +825,8 @@ public abstract class Frame {
 		throw new IllegalArgumentException("Unknown Opcode: " + opcode.toString());
 	}
 
-	private static void isFrameValid(Frame inputFrame) throws FrameException {
-		if (inputFrame.isRSV1() || inputFrame.isRSV2() || inputFrame.isRSV3()) {
+	private static void isFrameValid(Frame inputFrame, boolean allowRSV1) throws FrameException {
+		if ((inputFrame.isRSV1() && !allowRSV1) || inputFrame.isRSV2() || inputFrame.isRSV3()) {
 			throw new FrameException("bad rsv" + " RSV1: " + inputFrame.isRSV1() + " RSV2: " + inputFrame.isRSV2()
 			        + " RSV3: " + inputFrame.isRSV3());
 		}
@@ -0,0 +1,326 @@
+package javaxt.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//******************************************************************************
+//**  PerMessageDeflate
+//******************************************************************************
+/**
+ * Used to negotiate and apply the permessage-deflate extension defined in RFC
+ * 7692. Messages are compressed with a raw DEFLATE stream and the trailing
+ * 0x00 0x00 0xff 0xff bytes of each message are removed. With context
+ * takeover, the compression state is kept between messages, which compresses
+ * repetitive messages (e.g. JSON) much better but requires one Deflater and
+ * one Inflater per connection. Without context takeover, the Deflaters and
+ * Inflaters are borrowed from a small pool for each message.
+ * <p/>
+ * Instances of this class are not thread safe. Outgoing messages must be
+ * compressed in the order in which they are sent.
+ *
+ ******************************************************************************/
+
+public class PerMessageDeflate {
+
+	public static final String NAME = "permessage-deflate";
+
+	private static final byte[] TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+	/** Idle deflaters and inflaters used without context takeover. */
+	private static final AtomicReferenceArray<Deflater> deflaters = new AtomicReferenceArray<Deflater>(64);
+	private static final AtomicReferenceArray<Inflater> inflaters = new AtomicReferenceArray<Inflater>(64);
+
+	private final boolean serverNoContextTakeover;
+	private final boolean clientNoContextTakeover;
+	private Deflater deflater;
+	private Inflater inflater;
+	private boolean lastInput;
+	private boolean tailAdded;
+
+	// **************************************************************************
+	// ** Constructor
+	// **************************************************************************
+	private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover) {
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.clientNoContextTakeover = clientNoContextTakeover;
+	}
+
+	// **************************************************************************
+	// ** negotiate
+	// **************************************************************************
+	/**
+	 * Used to accept a permessage-deflate offer sent by a client in the
+	 * "Sec-WebSocket-Extensions" request header. Offers are evaluated in the
+	 * order given by the client. Returns null if the client did not offer the
+	 * extension or if none of the offers can be accepted (e.g. the client
+	 * asked for a smaller server window, which java.util.zip does not
+	 * support).
+	 *
+	 * @param extensions
+	 *            Value of the "Sec-WebSocket-Extensions" request header.
+	 * @param contextTakeover
+	 *            If false, neither the server nor the client keep the
+	 *            compression state between messages. Saves memory on servers
+	 *            with many connections at the expense of compression.
+	 */
+	public static PerMessageDeflate negotiate(String extensions, boolean contextTakeover) {
+		if (extensions == null)
+			return null;
+
+		for (String offer : extensions.split(",")) {
+			String[] params = offer.split(";");
+			if (!params[0].trim().equalsIgnoreCase(NAME))
+				continue;
+
+			boolean serverNoContextTakeover = !contextTakeover;
+			boolean clientNoContextTakeover = !contextTakeover;
+			boolean isValid = true;
+			java.util.HashSet<String> names = new java.util.HashSet<String>();
+			for (int i = 1; i < params.length && isValid; i++) {
+				String param = params[i].trim();
+				String value = null;
+				int idx = param.indexOf('=');
+				if (idx > -1) {
+					value = param.substring(idx + 1).trim();
+					if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1)
+						value = value.substring(1, value.length() - 1);
+					param = param.substring(0, idx).trim();
+				}
+				param = param.toLowerCase();
+				if (!names.add(param)) {
+					isValid = false;
+				} else if (param.equals("server_no_context_takeover")) {
+					isValid = (value == null);
+					serverNoContextTakeover = true;
+				} else if (param.equals("client_no_context_takeover")) {
+					isValid = (value == null);
+					clientNoContextTakeover = true;
+				} else if (param.equals("server_max_window_bits")) {
+					isValid = "15".equals(value);
+				} else if (param.equals("client_max_window_bits")) {
+					// The client may use a smaller window. The Inflater can
+					// handle any window size.
+					isValid = (value == null || value.matches("8|9|1[0-5]"));
+				} else {
+					isValid = false;
+				}
+			}
+
+			if (isValid)
+				return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover);
+		}
+		return null;
+	}
+
+	// **************************************************************************
+	// ** getResponse
+	// **************************************************************************
+	/**
+	 * Returns the value of the "Sec-WebSocket-Extensions" response header
+	 * used to confirm the negotiated parameters.
+	 */
+	public String getResponse() {
+		StringBuilder str = new StringBuilder(NAME);
+		if (serverNoContextTakeover)
+			str.append("; server_no_context_takeover");
+		if (clientNoContextTakeover)
+			str.append("; client_no_context_takeover");
+		return str.toString();
+	}
+
+	// **************************************************************************
+	// ** isContextTakeover
+	// **************************************************************************
+	/**
+	 * Returns true if the server keeps the compression state between
+	 * messages. If false, the compressed form of a message is the same for
+	 * every connection.
+	 */
+	public boolean isContextTakeover() {
+		return !serverNoContextTakeover;
+	}
+
+	// **************************************************************************
+	// ** compress
+	// **************************************************************************
+	/**
+	 * Returns the remaining bytes in the given buffer in compressed form.
+	 * Messages may be compressed in parts (e.g. one part per frame).
+	 *
+	 * @param last
+	 *            True if the buffer contains the last part of a message.
+	 */
+	public ByteBuffer compress(ByteBuffer data, boolean last) {
+		if (deflater == null)
+			deflater = serverNoContextTakeover ? acquireDeflater() : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+		int len = data.remaining();
+		if (data.hasArray()) {
+			deflater.setInput(data.array(), data.arrayOffset() + data.position(), len);
+		} else {
+			byte[] b = new byte[len];
+			data.duplicate().get(b);
+			deflater.setInput(b);
+		}
+		data.position(data.limit());
+
+		byte[] out = new byte[len / 2 + 64];
+		int size = 0;
+		while (true) {
+			size += deflater.deflate(out, size, out.length - size, Deflater.SYNC_FLUSH);
+			if (size < out.length)
+				break;
+			out = java.util.Arrays.copyOf(out, out.length * 2);
+		}
+
+		if (last) {
+			if (size >= 4 && out[size - 4] == 0 && out[size - 3] == 0 && out[size - 2] == -1 && out[size - 1] == -1)
+				size -= 4;
+			if (serverNoContextTakeover) {
+				releaseDeflater(deflater);
+				deflater = null;
+			}
+		}
+		return ByteBuffer.wrap(out, 0, size);
+	}
+
+	// **************************************************************************
+	// ** setInput
+	// **************************************************************************
+	/**
+	 * Used to add the payload of a compressed frame. The payload is
+	 * decompressed by calling inflate() until it returns 0. The buffer must
+	 * not be modified until then.
+	 *
+	 * @param last
+	 *            True if the frame is the last frame of a message.
+	 */
+	public void setInput(ByteBuffer payload, boolean last) {
+		if (inflater == null)
+			inflater = clientNoContextTakeover ? acquireInflater() : new Inflater(true);
+
+		int len = payload.remaining();
+		if (payload.hasArray()) {
+			inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), len);
+		} else {
+			byte[] b = new byte[len];
+			payload.duplicate().get(b);
+			inflater.setInput(b);
+		}
+		lastInput = last;
+		tailAdded = false;
+	}
+
+	// **************************************************************************
+	// ** inflate
+	// **************************************************************************
+	/**
+	 * Decompresses bytes from the current input into the given array. Returns
+	 * the number of bytes decompressed or 0 if all the input has been
+	 * decompressed.
+	 */
+	public int inflate(byte[] b, int off, int len) throws FrameException {
+		try {
+			while (true) {
+				int n = inflater.inflate(b, off, len);
+				if (n > 0)
+					return n;
+
+				if (inflater.finished()) {
+					// The client ended the DEFLATE stream (BFINAL). Start a
+					// new stream for the next message.
+					inflater.reset();
+					tailAdded = true;
+				} else if (!inflater.needsInput()) {
+					throw new FrameException(Frame.CloseFrame.PROTOCOL_ERROR, "Invalid compressed data");
+				}
+
+				if (lastInput && !tailAdded) {
+					inflater.setInput(TAIL);
+					tailAdded = true;
+					continue;
+				}
+
+				if (lastInput && clientNoContextTakeover) {
+					releaseInflater(inflater);
+					inflater = null;
+				}
+				return 0;
+			}
+		} catch (DataFormatException e) {
+			throw new FrameException(Frame.CloseFrame.PROTOCOL_ERROR, "Invalid compressed data", e);
+		}
+	}
+
+	// **************************************************************************
+	// ** close
+	// **************************************************************************
+	/** Used to release the Deflater and Inflater. */
+	public void close() {
+		if (deflater != null) {
+			if (serverNoContextTakeover)
+				releaseDeflater(deflater);
+			else
+				deflater.end();
+			deflater = null;
+		}
+		if (inflater != null) {
+			if (clientNoContextTakeover)
+				releaseInflater(inflater);
+			else
+				inflater.end();
+			inflater = null;
+		}
+	}
+
+	// **************************************************************************
+	// ** Private Methods
+	// **************************************************************************
+
+	private static Deflater acquireDeflater() {
+		int start = (int) Thread.currentThread().getId();
+		int mask = deflaters.length() - 1;
+		for (int i = 0; i < 8; i++) {
+			Deflater deflater = deflaters.getAndSet((start + i) & mask, null);
+			if (deflater != null)
+				return deflater;
+		}
+		return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	private static void releaseDeflater(Deflater deflater) {
+		deflater.reset();
+		int start = (int) Thread.currentThread().getId();
+		int mask = deflaters.length() - 1;
+		for (int i = 0; i < 8; i++) {
+			if (deflaters.compareAndSet((start + i) & mask, null, deflater))
+				return;
+		}
+		deflater.end();
+	}
+
+	private static Inflater acquireInflater() {
+		int start = (int) Thread.currentThread().getId();
+		int mask = inflaters.length() - 1;
+		for (int i = 0; i < 8; i++) {
+			Inflater inflater = inflaters.getAndSet((start + i) & mask, null);
+			if (inflater != null)
+				return inflater;
+		}
+		return new Inflater(true);
+	}
+
+	private static void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		int start = (int) Thread.currentThread().getId();
+		int mask = inflaters.length() - 1;
+		for (int i = 0; i < 8; i++) {
+			if (inflaters.compareAndSet((start + i) & mask, null, inflater))
+				return;
+		}
+		inflater.end();
+	}
+}
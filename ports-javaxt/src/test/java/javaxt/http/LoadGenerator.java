@@ -0,0 +1,223 @@
+package javaxt.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+//******************************************************************************
+//**  LoadGenerator
+//******************************************************************************
+/**
+ * Command line tool used to measure the throughput and latency of the server.
+ * Run the server and the client in separate JVMs, ideally on separate
+ * machines:
+ *
+ * <pre>
+ * java javaxt.http.LoadGenerator server &lt;port&gt; &lt;threads&gt; &lt;reactors&gt; [keepalive]
+ * java javaxt.http.LoadGenerator client &lt;host&gt; &lt;port&gt; &lt;connections&gt; &lt;seconds&gt; [close] [headers=n]
+ * </pre>
+ *
+ * The server answers every request with a short text response. The client
+ * opens the given number of connections and sends GET requests over each
+ * connection, one at a time, for the given number of seconds. With "close",
+ * every request is sent over a new connection. With "headers=n", every
+ * request has n additional header lines (e.g. to measure header parsing).
+ * The client prints the number of requests per second, the number of
+ * connections opened, the 50th and 99th percentile latency and the number
+ * of failed requests (e.g. no response within 10 seconds).
+ *
+ ******************************************************************************/
+
+public class LoadGenerator {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 4 && args[0].equals("server")) {
+			server(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+			        args.length > 4 && args[4].equals("keepalive"));
+		} else if (args.length >= 5 && args[0].equals("client")) {
+			boolean close = false;
+			int headers = 0;
+			for (int i = 5; i < args.length; i++) {
+				if (args[i].equals("close"))
+					close = true;
+				else if (args[i].startsWith("headers="))
+					headers = Integer.parseInt(args[i].substring(8));
+			}
+			client(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), close,
+			        headers);
+		} else {
+			System.out.println("Usage: LoadGenerator server <port> <threads> <reactors> [keepalive]");
+			System.out.println("       LoadGenerator client <host> <port> <connections> <seconds> [close] [headers=n]");
+		}
+	}
+
+	// **************************************************************************
+	// ** server
+	// **************************************************************************
+	private static void server(int port, int threads, int reactors, boolean keepAlive) {
+		Server server = new Server(port, threads, new javaxt.http.servlet.HttpServlet() {
+			@Override
+			public void service(ServletRequest req, ServletResponse res) throws ServletException, IOException {
+				javaxt.http.servlet.HttpServletResponse response = (javaxt.http.servlet.HttpServletResponse) res;
+				response.setContentType("text/plain");
+				response.write("Hello, world!");
+			}
+		});
+		server.setNumReactors(reactors);
+		server.setAllowKeepAlive(keepAlive);
+		server.start();
+	}
+
+	// **************************************************************************
+	// ** client
+	// **************************************************************************
+	private static void client(final String host, final int port, int connections, int seconds, final boolean close,
+	        int headers) throws Exception {
+
+		StringBuilder str = new StringBuilder();
+		str.append("GET /index.html HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+		str.append("User-Agent: LoadGenerator\r\nAccept: */*\r\n");
+		for (int i = 0; i < headers; i++)
+			str.append("X-Header-").append(i).append(": value-").append(i).append("\r\n");
+		if (close)
+			str.append("Connection: close\r\n");
+		str.append("\r\n");
+		final byte[] request = str.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+		final long warmup = System.nanoTime() + 2000000000L;
+		final long end = warmup + seconds * 1000000000L;
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong connects = new AtomicLong();
+		final ArrayList<long[]> results = new ArrayList<long[]>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < connections; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					long[] latencies = new long[1024];
+					int count = 0;
+					Socket socket = null;
+					byte[] buf = new byte[8192];
+					while (true) {
+						long start = System.nanoTime();
+						if (start > end)
+							break;
+						try {
+							if (socket == null) {
+								socket = new Socket(host, port);
+								socket.setTcpNoDelay(true);
+								socket.setSoTimeout(10000);
+								if (start > warmup)
+									connects.incrementAndGet();
+							}
+							OutputStream out = socket.getOutputStream();
+							out.write(request);
+							out.flush();
+							boolean keepAlive = readResponse(socket.getInputStream(), buf);
+							if (close || !keepAlive) {
+								socket.close();
+								socket = null;
+							}
+						} catch (IOException e) {
+							if (start > warmup)
+								errors.incrementAndGet();
+							try {
+								if (socket != null)
+									socket.close();
+							} catch (IOException ex) {
+							}
+							socket = null;
+							continue;
+						}
+						if (start > warmup) {
+							if (count == latencies.length)
+								latencies = Arrays.copyOf(latencies, count * 2);
+							latencies[count++] = System.nanoTime() - start;
+						}
+					}
+					try {
+						if (socket != null)
+							socket.close();
+					} catch (IOException e) {
+					}
+					synchronized (results) {
+						results.add(Arrays.copyOf(latencies, count));
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		int total = 0;
+		for (long[] latencies : results)
+			total += latencies.length;
+		long[] all = new long[total];
+		int offset = 0;
+		for (long[] latencies : results) {
+			System.arraycopy(latencies, 0, all, offset, latencies.length);
+			offset += latencies.length;
+		}
+		Arrays.sort(all);
+		System.out.println(String.format("requests/s=%.0f connects/s=%.0f p50=%.2fms p99=%.2fms errors=%d",
+		        total / (double) seconds, connects.get() / (double) seconds, percentile(all, 0.5) / 1e6,
+		        percentile(all, 0.99) / 1e6, errors.get()));
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+
+	// **************************************************************************
+	// ** readResponse
+	// **************************************************************************
+	/**
+	 * Used to read a response with a Content-Length. Returns false if the
+	 * server closes the connection after the response.
+	 */
+	private static boolean readResponse(InputStream in, byte[] buf) throws IOException {
+		int length = 0;
+		int end = -1;
+		while (end < 0) {
+			int n = in.read(buf, length, buf.length - length);
+			if (n < 0)
+				throw new IOException("Connection closed");
+			for (int i = Math.max(3, length); i < length + n; i++) {
+				if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+					end = i + 1;
+					break;
+				}
+			}
+			length += n;
+			if (end < 0 && length == buf.length)
+				throw new IOException("Response header is too large");
+		}
+
+		String header = new String(buf, 0, end, StandardCharsets.ISO_8859_1).toLowerCase();
+		int idx = header.indexOf("content-length:");
+		if (idx < 0)
+			throw new IOException("Missing Content-Length");
+		long contentLength = Long.parseLong(header.substring(idx + 15, header.indexOf('\r', idx)).trim());
+		long remaining = contentLength - (length - end);
+		while (remaining > 0) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+			if (n < 0)
+				throw new IOException("Connection closed");
+			remaining -= n;
+		}
+		return !header.contains("connection: close");
+	}
+}
@@ -0,0 +1,134 @@
+package javaxt.http.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HpackTest {
+
+	private static byte[] hex(String str) {
+		str = str.replace(" ", "");
+		byte[] b = new byte[str.length() / 2];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) Integer.parseInt(str.substring(i * 2, i * 2 + 2), 16);
+		return b;
+	}
+
+	private static List<String> decode(Hpack.Decoder decoder, String hex) throws IOException {
+		byte[] b = hex(hex);
+		List<String> headers = new ArrayList<String>();
+		decoder.decode(b, 0, b.length, headers);
+		return headers;
+	}
+
+	/** Requests without Huffman coding (RFC 7541, Appendix C.3). */
+	@Test
+	public void requestsWithoutHuffman() throws IOException {
+		Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+		        decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+		assertEquals(
+		        Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+		                "cache-control", "no-cache"),
+		        decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+		assertEquals(
+		        Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority",
+		                "www.example.com", "custom-key", "custom-value"),
+		        decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+	}
+
+	/** Requests with Huffman coding (RFC 7541, Appendix C.4). */
+	@Test
+	public void requestsWithHuffman() throws IOException {
+		Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+		assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+		        decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+		assertEquals(
+		        Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+		                "cache-control", "no-cache"),
+		        decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+		assertEquals(
+		        Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority",
+		                "www.example.com", "custom-key", "custom-value"),
+		        decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+	}
+
+	/** Responses with Huffman coding and evictions (RFC 7541, Appendix C.6). */
+	@Test
+	public void responsesWithEviction() throws IOException {
+		Hpack.Decoder decoder = new Hpack.Decoder(256, 65536);
+		decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6 2d1b ff6e"
+		        + "919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3");
+		assertEquals(
+		        Arrays.asList(":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+		                "location", "https://www.example.com"),
+		        decode(decoder, "4883 640e ffc1 c0bf"));
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidIndex() throws IOException {
+		decode(new Hpack.Decoder(4096, 65536), "be");
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedString() throws IOException {
+		decode(new Hpack.Decoder(4096, 65536), "4005 6162");
+	}
+
+	@Test(expected = IOException.class)
+	public void headerListTooBig() throws IOException {
+		decode(new Hpack.Decoder(4096, 40), "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d");
+	}
+
+	@Test(expected = IOException.class)
+	public void tableSizeUpdateTooBig() throws IOException {
+		decode(new Hpack.Decoder(256, 65536), "3fe1 1f");
+	}
+
+	@Test
+	public void encoderRoundTrip() throws IOException {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+		String[] fields = { ":status", "200", "server", "JavaXT Web Server", "content-type", "text/html",
+		        "content-length", "1234", "set-cookie", "id=1", "x-custom", "value" };
+
+		for (int i = 0; i < 2; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (int j = 0; j < fields.length; j += 2)
+				encoder.encode(fields[j], fields[j + 1], out);
+			byte[] b = out.toByteArray();
+			List<String> headers = new ArrayList<String>();
+			decoder.decode(b, 0, b.length, headers);
+			assertEquals(Arrays.asList(fields), headers);
+		}
+
+		// Repeated headers are sent as an index into the dynamic table
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.encode("server", "JavaXT Web Server", out);
+		assertEquals(1, out.size());
+		assertTrue((out.toByteArray()[0] & 0x80) != 0);
+	}
+
+	@Test
+	public void encoderTableSizeUpdate() throws IOException {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+		encoder.setMaxTableSize(0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.encode("server", "JavaXT Web Server", out);
+		encoder.encode("server", "JavaXT Web Server", out);
+		byte[] b = out.toByteArray();
+		assertEquals(0x20, b[0] & 0xff);
+
+		List<String> headers = new ArrayList<String>();
+		decoder.decode(b, 0, b.length, headers);
+		assertEquals(Arrays.asList("server", "JavaXT Web Server", "server", "JavaXT Web Server"), headers);
+	}
+}
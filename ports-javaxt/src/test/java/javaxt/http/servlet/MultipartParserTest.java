@@ -0,0 +1,129 @@
+package javaxt.http.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class MultipartParserTest {
+
+	private static final String BODY = "preamble\r\n" + "--xyz\r\n"
+	        + "Content-Disposition: form-data; name=\"a\"\r\n" + "\r\n" + "hello\r\n" + "--xyz\r\n"
+	        + "Content-Disposition: form-data; name=\"b\"; filename=\"b.txt\"\r\n" + "Content-Type: text/plain\r\n"
+	        + "\r\n" + "line 1\r\n--xy\r\n-xyz\r\n--XYZ\r\nline 3\r\n" + "--xyz--\r\n" + "epilogue";
+
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String readPart(MultipartParser parser) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[7];
+		int n;
+		while ((n = parser.read(b, 0, b.length)) != -1)
+			out.write(b, 0, n);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/** Returns one byte per read to split the delimiters across reads. */
+	private static InputStream slow(byte[] b) {
+		return new ByteArrayInputStream(b) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+	}
+
+	private static void checkParts(MultipartParser parser) throws IOException {
+		HashMap<String, String> headers = parser.nextPart();
+		assertEquals("form-data; name=\"a\"", headers.get("Content-Disposition"));
+		assertEquals(1, parser.getPartNumber());
+		assertEquals("hello", readPart(parser));
+
+		headers = parser.nextPart();
+		assertEquals("text/plain", headers.get("Content-Type"));
+		assertEquals(2, parser.getPartNumber());
+		assertEquals("line 1\r\n--xy\r\n-xyz\r\n--XYZ\r\nline 3", readPart(parser));
+
+		assertNull(parser.nextPart());
+		assertNull(parser.nextPart());
+	}
+
+	@Test
+	public void parse() throws IOException {
+		checkParts(new MultipartParser(new ByteArrayInputStream(bytes(BODY)), "xyz", -1, -1, 1024));
+	}
+
+	@Test
+	public void parseOneByteAtATime() throws IOException {
+		checkParts(new MultipartParser(slow(bytes(BODY)), "xyz", -1, -1, 1024));
+	}
+
+	@Test
+	public void skipUnreadParts() throws IOException {
+		MultipartParser parser = new MultipartParser(new ByteArrayInputStream(bytes(BODY)), "xyz", -1, -1, 1024);
+		parser.nextPart();
+		assertEquals("text/plain", parser.nextPart().get("Content-Type"));
+		assertNull(parser.nextPart());
+	}
+
+	@Test
+	public void largePart() throws IOException {
+		byte[] data = new byte[300000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i % 251);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(bytes("--xyz\r\nContent-Disposition: form-data; name=\"f\"\r\n\r\n"));
+		body.write(data);
+		body.write(bytes("\r\n--xyz--\r\n"));
+
+		MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body.toByteArray()), "xyz", -1, -1,
+		        1024);
+		parser.nextPart();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[10000];
+		int n;
+		while ((n = parser.read(b, 0, b.length)) != -1)
+			out.write(b, 0, n);
+		assertArrayEquals(data, out.toByteArray());
+		assertNull(parser.nextPart());
+	}
+
+	@Test(expected = IOException.class)
+	public void maxPartSize() throws IOException {
+		MultipartParser parser = new MultipartParser(new ByteArrayInputStream(bytes(BODY)), "xyz", 10, -1, 1024);
+		parser.nextPart();
+		assertEquals("hello", readPart(parser));
+		parser.nextPart();
+		readPart(parser);
+	}
+
+	@Test(expected = IOException.class)
+	public void maxSize() throws IOException {
+		MultipartParser parser = new MultipartParser(slow(bytes(BODY)), "xyz", -1, 100, 1024);
+		while (parser.nextPart() != null)
+			readPart(parser);
+	}
+
+	@Test(expected = IOException.class)
+	public void missingEnd() throws IOException {
+		String body = "--xyz\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nhello";
+		MultipartParser parser = new MultipartParser(new ByteArrayInputStream(bytes(body)), "xyz", -1, -1, 1024);
+		parser.nextPart();
+		readPart(parser);
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidBoundary() throws IOException {
+		new MultipartParser(new ByteArrayInputStream(new byte[0]), "", -1, -1, 1024);
+	}
+}
@@ -0,0 +1,98 @@
+package javaxt.http.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class RequestHeaderTest {
+
+	private static RequestHeader parse(String str) {
+		byte[] data = str.getBytes(StandardCharsets.ISO_8859_1);
+		int end = RequestHeader.indexOfEnd(data, 0, data.length);
+		RequestHeader header = new RequestHeader();
+		header.parse(data, end);
+		return header;
+	}
+
+	@Test
+	public void indexOfEnd() {
+		byte[] data = "GET / HTTP/1.1\r\nHost: x\r\n\r\nbody".getBytes(StandardCharsets.ISO_8859_1);
+		assertEquals(27, RequestHeader.indexOfEnd(data, 0, data.length));
+		assertEquals(-1, RequestHeader.indexOfEnd(data, 0, 26));
+
+		// Resume the search where the previous search stopped
+		assertEquals(27, RequestHeader.indexOfEnd(data, 25, data.length));
+
+		// A bare LF is not the end of the header
+		data = "GET / HTTP/1.1\n\nHost: x\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		assertEquals(-1, RequestHeader.indexOfEnd(data, 0, data.length));
+	}
+
+	@Test
+	public void parseLines() {
+		RequestHeader header = parse("GET /index.html HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n");
+		assertEquals(3, header.size());
+		assertEquals("GET /index.html HTTP/1.1", header.getLine(0));
+		assertEquals("Host: localhost", header.getLine(1));
+		assertEquals(58, header.getLength());
+	}
+
+	@Test
+	public void getIsCaseInsensitive() {
+		RequestHeader header = parse("GET / HTTP/1.1\r\nContent-Type: text/plain\r\n\r\n");
+		assertEquals("text/plain", header.get("content-type"));
+		assertEquals("text/plain", header.get("CONTENT-TYPE"));
+		assertNull(header.get("Content"));
+		assertNull(header.get("Content-Type-X"));
+	}
+
+	@Test
+	public void valuesAreTrimmed() {
+		RequestHeader header = parse("GET / HTTP/1.1\r\nHost:   localhost \t\r\nEmpty:\r\nUrl: http://x:80/\r\n\r\n");
+		assertEquals("localhost", header.get("Host"));
+		assertEquals("", header.get("Empty"));
+
+		// Only the first colon separates the name from the value
+		assertEquals("http://x:80/", header.get("Url"));
+	}
+
+	@Test
+	public void requestLineIsNotAHeader() {
+		RequestHeader header = parse("GET http://x/ HTTP/1.1\r\nHost: x\r\n\r\n");
+		assertNull(header.get("GET http"));
+		assertEquals("[Host]", header.getNames().toString());
+	}
+
+	@Test
+	public void repeatedHeaders() {
+		RequestHeader header = parse("GET / HTTP/1.1\r\nCookie: a=1\r\nHost: x\r\ncookie: b=2\r\n\r\n");
+		assertEquals("a=1", header.get("Cookie"));
+		assertEquals("[a=1, b=2]", header.getAll("Cookie").toString());
+		assertEquals("[Cookie, Host, cookie]", header.getNames().toString());
+	}
+
+	@Test
+	public void manyLines() {
+		StringBuilder str = new StringBuilder("GET / HTTP/1.1\r\n");
+		for (int i = 0; i < 100; i++)
+			str.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+		str.append("\r\n");
+		RequestHeader header = parse(str.toString());
+		assertEquals(101, header.size());
+		assertEquals("0", header.get("X-Header-0"));
+		assertEquals("99", header.get("X-Header-99"));
+	}
+
+	@Test
+	public void set() {
+		RequestHeader header = parse("GET / HTTP/1.1\r\nHost: x\r\n\r\n");
+		header.set("host", "y");
+		header.set("Accept", "*/*");
+		assertEquals("y", header.get("Host"));
+		assertEquals("*/*", header.get("accept"));
+		assertEquals("GET / HTTP/1.1\r\nhost: y\r\nAccept: */*\r\n\r\n", header.toString());
+	}
+}
@@ -0,0 +1,164 @@
+package javaxt.http.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javaxt.http.Server;
+
+/**
+ * Sends raw requests to a server on the loopback interface to check how the
+ * length of the request body is determined and how chunked bodies are
+ * decoded.
+ */
+public class ServletInputStreamTest {
+
+	private static Server server;
+	private static int port;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		java.net.ServerSocket socket = new java.net.ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+
+		server = new Server(port, 2, new HttpServlet() {
+			@Override
+			public void service(ServletRequest req, ServletResponse res) throws javax.servlet.ServletException,
+			        IOException {
+				HttpServletRequest request = (HttpServletRequest) req;
+				HttpServletResponse response = (HttpServletResponse) res;
+				String body;
+				try {
+					body = new String(request.getBody(), StandardCharsets.UTF_8);
+				} catch (IOException e) {
+					body = "error";
+				}
+				response.write(request.getURL().getPath() + " body=" + body + "\n");
+			}
+		});
+		server.setAllowKeepAlive(true);
+		server.start();
+
+		// Wait for the server to accept connections
+		long timeout = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				break;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > timeout)
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.stop();
+	}
+
+	/** Sends the given bytes and returns everything the server sends back. */
+	private static String send(String request) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		try {
+			socket.setSoTimeout(10000);
+			socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] b = new byte[4096];
+			int n;
+			while ((n = in.read(b)) != -1)
+				out.write(b, 0, n);
+			return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static final String NEXT = "GET /next HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n";
+
+	@Test
+	public void contentLength() throws IOException {
+		String response = send("POST /a HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello" + NEXT);
+		assertTrue(response, response.contains("/a body=hello\n"));
+		assertTrue(response, response.contains("/next body=\n"));
+	}
+
+	@Test
+	public void chunked() throws IOException {
+		String response = send("POST /a HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n"
+		        + "5;name=value\r\nhello\r\n7\r\n, world\r\n0\r\nX-Trailer: 1\r\n\r\n" + NEXT);
+		assertTrue(response, response.contains("/a body=hello, world\n"));
+		assertTrue(response, response.contains("/next body=\n"));
+	}
+
+	@Test
+	public void chunkedWithOtherCoding() throws IOException {
+		String response = send("POST /a HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: identity, Chunked\r\n\r\n"
+		        + "A\r\n0123456789\r\n0\r\n\r\n" + NEXT);
+		assertTrue(response, response.contains("/a body=0123456789\n"));
+		assertTrue(response, response.contains("/next body=\n"));
+	}
+
+	@Test
+	public void invalidChunkSize() throws IOException {
+		String response = send(
+		        "POST /a HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\nhello\r\n0\r\n\r\n" + NEXT);
+		assertTrue(response, response.contains("/a body=error\n"));
+		assertFalse(response, response.contains("/next"));
+	}
+
+	@Test
+	public void missingChunkTerminator() throws IOException {
+		String response = send(
+		        "POST /a HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nhello\r\n0\r\n\r\n" + NEXT);
+		assertTrue(response, response.contains("/a body=error\n"));
+		assertFalse(response, response.contains("/next"));
+	}
+
+	@Test
+	public void unsupportedTransferEncoding() throws IOException {
+		String response = send("POST /a HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: gzip\r\n\r\n" + NEXT);
+		assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+		assertTrue(response, response.contains("Connection: Close"));
+		assertFalse(response, response.contains("/next"));
+	}
+
+	@Test
+	public void chunkedIsNotLast() throws IOException {
+		String response = send("POST /a HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked, gzip\r\n\r\n"
+		        + "5\r\nhello\r\n0\r\n\r\n" + NEXT);
+		assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+		assertFalse(response, response.contains("/next"));
+	}
+
+	@Test
+	public void transferEncodingAndContentLength() throws IOException {
+		String response = send("POST /a HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\nContent-Length: 3\r\n\r\n"
+		        + "5\r\nhello\r\n0\r\n\r\n" + NEXT);
+		assertTrue(response, response.contains("/a body=hello\n"));
+		assertTrue(response, response.contains("Connection: Close"));
+		assertFalse(response, response.contains("/next"));
+	}
+
+	@Test
+	public void noBody() throws IOException {
+		String response = send("GET /a HTTP/1.1\r\nHost: x\r\n\r\n" + NEXT);
+		assertEquals(2, response.split("HTTP/1.1 200 ").length - 1);
+	}
+}
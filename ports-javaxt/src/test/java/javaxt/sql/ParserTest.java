@@ -0,0 +1,120 @@
+package javaxt.sql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ParserTest {
+
+	private static String[] where(Parser parser) {
+		Parser.WhereStatement[] statements = parser.getWhereStatements();
+		String[] arr = new String[statements.length];
+		for (int i = 0; i < arr.length; i++) {
+			Parser.WhereStatement statement = statements[i];
+			arr[i] = statement.getLeftOperand() + " " + statement.getOperator() + " " + statement.getRightOperand();
+		}
+		return arr;
+	}
+
+	@Test
+	public void clauses() {
+		Parser parser = new Parser("SELECT id, name FROM users u JOIN orders o ON u.id=o.uid "
+		        + "WHERE id > 5 GROUP BY id ORDER BY name DESC, id");
+		assertEquals("id, name", parser.getSelectString());
+		assertEquals("users u JOIN orders o ON u.id=o.uid", parser.getFromString());
+		assertEquals("id > 5", parser.getWhereString());
+		assertEquals("id", parser.getGroupByString());
+		assertEquals("name DESC, id", parser.getOrderByString());
+		assertArrayEquals(new String[] { "users u", "orders o" }, parser.getTables());
+	}
+
+	@Test
+	public void missingClauses() {
+		Parser parser = new Parser("select * from t");
+		assertEquals("*", parser.getSelectString());
+		assertEquals("t", parser.getFromString());
+		assertNull(parser.getWhereString());
+		assertNull(parser.getOrderByString());
+		assertNull(parser.getGroupByString());
+	}
+
+	@Test
+	public void selectStatements() {
+		Parser parser = new Parser("SELECT id, name AS n, count(*) as \"c\" FROM t");
+		Parser.SelectStatement[] select = parser.getSelectStatements();
+		assertEquals(3, select.length);
+		assertEquals("id", select[0].getColumnName());
+		assertNull(select[0].getAlias());
+		assertEquals("name", select[1].getColumnName());
+		assertEquals("n", select[1].getAlias());
+		assertEquals("\"c\"", select[2].getAlias());
+	}
+
+	@Test
+	public void orderByStatements() {
+		Parser.OrderByStatement[] orderBy = new Parser("SELECT * FROM t ORDER BY name DESC, id").getOrderByStatements();
+		assertEquals(2, orderBy.length);
+		assertEquals("name", orderBy[0].getColumnName());
+		assertTrue(orderBy[0].isDescending());
+		assertEquals("id", orderBy[1].getColumnName());
+		assertFalse(orderBy[1].isDescending());
+	}
+
+	@Test
+	public void keywordsInsideWords() {
+		Parser parser = new Parser("SELECT * FROM t WHERE brand='x' AND color='red' OR orders=1");
+		assertArrayEquals(new String[] { "brand = 'x'", "color = 'red'", "orders = 1" }, where(parser));
+	}
+
+	@Test
+	public void keywordsInsideQuotes() {
+		Parser parser = new Parser("select * from t where a != 'b' and c in ('and','or')");
+		assertArrayEquals(new String[] { "a != 'b'", "c in ('and','or')" }, where(parser));
+
+		parser = new Parser("SELECT [my col] FROM [tab le] WHERE `x`='it''s where'");
+		assertEquals("[my col]", parser.getSelectString());
+		assertEquals("[tab le]", parser.getFromString());
+		assertEquals("`x`='it''s where'", parser.getWhereString());
+	}
+
+	@Test
+	public void between() {
+		Parser parser = new Parser("SELECT * FROM t WHERE x BETWEEN 1 AND 5 AND y=2");
+		assertArrayEquals(new String[] { "x BETWEEN 1 AND 5", "y = 2" }, where(parser));
+	}
+
+	@Test
+	public void parentheses() {
+		Parser parser = new Parser("SELECT a FROM t WHERE (a=1 OR b=2) AND c=3");
+		assertArrayEquals(new String[] { "a = 1", "b = 2", "c = 3" }, where(parser));
+	}
+
+	@Test
+	public void setWhereDoesNotChangeTheCache() {
+		String sql = "SELECT a FROM t WHERE a=1";
+		Parser parser = new Parser(sql);
+		parser.setWhere("b=2");
+		assertEquals("b=2", parser.getWhereString());
+		assertEquals("a=1", new Parser(sql).getWhereString());
+	}
+
+	@Test
+	public void cacheSize() {
+		int size = Parser.getCacheSize();
+		try {
+			Parser.setCacheSize(0);
+			assertEquals("a=1", new Parser("SELECT a FROM t WHERE a=1").getWhereString());
+			Parser.setCacheSize(2);
+			assertEquals(2, Parser.getCacheSize());
+			for (int i = 0; i < 10; i++)
+				assertEquals("a=" + i, new Parser("SELECT a FROM t WHERE a=" + i).getWhereString());
+		} finally {
+			Parser.setCacheSize(size);
+			Parser.clearCache();
+		}
+	}
+}